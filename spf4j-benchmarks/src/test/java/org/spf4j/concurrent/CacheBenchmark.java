@@ -66,6 +66,19 @@ public class CacheBenchmark {
   private static final LoadingCache<String, String> SPF4J_RACY
           = new UnboundedRacyLoadingCache<>(16, 16, TEST_LOADER);
 
+  private static final LoadingCache<String, String> GUAVA_BOUNDED = CacheBuilder.newBuilder()
+          .initialCapacity(16)
+          .concurrencyLevel(16)
+          .maximumSize(200)
+          .build(TEST_LOADER);
+
+  private static final LoadingCache<String, String> SPF4J_BOUNDED
+          = BoundedLoadingCacheBuilder.<String, String>newBuilder()
+          .withInitialCapacity(16)
+          .withConcurrency(16)
+          .withMaximumSize(200)
+          .build(TEST_LOADER);
+
   @Benchmark
   public final String spf4jCache() {
     return SPF4J.getUnchecked("key" + (ThreadLocalRandom.current().nextInt(100)));
@@ -86,4 +99,27 @@ public class CacheBenchmark {
     return GUAVA.getUnchecked("key" + (ThreadLocalRandom.current().nextInt(100)));
   }
 
+  @Benchmark
+  public final String guavaBoundedCache() {
+    return GUAVA_BOUNDED.getUnchecked("key" + (ThreadLocalRandom.current().nextInt(100)));
+  }
+
+  @Benchmark
+  public final String spf4jBoundedCache() {
+    return SPF4J_BOUNDED.getUnchecked("key" + (ThreadLocalRandom.current().nextInt(100)));
+  }
+
+  /**
+   * key space larger than the cache, (evictions).
+   */
+  @Benchmark
+  public final String guavaBoundedEvictingCache() {
+    return GUAVA_BOUNDED.getUnchecked("ekey" + (ThreadLocalRandom.current().nextInt(400)));
+  }
+
+  @Benchmark
+  public final String spf4jBoundedEvictingCache() {
+    return SPF4J_BOUNDED.getUnchecked("ekey" + (ThreadLocalRandom.current().nextInt(400)));
+  }
+
 }
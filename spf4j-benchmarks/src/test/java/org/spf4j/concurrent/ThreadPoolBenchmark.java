@@ -32,6 +32,7 @@
 package org.spf4j.concurrent;
 
 import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
@@ -78,6 +79,22 @@ public class ThreadPoolBenchmark {
 
   }
 
+  @State(Scope.Benchmark)
+  public static class WorkStealingLazySpf {
+
+    private final ExecutorService es = LifoThreadPoolBuilder.newBuilder()
+            .withQueueSizeLimit(10000)
+            .withSpinLockCount(0)
+            .workStealing()
+            .withMaxSize(8).build();
+
+    @TearDown
+    public void close() {
+      es.shutdown();
+      DefaultExecutor.INSTANCE.shutdown();
+    }
+
+  }
 
   public static long testPool(final ExecutorService executor)
           throws InterruptedException, IOException, ExecutionException {
@@ -103,6 +120,36 @@ public class ThreadPoolBenchmark {
     return longValue;
   }
 
+  /**
+   * Every task submitted by the benchmark thread submits more tasks (from the pool thread).
+   */
+  public static long testNestedPool(final ExecutorService executor) throws InterruptedException {
+    final java.util.concurrent.atomic.LongAdder adder = new java.util.concurrent.atomic.LongAdder();
+    final int testCount = 100;
+    final int nrChildren = 10;
+    final CountDownLatch latch = new CountDownLatch(testCount * nrChildren);
+    final Runnable child = new Runnable() {
+      @Override
+      public void run() {
+        adder.increment();
+        latch.countDown();
+      }
+    };
+    final Runnable parent = new Runnable() {
+      @Override
+      public void run() {
+        for (int i = 0; i < nrChildren; i++) {
+          executor.execute(child);
+        }
+      }
+    };
+    for (int i = 0; i < testCount; i++) {
+      executor.execute(parent);
+    }
+    latch.await();
+    return adder.longValue();
+  }
+
   @Benchmark
   public final long spfLifoTpBenchmark(final LazySpf exec)
           throws InterruptedException, IOException, ExecutionException {
@@ -115,5 +162,21 @@ public class ThreadPoolBenchmark {
     return testPool(exec.es);
   }
 
+  @Benchmark
+  public final long workStealingSpfLifoTpBenchmark(final WorkStealingLazySpf exec)
+          throws InterruptedException, IOException, ExecutionException {
+    return testPool(exec.es);
+  }
+
+  @Benchmark
+  public final long spfLifoTpNestedBenchmark(final LazySpf exec) throws InterruptedException {
+    return testNestedPool(exec.es);
+  }
+
+  @Benchmark
+  public final long workStealingSpfLifoTpNestedBenchmark(final WorkStealingLazySpf exec)
+          throws InterruptedException {
+    return testNestedPool(exec.es);
+  }
 
 }
@@ -63,4 +63,9 @@ public class ThreadPoolBenchmarkFjp {
     return ThreadPoolBenchmark.testPool(exec.es);
   }
 
+  @Benchmark
+  public final long fjpNestedBenchmark(final LazyFjp exec) throws InterruptedException {
+    return ThreadPoolBenchmark.testNestedPool(exec.es);
+  }
+
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import java.util.concurrent.ThreadLocalRandom;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Compares recording into: a single synchronized QuantizedAccumulator, thread local QuantizedAccumulators
+ * (ScalableMeasurementRecorder) and a single ConcurrentQuantizedAccumulator.
+ */
+@State(Scope.Benchmark)
+@Fork(2)
+@Threads(value = 8)
+public class QuantizedAccumulatorBenchmark {
+
+  private final QuantizedAccumulator syncAcc = new QuantizedAccumulator("sync", "", "ms", 10, 0, 6, 10);
+
+  private final ConcurrentQuantizedAccumulator concurrentAcc
+          = new ConcurrentQuantizedAccumulator("concurrent", "", "ms", 10, 0, 6, 10);
+
+  private final ScalableMeasurementRecorder threadLocalAcc = new ScalableMeasurementRecorder(
+          new QuantizedAccumulator("threadLocal", "", "ms", 10, 0, 6, 10), 60000, new NopMeasurementStore());
+
+  @TearDown
+  public void close() {
+    threadLocalAcc.close();
+  }
+
+  @Benchmark
+  public final void synchronizedQuantized() {
+    syncAcc.record(ThreadLocalRandom.current().nextLong(1000000));
+  }
+
+  @Benchmark
+  public final void threadLocalQuantized() {
+    threadLocalAcc.record(ThreadLocalRandom.current().nextLong(1000000));
+  }
+
+  @Benchmark
+  public final void concurrentQuantized() {
+    concurrentAcc.record(ThreadLocalRandom.current().nextLong(1000000));
+  }
+
+}
@@ -31,7 +31,9 @@
  */
 package org.spf4j.stackmonitor;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import org.openjdk.jmh.annotations.Benchmark;
 import org.openjdk.jmh.annotations.Fork;
 import org.openjdk.jmh.annotations.Scope;
@@ -56,6 +58,42 @@ public class BenchmarkStackCollectors {
 
         private static volatile List<Thread> testThreads;
 
+        /**
+         * Deep stacks (a pool worker waiting, ~100 frames) of 8 threads, where only the top of the stack changes
+         * from sample to sample, the typical case for server thread pools.
+         */
+        private static final int NR_DEEP_THREADS = 8;
+
+        private static final int NR_TOPS = 4;
+
+        private static final StackTraceElement[][] DEEP_STACKS = createDeepStacks(NR_DEEP_THREADS, 100, NR_TOPS);
+
+        private final CompactSampleTree fullTree = new CompactSampleTree();
+
+        private final CompactSampleTree deltaTree = new CompactSampleTree();
+
+        private final CompactSampleTree.SamplePath[] paths = new CompactSampleTree.SamplePath[NR_DEEP_THREADS];
+
+        private int sampleNr = 0;
+
+        private static StackTraceElement[][] createDeepStacks(final int nrThreads, final int depth,
+                final int nrTops) {
+          StackTraceElement[][] result = new StackTraceElement[nrThreads * nrTops][];
+          for (int t = 0; t < nrThreads; t++) {
+            for (int k = 0; k < nrTops; k++) {
+              StackTraceElement[] stack = new StackTraceElement[depth];
+              for (int i = 1; i < depth; i++) {
+                // JVM captured stack frames have interned class and method names.
+                stack[i] = new StackTraceElement(("org.spf4j.pool.Worker" + (i % 7)).intern(),
+                        ("run" + (depth - i) % 11).intern(), "Worker.java", i);
+              }
+              stack[0] = new StackTraceElement("sun.misc.Unsafe", ("park" + k).intern(), "Unsafe.java", -2);
+              result[t * nrTops + k] = stack;
+            }
+          }
+          return result;
+        }
+
         @Setup
         public static void setup() {
             testThreads = DemoTest.startTestThreads(8);
@@ -76,10 +114,74 @@ public class BenchmarkStackCollectors {
             FAST.sample(Thread.currentThread());
         }
 
+        /**
+         * Idle threads, (parked pool workers) that do not use CPU between samples.
+         */
+        @State(Scope.Benchmark)
+        public static class IdleThreads {
+
+          private final CountDownLatch latch = new CountDownLatch(1);
+
+          private final List<Thread> threads = new ArrayList<>();
+
+          @Setup
+          public final void setup() {
+            for (int i = 0; i < 32; i++) {
+              Thread t = new Thread(() -> {
+                try {
+                  latch.await();
+                } catch (InterruptedException ex) {
+                  // simply exit
+                }
+              }, "IdleThread" + i);
+              t.start();
+              threads.add(t);
+            }
+          }
+
+          @TearDown
+          public final void tearDown() throws InterruptedException {
+            latch.countDown();
+            for (Thread t : threads) {
+              t.join();
+            }
+          }
+        }
+
+        @Benchmark
+        public final void testFastIdleThreads(final IdleThreads idle) {
+            FAST.sample(Thread.currentThread());
+        }
+
         @Benchmark
         public final void testMx() {
             MX.sample(Thread.currentThread());
         }
 
+        @Benchmark
+        public final int testIngestFullStacks() {
+            int nr = sampleNr++;
+            int result = 0;
+            for (int t = 0; t < paths.length; t++) {
+              result += fullTree.addSample(DEEP_STACKS[t * NR_TOPS + (nr + t) % NR_TOPS]);
+            }
+            return result;
+        }
+
+        @Benchmark
+        public final int testIngestDeltaStacks() {
+            int nr = sampleNr++;
+            int result = 0;
+            for (int t = 0; t < paths.length; t++) {
+              CompactSampleTree.SamplePath path = paths[t];
+              if (path == null) {
+                path = new CompactSampleTree.SamplePath();
+                paths[t] = path;
+              }
+              result += deltaTree.addSample(path, DEEP_STACKS[t * NR_TOPS + (nr + t) % NR_TOPS]);
+            }
+            return result;
+        }
+
 
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.perf.impl.QuantizedAccumulator;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Compares scanning a tsdb2 file with row blocks vs columnar blocks.
+ * The data is synthetic QuantizedAccumulator output, the file sizes are logged at setup.
+ */
+@State(Scope.Benchmark)
+@Fork(2)
+@Threads(value = 1)
+public class TSDB2FormatBenchmark {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TSDB2FormatBenchmark.class);
+
+  private static final int NR_SAMPLES = 50000;
+
+  @Param({"10", "100"})
+  private int maxMeasurementsPerSample;
+
+  private File rowFile;
+
+  private long rowTableId;
+
+  private File columnarFile;
+
+  private long columnarTableId;
+
+  @Setup
+  public void setup() throws IOException {
+    rowFile = File.createTempFile("rows", ".tsdb2");
+    columnarFile = File.createTempFile("columnar", ".tsdb2");
+    rowTableId = writeQuantizedData(rowFile, false, maxMeasurementsPerSample);
+    columnarTableId = writeQuantizedData(columnarFile, true, maxMeasurementsPerSample);
+    LOG.info("Row format size = {}, columnar format size = {}", rowFile.length(), columnarFile.length());
+  }
+
+  @TearDown
+  public void tearDown() throws IOException {
+    delete(rowFile);
+    delete(columnarFile);
+  }
+
+  private static void delete(final File file) throws IOException {
+    Files.deleteIfExists(file.toPath());
+    Files.deleteIfExists(TSDBIndex.getIndexFile(file).toPath());
+  }
+
+  private static long writeQuantizedData(final File file, final boolean columnar, final int maxMeasurements)
+          throws IOException {
+    QuantizedAccumulator acc = new QuantizedAccumulator("test", "", "ms", 10, 0, 6, 10);
+    String[] names = acc.getInfo().getMeasurementNames();
+    List<ColumnDef> columns = new ArrayList<>(names.length);
+    for (String name : names) {
+      columns.add(ColumnDef.newBuilder().setName(name).setUnitOfMeasurement("ms").build());
+    }
+    TableDef tableDef = TableDef.newBuilder().setName("test").setSampleTime(10000).setColumns(columns).build();
+    Random rnd = new Random(0);
+    long time = System.currentTimeMillis();
+    try (TSDBWriter writer = new TSDBWriter(file, 1000, "test", false, columnar)) {
+      long tableId = writer.writeTableDef(tableDef);
+      for (int i = 0; i < NR_SAMPLES; i++) {
+        for (int j = 0, l = rnd.nextInt(maxMeasurements); j < l; j++) {
+          acc.record((long) Math.abs(rnd.nextGaussian() * 1000));
+        }
+        long[] data = acc.getThenReset();
+        if (data != null) {
+          writer.writeDataRow(tableId, time + i * 10000L, data);
+        }
+      }
+      return tableId;
+    }
+  }
+
+  @Benchmark
+  public final TimeSeries scanRowFormat() throws IOException {
+    return TSDBQuery.getTimeSeries(rowFile, new long[] {rowTableId}, 0, Long.MAX_VALUE);
+  }
+
+  @Benchmark
+  public final TimeSeries scanColumnarFormat() throws IOException {
+    return TSDBQuery.getTimeSeries(columnarFile, new long[] {columnarTableId}, 0, Long.MAX_VALUE);
+  }
+
+}
@@ -0,0 +1,445 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import com.google.common.annotations.VisibleForTesting;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.base.TimeSource;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.jmx.Registry;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.impl.RecorderFactory;
+
+/**
+ * Executor that limits the number of in flight (queued + running) tasks of a LifoThreadPool, the limit is adjusted
+ * based on the measured task latency (queue wait + run time) with a gradient algorithm:
+ *
+ * gradient = max(0.5, min(1, tolerance * longLatency / shortLatency)),
+ * newLimit = limit * gradient + sqrt(limit), smoothed and bounded by [minLimit, maxLimit].
+ *
+ * where shortLatency and longLatency are exponential moving averages over ~10 and ~600 samples.
+ * When latency increases (downstream slowdown), the limit decreases and tasks are rejected early through the
+ * RejectedExecutionHandler, instead of piling up in the pool queue. The limit does not grow when the executor
+ * is not used at least at half of its limit.
+ *
+ * Queue wait time, run time and the limit are recorded with spf4j measurement recorders (stored in the
+ * measurement store, and exported via JMX), the live limit and latency are exported via JMX by exportJmx().
+ *
+ * The wrapped pool is expected to throw when it rejects a task, (a silently discarded task will never
+ * release its in flight permit). The pool max thread count should be at least maxLimit.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+public final class AdaptiveConcurrencyLimitingExecutor extends AbstractExecutorService {
+
+  private static final int SAMPLE_TIME_MILLIS = Integer.getInteger("spf4j.adaptiveExecutor.sampleTimeMillis", 60000);
+
+  private static final long CLOSE_CHECK_MILLIS = 1000;
+
+  private static final double SHORT_ALPHA = 2d / (10 + 1);
+
+  private static final double LONG_ALPHA = 2d / (600 + 1);
+
+  /**
+   * the latency increase tolerated without reducing the limit.
+   */
+  private static final double TOLERANCE = 1.5;
+
+  private static final double SMOOTHING = 0.2;
+
+  private final String name;
+
+  private final LifoThreadPool pool;
+
+  private final RejectedExecutionHandler rejectionHandler;
+
+  private final AtomicInteger inFlight;
+
+  private final LongAdder nrRejected;
+
+  private final MeasurementRecorder waitTimeRecorder;
+
+  private final MeasurementRecorder runTimeRecorder;
+
+  private final MeasurementRecorder limitRecorder;
+
+  private final Object closeSync;
+
+  @GuardedBy("closeSync")
+  private boolean recordersClosed;
+
+  @GuardedBy("closeSync")
+  @Nullable
+  private ScheduledFuture<?> closeCheck;
+
+  /**
+   * guards the limit computation, samples that arrive while a other thread is updating the limit are not used
+   * for the limit computation.
+   */
+  private final ReentrantLock updateLock;
+
+  @GuardedBy("updateLock")
+  private double estimatedLimit;
+
+  @GuardedBy("updateLock")
+  private double shortLatencyNanos;
+
+  @GuardedBy("updateLock")
+  private double longLatencyNanos;
+
+  private volatile int limit;
+
+  private volatile int minLimit;
+
+  private volatile int maxLimit;
+
+  public AdaptiveConcurrencyLimitingExecutor(final String name, final LifoThreadPool pool) {
+    this(name, pool, RejectedExecutionHandler.REJECT_EXCEPTION_EXEC_HANDLER, Math.min(20, pool.getMaxThreadCount()),
+            1, pool.getMaxThreadCount());
+  }
+
+  /**
+   * @param name the name of this executor, used for the JMX and the measurement recorder names.
+   * @param pool the pool to execute tasks with.
+   * @param rejectionHandler the handler invoked with the tasks submitted while the in flight tasks are at the limit.
+   * @param initialLimit the initial concurrency limit.
+   * @param minLimit the minimum concurrency limit.
+   * @param maxLimit the maximum concurrency limit.
+   */
+  public AdaptiveConcurrencyLimitingExecutor(final String name, final LifoThreadPool pool,
+          final RejectedExecutionHandler rejectionHandler,
+          final int initialLimit, final int minLimit, final int maxLimit) {
+    if (minLimit < 1 || minLimit > initialLimit || initialLimit > maxLimit) {
+      throw new IllegalArgumentException("Invalid limits, must be 1 <= min <= initial <= max: "
+              + minLimit + ", " + initialLimit + ", " + maxLimit);
+    }
+    this.name = name;
+    this.pool = pool;
+    this.rejectionHandler = rejectionHandler;
+    this.inFlight = new AtomicInteger();
+    this.nrRejected = new LongAdder();
+    this.updateLock = new ReentrantLock();
+    this.estimatedLimit = initialLimit;
+    this.shortLatencyNanos = -1;
+    this.longLatencyNanos = -1;
+    this.limit = initialLimit;
+    this.minLimit = minLimit;
+    this.maxLimit = maxLimit;
+    this.waitTimeRecorder = RecorderFactory.createScalableQuantizedRecorder(name + "-queue-wait", "us",
+            SAMPLE_TIME_MILLIS, 10, 0, 7, 10);
+    this.runTimeRecorder = RecorderFactory.createScalableQuantizedRecorder(name + "-run-time", "us",
+            SAMPLE_TIME_MILLIS, 10, 0, 7, 10);
+    this.limitRecorder = RecorderFactory.createScalableMinMaxAvgRecorder(name + "-concurrency-limit", "count",
+            SAMPLE_TIME_MILLIS);
+    this.closeSync = new Object();
+    this.recordersClosed = false;
+    this.closeCheck = null;
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    if (inFlight.incrementAndGet() > limit) {
+      inFlight.decrementAndGet();
+      nrRejected.increment();
+      rejectionHandler.rejectedExecution(command, pool);
+      return;
+    }
+    try {
+      pool.execute(new MeasuredTask(command));
+    } catch (RuntimeException | Error ex) {
+      inFlight.decrementAndGet();
+      throw ex;
+    }
+  }
+
+  /**
+   * Update the limit with a latency sample.
+   * @param latencyNanos the task latency (wait + run time).
+   * @param nrInFlight the number of tasks in flight when the task was submitted.
+   */
+  @VisibleForTesting
+  @SuppressFBWarnings(value = "MDM_THREAD_FAIRNESS", justification = "the lock is not fair, tryLock does not block")
+  void onSample(final long latencyNanos, final int nrInFlight) {
+    if (!updateLock.tryLock()) {
+      return;
+    }
+    try {
+      if (shortLatencyNanos < 0) {
+        shortLatencyNanos = latencyNanos;
+        longLatencyNanos = latencyNanos;
+      } else {
+        shortLatencyNanos += (latencyNanos - shortLatencyNanos) * SHORT_ALPHA;
+        longLatencyNanos += (latencyNanos - longLatencyNanos) * LONG_ALPHA;
+      }
+      if (longLatencyNanos > 2 * shortLatencyNanos) {
+        // latency is down, the long average needs to catch up faster.
+        longLatencyNanos *= 0.95;
+      }
+      if (nrInFlight < estimatedLimit / 2) {
+        // not enough load to tell anything about the limit.
+        return;
+      }
+      double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * longLatencyNanos / Math.max(1, shortLatencyNanos)));
+      double newLimit = estimatedLimit * gradient + Math.sqrt(estimatedLimit);
+      newLimit = estimatedLimit * (1 - SMOOTHING) + newLimit * SMOOTHING;
+      newLimit = Math.max(minLimit, Math.min(maxLimit, newLimit));
+      estimatedLimit = newLimit;
+      int intLimit = (int) newLimit;
+      limit = intLimit;
+      limitRecorder.record(intLimit);
+    } finally {
+      updateLock.unlock();
+    }
+  }
+
+  private final class MeasuredTask implements Runnable {
+
+    private final Runnable task;
+
+    private final long submitNanos;
+
+    private final int nrInFlight;
+
+    MeasuredTask(final Runnable task) {
+      this.task = task;
+      this.submitNanos = TimeSource.nanoTime();
+      this.nrInFlight = inFlight.get();
+    }
+
+    @Override
+    public void run() {
+      long startNanos = TimeSource.nanoTime();
+      try {
+        task.run();
+      } finally {
+        long endNanos = TimeSource.nanoTime();
+        inFlight.decrementAndGet();
+        waitTimeRecorder.record(TimeUnit.NANOSECONDS.toMicros(startNanos - submitNanos));
+        runTimeRecorder.record(TimeUnit.NANOSECONDS.toMicros(endNanos - startNanos));
+        onSample(endNanos - submitNanos, nrInFlight);
+      }
+    }
+
+    @Override
+    public String toString() {
+      return "MeasuredTask{" + "task=" + task + ", submitNanos=" + submitNanos + '}';
+    }
+
+  }
+
+  @JmxExport(description = "the current concurrency limit")
+  public int getLimit() {
+    return limit;
+  }
+
+  @JmxExport(description = "the number of queued or running tasks")
+  public int getInFlight() {
+    return inFlight.get();
+  }
+
+  @JmxExport(description = "the number of tasks rejected due to the concurrency limit")
+  public long getNrRejected() {
+    return nrRejected.sum();
+  }
+
+  @JmxExport(description = "the short term moving average of the task latency in microseconds")
+  @SuppressFBWarnings(value = "MDM_WAIT_WITHOUT_TIMEOUT", justification = "holders of the lock do not block")
+  public long getShortLatencyMicros() {
+    updateLock.lock();
+    try {
+      return (long) (shortLatencyNanos / 1000);
+    } finally {
+      updateLock.unlock();
+    }
+  }
+
+  @JmxExport(description = "the long term moving average of the task latency in microseconds")
+  @SuppressFBWarnings(value = "MDM_WAIT_WITHOUT_TIMEOUT", justification = "holders of the lock do not block")
+  public long getLongLatencyMicros() {
+    updateLock.lock();
+    try {
+      return (long) (longLatencyNanos / 1000);
+    } finally {
+      updateLock.unlock();
+    }
+  }
+
+  @JmxExport
+  public int getMinLimit() {
+    return minLimit;
+  }
+
+  @JmxExport
+  public void setMinLimit(final int minLimit) {
+    this.minLimit = minLimit;
+  }
+
+  @JmxExport
+  public int getMaxLimit() {
+    return maxLimit;
+  }
+
+  @JmxExport
+  public void setMaxLimit(final int maxLimit) {
+    this.maxLimit = maxLimit;
+  }
+
+  public LifoThreadPool getPool() {
+    return pool;
+  }
+
+  public void exportJmx() {
+    Registry.export(AdaptiveConcurrencyLimitingExecutor.class.getName(), name, this);
+  }
+
+  public void unregisterJmx() {
+    Registry.unregister(AdaptiveConcurrencyLimitingExecutor.class.getName(), name);
+  }
+
+  @Override
+  public void shutdown() {
+    pool.shutdown();
+    closeRecordersOnTermination();
+  }
+
+  /**
+   * The recorders (JMX beans, persisters and shutdown hooks) are closed when the pool terminates.
+   * Termination is checked periodically, so no thread is held waiting for a pool that might never terminate.
+   */
+  private void closeRecordersOnTermination() {
+    synchronized (closeSync) {
+      if (recordersClosed || closeCheck != null) {
+        return;
+      }
+      if (pool.isTerminated()) {
+        closeRecorders();
+        return;
+      }
+      closeCheck = DefaultScheduler.INSTANCE.scheduleWithFixedDelay(new AbstractRunnable(true) {
+        @Override
+        public void doRun() {
+          if (pool.isTerminated()) {
+            closeRecorders();
+          }
+        }
+      }, CLOSE_CHECK_MILLIS, CLOSE_CHECK_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * closes the recorders, concurrent callers wait for the recorders to be closed.
+   */
+  private void closeRecorders() {
+    synchronized (closeSync) {
+      if (recordersClosed) {
+        return;
+      }
+      if (closeCheck != null) {
+        closeCheck.cancel(false);
+        closeCheck = null;
+      }
+      try {
+        waitTimeRecorder.close();
+        runTimeRecorder.close();
+        limitRecorder.close();
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      } finally {
+        recordersClosed = true;
+      }
+    }
+  }
+
+  /**
+   * @return the tasks that never commenced execution, (including tasks not submitted via this executor).
+   */
+  @Override
+  public List<Runnable> shutdownNow() {
+    List<Runnable> tasks = pool.shutdownNow();
+    closeRecordersOnTermination();
+    List<Runnable> result = new ArrayList<>(tasks.size());
+    for (Runnable task : tasks) {
+      if (task instanceof MeasuredTask) {
+        inFlight.decrementAndGet();
+        result.add(((MeasuredTask) task).task);
+      } else {
+        result.add(task);
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public boolean isShutdown() {
+    return pool.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated() {
+    if (pool.isTerminated()) {
+      closeRecorders();
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public boolean awaitTermination(final long timeout, final TimeUnit unit) throws InterruptedException {
+    if (pool.awaitTermination(timeout, unit)) {
+      closeRecorders();
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public String toString() {
+    return "AdaptiveConcurrencyLimitingExecutor{" + "name=" + name + ", limit=" + limit + ", inFlight=" + inFlight
+            + ", minLimit=" + minLimit + ", maxLimit=" + maxLimit + ", pool=" + pool + '}';
+  }
+
+}
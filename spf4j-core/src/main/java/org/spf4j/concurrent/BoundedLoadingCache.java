@@ -0,0 +1,1405 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.AbstractCollection;
+import java.util.AbstractSet;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.MemorizedCallable;
+import org.spf4j.base.TimeSource;
+
+/**
+ * Bounded loading cache, complementing UnboundedLoadingCache for key spaces that grow.
+ *
+ * Eviction uses W-TinyLFU: new entries are admitted in a small LRU window (1% of the maximum weight), entries evicted
+ * from the window compete for a place in the main segmented LRU (probation 20%, protected 80%) against the probation
+ * LRU victim, based on their access frequency estimated by a 4 bit count-min sketch (TinyLFU).
+ *
+ * Reads are lock free: a concurrent map lookup plus recording the access into a striped, lossy ring buffer
+ * (accesses are dropped when the buffer is full). Writes are queued in a write buffer. The eviction policy is
+ * updated by draining the buffers under a lock that is only tried (never waited on), amortising the
+ * eviction work across the cache users.
+ *
+ * Entries can expire after write and/or access, and can be refreshed asynchronously (CacheLoader.reload) when
+ * read after the refresh interval, the old value is returned until the refresh completes.
+ * Expired entries are never returned, they are removed when read, or when they reach the LRU end of their segment.
+ *
+ * Concurrent loads of the same key are coalesced (like in UnboundedLoadingCache), load failures are not cached.
+ *
+ * See BoundedLoadingCacheBuilder for constructing instances.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+public final class BoundedLoadingCache<K, V> implements LoadingCache<K, V> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(BoundedLoadingCache.class);
+
+  private static final byte NONE = 0;
+
+  private static final byte WINDOW = 1;
+
+  private static final byte PROBATION = 2;
+
+  private static final byte PROTECTED = 3;
+
+  private static final int NR_READ_BUFFERS = ceilingPowerOfTwo(Math.min(org.spf4j.base.Runtime.NR_PROCESSORS, 64));
+
+  private final ConcurrentMap<K, Node<K, V>> map;
+
+  private final CacheLoader<K, V> loader;
+
+  @Nullable
+  private final Weigher<? super K, ? super V> weigher;
+
+  private final long maximumWeight;
+
+  private final long expireAfterWriteNanos;
+
+  private final long expireAfterAccessNanos;
+
+  private final long refreshAfterWriteNanos;
+
+  private final boolean timed;
+
+  private final Executor refreshExecutor;
+
+  private final ReadBuffer<K, V>[] readBuffers;
+
+  private final Queue<Runnable> writeBuffer;
+
+  private final ReentrantLock evictionLock;
+
+  @GuardedBy("evictionLock")
+  private final FrequencySketch sketch;
+
+  @GuardedBy("evictionLock")
+  private final AccessOrderDeque<K, V> window;
+
+  @GuardedBy("evictionLock")
+  private final AccessOrderDeque<K, V> probation;
+
+  @GuardedBy("evictionLock")
+  private final AccessOrderDeque<K, V> protectedDeque;
+
+  private final long windowMaximum;
+
+  private final long protectedMaximum;
+
+  @GuardedBy("evictionLock")
+  private long weightedSize;
+
+  @GuardedBy("evictionLock")
+  private long windowWeightedSize;
+
+  @GuardedBy("evictionLock")
+  private long protectedWeightedSize;
+
+  private final LongAdder hitCount;
+
+  private final LongAdder missCount;
+
+  private final LongAdder loadSuccessCount;
+
+  private final LongAdder loadExceptionCount;
+
+  private final LongAdder totalLoadTime;
+
+  private final LongAdder evictionCount;
+
+  BoundedLoadingCache(final int initialCapacity, final int concurrency, final long maximumWeight,
+          @Nullable final Weigher<? super K, ? super V> weigher,
+          final long expireAfterWriteNanos, final long expireAfterAccessNanos, final long refreshAfterWriteNanos,
+          final Executor refreshExecutor, final CacheLoader<K, V> loader) {
+    if (maximumWeight < 0 || expireAfterWriteNanos < 0 || expireAfterAccessNanos < 0 || refreshAfterWriteNanos <= 0) {
+      throw new IllegalArgumentException("Invalid cache config: maximumWeight=" + maximumWeight
+              + ", expireAfterWriteNanos=" + expireAfterWriteNanos + ", expireAfterAccessNanos="
+              + expireAfterAccessNanos + ", refreshAfterWriteNanos=" + refreshAfterWriteNanos);
+    }
+    this.map = new ConcurrentHashMap<>(initialCapacity, 0.75f, concurrency);
+    this.loader = loader;
+    this.weigher = weigher;
+    this.maximumWeight = maximumWeight;
+    this.expireAfterWriteNanos = expireAfterWriteNanos;
+    this.expireAfterAccessNanos = expireAfterAccessNanos;
+    this.refreshAfterWriteNanos = refreshAfterWriteNanos;
+    this.timed = expireAfterWriteNanos != Long.MAX_VALUE || expireAfterAccessNanos != Long.MAX_VALUE
+            || refreshAfterWriteNanos != Long.MAX_VALUE;
+    this.refreshExecutor = refreshExecutor;
+    this.readBuffers = new ReadBuffer[NR_READ_BUFFERS];
+    for (int i = 0; i < NR_READ_BUFFERS; i++) {
+      readBuffers[i] = new ReadBuffer<>();
+    }
+    this.writeBuffer = new ConcurrentLinkedQueue<>();
+    this.evictionLock = new ReentrantLock();
+    this.sketch = new FrequencySketch(weigher == null ? maximumWeight : Math.min(maximumWeight, 1 << 20));
+    this.window = new AccessOrderDeque<>();
+    this.probation = new AccessOrderDeque<>();
+    this.protectedDeque = new AccessOrderDeque<>();
+    this.windowMaximum = Math.max(1, maximumWeight / 100);
+    this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * 0.8);
+    this.hitCount = new LongAdder();
+    this.missCount = new LongAdder();
+    this.loadSuccessCount = new LongAdder();
+    this.loadExceptionCount = new LongAdder();
+    this.totalLoadTime = new LongAdder();
+    this.evictionCount = new LongAdder();
+  }
+
+  @Override
+  public V get(final K key) throws ExecutionException {
+    return get(key, new Callable<V>() {
+      @Override
+      public V call() throws Exception {
+        return loader.load(key);
+      }
+    });
+  }
+
+  @Override
+  public V get(final K key, final Callable<? extends V> valueLoader) throws ExecutionException {
+    long nowNanos = timed ? TimeSource.nanoTime() : 0L;
+    Node<K, V> node = map.get(key);
+    if (node != null) {
+      if (!isExpired(node, nowNanos)) {
+        V value = node.value;
+        if (value == null) {
+          value = node.load();
+        } else {
+          hitCount.increment();
+        }
+        afterRead(node, nowNanos);
+        return value;
+      }
+      if (map.remove(key, node)) {
+        afterRemove(node);
+      }
+    }
+    missCount.increment();
+    Node<K, V> newNode = new Node<>(key, new MemorizedCallable(valueLoader));
+    long startNanos = TimeSource.nanoTime();
+    // the value might be visible to other threads before the load returns, the times need to be valid.
+    newNode.writeNanos = startNanos;
+    newNode.accessNanos = startNanos;
+    node = map.putIfAbsent(key, newNode);
+    if (node != null) {
+      // a concurrent load, (or put) of the same key, use it.
+      V value = node.value;
+      return value == null ? node.load() : value;
+    }
+    V value;
+    try {
+      value = newNode.load();
+    } catch (ExecutionException | RuntimeException | Error ex) {
+      loadExceptionCount.increment();
+      totalLoadTime.add(TimeSource.nanoTime() - startNanos);
+      if (map.remove(key, newNode)) {
+        newNode.alive = false;
+      }
+      throw ex;
+    }
+    long endNanos = TimeSource.nanoTime();
+    loadSuccessCount.increment();
+    totalLoadTime.add(endNanos - startNanos);
+    newNode.writeNanos = endNanos;
+    newNode.accessNanos = endNanos;
+    afterWrite(new AddTask(newNode, weigh(key, value)));
+    return value;
+  }
+
+  private int weigh(final K key, final V value) {
+    if (weigher == null) {
+      return 1;
+    }
+    int weight = weigher.weigh(key, value);
+    if (weight < 0) {
+      throw new IllegalStateException("Negative weight " + weight + " for " + key);
+    }
+    return weight;
+  }
+
+  private boolean isExpired(final Node<K, V> node, final long nowNanos) {
+    return timed && node.value != null && (nowNanos - node.writeNanos >= expireAfterWriteNanos
+            || nowNanos - node.accessNanos >= expireAfterAccessNanos);
+  }
+
+  private void afterRead(final Node<K, V> node, final long nowNanos) {
+    if (timed) {
+      if (expireAfterAccessNanos != Long.MAX_VALUE) {
+        node.accessNanos = nowNanos;
+      }
+      if (nowNanos - node.writeNanos >= refreshAfterWriteNanos && node.startRefresh()) {
+        refresh(node);
+      }
+    }
+    ReadBuffer<K, V> buffer = readBuffers[(int) Thread.currentThread().getId() & (NR_READ_BUFFERS - 1)];
+    if (buffer.offer(node)) {
+      drainBuffers();
+    }
+  }
+
+  private void afterWrite(final Runnable task) {
+    writeBuffer.add(task);
+    drainBuffers();
+  }
+
+  private void afterRemove(final Node<K, V> node) {
+    node.alive = false;
+    afterWrite(new RemoveTask(node));
+  }
+
+  /**
+   * Update the eviction policy with the buffered reads and writes, if no other thread is doing it.
+   */
+  @SuppressFBWarnings(value = "MDM_THREAD_FAIRNESS", justification = "the lock is not fair, tryLock does not block")
+  private void drainBuffers() {
+    do {
+      if (!evictionLock.tryLock()) {
+        return;
+      }
+      try {
+        maintenance();
+      } finally {
+        evictionLock.unlock();
+      }
+    } while (!writeBuffer.isEmpty());
+  }
+
+  @GuardedBy("evictionLock")
+  private void maintenance() {
+    for (ReadBuffer<K, V> buffer : readBuffers) {
+      buffer.drain(this);
+    }
+    Runnable task;
+    while ((task = writeBuffer.poll()) != null) {
+      task.run();
+    }
+    if (timed) {
+      expireEntries(TimeSource.nanoTime());
+    }
+    evictEntries();
+  }
+
+  @GuardedBy("evictionLock")
+  void onAccess(final Node<K, V> node) {
+    switch (node.queue) {
+      case WINDOW:
+        sketch.increment(node.key);
+        window.moveToBack(node);
+        break;
+      case PROBATION:
+        sketch.increment(node.key);
+        probation.remove(node);
+        node.queue = PROTECTED;
+        protectedDeque.add(node);
+        protectedWeightedSize += node.weight;
+        demoteFromProtected();
+        break;
+      case PROTECTED:
+        sketch.increment(node.key);
+        protectedDeque.moveToBack(node);
+        break;
+      default:
+        // not in the policy (yet or anymore).
+    }
+  }
+
+  @GuardedBy("evictionLock")
+  private void demoteFromProtected() {
+    while (protectedWeightedSize > protectedMaximum) {
+      Node<K, V> node = protectedDeque.peekFirst();
+      if (node == null) {
+        break;
+      }
+      protectedDeque.remove(node);
+      protectedWeightedSize -= node.weight;
+      node.queue = PROBATION;
+      probation.add(node);
+    }
+  }
+
+  @GuardedBy("evictionLock")
+  private void unlink(final Node<K, V> node) {
+    switch (node.queue) {
+      case WINDOW:
+        window.remove(node);
+        windowWeightedSize -= node.weight;
+        break;
+      case PROBATION:
+        probation.remove(node);
+        break;
+      case PROTECTED:
+        protectedDeque.remove(node);
+        protectedWeightedSize -= node.weight;
+        break;
+      default:
+        return;
+    }
+    weightedSize -= node.weight;
+    node.queue = NONE;
+  }
+
+  @GuardedBy("evictionLock")
+  private void evict(final Node<K, V> node) {
+    if (map.remove(node.key, node)) {
+      node.alive = false;
+      evictionCount.increment();
+    }
+    unlink(node);
+  }
+
+  @GuardedBy("evictionLock")
+  private void expireEntries(final long nowNanos) {
+    expireEntries(window, nowNanos);
+    expireEntries(probation, nowNanos);
+    expireEntries(protectedDeque, nowNanos);
+  }
+
+  @GuardedBy("evictionLock")
+  private void expireEntries(final AccessOrderDeque<K, V> deque, final long nowNanos) {
+    Node<K, V> node = deque.peekFirst();
+    while (node != null && isExpired(node, nowNanos)) {
+      Node<K, V> next = node.next;
+      evict(node);
+      node = next;
+    }
+  }
+
+  /**
+   * W-TinyLFU eviction, entries overflowing the window become candidates for the main space, where they compete
+   * with the probation LRU entries (victims), the one with the lowest estimated frequency is evicted.
+   */
+  @GuardedBy("evictionLock")
+  private void evictEntries() {
+    Node<K, V> candidate = null;
+    while (windowWeightedSize > windowMaximum) {
+      Node<K, V> node = window.peekFirst();
+      if (node == null) {
+        break;
+      }
+      window.remove(node);
+      windowWeightedSize -= node.weight;
+      node.queue = PROBATION;
+      probation.add(node);
+      if (candidate == null) {
+        candidate = node;
+      }
+    }
+    Node<K, V> victim = probation.peekFirst();
+    while (weightedSize > maximumWeight) {
+      if (victim == null || victim == candidate) {
+        victim = null;
+        if (candidate == null) {
+          // nothing on probation, evict from protected, then from the window.
+          Node<K, V> node = protectedDeque.peekFirst();
+          if (node == null) {
+            node = window.peekFirst();
+            if (node == null) {
+              break;
+            }
+          }
+          evict(node);
+          continue;
+        }
+        Node<K, V> next = candidate.next;
+        evict(candidate);
+        candidate = next;
+      } else if (candidate == null) {
+        Node<K, V> next = victim.next;
+        evict(victim);
+        victim = next;
+      } else if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+        Node<K, V> next = victim.next;
+        evict(victim);
+        victim = next;
+      } else {
+        Node<K, V> next = candidate.next;
+        evict(candidate);
+        candidate = next;
+      }
+    }
+  }
+
+  private void refresh(final Node<K, V> node) {
+    final V oldValue = node.value;
+    try {
+      refreshExecutor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            long startNanos = TimeSource.nanoTime();
+            V newValue = loader.reload(node.key, oldValue).get();
+            long endNanos = TimeSource.nanoTime();
+            loadSuccessCount.increment();
+            totalLoadTime.add(endNanos - startNanos);
+            if (newValue != null && node.alive) {
+              node.writeNanos = endNanos;
+              node.value = newValue;
+              afterWrite(new UpdateTask(node, weigh(node.key, newValue)));
+            }
+          } catch (Exception ex) {
+            loadExceptionCount.increment();
+            LOG.warn("Failed to refresh {}", node.key, ex);
+          } finally {
+            node.endRefresh();
+          }
+        }
+      });
+    } catch (RuntimeException ex) {
+      node.endRefresh();
+      LOG.warn("Failed to schedule refresh of {}", node.key, ex);
+    }
+  }
+
+  @Override
+  public V getUnchecked(final K key) {
+    try {
+      return get(key);
+    } catch (ExecutionException ex) {
+      throw new UncheckedExecutionException(ex);
+    }
+  }
+
+  @Override
+  @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED")
+  public ImmutableMap<K, V> getAll(final Iterable<? extends K> keys) throws ExecutionException {
+    ImmutableMap.Builder<K, V> builder = ImmutableMap.builder();
+    for (K key : keys) {
+      builder.put(key, get(key));
+    }
+    return builder.build();
+  }
+
+  @Override
+  public V apply(final K key) {
+    if (key == null) {
+      throw new IllegalArgumentException("key cannot be null for " + this);
+    } else {
+      return getUnchecked(key);
+    }
+  }
+
+  /**
+   * Reload the value of the key asynchronously, the old value (if any) is returned by the cache until the
+   * reload completes, if there is no value, the key is loaded synchronously.
+   */
+  @Override
+  public void refresh(final K key) {
+    Node<K, V> node = map.get(key);
+    if (node != null && node.value != null) {
+      if (node.startRefresh()) {
+        refresh(node);
+      }
+    } else {
+      getUnchecked(key);
+    }
+  }
+
+  @Override
+  public ConcurrentMap<K, V> asMap() {
+    return new MapView();
+  }
+
+  @Override
+  @Nullable
+  public V getIfPresent(final Object key) {
+    Node<K, V> node = map.get(key);
+    if (node != null) {
+      long nowNanos = timed ? TimeSource.nanoTime() : 0L;
+      V value = node.value;
+      if (value != null && !isExpired(node, nowNanos)) {
+        hitCount.increment();
+        afterRead(node, nowNanos);
+        return value;
+      }
+    }
+    missCount.increment();
+    return null;
+  }
+
+  @Override
+  @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED")
+  public ImmutableMap<K, V> getAllPresent(final Iterable<?> keys) {
+    ImmutableMap.Builder<K, V> builder = ImmutableMap.builder();
+    for (K key : (Iterable<K>) keys) {
+      V val = getIfPresent(key);
+      if (val != null) {
+        builder.put(key, val);
+      }
+    }
+    return builder.build();
+  }
+
+  @Override
+  public void put(final K key, final V value) {
+    doPut(key, value);
+  }
+
+  private static <K, V> Node<K, V> newValueNode(final K key, final V value) {
+    Node<K, V> node = new Node<>(key, value);
+    long nowNanos = TimeSource.nanoTime();
+    node.writeNanos = nowNanos;
+    node.accessNanos = nowNanos;
+    return node;
+  }
+
+  /**
+   * @return the node value, or null if the node is loading or expired. (no stats or eviction policy updates)
+   */
+  @Nullable
+  private V liveValue(final Node<K, V> node) {
+    V value = node.value;
+    if (value == null || isExpired(node, timed ? TimeSource.nanoTime() : 0L)) {
+      return null;
+    }
+    return value;
+  }
+
+  @Nullable
+  private V doPut(final K key, final V value) {
+    Node<K, V> node = newValueNode(key, value);
+    int weight = weigh(key, value);
+    Node<K, V> old = map.put(key, node);
+    if (old != null) {
+      afterRemove(old);
+    }
+    afterWrite(new AddTask(node, weight));
+    return old == null ? null : old.value;
+  }
+
+  @Override
+  public void putAll(final Map<? extends K, ? extends V> m) {
+    for (Map.Entry<? extends K, ? extends V> entry : m.entrySet()) {
+      put(entry.getKey(), entry.getValue());
+    }
+  }
+
+  @Override
+  public void invalidate(final Object key) {
+    doRemove(key);
+  }
+
+  @Nullable
+  private V doRemove(final Object key) {
+    Node<K, V> node = map.remove(key);
+    if (node != null) {
+      afterRemove(node);
+      return node.value;
+    }
+    return null;
+  }
+
+  @Override
+  public void invalidateAll(final Iterable<?> keys) {
+    for (Object key : keys) {
+      invalidate(key);
+    }
+  }
+
+  @Override
+  public void invalidateAll() {
+    for (Node<K, V> node : map.values()) {
+      if (map.remove(node.key, node)) {
+        afterRemove(node);
+      }
+    }
+  }
+
+  @Override
+  public long size() {
+    return map.size();
+  }
+
+  /**
+   * @return the total weight of the entries in the eviction policy.
+   */
+  @SuppressFBWarnings(value = "MDM_WAIT_WITHOUT_TIMEOUT", justification = "holders of the lock do not block")
+  public long weightedSize() {
+    evictionLock.lock();
+    try {
+      return weightedSize;
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  @Override
+  public CacheStats stats() {
+    return new CacheStats(hitCount.sum(), missCount.sum(), loadSuccessCount.sum(), loadExceptionCount.sum(),
+            totalLoadTime.sum(), evictionCount.sum());
+  }
+
+  /**
+   * Perform the pending eviction policy maintenance.
+   */
+  @Override
+  @SuppressFBWarnings(value = {"MDM_WAIT_WITHOUT_TIMEOUT", "NM_CONFUSING"},
+          justification = "holders of the lock do not block")
+  public void cleanUp() {
+    evictionLock.lock();
+    try {
+      maintenance();
+    } finally {
+      evictionLock.unlock();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "BoundedLoadingCache{" + "size=" + map.size() + ", maximumWeight=" + maximumWeight
+            + ", expireAfterWriteNanos=" + expireAfterWriteNanos + ", expireAfterAccessNanos="
+            + expireAfterAccessNanos + ", refreshAfterWriteNanos=" + refreshAfterWriteNanos
+            + ", loader=" + loader + '}';
+  }
+
+  private static int ceilingPowerOfTwo(final int x) {
+    return 1 << -Integer.numberOfLeadingZeros(x - 1);
+  }
+
+  private static final class Node<K, V> {
+
+    private static final AtomicIntegerFieldUpdater<Node> REFRESHING
+            = AtomicIntegerFieldUpdater.newUpdater(Node.class, "refreshing");
+
+    private final K key;
+
+    /**
+     * the loader of the value, null for values that were put in the cache.
+     */
+    @Nullable
+    private final Callable<? extends V> pending;
+
+    /**
+     * the value, null while loading.
+     */
+    private volatile V value;
+
+    private volatile long writeNanos;
+
+    private volatile long accessNanos;
+
+    /**
+     * false after the node is removed from the map.
+     */
+    private volatile boolean alive;
+
+    private volatile int refreshing;
+
+    @GuardedBy("evictionLock")
+    private byte queue;
+
+    @GuardedBy("evictionLock")
+    private int weight;
+
+    @GuardedBy("evictionLock")
+    private Node<K, V> prev;
+
+    @GuardedBy("evictionLock")
+    private Node<K, V> next;
+
+    Node(final K key, final Callable<? extends V> pending) {
+      this.key = key;
+      this.pending = pending;
+      this.alive = true;
+    }
+
+    Node(final K key, final V value) {
+      this.key = key;
+      this.pending = null;
+      this.value = value;
+      this.alive = true;
+    }
+
+    V load() throws ExecutionException {
+      V result;
+      try {
+        result = pending.call();
+      } catch (Exception ex) {
+        throw new ExecutionException(ex);
+      }
+      if (result == null) {
+        throw new CacheLoader.InvalidCacheLoadException("null value loaded for " + key);
+      }
+      if (value == null) {
+        value = result;
+      }
+      return result;
+    }
+
+    boolean startRefresh() {
+      return REFRESHING.compareAndSet(this, 0, 1);
+    }
+
+    void endRefresh() {
+      refreshing = 0;
+    }
+
+    @Override
+    public String toString() {
+      return "Node{" + "key=" + key + ", value=" + value + ", queue=" + queue + ", weight=" + weight + '}';
+    }
+
+  }
+
+  /**
+   * Intrusive doubly linked list of nodes, in access order, (least recently accessed first).
+   */
+  private static final class AccessOrderDeque<K, V> {
+
+    private Node<K, V> first;
+
+    private Node<K, V> last;
+
+    @Nullable
+    Node<K, V> peekFirst() {
+      return first;
+    }
+
+    void add(final Node<K, V> node) {
+      Node<K, V> l = last;
+      node.prev = l;
+      node.next = null;
+      last = node;
+      if (l == null) {
+        first = node;
+      } else {
+        l.next = node;
+      }
+    }
+
+    void remove(final Node<K, V> node) {
+      Node<K, V> p = node.prev;
+      Node<K, V> n = node.next;
+      if (p == null) {
+        first = n;
+      } else {
+        p.next = n;
+      }
+      if (n == null) {
+        last = p;
+      } else {
+        n.prev = p;
+      }
+      node.prev = null;
+      node.next = null;
+    }
+
+    void moveToBack(final Node<K, V> node) {
+      if (node != last) {
+        remove(node);
+        add(node);
+      }
+    }
+
+  }
+
+  /**
+   * A lossy, multiple producer, single consumer ring buffer of accessed nodes.
+   */
+  private static final class ReadBuffer<K, V> {
+
+    private static final int SIZE = 16;
+
+    private static final int MASK = SIZE - 1;
+
+    private final AtomicReferenceArray<Node<K, V>> buffer = new AtomicReferenceArray<>(SIZE);
+
+    private final AtomicLong writeCounter = new AtomicLong();
+
+    private volatile long readCounter;
+
+    /**
+     * @return true if the buffer should be drained.
+     */
+    boolean offer(final Node<K, V> node) {
+      long tail = writeCounter.get();
+      long size = tail - readCounter;
+      if (size >= SIZE) {
+        return true;
+      }
+      if (writeCounter.compareAndSet(tail, tail + 1)) {
+        buffer.lazySet((int) tail & MASK, node);
+        return size + 1 >= SIZE;
+      }
+      return false; // contention, drop the access.
+    }
+
+    @GuardedBy("evictionLock")
+    void drain(final BoundedLoadingCache<K, V> cache) {
+      long head = readCounter;
+      long tail = writeCounter.get();
+      for (; head < tail; head++) {
+        int idx = (int) head & MASK;
+        Node<K, V> node = buffer.get(idx);
+        if (node == null) {
+          break; // the write of this slot is not visible yet.
+        }
+        buffer.lazySet(idx, null);
+        cache.onAccess(node);
+      }
+      readCounter = head;
+    }
+
+  }
+
+  /**
+   * 4 bit count-min sketch, estimating the access frequency of keys,
+   * the counters are halved periodically to age the frequencies.
+   */
+  private static final class FrequencySketch {
+
+    private static final long[] SEEDS = {0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L,
+      0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    private final long[] table;
+
+    private final int tableMask;
+
+    private final int sampleSize;
+
+    private int size;
+
+    FrequencySketch(final long maximumSize) {
+      int nrCounters = (int) Math.max(16, Math.min(maximumSize, 1 << 26));
+      int length = ceilingPowerOfTwo(nrCounters) >>> 4; // 16 counters per long.
+      this.table = new long[length];
+      this.tableMask = length - 1;
+      this.sampleSize = 10 * nrCounters;
+      this.size = 0;
+    }
+
+    private static int hash(final Object key, final int i) {
+      long hash = (key.hashCode() + SEEDS[i]) * SEEDS[i];
+      hash += hash >>> 32;
+      return (int) hash;
+    }
+
+    int frequency(final Object key) {
+      int result = 15;
+      for (int i = 0; i < 4; i++) {
+        int h = hash(key, i);
+        int count = (int) ((table[(h >>> 4) & tableMask] >>> ((h & 15) << 2)) & 15L);
+        result = Math.min(result, count);
+      }
+      return result;
+    }
+
+    void increment(final Object key) {
+      boolean added = false;
+      for (int i = 0; i < 4; i++) {
+        int h = hash(key, i);
+        int idx = (h >>> 4) & tableMask;
+        int offset = (h & 15) << 2;
+        if (((table[idx] >>> offset) & 15L) < 15) {
+          table[idx] += 1L << offset;
+          added = true;
+        }
+      }
+      if (added && ++size >= sampleSize) {
+        reset();
+      }
+    }
+
+    private void reset() {
+      for (int i = 0; i < table.length; i++) {
+        table[i] = (table[i] >>> 1) & RESET_MASK;
+      }
+      size >>>= 1;
+    }
+
+  }
+
+  private final class AddTask implements Runnable {
+
+    private final Node<K, V> node;
+
+    private final int weight;
+
+    AddTask(final Node<K, V> node, final int weight) {
+      this.node = node;
+      this.weight = weight;
+    }
+
+    @Override
+    public void run() {
+      if (node.alive && node.queue == NONE) {
+        sketch.increment(node.key);
+        node.weight = weight;
+        node.queue = WINDOW;
+        window.add(node);
+        windowWeightedSize += weight;
+        weightedSize += weight;
+      }
+    }
+  }
+
+  private final class UpdateTask implements Runnable {
+
+    private final Node<K, V> node;
+
+    private final int weight;
+
+    UpdateTask(final Node<K, V> node, final int weight) {
+      this.node = node;
+      this.weight = weight;
+    }
+
+    @Override
+    public void run() {
+      int delta = weight - node.weight;
+      switch (node.queue) {
+        case WINDOW:
+          windowWeightedSize += delta;
+          break;
+        case PROTECTED:
+          protectedWeightedSize += delta;
+          break;
+        case PROBATION:
+          break;
+        default:
+          return;
+      }
+      node.weight = weight;
+      weightedSize += delta;
+      onAccess(node);
+    }
+  }
+
+  private final class RemoveTask implements Runnable {
+
+    private final Node<K, V> node;
+
+    RemoveTask(final Node<K, V> node) {
+      this.node = node;
+    }
+
+    @Override
+    public void run() {
+      unlink(node);
+    }
+  }
+
+  private class MapView implements ConcurrentMap<K, V> {
+
+    @Override
+    @Nullable
+    public V putIfAbsent(final K key, final V value) {
+      V existing = getIfPresent(key);
+      while (existing == null) {
+        Node<K, V> node = newValueNode(key, value);
+        long nowNanos = node.writeNanos;
+        int weight = weigh(key, value);
+        Node<K, V> old = map.putIfAbsent(key, node);
+        if (old == null) {
+          afterWrite(new AddTask(node, weight));
+          return null;
+        }
+        existing = old.value;
+        if (existing == null || isExpired(old, nowNanos)) {
+          // loading or expired, replace it.
+          if (map.replace(key, old, node)) {
+            afterRemove(old);
+            afterWrite(new AddTask(node, weight));
+            return null;
+          }
+          existing = null;
+        }
+      }
+      return existing;
+    }
+
+    @Override
+    public boolean remove(final Object key, final Object value) {
+      Node<K, V> node = map.get(key);
+      if (node == null) {
+        return false;
+      }
+      V existing = liveValue(node);
+      if (existing == null || !existing.equals(value) || !map.remove(key, node)) {
+        return false;
+      }
+      afterRemove(node);
+      return true;
+    }
+
+    @Override
+    public boolean replace(final K key, final V oldValue, final V newValue) {
+      while (true) {
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+          return false;
+        }
+        V existing = liveValue(node);
+        if (existing == null || !existing.equals(oldValue)) {
+          return false;
+        }
+        if (replaceNode(key, node, newValue)) {
+          return true;
+        }
+      }
+    }
+
+    @Override
+    @Nullable
+    public V replace(final K key, final V value) {
+      while (true) {
+        Node<K, V> node = map.get(key);
+        if (node == null) {
+          return null;
+        }
+        V existing = liveValue(node);
+        if (existing == null) {
+          return null;
+        }
+        if (replaceNode(key, node, value)) {
+          return existing;
+        }
+      }
+    }
+
+    private boolean replaceNode(final K key, final Node<K, V> node, final V value) {
+      Node<K, V> newNode = newValueNode(key, value);
+      int weight = weigh(key, value);
+      if (map.replace(key, node, newNode)) {
+        afterRemove(node);
+        afterWrite(new AddTask(newNode, weight));
+        return true;
+      }
+      return false;
+    }
+
+    @Override
+    public int size() {
+      return map.size();
+    }
+
+    @Override
+    public boolean isEmpty() {
+      return map.isEmpty();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+      Node<K, V> node = map.get(key);
+      return node != null && node.value != null && !isExpired(node, timed ? TimeSource.nanoTime() : 0L);
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+      for (Node<K, V> node : map.values()) {
+        V existing = liveValue(node);
+        if (existing != null && existing.equals(value)) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    @Nullable
+    public V get(final Object key) {
+      return getIfPresent(key);
+    }
+
+    @Override
+    @Nullable
+    public V put(final K key, final V value) {
+      return doPut(key, value);
+    }
+
+    @Override
+    @Nullable
+    public V remove(final Object key) {
+      return doRemove(key);
+    }
+
+    @Override
+    public void putAll(final Map<? extends K, ? extends V> m) {
+      BoundedLoadingCache.this.putAll(m);
+    }
+
+    @Override
+    public void clear() {
+      invalidateAll();
+    }
+
+    @Override
+    public Set<K> keySet() {
+      return new AbstractSet<K>() {
+        @Override
+        public Iterator<K> iterator() {
+          return new NodeIterator<K>() {
+            @Override
+            K map(final Node<K, V> node, final V value) {
+              return node.key;
+            }
+          };
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+          return containsKey(o);
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+          return doRemove(o) != null;
+        }
+
+        @Override
+        public int size() {
+          return map.size();
+        }
+
+        @Override
+        public void clear() {
+          invalidateAll();
+        }
+      };
+    }
+
+    @Override
+    public Collection<V> values() {
+      return new AbstractCollection<V>() {
+        @Override
+        public Iterator<V> iterator() {
+          return new NodeIterator<V>() {
+            @Override
+            V map(final Node<K, V> node, final V value) {
+              return value;
+            }
+          };
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+          return containsValue(o);
+        }
+
+        @Override
+        public int size() {
+          return map.size();
+        }
+
+        @Override
+        public void clear() {
+          invalidateAll();
+        }
+      };
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+      return new AbstractSet<Map.Entry<K, V>>() {
+        @Override
+        public Iterator<Map.Entry<K, V>> iterator() {
+          return new NodeIterator<Map.Entry<K, V>>() {
+            @Override
+            Map.Entry<K, V> map(final Node<K, V> node, final V value) {
+              return new WriteThroughEntry(node.key, value);
+            }
+          };
+        }
+
+        @Override
+        public boolean contains(final Object o) {
+          if (!(o instanceof Map.Entry)) {
+            return false;
+          }
+          Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+          Node<K, V> node = map.get(entry.getKey());
+          if (node == null) {
+            return false;
+          }
+          V value = liveValue(node);
+          return value != null && value.equals(entry.getValue());
+        }
+
+        @Override
+        public boolean remove(final Object o) {
+          if (!(o instanceof Map.Entry)) {
+            return false;
+          }
+          Map.Entry<?, ?> entry = (Map.Entry<?, ?>) o;
+          return MapView.this.remove(entry.getKey(), entry.getValue());
+        }
+
+        @Override
+        public int size() {
+          return map.size();
+        }
+
+        @Override
+        public void clear() {
+          invalidateAll();
+        }
+      };
+    }
+  }
+
+  /**
+   * Iterator over the live (loaded and not expired) nodes, removals go through the eviction policy.
+   */
+  private abstract class NodeIterator<T> implements Iterator<T> {
+
+    private final Iterator<Node<K, V>> nodes = map.values().iterator();
+
+    @Nullable
+    private Node<K, V> nextNode;
+
+    @Nullable
+    private V nextValue;
+
+    @Nullable
+    private Node<K, V> lastNode;
+
+    abstract T map(Node<K, V> node, V value);
+
+    @Override
+    public boolean hasNext() {
+      while (nextNode == null && nodes.hasNext()) {
+        Node<K, V> node = nodes.next();
+        V value = liveValue(node);
+        if (value != null) {
+          nextNode = node;
+          nextValue = value;
+        }
+      }
+      return nextNode != null;
+    }
+
+    @Override
+    public T next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      lastNode = nextNode;
+      T result = map(nextNode, nextValue);
+      nextNode = null;
+      nextValue = null;
+      return result;
+    }
+
+    @Override
+    public void remove() {
+      Node<K, V> node = lastNode;
+      if (node == null) {
+        throw new IllegalStateException();
+      }
+      lastNode = null;
+      if (map.remove(node.key, node)) {
+        afterRemove(node);
+      }
+    }
+  }
+
+  private final class WriteThroughEntry implements Map.Entry<K, V> {
+
+    private final K key;
+
+    private V value;
+
+    WriteThroughEntry(final K key, final V value) {
+      this.key = key;
+      this.value = value;
+    }
+
+    @Override
+    public K getKey() {
+      return key;
+    }
+
+    @Override
+    public V getValue() {
+      return value;
+    }
+
+    @Override
+    public V setValue(final V newValue) {
+      put(key, newValue);
+      V old = value;
+      value = newValue;
+      return old;
+    }
+
+    @Override
+    @SuppressFBWarnings(value = "NSE_NON_SYMMETRIC_EQUALS", justification = "Map.Entry equals contract")
+    public boolean equals(final Object obj) {
+      if (!(obj instanceof Map.Entry)) {
+        return false;
+      }
+      Map.Entry<?, ?> other = (Map.Entry<?, ?>) obj;
+      return key.equals(other.getKey()) && value.equals(other.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+      return key.hashCode() ^ value.hashCode();
+    }
+
+    @Override
+    public String toString() {
+      return key + "=" + value;
+    }
+  }
+
+}
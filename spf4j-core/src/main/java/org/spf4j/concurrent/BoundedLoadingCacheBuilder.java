@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.Weigher;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+
+/**
+ * Builder for BoundedLoadingCache.
+ *
+ * example: BoundedLoadingCacheBuilder.&lt;String, Value&gt;newBuilder().withMaximumSize(10000)
+ *            .withExpireAfterWrite(10, TimeUnit.MINUTES).build(loader);
+ *
+ * @author zoly
+ */
+//CHECKSTYLE IGNORE HiddenField FOR NEXT 2000 LINES
+public final class BoundedLoadingCacheBuilder<K, V> {
+
+  private int initialCapacity;
+  private int concurrency;
+  private long maximumWeight;
+  @Nullable
+  private Weigher<? super K, ? super V> weigher;
+  private long expireAfterWriteNanos;
+  private long expireAfterAccessNanos;
+  private long refreshAfterWriteNanos;
+  private Executor refreshExecutor;
+
+  private BoundedLoadingCacheBuilder() {
+    initialCapacity = 16;
+    concurrency = 8;
+    maximumWeight = 10000;
+    weigher = null;
+    expireAfterWriteNanos = Long.MAX_VALUE;
+    expireAfterAccessNanos = Long.MAX_VALUE;
+    refreshAfterWriteNanos = Long.MAX_VALUE;
+    refreshExecutor = DefaultExecutor.INSTANCE;
+  }
+
+  public static <K, V> BoundedLoadingCacheBuilder<K, V> newBuilder() {
+    return new BoundedLoadingCacheBuilder<>();
+  }
+
+  public BoundedLoadingCacheBuilder<K, V> withInitialCapacity(final int initialCapacity) {
+    this.initialCapacity = initialCapacity;
+    return this;
+  }
+
+  public BoundedLoadingCacheBuilder<K, V> withConcurrency(final int concurrency) {
+    this.concurrency = concurrency;
+    return this;
+  }
+
+  /**
+   * @param maximumSize the maximum number of entries in the cache, (default 10000)
+   */
+  public BoundedLoadingCacheBuilder<K, V> withMaximumSize(final long maximumSize) {
+    this.maximumWeight = maximumSize;
+    this.weigher = null;
+    return this;
+  }
+
+  /**
+   * @param maximumWeight the maximum total weight of the entries in the cache.
+   * @param weigher computes the weight of a entry, once, when the entry is written.
+   */
+  public BoundedLoadingCacheBuilder<K, V> withMaximumWeight(final long maximumWeight,
+          final Weigher<? super K, ? super V> weigher) {
+    this.maximumWeight = maximumWeight;
+    this.weigher = weigher;
+    return this;
+  }
+
+  public BoundedLoadingCacheBuilder<K, V> withExpireAfterWrite(final long duration, final TimeUnit unit) {
+    this.expireAfterWriteNanos = unit.toNanos(duration);
+    return this;
+  }
+
+  public BoundedLoadingCacheBuilder<K, V> withExpireAfterAccess(final long duration, final TimeUnit unit) {
+    this.expireAfterAccessNanos = unit.toNanos(duration);
+    return this;
+  }
+
+  /**
+   * Entries read after this duration since written, are reloaded asynchronously (refresh ahead),
+   * the old value is returned until the reload completes.
+   */
+  public BoundedLoadingCacheBuilder<K, V> withRefreshAfterWrite(final long duration, final TimeUnit unit) {
+    this.refreshAfterWriteNanos = unit.toNanos(duration);
+    return this;
+  }
+
+  /**
+   * @param refreshExecutor the executor to run refreshes with, (default DefaultExecutor.INSTANCE)
+   */
+  public BoundedLoadingCacheBuilder<K, V> withRefreshExecutor(final Executor refreshExecutor) {
+    this.refreshExecutor = refreshExecutor;
+    return this;
+  }
+
+  public BoundedLoadingCache<K, V> build(final CacheLoader<K, V> loader) {
+    return new BoundedLoadingCache<>(initialCapacity, concurrency, maximumWeight, weigher,
+            expireAfterWriteNanos, expireAfterAccessNanos, refreshAfterWriteNanos, refreshExecutor, loader);
+  }
+
+  @Override
+  public String toString() {
+    return "BoundedLoadingCacheBuilder{" + "initialCapacity=" + initialCapacity + ", concurrency=" + concurrency
+            + ", maximumWeight=" + maximumWeight + ", weigher=" + weigher + ", expireAfterWriteNanos="
+            + expireAfterWriteNanos + ", expireAfterAccessNanos=" + expireAfterAccessNanos
+            + ", refreshAfterWriteNanos=" + refreshAfterWriteNanos + ", refreshExecutor=" + refreshExecutor + '}';
+  }
+
+}
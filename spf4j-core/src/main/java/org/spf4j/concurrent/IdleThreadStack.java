@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Lock free (Treiber) stack of available threads, the most recently available thread is on top.
+ * A thread has at most one node in the stack, nodes are not reused (no ABA issues).
+ * Nodes of threads that are not available anymore are discarded when popped, or unlinked when the thread retires.
+ *
+ * @author zoly
+ */
+final class IdleThreadStack {
+
+  private final AtomicReference<IdleNode> head = new AtomicReference<>();
+
+  void push(final IdleThread thread) {
+    IdleNode node = new IdleNode(thread);
+    IdleNode h;
+    do {
+      h = head.get();
+      node.next = h;
+    } while (!head.compareAndSet(h, node));
+  }
+
+  /**
+   * Hand off a task to the most recently available thread.
+   * @return false if there is no available thread.
+   */
+  boolean handOff(final Runnable task) {
+    IdleNode h;
+    while ((h = head.get()) != null) {
+      if (head.compareAndSet(h, h.next)) {
+        if (h.thread.offer(task)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * unlink the nodes of retired threads, only one thread at a time must do this.
+   */
+  void unlinkRetired() {
+    IdleNode node = head.get();
+    while (node != null) {
+      IdleNode next = node.next;
+      while (next != null && next.thread.isRetired()) {
+        next = next.next;
+      }
+      node.next = next;
+      node = next;
+    }
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder(64).append("IdleThreadStack{");
+    IdleNode node = head.get();
+    while (node != null) {
+      result.append(node.thread.getName()).append(' ');
+      node = node.next;
+    }
+    return result.append('}').toString();
+  }
+
+  private static final class IdleNode {
+
+    private final IdleThread thread;
+
+    private volatile IdleNode next;
+
+    IdleNode(final IdleThread thread) {
+      this.thread = thread;
+    }
+  }
+
+  /**
+   * A pool thread that can be made available in a IdleThreadStack.
+   */
+  abstract static class IdleThread extends Thread {
+
+    /**
+     * tasks are handed off to this thread via this queue while the thread is available.
+     */
+    private final UnitQueuePU<Runnable> toRun;
+
+    /**
+     * true if there is a node for this thread in the available thread stack.
+     */
+    private volatile boolean inThreadStack;
+
+    private volatile boolean retired;
+
+    IdleThread(final String name) {
+      super(name);
+      this.inThreadStack = false;
+      this.retired = false;
+      this.toRun = new UnitQueuePU<>(this);
+      this.toRun.close();
+    }
+
+    final UnitQueuePU<Runnable> getToRun() {
+      return toRun;
+    }
+
+    /**
+     * open the hand off queue, and push this thread in the stack if it is not already there.
+     */
+    final void makeAvailable(final IdleThreadStack stack) {
+      toRun.open();
+      if (!inThreadStack) {
+        inThreadStack = true;
+        stack.push(this);
+      }
+    }
+
+    private boolean offer(final Runnable task) {
+      inThreadStack = false;
+      return toRun.offer(task);
+    }
+
+    final boolean isRetired() {
+      return retired;
+    }
+
+    final void retire(final IdleThreadStack stack) {
+      retired = true;
+      stack.unlinkRetired();
+    }
+
+  }
+
+}
@@ -53,6 +53,7 @@ public final class LifoThreadPoolBuilder {
   private RejectedExecutionHandler rejectionHandler;
   private int threadPriority;
   private boolean mutable;
+  private boolean workStealing;
   private boolean jmxEnabled;
 
   private LifoThreadPoolBuilder() {
@@ -67,6 +68,7 @@ public final class LifoThreadPoolBuilder {
     spinLockCount = 1024;
     threadPriority = Thread.NORM_PRIORITY;
     mutable = false;
+    workStealing = false;
     jmxEnabled = false;
   }
 
@@ -129,6 +131,15 @@ public final class LifoThreadPoolBuilder {
     return this;
   }
 
+  /**
+   * Build a WorkStealingLifoThreadPoolExecutor, where tasks submitted from pool threads are queued in a per thread
+   * deque, and idle threads steal from the other threads deques. The resulting pool is mutable.
+   */
+  public LifoThreadPoolBuilder workStealing() {
+    this.workStealing = true;
+    return this;
+  }
+
   public LifoThreadPoolBuilder enableJmx() {
     this.jmxEnabled = true;
     return this;
@@ -136,7 +147,10 @@ public final class LifoThreadPoolBuilder {
 
   public LifoThreadPool build() {
     LifoThreadPool result;
-    if (mutable) {
+    if (workStealing) {
+      result = new WorkStealingLifoThreadPoolExecutor(poolName, coreSize, maxSize, maxIdleTimeMillis,
+              taskQueue, queueSizeLimit, daemonThreads, spinLockCount, rejectionHandler, threadPriority);
+    } else if (mutable) {
       result = new MutableLifoThreadPoolExecutorSQP(poolName, coreSize, maxSize, maxIdleTimeMillis,
               taskQueue, queueSizeLimit, daemonThreads, spinLockCount, rejectionHandler, threadPriority);
     } else {
@@ -150,9 +164,14 @@ public final class LifoThreadPoolBuilder {
   }
 
   public MutableLifoThreadPool buildMutable() {
-    MutableLifoThreadPool result = new MutableLifoThreadPoolExecutorSQP(poolName, coreSize, maxSize, maxIdleTimeMillis,
-            taskQueue, queueSizeLimit, daemonThreads, spinLockCount, rejectionHandler, threadPriority);
-
+    MutableLifoThreadPool result;
+    if (workStealing) {
+      result = new WorkStealingLifoThreadPoolExecutor(poolName, coreSize, maxSize, maxIdleTimeMillis,
+              taskQueue, queueSizeLimit, daemonThreads, spinLockCount, rejectionHandler, threadPriority);
+    } else {
+      result = new MutableLifoThreadPoolExecutorSQP(poolName, coreSize, maxSize, maxIdleTimeMillis,
+              taskQueue, queueSizeLimit, daemonThreads, spinLockCount, rejectionHandler, threadPriority);
+    }
     if (jmxEnabled) {
       result.exportJmx();
     }
@@ -164,8 +183,8 @@ public final class LifoThreadPoolBuilder {
     return "LifoThreadPoolBuilder{" + "poolName=" + poolName + ", coreSize=" + coreSize + ", maxSize="
             + maxSize + ", maxIdleTimeMillis=" + maxIdleTimeMillis + ", queueSizeLimit=" + queueSizeLimit
             + ", daemonThreads=" + daemonThreads + ", spinLockCount=" + spinLockCount + ", rejectionHandler="
-            + rejectionHandler + ", threadPriority=" + threadPriority + ", mutable=" + mutable + ", jmxEnabled="
-            + jmxEnabled + '}';
+            + rejectionHandler + ", threadPriority=" + threadPriority + ", mutable=" + mutable + ", workStealing="
+            + workStealing + ", jmxEnabled=" + jmxEnabled + '}';
   }
 
 }
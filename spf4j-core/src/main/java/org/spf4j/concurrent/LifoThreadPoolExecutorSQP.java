@@ -31,6 +31,7 @@
  */
 package org.spf4j.concurrent;
 
+import com.google.common.collect.Queues;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import gnu.trove.set.hash.THashSet;
@@ -41,18 +42,17 @@ import java.util.Queue;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
-import javax.annotation.CheckReturnValue;
 import javax.annotation.Nullable;
 import javax.annotation.ParametersAreNonnullByDefault;
 import javax.annotation.concurrent.GuardedBy;
 import org.spf4j.base.AbstractRunnable;
 import org.spf4j.base.TimeSource;
 import static org.spf4j.concurrent.RejectedExecutionHandler.REJECT_EXCEPTION_EXEC_HANDLER;
-import org.spf4j.ds.ZArrayDequeue;
 import org.spf4j.jmx.JmxExport;
 import org.spf4j.jmx.Registry;
 import org.spf4j.stackmonitor.StackTrace;
@@ -67,9 +67,13 @@ import org.spf4j.stackmonitor.StackTrace;
  *
  * There are 3 data structures involved in the transfer of tasks to Threads.
  *
- * 1) Task Queue - a classic FIFO queue. RW controlled by a reentrant lock. only non-blockng read operations are done on
- * this queue 2) Available Thread Queue - a classic LIFO queue, a thread end up here when there is nothing to process.
- * 3) A "UnitQueue", is a queue with a capacity on 1, which a thread will listen on while in the available thread queue.
+ * 1) Task Queue - a concurrent FIFO queue, tasks end up here when all threads are busy and no more threads can be
+ * created. 2) Available Thread Stack - a lock free LIFO (Treiber) stack, a thread ends up here when there is nothing
+ * to process. 3) A "UnitQueue", is a queue with a capacity on 1, which a thread will listen on while in the available
+ * thread stack, a task is handed off to a available thread with a single CAS.
+ *
+ * Task submission is lock free, unless a new thread needs to be created. The state lock is used only for
+ * thread creation/retirement and shutdown.
  *
  * @author zoly
  */
@@ -90,17 +94,19 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
 
   static final int LL_THRESHOLD = Integer.getInteger("spf4j.lifoTp.llQueueSizeThreshold", 64000);
 
-  @GuardedBy("stateLock")
   private final Queue<Runnable> taskQueue;
 
-  @GuardedBy("stateLock")
-  private final ZArrayDequeue<QueuedThread> threadQueue;
+  /**
+   * the number of tasks in the task queue, (the concurrent queue sizes are not constant time).
+   */
+  private final AtomicInteger nrQueuedTasks;
+
+  private final IdleThreadStack threadStack;
 
   private final int maxIdleTimeMillis;
 
   private final int maxThreadCount;
 
-  @GuardedBy("stateLock")
   private final PoolState state;
 
   private final ReentrantLock stateLock;
@@ -131,7 +137,7 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
           final int maxSize, final int maxIdleTimeMillis,
           final int queueSize, final boolean daemonThreads, final int spinLockCount) {
     this(poolName, coreSize, maxSize, maxIdleTimeMillis,
-            new ArrayDeque<Runnable>(Math.min(queueSize, LL_THRESHOLD)),
+            new ConcurrentLinkedQueue<Runnable>(),
             queueSize, daemonThreads, spinLockCount, REJECT_EXCEPTION_EXEC_HANDLER);
   }
 
@@ -139,7 +145,7 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
           final int maxSize, final int maxIdleTimeMillis,
           final int queueSize, final boolean daemonThreads) {
     this(poolName, coreSize, maxSize, maxIdleTimeMillis,
-            new ArrayDeque<Runnable>(Math.min(queueSize, LL_THRESHOLD)),
+            new ConcurrentLinkedQueue<Runnable>(),
             queueSize, daemonThreads, 1024, REJECT_EXCEPTION_EXEC_HANDLER);
   }
 
@@ -147,7 +153,7 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
           final int maxSize, final int maxIdleTimeMillis,
           final int queueSizeLimit, final int spinLockCount) {
     this(poolName, coreSize, maxSize, maxIdleTimeMillis,
-            new ArrayDeque<Runnable>(Math.min(queueSizeLimit, LL_THRESHOLD)),
+            new ConcurrentLinkedQueue<Runnable>(),
             queueSizeLimit, false, spinLockCount, REJECT_EXCEPTION_EXEC_HANDLER);
   }
 
@@ -159,6 +165,10 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
             spinLockCount, rejectionHandler, Thread.NORM_PRIORITY);
   }
 
+  /**
+   * @param taskQueue the task queue, it is accessed concurrently without a lock, if it is not a java.util.concurrent
+   * queue: a empty ArrayDeque is replaced with a ConcurrentLinkedQueue, other queues are synchronized.
+   */
   public LifoThreadPoolExecutorSQP(final String poolName, final int coreSize,
           final int maxSize, final int maxIdleTimeMillis, final Queue<Runnable> taskQueue,
           final int queueSizeLimit, final boolean daemonThreads,
@@ -176,23 +186,38 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
     this.rejectionHandler = rejectionHandler;
     this.poolName = poolName;
     this.maxIdleTimeMillis = maxIdleTimeMillis;
-    this.taskQueue = taskQueue;
+    this.taskQueue = toConcurrentQueue(taskQueue);
+    this.nrQueuedTasks = new AtomicInteger(taskQueue.size());
     this.queueSizeLimit = queueSizeLimit;
-    this.threadQueue = new ZArrayDequeue<>(Math.min(1024, maxSize));
+    this.threadStack = new IdleThreadStack();
     this.threadPriority = threadPriority;
     state = new PoolState(coreSize, spinLockCount, new THashSet<QueuedThread>(Math.min(maxSize, 2048)));
     this.stateLock = new ReentrantLock(false);
     this.stateCondition = stateLock.newCondition();
     this.daemonThreads = daemonThreads;
-    for (int i = 0; i < coreSize; i++) {
-      QueuedThread qt = new QueuedThread(poolName, threadQueue,
-              taskQueue, maxIdleTimeMillis, null, state, stateLock, stateCondition);
-      qt.setDaemon(daemonThreads);
-      qt.setPriority(threadPriority);
-      state.addThread(qt);
-      qt.start();
-    }
     maxThreadCount = maxSize;
+    stateLock.lock();
+    try {
+      for (int i = 0; i < coreSize; i++) {
+        QueuedThread qt = new QueuedThread(poolName, this, null);
+        qt.setDaemon(daemonThreads);
+        qt.setPriority(threadPriority);
+        state.addThread(qt);
+        qt.start();
+      }
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  static Queue<Runnable> toConcurrentQueue(final Queue<Runnable> queue) {
+    if (queue.getClass().getName().startsWith("java.util.concurrent.")) {
+      return queue;
+    } else if (queue.isEmpty() && queue.getClass() == ArrayDeque.class) {
+      return new ConcurrentLinkedQueue<>();
+    } else {
+      return Queues.synchronizedQueue(queue);
+    }
   }
 
   @Override
@@ -201,61 +226,65 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
   }
 
   @Override
-  @SuppressFBWarnings(value = {"MDM_WAIT_WITHOUT_TIMEOUT", "MDM_LOCK_ISLOCKED", "UL_UNRELEASED_LOCK_EXCEPTION_PATH"},
-          justification = "no blocking is done while holding the lock,"
-          + " lock is released on all paths, findbugs just cannot figure it out...")
+  @SuppressFBWarnings(value = "MDM_WAIT_WITHOUT_TIMEOUT",
+          justification = "no blocking is done while holding the lock")
   public void execute(final Runnable command) {
-    stateLock.lock();
-    try {
-      if (state.isShutdown()) {
-        // if shutting down, reject
-        stateLock.unlock();
-        this.rejectionHandler.rejectedExecution(command, this);
-        return;
-      }
-      do { // See if we have Threads available to run the task and do so if any
-        QueuedThread nqt = threadQueue.pollLast();
-        if (nqt != null) {
-          stateLock.unlock();
-          if (nqt.runNext(command)) {
-            return; // job successfully submitted
-          } else {
-            stateLock.lock();
-          }
-        } else {
-          break;
+    if (state.isShutdown()) {
+      this.rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    // See if we have Threads available to run the task and do so if any
+    if (threadStack.handOff(command)) {
+      return;
+    }
+    // was not able to submit to an existing available thread, will attempt to create a new thread.
+    if (state.getThreadCount() < maxThreadCount) {
+      QueuedThread qt = null;
+      boolean shutdown;
+      stateLock.lock();
+      try {
+        shutdown = state.isShutdown();
+        if (!shutdown && state.getThreadCount() < maxThreadCount) {
+          qt = new QueuedThread(poolName, this, command);
+          qt.setDaemon(daemonThreads);
+          qt.setPriority(threadPriority);
+          state.addThread(qt);
         }
-      } while (true);
-      int tc = state.getThreadCount();
-      // was not able to submit to an existing available thread, will attempt to create a new thread.
-      if (tc < maxThreadCount) {
-        QueuedThread qt = new QueuedThread(poolName, threadQueue, taskQueue, maxIdleTimeMillis, command,
-                state, stateLock, stateCondition);
-        qt.setDaemon(daemonThreads);
-        qt.setPriority(threadPriority);
-        state.addThread(qt);
+      } finally {
         stateLock.unlock();
+      }
+      if (qt != null) {
         qt.start();
         return;
+      } else if (shutdown) {
+        this.rejectionHandler.rejectedExecution(command, this);
+        return;
       }
-      // was not able to submit to an existing available thread, reached the maxThread limit.
-      // will attempt to queue the task, and reject if unable to
-      if (taskQueue.size() >= queueSizeLimit) {
-        stateLock.unlock();
-        rejectionHandler.rejectedExecution(command, this);
-      } else if (!taskQueue.offer(command)) {
-        stateLock.unlock();
-        rejectionHandler.rejectedExecution(command, this);
-      } else {
-        stateLock.unlock();
-      }
-    } catch (Throwable t) {
-      if (stateLock.isHeldByCurrentThread()) {
-        stateLock.unlock();
-      }
-      throw t;
     }
+    // was not able to submit to an existing available thread, reached the maxThread limit.
+    // will attempt to queue the task, and reject if unable to
+    if (nrQueuedTasks.incrementAndGet() > queueSizeLimit || !taskQueue.offer(command)) {
+      nrQueuedTasks.decrementAndGet();
+      rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    // a thread might have become available after we looked, and before the task was queued.
+    // (threads check the task queue after they make themselves available)
+    threadStack.handOff(AbstractRunnable.NOP);
+    if (state.isShutdown() && taskQueue.remove(command)) {
+      // the threads might have stopped before the task was queued.
+      nrQueuedTasks.decrementAndGet();
+      rejectionHandler.rejectedExecution(command, this);
+    }
+  }
 
+  @Nullable
+  private Runnable pollTask() {
+    Runnable result = taskQueue.poll();
+    if (result != null) {
+      nrQueuedTasks.decrementAndGet();
+    }
+    return result;
   }
 
   @Override
@@ -263,16 +292,15 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
   public void shutdown() {
     stateLock.lock();
     try {
-      if (!state.isShutdown()) {
-        state.setShutdown(true); // set the shutdown flag, to reject new submissions.
-        QueuedThread th;
-        while ((th = threadQueue.pollLast()) != null) {
-          th.signal(); // signal all waiting threads, so thay can start going down.
-        }
-      }
+      state.setShutdown(true); // set the shutdown flag, to reject new submissions.
     } finally {
       stateLock.unlock();
     }
+    // signal all waiting threads, so thay can start going down.
+    boolean signaled;
+    do {
+      signaled = threadStack.handOff(AbstractRunnable.NOP);
+    } while (signaled);
   }
 
   @Override
@@ -306,21 +334,21 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
     stateLock.lock();
     try {
       state.interruptAll(); // interrupt all running threads.
-      return new ArrayList<>(taskQueue);
     } finally {
       stateLock.unlock();
     }
+    List<Runnable> result = new ArrayList<>(nrQueuedTasks.get());
+    Runnable task;
+    while ((task = pollTask()) != null) {
+      result.add(task);
+    }
+    return result;
   }
 
   @Override
   @JmxExport
   public boolean isShutdown() {
-    stateLock.lock();
-    try {
-      return state.isShutdown();
-    } finally {
-      stateLock.unlock();
-    }
+    return state.isShutdown();
   }
 
   @JmxExport
@@ -332,23 +360,13 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
   @Override
   @JmxExport
   public boolean isTerminated() {
-    stateLock.lock();
-    try {
-      return state.isShutdown() && state.getThreadCount() == 0;
-    } finally {
-      stateLock.unlock();
-    }
+    return state.isShutdown() && state.getThreadCount() == 0;
   }
 
   @JmxExport
   @Override
   public int getThreadCount() {
-    stateLock.lock();
-    try {
-      return state.getThreadCount();
-    } finally {
-      stateLock.unlock();
-    }
+    return state.getThreadCount();
   }
 
   @JmxExport
@@ -363,16 +381,9 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
   }
 
   @JmxExport
-  @SuppressFBWarnings(value = "MDM_WAIT_WITHOUT_TIMEOUT",
-          justification = "Holders of this lock will not block")
   @Override
   public int getNrQueuedTasks() {
-    stateLock.lock();
-    try {
-      return taskQueue.size();
-    } finally {
-      stateLock.unlock();
-    }
+    return nrQueuedTasks.get();
   }
 
   @JmxExport
@@ -386,72 +397,27 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
     Registry.unregister(LifoThreadPoolExecutorSQP.class.getName(), poolName);
   }
 
-  @SuppressFBWarnings("NO_NOTIFY_NOT_NOTIFYALL")
-  private static final class QueuedThread extends Thread {
+  private static final class QueuedThread extends IdleThreadStack.IdleThread {
 
     private static final AtomicInteger COUNT = new AtomicInteger();
 
-    private final ZArrayDequeue<QueuedThread> threadQueue;
-
-    private final Queue<Runnable> taskQueue;
+    private final LifoThreadPoolExecutorSQP pool;
 
-    private final int maxIdleTimeMillis;
+    private final PoolState state;
 
     private Runnable runFirst;
 
-    private final UnitQueuePU<Runnable> toRun;
-
-    @GuardedBy("poolStateLock")
-    private final PoolState state;
-
     private long lastRunNanos;
 
-    private final Object sync;
-
-    private final ReentrantLock poolStateLock;
-
-    private final Condition poolStateCondition;
-
     private volatile boolean running;
 
-    QueuedThread(final String nameBase, final ZArrayDequeue<QueuedThread> threadQueue,
-            final Queue<Runnable> taskQueue, final int maxIdleTimeMillis,
-            @Nullable final Runnable runFirst, final PoolState state,
-            final ReentrantLock submitMonitor, final Condition submitCondition) {
+    QueuedThread(final String nameBase, final LifoThreadPoolExecutorSQP pool, @Nullable final Runnable runFirst) {
       super(nameBase + COUNT.getAndIncrement());
-      this.threadQueue = threadQueue;
-      this.taskQueue = taskQueue;
-      this.maxIdleTimeMillis = maxIdleTimeMillis;
+      this.pool = pool;
+      this.state = pool.state;
       this.runFirst = runFirst;
-      this.state = state;
       this.running = false;
-      this.sync = new Object();
       this.lastRunNanos = TimeSource.nanoTime();
-      this.poolStateLock = submitMonitor;
-      this.poolStateCondition = submitCondition;
-      this.toRun = new UnitQueuePU<>(this);
-    }
-
-    /**
-     * will return false when this thread is not running anymore...
-     *
-     * @param runnable
-     * @return
-     */
-    @CheckReturnValue
-    public boolean runNext(final Runnable runnable) {
-      synchronized (sync) {
-        if (!running) {
-          return false;
-        } else {
-          return toRun.offer(runnable);
-        }
-      }
-    }
-
-    @SuppressFBWarnings
-    public void signal() {
-      toRun.offer(AbstractRunnable.NOP);
     }
 
     public boolean isRunning() {
@@ -460,7 +426,7 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
 
     @Override
     public void run() {
-      final long origNanosWait = TimeUnit.NANOSECONDS.convert(maxIdleTimeMillis, TimeUnit.MILLISECONDS);
+      final long origNanosWait = TimeUnit.NANOSECONDS.convert(pool.maxIdleTimeMillis, TimeUnit.MILLISECONDS);
       long maxIdleNanos = origNanosWait;
       boolean shouldRun = true;
       do {
@@ -475,13 +441,15 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
             throw new UncheckedExecutionException("Uncaught exception handler blew up: " + uexh, ex);
           }
         }
+        ReentrantLock poolStateLock = pool.stateLock;
         poolStateLock.lock();
         try {
           final int tc = state.getThreadCount();
           if (state.isShutdown() || tc - 1 >= state.getCoreThreads()) {
+            retire(pool.threadStack);
             state.removeThread(this);
             shouldRun = false;
-            poolStateCondition.signalAll();
+            pool.stateCondition.signalAll();
             break;
           } else {
             this.lastRunNanos = TimeSource.nanoTime(); // update last Run time to avoid core thread spinning.
@@ -494,7 +462,9 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
       } while (shouldRun && !state.isShutdown());
     }
 
-    @SuppressFBWarnings({"MDM_WAIT_WITHOUT_TIMEOUT", "MDM_LOCK_ISLOCKED", "UL_UNRELEASED_LOCK_EXCEPTION_PATH"})
+    /**
+     * Run tasks until idle for more than maxIdleNanos, or until the pool shuts down.
+     */
     public void doRun(final long maxIdleNanos) {
       running = true;
       try {
@@ -506,70 +476,62 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
           }
         }
         while (running) {
-          poolStateLock.lock();
-          Runnable poll = taskQueue.poll();
-          if (poll == null) {
-            if (state.isShutdown()) {
-              poolStateLock.unlock();
-              running = false;
-              break;
-            }
-            int ptr = threadQueue.addLastAndGetPtr(this);
-            poolStateLock.unlock();
-            while (true) {
-              Runnable runnable;
-              try {
-                final long wTime = maxIdleNanos - (TimeSource.nanoTime() - lastRunNanos);
-                if (wTime > 0) {
-                  runnable = toRun.poll(wTime, state.spinlockCount);
-                } else {
-                  running = false;
-                  removeThreadFromQueue(ptr);
-                  break;
-                }
-              } catch (InterruptedException ex) {
-                interrupt();
-                running = false;
-                removeThreadFromQueue(ptr);
-                break;
+          Runnable task = pool.pollTask();
+          if (task != null) {
+            run(task);
+            continue;
+          }
+          if (state.isShutdown()) {
+            running = false;
+            break;
+          }
+          // nothing to do, make this thread available.
+          makeAvailable(pool.threadStack);
+          // re-check the task queue and the shutdown flag, a submitter might have missed this thread.
+          task = pool.pollTask();
+          if (task != null || state.isShutdown()) {
+            Runnable handedOff = getToRun().close();
+            try {
+              if (task != null) {
+                run(task);
               }
-              if (runnable != null) {
-                run(runnable);
-                break;
+            } finally {
+              if (handedOff != null) {
+                run(handedOff);
               }
             }
-          } else {
-            poolStateLock.unlock();
-            run(poll);
+            continue;
           }
+          Runnable runnable;
+          try {
+            final long wTime = maxIdleNanos - (TimeSource.nanoTime() - lastRunNanos);
+            runnable = wTime > 0 ? getToRun().pollAndClose(wTime, state.getSpinlockCount()) : null;
+          } catch (InterruptedException ex) {
+            interrupt();
+            running = false;
+            runnable = null;
+          }
+          if (runnable == null) {
+            // stop accepting tasks, a task might have been handed off concurrently.
+            runnable = getToRun().close();
+            if (runnable == null) {
+              running = false;
+              break;
+            }
+          }
+          run(runnable);
         }
-
       } catch (Throwable t) {
         running = false;
-        if (poolStateLock.isHeldByCurrentThread()) {
-          poolStateLock.unlock();
-        }
-        throw t;
-      } finally {
-        if (!interrupted()) {
-          synchronized (sync) {
-            Runnable runnable = toRun.poll();
-            if (runnable != null) {
-              run(runnable);
-            }
+        Runnable handedOff = getToRun().close();
+        if (handedOff != null) {
+          try {
+            run(handedOff);
+          } catch (Throwable t2) {
+            t.addSuppressed(t2);
           }
         }
-      }
-
-    }
-
-    @SuppressFBWarnings("MDM_WAIT_WITHOUT_TIMEOUT")
-    public void removeThreadFromQueue(final int ptr) {
-      poolStateLock.lock();
-      try {
-        threadQueue.delete(ptr, this);
-      } finally {
-        poolStateLock.unlock();
+        throw t;
       }
     }
 
@@ -591,38 +553,47 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
       }
       return "QueuedThread{name = " + getName() + ", running=" + running + ", lastRunNanos="
               + lastRunNanos + ", stack =" + Arrays.toString(stackTrace)
-              + ", toRun = " + toRun + '}';
+              + ", toRun = " + getToRun() + '}';
     }
 
   }
 
   private static final class PoolState {
 
-    private boolean shutdown;
+    private volatile boolean shutdown;
 
     private final int spinlockCount;
 
     private final int coreThreads;
 
+    @GuardedBy("stateLock")
     private final Set<QueuedThread> allThreads;
 
+    /**
+     * the number of threads, readable without holding the state lock.
+     */
+    private volatile int threadCount;
+
     PoolState(final int thnr, final int spinlockCount, final Set<QueuedThread> allThreads) {
       this.shutdown = false;
       this.coreThreads = thnr;
       this.spinlockCount = spinlockCount;
       this.allThreads = allThreads;
+      this.threadCount = allThreads.size();
     }
 
     public void addThread(final QueuedThread thread) {
       if (!allThreads.add(thread)) {
         throw new IllegalStateException("Attempting to add a thread twice: " + thread);
       }
+      threadCount = allThreads.size();
     }
 
     public void removeThread(final QueuedThread thread) {
       if (!allThreads.remove(thread)) {
         throw new IllegalStateException("Removing thread failed: " + thread);
       }
+      threadCount = allThreads.size();
     }
 
     public void interruptAll() {
@@ -648,20 +619,20 @@ public final class LifoThreadPoolExecutorSQP extends AbstractExecutorService imp
     }
 
     public int getThreadCount() {
-      return allThreads.size();
+      return threadCount;
     }
 
     @Override
     public String toString() {
       return "ExecState{" + "shutdown=" + shutdown + ", threadCount="
-              + allThreads.size() + ", spinlockCount=" + spinlockCount + '}';
+              + threadCount + ", spinlockCount=" + spinlockCount + '}';
     }
 
   }
 
   @Override
   public String toString() {
-    return "LifoThreadPoolExecutorSQP{" + "threadQueue=" + threadQueue + ", maxIdleTimeMillis="
+    return "LifoThreadPoolExecutorSQP{" + "threadStack=" + threadStack + ", maxIdleTimeMillis="
             + maxIdleTimeMillis + ", maxThreadCount=" + maxThreadCount + ", state=" + state
             + ", submitMonitor=" + stateLock + ", queueCapacity=" + queueSizeLimit
             + ", poolName=" + poolName + '}';
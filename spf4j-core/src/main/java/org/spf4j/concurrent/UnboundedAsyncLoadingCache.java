@@ -0,0 +1,273 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import org.spf4j.base.ExecutionContexts;
+
+/**
+ * Async sibling of UnboundedLoadingCache, the callers are never blocked by the loader, they get a CompletableFuture
+ * of the value. Concurrent misses of the same key are coalesced into one load, all callers get the same future.
+ *
+ * Loads are executed with the configured executor, propagating the ExecutionContext of the caller that triggered
+ * the load. Bulk getAll batches all missing keys into a single CacheLoader.loadAll invocation (keys are loaded
+ * individually if the loader does not implement loadAll).
+ *
+ * Failed loads are not cached, the next get will trigger a new load.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+public final class UnboundedAsyncLoadingCache<K, V> {
+
+  private final ConcurrentMap<K, CompletableFuture<V>> map;
+
+  private final CacheLoader<K, V> loader;
+
+  private final Executor executor;
+
+  public UnboundedAsyncLoadingCache(final int initialSize, final CacheLoader<K, V> loader) {
+    this(initialSize, 8, loader, DefaultExecutor.INSTANCE);
+  }
+
+  public UnboundedAsyncLoadingCache(final int initialSize, final int concurrency, final CacheLoader<K, V> loader,
+          final Executor executor) {
+    this.map = new ConcurrentHashMap<>(initialSize, 0.75f, concurrency);
+    this.loader = loader;
+    this.executor = executor;
+  }
+
+  /**
+   * @return the future of the value associated with the key, loading it if needed.
+   */
+  public CompletableFuture<V> get(final K key) {
+    while (true) {
+      CompletableFuture<V> result = map.get(key);
+      if (result == null) {
+        CompletableFuture<V> future = new CompletableFuture<>();
+        result = map.putIfAbsent(key, future);
+        if (result == null) {
+          execute(new Runnable() {
+            @Override
+            public void run() {
+              load(key, future);
+            }
+          }, future, key);
+          return future;
+        }
+      }
+      if (!result.isCompletedExceptionally()) {
+        return result;
+      }
+      // cancelled by a caller (failed loads are removed before being completed), replace it.
+      map.remove(key, result);
+    }
+  }
+
+  /**
+   * @return the future of the values associated with the keys, all missing keys are loaded with a
+   * single CacheLoader.loadAll call.
+   */
+  public CompletableFuture<Map<K, V>> getAll(final Iterable<? extends K> keys) {
+    final Map<K, CompletableFuture<V>> futures = Maps.newLinkedHashMap();
+    final Map<K, CompletableFuture<V>> toLoad = Maps.newLinkedHashMap();
+    for (K key : keys) {
+      if (futures.containsKey(key)) {
+        continue;
+      }
+      CompletableFuture<V> result;
+      do {
+        result = map.get(key);
+        if (result == null) {
+          CompletableFuture<V> future = new CompletableFuture<>();
+          result = map.putIfAbsent(key, future);
+          if (result == null) {
+            result = future;
+            toLoad.put(key, future);
+          }
+        } else if (result.isCompletedExceptionally()) {
+          map.remove(key, result);
+          result = null;
+        }
+      } while (result == null);
+      futures.put(key, result);
+    }
+    if (!toLoad.isEmpty()) {
+      execute(new Runnable() {
+        @Override
+        public void run() {
+          loadAll(toLoad);
+        }
+      }, toLoad);
+    }
+    return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[futures.size()]))
+            .thenApply((v) -> ImmutableMap.copyOf(Maps.transformValues(futures, CompletableFuture::join)));
+  }
+
+  private void execute(final Runnable load, final CompletableFuture<V> future, final K key) {
+    try {
+      executor.execute(ExecutionContexts.propagatingRunnable(load));
+    } catch (RuntimeException ex) {
+      fail(key, future, ex);
+    }
+  }
+
+  private void execute(final Runnable load, final Map<K, CompletableFuture<V>> futures) {
+    try {
+      executor.execute(ExecutionContexts.propagatingRunnable(load));
+    } catch (RuntimeException ex) {
+      failAll(futures, ex);
+    }
+  }
+
+  private void load(final K key, final CompletableFuture<V> future) {
+    V value;
+    try {
+      value = loader.load(key);
+    } catch (Exception | Error ex) {
+      fail(key, future, ex);
+      return;
+    }
+    if (value == null) {
+      fail(key, future, new CacheLoader.InvalidCacheLoadException("null value loaded for " + key));
+    } else {
+      future.complete(value);
+    }
+  }
+
+  private void loadAll(final Map<K, CompletableFuture<V>> futures) {
+    Map<K, V> values;
+    try {
+      values = loader.loadAll(futures.keySet());
+    } catch (CacheLoader.UnsupportedLoadingOperationException ex) {
+      for (Map.Entry<K, CompletableFuture<V>> entry : futures.entrySet()) {
+        load(entry.getKey(), entry.getValue());
+      }
+      return;
+    } catch (Exception | Error ex) {
+      failAll(futures, ex);
+      return;
+    }
+    for (Map.Entry<K, CompletableFuture<V>> entry : futures.entrySet()) {
+      K key = entry.getKey();
+      V value = values.get(key);
+      if (value == null) {
+        fail(key, entry.getValue(), new CacheLoader.InvalidCacheLoadException("loadAll returned no value for "
+                + key));
+      } else {
+        entry.getValue().complete(value);
+      }
+    }
+  }
+
+  private void failAll(final Map<K, CompletableFuture<V>> futures, final Throwable ex) {
+    for (Map.Entry<K, CompletableFuture<V>> entry : futures.entrySet()) {
+      fail(entry.getKey(), entry.getValue(), ex);
+    }
+  }
+
+  private void fail(final K key, final CompletableFuture<V> future, final Throwable ex) {
+    // failures are not cached.
+    map.remove(key, future);
+    future.completeExceptionally(ex);
+  }
+
+  /**
+   * @return the future of the value (completed or not), or null if the key is not in the cache.
+   */
+  @Nullable
+  public CompletableFuture<V> getIfPresent(final K key) {
+    return map.get(key);
+  }
+
+  public void put(final K key, final V value) {
+    map.put(key, CompletableFuture.completedFuture(value));
+  }
+
+  public void invalidate(final K key) {
+    map.remove(key);
+  }
+
+  @SuppressFBWarnings("OCP_OVERLY_CONCRETE_PARAMETER")
+  public void invalidateAll(final Iterable<? extends K> keys) {
+    for (K key : keys) {
+      invalidate(key);
+    }
+  }
+
+  public void invalidateAll() {
+    map.clear();
+  }
+
+  public long size() {
+    return map.size();
+  }
+
+  public Set<K> getKeysLoaded() {
+    return map.keySet();
+  }
+
+  /**
+   * @return the values that are loaded (completed successfully).
+   */
+  public Map<K, V> getLoaded() {
+    List<Map.Entry<K, CompletableFuture<V>>> entries = new ArrayList<>(map.entrySet());
+    Map<K, V> result = Maps.newHashMapWithExpectedSize(entries.size());
+    for (Map.Entry<K, CompletableFuture<V>> entry : entries) {
+      CompletableFuture<V> future = entry.getValue();
+      if (future.isDone() && !future.isCompletedExceptionally()) {
+        result.put(entry.getKey(), future.join());
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "UnboundedAsyncLoadingCache{" + "size=" + map.size() + ", loader=" + loader
+            + ", executor=" + executor + '}';
+  }
+
+}
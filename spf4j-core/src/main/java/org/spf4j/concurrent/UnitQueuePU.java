@@ -41,6 +41,9 @@ import org.spf4j.base.TimeSource;
 /**
  * Special purpose queue for a single value Custom designed for the LifoThreadPool
  *
+ * The reader can close the queue, when it is not interested in values anymore (it is busy),
+ * offers fail while the queue is closed. This allows a single CAS hand off of values to the reader.
+ *
  * @author zoly
  */
 public final class UnitQueuePU<T> {
@@ -50,7 +53,9 @@ public final class UnitQueuePU<T> {
 
   private static final Semaphore SPIN_LIMIT = new Semaphore(SPIN_LIMITER);
 
-  private final AtomicReference<T> value = new AtomicReference<>();
+  private static final Object CLOSED = new Object();
+
+  private final AtomicReference<Object> value = new AtomicReference<>();
 
   private final Thread readerThread;
 
@@ -60,18 +65,42 @@ public final class UnitQueuePU<T> {
 
   @Nullable
   public T poll() {
-    T result = value.getAndSet(null);
-    if (result != null) {
-      return result;
-    } else {
+    return take(null);
+  }
+
+  /**
+   * Take the value if there is one, (only the reader thread takes values).
+   * @param next what to leave in the queue after taking the value, null (open) or CLOSED.
+   */
+  @Nullable
+  private T take(@Nullable final Object next) {
+    Object result = value.get();
+    if (result == null || result == CLOSED) {
       return null;
     }
+    // only the reader can change a non null value.
+    value.set(next);
+    return (T) result;
   }
 
-  @SuppressFBWarnings("PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS")
   @Nullable
   public T poll(final long timeoutNanos, final long spinCount) throws InterruptedException {
-    T result = poll();
+    return poll(timeoutNanos, spinCount, null);
+  }
+
+  /**
+   * Poll for a value, and close this queue if a value is returned.
+   */
+  @Nullable
+  public T pollAndClose(final long timeoutNanos, final long spinCount) throws InterruptedException {
+    return poll(timeoutNanos, spinCount, CLOSED);
+  }
+
+  @SuppressFBWarnings("PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS")
+  @Nullable
+  private T poll(final long timeoutNanos, final long spinCount, @Nullable final Object next)
+          throws InterruptedException {
+    T result = take(next);
     if (result != null) {
       return result;
     }
@@ -81,7 +110,7 @@ public final class UnitQueuePU<T> {
         try {
           int i = 0;
           while (i < spinCount) {
-            result = poll();
+            result = take(next);
             if (result != null) {
               return result;
             }
@@ -97,7 +126,7 @@ public final class UnitQueuePU<T> {
     }
 
     long deadlineNanos = TimeSource.nanoTime() + timeoutNanos;
-    while ((result = value.getAndSet(null)) == null) {
+    while ((result = take(next)) == null) {
       final long to = deadlineNanos - TimeSource.nanoTime();
       if (to <= 0) {
         return null;
@@ -110,6 +139,9 @@ public final class UnitQueuePU<T> {
     return result;
   }
 
+  /**
+   * @return false if the queue is full or closed.
+   */
   public boolean offer(final T offer) {
     boolean result = value.compareAndSet(null, offer);
     if (result) {
@@ -118,9 +150,27 @@ public final class UnitQueuePU<T> {
     return result;
   }
 
+  /**
+   * Stop accepting values, offer will fail until this queue is opened.
+   * @return the value offered before closing if any, the reader is responsible to handle it.
+   */
+  @Nullable
+  public T close() {
+    Object result = value.getAndSet(CLOSED);
+    return result == CLOSED ? null : (T) result;
+  }
+
+  /**
+   * Start accepting values, (after close).
+   */
+  public void open() {
+    value.compareAndSet(CLOSED, null);
+  }
+
   @Override
   public String toString() {
-    return "UnitQueuePU{" + "value=" + value + '}';
+    Object val = value.get();
+    return "UnitQueuePU{" + "value=" + (val == CLOSED ? "CLOSED" : val) + '}';
   }
 
 }
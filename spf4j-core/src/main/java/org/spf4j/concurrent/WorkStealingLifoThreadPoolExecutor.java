@@ -0,0 +1,683 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.GuardedBy;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.base.TimeSource;
+import static org.spf4j.concurrent.LifoThreadPoolExecutorSQP.CORE_MINWAIT_NANOS;
+import static org.spf4j.concurrent.RejectedExecutionHandler.REJECT_EXCEPTION_EXEC_HANDLER;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.jmx.Registry;
+import org.spf4j.stackmonitor.StackTrace;
+
+/**
+ * Work stealing variant of the Lifo thread pool (LifoThreadPoolExecutorSQP).
+ *
+ * Every pool thread has its own task deque, tasks submitted from a pool thread are pushed to the submitting thread's
+ * deque (if the queue size limit allows it) and will be executed by the same thread (LIFO), preserving cache
+ * locality. An available thread, if any, is woken up to steal them; thieves take the oldest tasks from the other
+ * thread's deques (FIFO). Tasks submitted from outside the pool are handed off to the most recently available
+ * thread, a new thread is spawned if possible, or are queued in the shared task queue.
+ *
+ * The queue size limit applies to all queued tasks (shared task queue + all thread deques).
+ * Max thread count, max idle time, queue size limit, daemon and priority of new threads can be changed at runtime.
+ *
+ * See LifoThreadPoolBuilder.workStealing() for conveniently constructing pools.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+@SuppressFBWarnings({ "MDM_THREAD_PRIORITIES", "MDM_WAIT_WITHOUT_TIMEOUT" })
+public final class WorkStealingLifoThreadPoolExecutor extends AbstractExecutorService
+        implements MutableLifoThreadPool {
+
+  private static final Worker[] NO_WORKERS = new Worker[0];
+
+  /**
+   * tasks submitted from outside the pool end up here when all threads are busy.
+   */
+  private final Queue<Runnable> taskQueue;
+
+  /**
+   * the number of queued tasks, in the task queue and the worker deques.
+   */
+  private final AtomicInteger nrQueuedTasks;
+
+  private final LongAdder nrStolenTasks;
+
+  private final IdleThreadStack threadStack;
+
+  /**
+   * all pool threads, copy on write (under the state lock), used by thieves to find tasks.
+   */
+  @SuppressFBWarnings(value = "VO_VOLATILE_REFERENCE_TO_ARRAY", justification = "array is never modified")
+  private volatile Worker[] workers;
+
+  private final ReentrantLock stateLock;
+
+  private final Condition stateCondition;
+
+  private final int coreThreads;
+
+  private final int spinLockCount;
+
+  private final String poolName;
+
+  private final RejectedExecutionHandler rejectionHandler;
+
+  private volatile boolean shutdown;
+
+  private volatile int maxIdleTimeMillis;
+
+  private volatile int maxThreadCount;
+
+  private volatile int queueSizeLimit;
+
+  private volatile boolean daemonThreads;
+
+  private volatile int threadPriority;
+
+  public WorkStealingLifoThreadPoolExecutor(final String poolName, final int coreSize,
+          final int maxSize, final int maxIdleTimeMillis,
+          final int queueSizeLimit) {
+    this(poolName, coreSize, maxSize, maxIdleTimeMillis, new ConcurrentLinkedQueue<Runnable>(),
+            queueSizeLimit, false, 1024, REJECT_EXCEPTION_EXEC_HANDLER, Thread.NORM_PRIORITY);
+  }
+
+  /**
+   * @param taskQueue the shared task queue, it is accessed concurrently without a lock, if it is not a
+   * java.util.concurrent queue: a empty ArrayDeque is replaced with a ConcurrentLinkedQueue,
+   * other queues are synchronized.
+   */
+  public WorkStealingLifoThreadPoolExecutor(final String poolName, final int coreSize,
+          final int maxSize, final int maxIdleTimeMillis, final Queue<Runnable> taskQueue,
+          final int queueSizeLimit, final boolean daemonThreads,
+          final int spinLockCount, final RejectedExecutionHandler rejectionHandler,
+          final int threadPriority) {
+    if (coreSize > maxSize) {
+      throw new IllegalArgumentException("Core size must be smaller than max size " + coreSize
+              + " < " + maxSize);
+    }
+    if (coreSize < 0 || maxSize < 0 || spinLockCount < 0 || maxIdleTimeMillis < 0 || queueSizeLimit < 0) {
+      throw new IllegalArgumentException("All numberic TP configs must be positive values: "
+              + coreSize + ", " + maxSize + ", " + maxIdleTimeMillis + ", " + spinLockCount
+              + ", " + queueSizeLimit);
+    }
+    this.poolName = poolName;
+    this.coreThreads = coreSize;
+    this.maxThreadCount = maxSize;
+    this.maxIdleTimeMillis = maxIdleTimeMillis;
+    this.taskQueue = LifoThreadPoolExecutorSQP.toConcurrentQueue(taskQueue);
+    this.nrQueuedTasks = new AtomicInteger(taskQueue.size());
+    this.nrStolenTasks = new LongAdder();
+    this.queueSizeLimit = queueSizeLimit;
+    this.daemonThreads = daemonThreads;
+    this.spinLockCount = spinLockCount;
+    this.rejectionHandler = rejectionHandler;
+    this.threadPriority = threadPriority;
+    this.threadStack = new IdleThreadStack();
+    this.workers = NO_WORKERS;
+    this.shutdown = false;
+    this.stateLock = new ReentrantLock(false);
+    this.stateCondition = stateLock.newCondition();
+    stateLock.lock();
+    try {
+      for (int i = 0; i < coreSize; i++) {
+        addWorker(null).start();
+      }
+    } finally {
+      stateLock.unlock();
+    }
+  }
+
+  @GuardedBy("stateLock")
+  private Worker addWorker(@Nullable final Runnable runFirst) {
+    Worker worker = new Worker(poolName, this, runFirst);
+    worker.setDaemon(daemonThreads);
+    worker.setPriority(threadPriority);
+    Worker[] ws = workers;
+    Worker[] nws = Arrays.copyOf(ws, ws.length + 1);
+    nws[ws.length] = worker;
+    workers = nws;
+    return worker;
+  }
+
+  @GuardedBy("stateLock")
+  private void removeWorker(final Worker worker) {
+    Worker[] ws = workers;
+    int l = ws.length;
+    for (int i = 0; i < l; i++) {
+      if (ws[i] == worker) {
+        Worker[] nws = new Worker[l - 1];
+        System.arraycopy(ws, 0, nws, 0, i);
+        System.arraycopy(ws, i + 1, nws, i, l - i - 1);
+        workers = nws;
+        return;
+      }
+    }
+    throw new IllegalStateException("Removing thread failed: " + worker);
+  }
+
+  /**
+   * Start a new pool thread, if the pool is not shut down and the max thread count is not reached.
+   * @return the started thread, or null if no thread was started.
+   */
+  @Nullable
+  @SuppressFBWarnings(value = "MDM_WAIT_WITHOUT_TIMEOUT",
+          justification = "no blocking is done while holding the lock")
+  private Worker tryStartWorker(@Nullable final Runnable runFirst) {
+    Worker worker = null;
+    stateLock.lock();
+    try {
+      if (!shutdown && workers.length < maxThreadCount) {
+        worker = addWorker(runFirst);
+      }
+    } finally {
+      stateLock.unlock();
+    }
+    if (worker != null) {
+      worker.start();
+    }
+    return worker;
+  }
+
+  @Override
+  public void exportJmx() {
+    Registry.export(WorkStealingLifoThreadPoolExecutor.class.getName(), poolName, this);
+  }
+
+  @Override
+  public void unregisterJmx() {
+    Registry.unregister(WorkStealingLifoThreadPoolExecutor.class.getName(), poolName);
+  }
+
+  @Override
+  public void execute(final Runnable command) {
+    if (shutdown) {
+      this.rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    Thread current = Thread.currentThread();
+    if (current instanceof Worker && ((Worker) current).pool == this) {
+      // submitted from a pool thread, keep the task local, and let a available (or new) thread steal it.
+      if (nrQueuedTasks.incrementAndGet() <= queueSizeLimit) {
+        ((Worker) current).localTasks.addFirst(command);
+        if (threadStack.handOff(AbstractRunnable.NOP)) {
+          return;
+        }
+        if (workers.length < maxThreadCount) {
+          tryStartWorker(null);
+        }
+        return;
+      }
+      nrQueuedTasks.decrementAndGet();
+    }
+    // See if we have Threads available to run the task and do so if any
+    if (threadStack.handOff(command)) {
+      return;
+    }
+    // was not able to submit to an existing available thread, will attempt to create a new thread.
+    if (workers.length < maxThreadCount) {
+      if (tryStartWorker(command) != null) {
+        return;
+      } else if (shutdown) {
+        this.rejectionHandler.rejectedExecution(command, this);
+        return;
+      }
+    }
+    // was not able to submit to an existing available thread, reached the maxThread limit.
+    // will attempt to queue the task, and reject if unable to
+    if (nrQueuedTasks.incrementAndGet() > queueSizeLimit || !taskQueue.offer(command)) {
+      nrQueuedTasks.decrementAndGet();
+      rejectionHandler.rejectedExecution(command, this);
+      return;
+    }
+    // a thread might have become available after we looked, and before the task was queued.
+    // (threads check for tasks after they make themselves available)
+    threadStack.handOff(AbstractRunnable.NOP);
+    if (shutdown && taskQueue.remove(command)) {
+      // the threads might have stopped before the task was queued.
+      nrQueuedTasks.decrementAndGet();
+      rejectionHandler.rejectedExecution(command, this);
+    }
+  }
+
+  /**
+   * Find a task for a pool thread, own deque first (LIFO), the shared task queue second,
+   * and steal (FIFO) from the other threads deques last.
+   */
+  @Nullable
+  private Runnable pollTask(final Worker worker) {
+    Runnable result = worker.localTasks.pollFirst();
+    if (result == null) {
+      result = taskQueue.poll();
+      if (result == null) {
+        result = steal(worker);
+        if (result == null) {
+          return null;
+        }
+      }
+    }
+    nrQueuedTasks.decrementAndGet();
+    return result;
+  }
+
+  @Nullable
+  @SuppressFBWarnings(value = "PREDICTABLE_RANDOM", justification = "used only to spread thieves")
+  private Runnable steal(final Worker thief) {
+    Worker[] ws = workers;
+    int l = ws.length;
+    if (l <= 1) {
+      return null;
+    }
+    int start = ThreadLocalRandom.current().nextInt(l);
+    for (int i = 0; i < l; i++) {
+      Worker victim = ws[(start + i) % l];
+      if (victim != thief) {
+        Runnable result = victim.localTasks.pollLast();
+        if (result != null) {
+          nrStolenTasks.increment();
+          return result;
+        }
+      }
+    }
+    return null;
+  }
+
+  @Override
+  @SuppressFBWarnings("MDM_WAIT_WITHOUT_TIMEOUT")
+  public void shutdown() {
+    stateLock.lock();
+    try {
+      shutdown = true; // set the shutdown flag, to reject new submissions.
+    } finally {
+      stateLock.unlock();
+    }
+    // signal all waiting threads, so thay can start going down.
+    boolean signaled;
+    do {
+      signaled = threadStack.handOff(AbstractRunnable.NOP);
+    } while (signaled);
+  }
+
+  @Override
+  public boolean awaitTermination(final long time, final TimeUnit unit) throws InterruptedException {
+    long deadlinenanos = TimeSource.nanoTime() + unit.toNanos(time);
+    int threadCount;
+    stateLock.lock();
+    try {
+      if (!shutdown) {
+        throw new IllegalStateException("Threadpool is not is shutdown mode " + this);
+      }
+      threadCount = workers.length;
+      long timeoutNs = deadlinenanos - TimeSource.nanoTime();
+      while (threadCount > 0) {
+        if (timeoutNs > 0) {
+          timeoutNs = stateCondition.awaitNanos(timeoutNs);
+        } else {
+          break;
+        }
+        threadCount = workers.length;
+      }
+    } finally {
+      stateLock.unlock();
+    }
+    return threadCount == 0;
+  }
+
+  @Override
+  public List<Runnable> shutdownNow() {
+    shutdown(); // shutdown
+    Worker[] ws;
+    stateLock.lock();
+    try {
+      ws = workers;
+      for (Worker worker : ws) {
+        worker.interrupt(); // interrupt all running threads.
+      }
+    } finally {
+      stateLock.unlock();
+    }
+    List<Runnable> result = new ArrayList<>(nrQueuedTasks.get());
+    drainTo(taskQueue, result);
+    for (Worker worker : ws) {
+      drainTo(worker.localTasks, result);
+    }
+    return result;
+  }
+
+  private void drainTo(final Queue<Runnable> queue, final List<Runnable> to) {
+    Runnable task;
+    while ((task = queue.poll()) != null) {
+      nrQueuedTasks.decrementAndGet();
+      to.add(task);
+    }
+  }
+
+  @Override
+  @JmxExport
+  public boolean isShutdown() {
+    return shutdown;
+  }
+
+  @Override
+  @JmxExport
+  public boolean isTerminated() {
+    return shutdown && workers.length == 0;
+  }
+
+  @JmxExport
+  @Override
+  public int getThreadCount() {
+    return workers.length;
+  }
+
+  @JmxExport
+  @Override
+  public int getMaxThreadCount() {
+    return maxThreadCount;
+  }
+
+  @JmxExport
+  @Override
+  public void setMaxThreadCount(final int maxThreadCount) {
+    this.maxThreadCount = maxThreadCount;
+  }
+
+  @JmxExport
+  @Override
+  public boolean isDaemonThreads() {
+    return daemonThreads;
+  }
+
+  @JmxExport
+  @Override
+  public void setDaemonThreads(final boolean daemonThreads) {
+    this.daemonThreads = daemonThreads;
+  }
+
+  @Override
+  public ReentrantLock getStateLock() {
+    return stateLock;
+  }
+
+  @JmxExport
+  @Override
+  public int getNrQueuedTasks() {
+    return nrQueuedTasks.get();
+  }
+
+  @JmxExport(description = "number of tasks executed by a other thread than the submitting pool thread")
+  public long getNrStolenTasks() {
+    return nrStolenTasks.sum();
+  }
+
+  @JmxExport
+  @Override
+  public int getQueueSizeLimit() {
+    return queueSizeLimit;
+  }
+
+  @JmxExport
+  @Override
+  public void setQueueSizeLimit(final int queueSizeLimit) {
+    this.queueSizeLimit = queueSizeLimit;
+  }
+
+  @JmxExport
+  @Override
+  public int getThreadPriority() {
+    return threadPriority;
+  }
+
+  @JmxExport
+  @Override
+  public void setThreadPriority(final int threadPriority) {
+    this.threadPriority = threadPriority;
+  }
+
+  @JmxExport
+  @Override
+  public int getMaxIdleTimeMillis() {
+    return maxIdleTimeMillis;
+  }
+
+  @JmxExport
+  @Override
+  public void setMaxIdleTimeMillis(final int maxIdleTimeMillis) {
+    this.maxIdleTimeMillis = maxIdleTimeMillis;
+  }
+
+  @Override
+  public Queue<Runnable> getTaskQueue() {
+    return taskQueue;
+  }
+
+  @JmxExport
+  @Override
+  public String getPoolName() {
+    return poolName;
+  }
+
+  private static final class Worker extends IdleThreadStack.IdleThread {
+
+    private static final AtomicInteger COUNT = new AtomicInteger();
+
+    private final WorkStealingLifoThreadPoolExecutor pool;
+
+    /**
+     * tasks submitted by this thread, only this thread adds tasks, at the head. (LIFO for the owner, FIFO for thieves)
+     */
+    private final Deque<Runnable> localTasks;
+
+    private Runnable runFirst;
+
+    private long lastRunNanos;
+
+    private volatile boolean running;
+
+    Worker(final String nameBase, final WorkStealingLifoThreadPoolExecutor pool, @Nullable final Runnable runFirst) {
+      super(nameBase + COUNT.getAndIncrement());
+      this.pool = pool;
+      this.localTasks = new ConcurrentLinkedDeque<>();
+      this.runFirst = runFirst;
+      this.running = false;
+      this.lastRunNanos = TimeSource.nanoTime();
+    }
+
+    @Override
+    public void run() {
+      boolean shouldRun = true;
+      boolean core = false;
+      do {
+        long maxIdleNanos = TimeUnit.MILLISECONDS.toNanos(pool.maxIdleTimeMillis);
+        if (core) {
+          // there must be a minimal wait time for a core thread to avoid spinning.
+          maxIdleNanos = Math.max(maxIdleNanos, CORE_MINWAIT_NANOS);
+        }
+        try {
+          doRun(maxIdleNanos);
+        } catch (Throwable e) {
+          final UncaughtExceptionHandler uexh = this.getUncaughtExceptionHandler();
+          try {
+            uexh.uncaughtException(this, e);
+          } catch (RuntimeException ex) {
+            ex.addSuppressed(e);
+            throw new UncheckedExecutionException("Uncaught exception handler blew up: " + uexh, ex);
+          }
+        }
+        ReentrantLock poolStateLock = pool.stateLock;
+        poolStateLock.lock();
+        try {
+          final int tc = pool.workers.length;
+          // a thread with tasks in its deque (a task blew up) keeps running, nobody else is guaranteed to run them.
+          if ((pool.shutdown || tc - 1 >= pool.coreThreads || tc > pool.maxThreadCount)
+                  && localTasks.isEmpty()) {
+            retire(pool.threadStack);
+            pool.removeWorker(this);
+            shouldRun = false;
+            pool.stateCondition.signalAll();
+            break;
+          } else {
+            this.lastRunNanos = TimeSource.nanoTime(); // update last Run time to avoid core thread spinning.
+            core = tc <= pool.coreThreads;
+          }
+        } finally {
+          poolStateLock.unlock();
+        }
+      } while (shouldRun);
+    }
+
+    /**
+     * Run tasks until idle for more than maxIdleNanos, or until the pool shuts down.
+     */
+    public void doRun(final long maxIdleNanos) {
+      running = true;
+      try {
+        if (runFirst != null) {
+          try {
+            run(runFirst);
+          } finally {
+            runFirst = null;
+          }
+        }
+        while (running) {
+          Runnable task = pool.pollTask(this);
+          if (task != null) {
+            run(task);
+            continue;
+          }
+          if (pool.shutdown) {
+            running = false;
+            break;
+          }
+          // nothing to do, make this thread available.
+          makeAvailable(pool.threadStack);
+          // re-check for tasks and the shutdown flag, a submitter might have missed this thread.
+          task = pool.pollTask(this);
+          if (task != null || pool.shutdown) {
+            Runnable handedOff = getToRun().close();
+            try {
+              if (task != null) {
+                run(task);
+              }
+            } finally {
+              if (handedOff != null) {
+                run(handedOff);
+              }
+            }
+            continue;
+          }
+          Runnable runnable;
+          try {
+            final long wTime = maxIdleNanos - (TimeSource.nanoTime() - lastRunNanos);
+            runnable = wTime > 0 ? getToRun().pollAndClose(wTime, pool.spinLockCount) : null;
+          } catch (InterruptedException ex) {
+            interrupt();
+            running = false;
+            runnable = null;
+          }
+          if (runnable == null) {
+            // stop accepting tasks, a task might have been handed off concurrently.
+            runnable = getToRun().close();
+            if (runnable == null) {
+              running = false;
+              break;
+            }
+          }
+          run(runnable);
+        }
+      } catch (Throwable t) {
+        running = false;
+        Runnable handedOff = getToRun().close();
+        if (handedOff != null) {
+          try {
+            run(handedOff);
+          } catch (Throwable t2) {
+            t.addSuppressed(t2);
+          }
+        }
+        throw t;
+      }
+    }
+
+    public void run(final Runnable runnable) {
+      try {
+        runnable.run();
+      } finally {
+        lastRunNanos = TimeSource.nanoTime();
+      }
+    }
+
+    @Override
+    public String toString() {
+      StackTraceElement[] stackTrace;
+      try {
+        stackTrace = this.getStackTrace();
+      } catch (RuntimeException ex) {
+        stackTrace = StackTrace.EMPTY_STACK_TRACE;
+      }
+      return "Worker{name = " + getName() + ", running=" + running + ", lastRunNanos="
+              + lastRunNanos + ", stack =" + Arrays.toString(stackTrace)
+              + ", toRun = " + getToRun() + '}';
+    }
+
+  }
+
+  @Override
+  public String toString() {
+    return "WorkStealingLifoThreadPoolExecutor{" + "threadStack=" + threadStack + ", maxIdleTimeMillis="
+            + maxIdleTimeMillis + ", maxThreadCount=" + maxThreadCount + ", coreThreads=" + coreThreads
+            + ", threadCount=" + workers.length + ", shutdown=" + shutdown + ", nrQueuedTasks=" + nrQueuedTasks
+            + ", queueCapacity=" + queueSizeLimit + ", poolName=" + poolName + '}';
+  }
+
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.concurrent.ScheduledFuture;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.io.Csv;
+import org.spf4j.jmx.DynamicMBeanBuilder;
+import org.spf4j.jmx.GenericExportedValue;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.jmx.Registry;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementsInfo;
+
+/**
+ * A measurement recorder that records into a single accumulator shared by all threads.
+ * (like ConcurrentQuantizedAccumulator). Unlike ScalableMeasurementRecorder, memory use does not grow
+ * with the number of recording threads.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+public final class ConcurrentMeasurementRecorder extends AbstractMeasurementAccumulator {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ConcurrentMeasurementRecorder.class);
+
+  private final MeasurementAccumulator accumulator;
+  private final ScheduledFuture<?> samplingFuture;
+  private final Persister persister;
+  @Nonnull
+  private final Runnable shutdownHook;
+
+  ConcurrentMeasurementRecorder(final MeasurementAccumulator accumulator, final int sampleTimeMillis,
+          final MeasurementStore measurementStore) {
+    if (sampleTimeMillis < 1000) {
+      throw new IllegalArgumentException("sample time needs to be at least 1000 and not " + sampleTimeMillis);
+    }
+    this.accumulator = accumulator;
+    final long tableId;
+    try {
+      tableId = measurementStore.alocateMeasurements(accumulator.getInfo(), sampleTimeMillis);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    persister = new Persister(measurementStore, tableId);
+    samplingFuture = DefaultScheduler.scheduleAllignedAtFixedRateMillis(persister, sampleTimeMillis);
+    shutdownHook = closeOnShutdown();
+  }
+
+  private Runnable closeOnShutdown() {
+    final AbstractRunnable runnable = new AbstractRunnable(true) {
+
+      @Override
+      public void doRun() {
+        close();
+      }
+    };
+    org.spf4j.base.Runtime.queueHook(0, runnable);
+    return runnable;
+  }
+
+  @Override
+  public void record(final long measurement) {
+    accumulator.record(measurement);
+  }
+
+  @Override
+  public long[] get() {
+    return accumulator.get();
+  }
+
+  @Override
+  public long[] getThenReset() {
+    return accumulator.getThenReset();
+  }
+
+  @JmxExport(description = "measurements as csv")
+  public String getMeasurementsAsString() {
+    StringWriter sw = new StringWriter(128);
+    MeasurementsInfo info = getInfo();
+    try {
+      Csv.writeCsvRow(sw, (Object[]) info.getMeasurementNames());
+      Csv.writeCsvRow(sw, (Object[]) info.getMeasurementUnits());
+      final long[] values = get();
+      if (values != null) {
+        Csv.writeCsvRow(sw, values);
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return sw.toString();
+  }
+
+  @JmxExport
+  public void clear() {
+    getThenReset();
+  }
+
+  @Override
+  public MeasurementAccumulator aggregate(final MeasurementAccumulator mSource) {
+    throw new UnsupportedOperationException("Aggregating Concurrent Recorders not supported");
+  }
+
+  /**
+   * @return a snapshot of the recorded state.
+   */
+  @Override
+  public MeasurementAccumulator createClone() {
+    return accumulator.createClone();
+  }
+
+  /**
+   * @return a accumulator like the one backing this recorder, (not persisted).
+   */
+  @Override
+  public MeasurementAccumulator createLike(final Object entity) {
+    return accumulator.createLike(entity);
+  }
+
+  @Override
+  @Nullable
+  public MeasurementAccumulator reset() {
+    return accumulator.reset();
+  }
+
+  @Override
+  public MeasurementsInfo getInfo() {
+    return accumulator.getInfo();
+  }
+
+  @SuppressWarnings("unchecked")
+  public void registerJmx() {
+    MeasurementsInfo info = accumulator.getInfo();
+    new DynamicMBeanBuilder().withJmxExportObject(this)
+            .withAttribute(new GenericExportedValue<>("measurements", info.getDescription(),
+                    this::getCompositeData, null, info.toCompositeType()))
+            .register("org.spf4j.perf.recorders", info.getMeasuredEntity().toString());
+  }
+
+  @Override
+  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
+  public void close() {
+    synchronized (shutdownHook) {
+      if (!samplingFuture.isCancelled()) {
+        org.spf4j.base.Runtime.removeQueuedShutdownHook(shutdownHook);
+        samplingFuture.cancel(false);
+        try {
+          persister.persist(false);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+        Registry.unregister("org.spf4j.perf.recorders",
+                accumulator.getInfo().getMeasuredEntity().toString());
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentMeasurementRecorder{" + "accumulator=" + accumulator + '}';
+  }
+
+  private class Persister extends AbstractRunnable {
+
+    private final MeasurementStore measurementStore;
+    private final long tableId;
+    private volatile long lastRun = 0;
+
+    Persister(final MeasurementStore measurementStore, final long tableId) {
+      super(true);
+      this.measurementStore = measurementStore;
+      this.tableId = tableId;
+    }
+
+    @Override
+    public void doRun() throws IOException {
+      persist(true);
+    }
+
+    public void persist(final boolean warn) throws IOException {
+      long currentTime = System.currentTimeMillis();
+      if (currentTime > lastRun) {
+        lastRun = currentTime;
+        final long[] measurements = accumulator.getThenReset();
+        if (measurements != null) {
+          measurementStore.saveMeasurements(tableId, currentTime, measurements);
+        }
+      } else if (warn) {
+        LOG.warn("Last measurement recording for {} was at {} current run is {}, something is wrong",
+                accumulator.getInfo(), lastRun, currentTime);
+      }
+    }
+  }
+
+}
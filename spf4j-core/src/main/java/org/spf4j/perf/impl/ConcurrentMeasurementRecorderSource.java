@@ -0,0 +1,247 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TObjectLongMap;
+import gnu.trove.map.hash.TObjectLongHashMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.base.Pair;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.io.Csv;
+import org.spf4j.jmx.DynamicMBeanBuilder;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.jmx.Registry;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.MeasurementRecorderSource;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementsInfo;
+import org.spf4j.perf.MeasurementsSource;
+
+/**
+ * A recorder source with one accumulator per measured entity, shared by all threads.
+ * To be used with accumulators that scale with concurrent use (like ConcurrentQuantizedAccumulator).
+ *
+ * @author zoly
+ */
+@ThreadSafe
+public final class ConcurrentMeasurementRecorderSource implements
+        MeasurementRecorderSource, MeasurementsSource, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ConcurrentMeasurementRecorderSource.class);
+
+  private final ConcurrentMap<Object, MeasurementAccumulator> accumulators;
+
+  private final ScheduledFuture<?> samplingFuture;
+
+  private final MeasurementAccumulator processorTemplate;
+
+  private final TObjectLongMap<MeasurementsInfo> tableIds;
+
+  private final Persister persister;
+
+  private final Runnable shutdownHook;
+
+  ConcurrentMeasurementRecorderSource(final MeasurementAccumulator processor,
+          final int sampleTimeMillis, final MeasurementStore database) {
+    if (sampleTimeMillis < 1000) {
+      throw new IllegalArgumentException("sample time needs to be at least 1000 and not " + sampleTimeMillis);
+    }
+    this.processorTemplate = processor;
+    this.accumulators = new ConcurrentHashMap<>();
+    tableIds = new TObjectLongHashMap<>();
+    persister = new Persister(database, sampleTimeMillis);
+    samplingFuture = DefaultScheduler.scheduleAllignedAtFixedRateMillis(persister, sampleTimeMillis);
+    shutdownHook = closeOnShutdown();
+  }
+
+  private Runnable closeOnShutdown() {
+    final AbstractRunnable runnable = new AbstractRunnable(true) {
+
+      @Override
+      public void doRun() {
+        close();
+      }
+    };
+    org.spf4j.base.Runtime.queueHook(0, runnable);
+    return runnable;
+  }
+
+  @Override
+  public MeasurementRecorder getRecorder(final Object forWhat) {
+    MeasurementAccumulator result = accumulators.get(forWhat);
+    if (result == null) {
+      result = processorTemplate.createLike(Pair.of(processorTemplate.getInfo().getMeasuredEntity(), forWhat));
+      MeasurementAccumulator existing = accumulators.putIfAbsent(forWhat, result);
+      if (existing != null) {
+        result = existing;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Map<Object, MeasurementAccumulator> getEntitiesMeasurements() {
+    Map<Object, MeasurementAccumulator> result = new HashMap<>(accumulators.size() + accumulators.size() / 3);
+    for (Map.Entry<Object, MeasurementAccumulator> entry : accumulators.entrySet()) {
+      result.put(entry.getKey(), entry.getValue().createClone());
+    }
+    return result;
+  }
+
+  @Override
+  @Nonnull
+  public Map<Object, MeasurementAccumulator> getEntitiesMeasurementsAndReset() {
+    Map<Object, MeasurementAccumulator> result = new HashMap<>(accumulators.size() + accumulators.size() / 3);
+    for (Map.Entry<Object, MeasurementAccumulator> entry : accumulators.entrySet()) {
+      MeasurementAccumulator vals = entry.getValue().reset();
+      if (vals != null) {
+        result.put(entry.getKey(), vals);
+      }
+    }
+    return result;
+  }
+
+  public void registerJmx() {
+    new DynamicMBeanBuilder().withJmxExportObject(this)
+            .register("org.spf4j.perf.recorders", processorTemplate.getInfo().getMeasuredEntity().toString());
+  }
+
+  @Override
+  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
+  public void close() {
+    synchronized (shutdownHook) {
+      if (!samplingFuture.isCancelled()) {
+        org.spf4j.base.Runtime.removeQueuedShutdownHook(shutdownHook);
+        samplingFuture.cancel(false);
+        try {
+          persister.persist(false);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+        Registry.unregister("org.spf4j.perf.recorders",
+                this.processorTemplate.getInfo().getMeasuredEntity().toString());
+      }
+    }
+  }
+
+  @JmxExport(description = "measurements as csv")
+  public String getMeasurementsAsString() {
+    StringWriter sw = new StringWriter(128);
+    MeasurementsInfo info = this.processorTemplate.getInfo();
+    try {
+      Csv.writeCsvRow2(sw, "Measured", (Object[]) info.getMeasurementNames());
+      Csv.writeCsvRow2(sw, "string", (Object[]) info.getMeasurementUnits());
+      for (Map.Entry<Object, MeasurementAccumulator> entry : accumulators.entrySet()) {
+        final long[] measurements = entry.getValue().get();
+        if (measurements != null) {
+          Csv.writeCsvElement(entry.getKey().toString(), sw);
+          sw.write(',');
+          Csv.writeCsvRow(sw, measurements);
+        }
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return sw.toString();
+  }
+
+  @JmxExport
+  public void clear() {
+    getEntitiesMeasurementsAndReset();
+  }
+
+  private class Persister extends AbstractRunnable {
+
+    private final MeasurementStore database;
+    private final int sampleTimeMillis;
+    private volatile long lastRun = 0;
+
+    Persister(final MeasurementStore database, final int sampleTimeMillis) {
+      super(true);
+      this.database = database;
+      this.sampleTimeMillis = sampleTimeMillis;
+    }
+
+    @Override
+    public void doRun() throws IOException {
+      persist(true);
+    }
+
+    public void persist(final boolean warn) throws IOException {
+      long currentTime = System.currentTimeMillis();
+      if (currentTime > lastRun) {
+        lastRun = currentTime;
+        for (MeasurementAccumulator m
+                : ConcurrentMeasurementRecorderSource.this.getEntitiesMeasurementsAndReset().values()) {
+          final MeasurementsInfo info = m.getInfo();
+          long tableId;
+          synchronized (tableIds) {
+            tableId = tableIds.get(info);
+            if (tableId == 0) {
+              tableId = database.alocateMeasurements(info, sampleTimeMillis);
+              tableIds.put(info, tableId);
+            }
+          }
+          final long[] data = m.getThenReset();
+          if (data != null) {
+            database.saveMeasurements(tableId, currentTime, data);
+          }
+        }
+      } else if (warn) {
+        LOG.warn("Last measurement recording for {} was at {} current run is {}, something is wrong",
+                processorTemplate.getInfo(), lastRun, currentTime);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentMeasurementRecorderSource{" + "accumulators=" + accumulators
+            + ", processorTemplate=" + processorTemplate + '}';
+  }
+
+}
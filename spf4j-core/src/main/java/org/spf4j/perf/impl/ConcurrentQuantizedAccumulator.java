@@ -0,0 +1,259 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementsInfo;
+
+/**
+ * A quantized accumulator (same buckets and measurements as QuantizedAccumulator) that can be shared by any number
+ * of threads.
+ *
+ * record is wait-free for the total and bucket counters, which are striped by thread
+ * to avoid contending on the same cache line, min and max are maintained via CAS which only happens when a new
+ * extreme is recorded.
+ * The measurement count is the sum of all buckets, so count and buckets are always consistent.
+ * reset atomically drains every counter (no recorded measurement is lost), a measurement recorded concurrently
+ * with a reset might have its total accounted in one interval and its bucket in the next.
+ * record updates the bucket, then the total, then min/max, and reset resets min/max, then drains the buckets,
+ * then the totals, so a measurement counted in the next interval always has its min/max accounted there too,
+ * even when reset is delayed while draining. Only a measurement whose record straddles the reset can leave
+ * its min/max (and total) to the next interval, when this leaves an interval without min/max the interval
+ * average, bounded by the non empty buckets, is used for both.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class ConcurrentQuantizedAccumulator extends AbstractMeasurementAccumulator {
+
+  /**
+   * default number of stripes, the closest power of 2 >= the number of processors, max 64.
+   */
+  public static final int DEFAULT_NR_STRIPES = Integer.getInteger("spf4j.perf.concurrentAccumulator.stripes",
+          Math.min(64, Integer.highestOneBit(org.spf4j.base.Runtime.NR_PROCESSORS * 2 - 1)));
+
+  /**
+   * longs in a cache line.
+   */
+  private static final int LINE_LONGS = 8;
+
+  private final QuantizedAccumulator template;
+
+  private final long[] bucketLimits;
+
+  private final int stripeMask;
+
+  /**
+   * number of array elements per stripe, rounded up to a cache line multiple.
+   */
+  private final int stride;
+
+  /**
+   * stripe i: [i * stride] = total, [i * stride + 1 + b] = count of bucket b.
+   */
+  private final AtomicLongArray counters;
+
+  private final AtomicLong minMeasurement;
+
+  private final AtomicLong maxMeasurement;
+
+  public ConcurrentQuantizedAccumulator(final Object measuredEntity,
+          final String description,
+          final String unitOfMeasurement,
+          final int factor, final int lowerMagnitude,
+          final int higherMagnitude, final int quantasPerMagnitude) {
+    this(new QuantizedAccumulator(measuredEntity, description, unitOfMeasurement,
+            factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude), DEFAULT_NR_STRIPES);
+  }
+
+  /**
+   * @param template the quantized accumulator defining the buckets and the measurement info.
+   * @param nrStripes the number of stripes, must be a power of 2.
+   */
+  public ConcurrentQuantizedAccumulator(final QuantizedAccumulator template, final int nrStripes) {
+    if (nrStripes <= 0 || Integer.bitCount(nrStripes) != 1) {
+      throw new IllegalArgumentException("Number of stripes must be a power of 2, not " + nrStripes);
+    }
+    this.template = template;
+    this.bucketLimits = template.getBucketLimits();
+    this.stripeMask = nrStripes - 1;
+    int perStripe = bucketLimits.length + 2;
+    this.stride = ((perStripe + LINE_LONGS - 1) / LINE_LONGS) * LINE_LONGS;
+    this.counters = new AtomicLongArray(stride * nrStripes);
+    this.minMeasurement = new AtomicLong(Long.MAX_VALUE);
+    this.maxMeasurement = new AtomicLong(Long.MIN_VALUE);
+  }
+
+  public int getNrStripes() {
+    return stripeMask + 1;
+  }
+
+  @Override
+  public void record(final long measurement) {
+    int base = ((int) Thread.currentThread().getId() & stripeMask) * stride;
+    counters.incrementAndGet(base + 1 + QuantizedAccumulator.findBucket(bucketLimits, measurement));
+    counters.addAndGet(base, measurement);
+    long min;
+    do {
+      min = minMeasurement.get();
+    } while (measurement < min && !minMeasurement.compareAndSet(min, measurement));
+    long max;
+    do {
+      max = maxMeasurement.get();
+    } while (measurement > max && !maxMeasurement.compareAndSet(max, measurement));
+  }
+
+  /**
+   * @param reset if true the counters will be atomically drained.
+   * @return the state as QuantizedAccumulator, or null if no measurements.
+   */
+  @Nullable
+  private QuantizedAccumulator snapshot(final boolean reset) {
+    long min;
+    long max;
+    if (reset) {
+      min = minMeasurement.getAndSet(Long.MAX_VALUE);
+      max = maxMeasurement.getAndSet(Long.MIN_VALUE);
+    } else {
+      min = minMeasurement.get();
+      max = maxMeasurement.get();
+    }
+    long[] buckets = new long[bucketLimits.length + 1];
+    long total = 0;
+    int nrStripes = stripeMask + 1;
+    for (int s = 0; s < nrStripes; s++) {
+      int base = s * stride;
+      for (int b = 0; b < buckets.length; b++) {
+        int idx = base + 1 + b;
+        buckets[b] += reset ? counters.getAndSet(idx, 0) : counters.get(idx);
+      }
+      total += reset ? counters.getAndSet(base, 0) : counters.get(base);
+    }
+    long count = 0;
+    int lowest = -1;
+    int highest = -1;
+    for (int b = 0; b < buckets.length; b++) {
+      long bc = buckets[b];
+      if (bc > 0) {
+        count += bc;
+        if (lowest < 0) {
+          lowest = b;
+        }
+        highest = b;
+      }
+    }
+    if (count == 0) {
+      return null;
+    }
+    if (min > max) {
+      // only measurements that straddled the reset, their min/max (and possibly total) went to the next interval,
+      // use the average bounded by the non empty buckets.
+      long lower = lowest == 0 ? Long.MIN_VALUE : bucketLimits[lowest - 1];
+      long upper = highest == bucketLimits.length ? Long.MAX_VALUE : bucketLimits[highest] - 1;
+      min = Math.max(lower, Math.min(upper, total / count));
+      max = min;
+    }
+    return new QuantizedAccumulator(template.getInfo(), template.getFactor(), template.getLowerMagnitude(),
+            template.getHigherMagnitude(), min, max, count, total, template.getQuantasPerMagnitude(),
+            bucketLimits, buckets);
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public long[] get() {
+    QuantizedAccumulator snapshot = snapshot(false);
+    return snapshot == null ? null : snapshot.get();
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public long[] getThenReset() {
+    QuantizedAccumulator snapshot = snapshot(true);
+    return snapshot == null ? null : snapshot.get();
+  }
+
+  /**
+   * @return a QuantizedAccumulator with the accumulated state prior to reset or null if no measurements.
+   */
+  @Override
+  @Nullable
+  public QuantizedAccumulator reset() {
+    return snapshot(true);
+  }
+
+  /**
+   * @return a QuantizedAccumulator with the accumulated state, a non shareable accumulator is good enough
+   * for clones, since they are used for reporting/aggregation.
+   */
+  @Override
+  @SuppressFBWarnings("AI_ANNOTATION_ISSUES_NEEDS_NULLABLE") // never returns null.
+  public MeasurementAccumulator createClone() {
+    QuantizedAccumulator snapshot = snapshot(false);
+    return snapshot == null ? template.createLike(template.getInfo().getMeasuredEntity()) : snapshot;
+  }
+
+  @Override
+  public MeasurementAccumulator aggregate(final MeasurementAccumulator mSource) {
+    MeasurementAccumulator other = mSource;
+    if (other instanceof ConcurrentQuantizedAccumulator) {
+      other = other.createClone();
+    }
+    return createClone().aggregate(other);
+  }
+
+  @Override
+  public ConcurrentQuantizedAccumulator createLike(final Object entity) {
+    return new ConcurrentQuantizedAccumulator((QuantizedAccumulator) template.createLike(entity),
+            stripeMask + 1);
+  }
+
+  @Override
+  public MeasurementsInfo getInfo() {
+    return template.getInfo();
+  }
+
+  @Override
+  public String toString() {
+    return "ConcurrentQuantizedAccumulator{" + "info=" + template.getInfo() + ", stripes=" + (stripeMask + 1)
+            + ", state=" + snapshot(false) + '}';
+  }
+
+}
@@ -0,0 +1,482 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TObjectLongMap;
+import gnu.trove.map.hash.TObjectLongHashMap;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledFuture;
+import javax.annotation.Nonnull;
+import javax.annotation.concurrent.ThreadSafe;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.base.Pair;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.io.Csv;
+import org.spf4j.jmx.DynamicMBeanBuilder;
+import org.spf4j.jmx.GenericExportedValue;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.jmx.Registry;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementRecorder;
+import org.spf4j.perf.MeasurementRecorderSource;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementsInfo;
+import org.spf4j.perf.MeasurementsSource;
+
+/**
+ * A recorder source equivalent to ScalableMeasurementRecorderSource, where no monitor is taken on the recording path.
+ *
+ * Every thread records into its own generation of accumulators. On reset the persister atomically swaps in a
+ * spare generation for each thread, waits for any in flight record to complete (the writer never waits),
+ * and aggregates the retired generation which from that point on is owned exclusively by the persister.
+ * The retired generation is reset and becomes the spare for the next swap, so steady state recording does not
+ * allocate.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+// a recorder instance is tipically alive for the entire life of the process
+@SuppressFBWarnings("PMB_INSTANCE_BASED_THREAD_LOCAL")
+public final class LockFreeMeasurementRecorderSource implements
+        MeasurementRecorderSource, MeasurementsSource, Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(LockFreeMeasurementRecorderSource.class);
+
+  private final ConcurrentLinkedQueue<ThreadAccumulators> threadAccumulators;
+
+  private final ThreadLocal<ThreadAccumulators> threadLocalAccumulators;
+
+  private final ConcurrentMap<Object, EntityRecorder> recorders;
+
+  private final Object resetSync;
+
+  private final ScheduledFuture<?> samplingFuture;
+
+  private final MeasurementAccumulator processorTemplate;
+
+  private final TObjectLongMap<MeasurementsInfo> tableIds;
+
+  private final Persister persister;
+
+  private final Runnable shutdownHook;
+
+  LockFreeMeasurementRecorderSource(final MeasurementAccumulator processor,
+          final int sampleTimeMillis, final MeasurementStore database) {
+    if (sampleTimeMillis < 1000) {
+      throw new IllegalArgumentException("sample time needs to be at least 1000 and not " + sampleTimeMillis);
+    }
+    this.processorTemplate = processor;
+    this.threadAccumulators = new ConcurrentLinkedQueue<>();
+    this.recorders = new ConcurrentHashMap<>();
+    this.resetSync = new Object();
+    this.threadLocalAccumulators = new ThreadLocal<ThreadAccumulators>() {
+
+      @Override
+      protected ThreadAccumulators initialValue() {
+        ThreadAccumulators result = new ThreadAccumulators(Thread.currentThread());
+        threadAccumulators.add(result);
+        return result;
+      }
+
+    };
+    tableIds = new TObjectLongHashMap<>();
+    persister = new Persister(database, sampleTimeMillis, processor);
+    samplingFuture = DefaultScheduler.scheduleAllignedAtFixedRateMillis(persister, sampleTimeMillis);
+    shutdownHook = closeOnShutdown();
+  }
+
+  private Runnable closeOnShutdown() {
+    final AbstractRunnable runnable = new AbstractRunnable(true) {
+
+      @Override
+      public void doRun() {
+        close();
+      }
+    };
+    org.spf4j.base.Runtime.queueHook(0, runnable);
+    return runnable;
+  }
+
+  /**
+   * @param forWhat - Object to get a recorder for.
+   * @return a recorder that will record into the current thread accumulators. The returned recorder is stable,
+   * and can be cached by the caller.
+   */
+  @Override
+  public MeasurementRecorder getRecorder(final Object forWhat) {
+    EntityRecorder result = recorders.get(forWhat);
+    if (result == null) {
+      result = new EntityRecorder(forWhat);
+      EntityRecorder existing = recorders.putIfAbsent(forWhat, result);
+      if (existing != null) {
+        result = existing;
+      }
+    }
+    return result;
+  }
+
+  @Override
+  public Map<Object, MeasurementAccumulator> getEntitiesMeasurements() {
+    Map<Object, MeasurementAccumulator> result = new HashMap<>();
+    for (ThreadAccumulators tacc : threadAccumulators) {
+      for (Map.Entry<Object, MeasurementAccumulator> lentry : tacc.getCurrent().entrySet()) {
+        Object what = lentry.getKey();
+        MeasurementAccumulator existingMeasurement = result.get(what);
+        if (existingMeasurement == null) {
+          existingMeasurement = lentry.getValue().createClone();
+        } else {
+          existingMeasurement = existingMeasurement.aggregate(lentry.getValue().createClone());
+        }
+        result.put(what, existingMeasurement);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Resets are serialized (persister, close, jmx clear) on the resetSync monitor, writers never take it.
+   */
+  @Override
+  @Nonnull
+  public Map<Object, MeasurementAccumulator> getEntitiesMeasurementsAndReset() {
+    Map<Object, MeasurementAccumulator> result = new HashMap<>();
+    synchronized (resetSync) {
+      resetThreadGenerations(result);
+    }
+    return result;
+  }
+
+  private void resetThreadGenerations(final Map<Object, MeasurementAccumulator> result) {
+    Iterator<ThreadAccumulators> iterator = threadAccumulators.iterator();
+    while (iterator.hasNext()) {
+      ThreadAccumulators tacc = iterator.next();
+      // a dead thread will not record anymore, once we retire its current generation we are done with it.
+      if (!tacc.getThread().isAlive()) {
+        iterator.remove();
+      }
+      ConcurrentMap<Object, MeasurementAccumulator> retired = tacc.retireGeneration();
+      Iterator<Map.Entry<Object, MeasurementAccumulator>> iterator1 = retired.entrySet().iterator();
+      while (iterator1.hasNext()) {
+        Map.Entry<Object, MeasurementAccumulator> lentry = iterator1.next();
+        final MeasurementAccumulator vals = lentry.getValue().reset();
+        if (vals == null) {
+          // nothing recorded for this entity during the last interval, let it go.
+          iterator1.remove();
+        } else {
+          Object what = lentry.getKey();
+          MeasurementAccumulator existingMeasurement = result.get(what);
+          if (existingMeasurement == null) {
+            result.put(what, vals);
+          } else {
+            result.put(what, existingMeasurement.aggregate(vals));
+          }
+        }
+      }
+      tacc.setSpare(retired);
+    }
+  }
+
+  @SuppressWarnings("unchecked")
+  public void registerJmx() {
+    MeasurementsInfo info = this.processorTemplate.getInfo();
+    new DynamicMBeanBuilder().withJmxExportObject(this)
+            .withAttribute(new GenericExportedValue<>("measurements", info.getDescription(),
+                    this::getMeasurements, null, info.toCompositeType()))
+            .register("org.spf4j.perf.recorders", info.getMeasuredEntity().toString());
+  }
+
+  @Override
+  @SuppressFBWarnings("EXS_EXCEPTION_SOFTENING_NO_CHECKED")
+  public void close() {
+    synchronized (shutdownHook) {
+      if (!samplingFuture.isCancelled()) {
+        org.spf4j.base.Runtime.removeQueuedShutdownHook(shutdownHook);
+        samplingFuture.cancel(false);
+        try {
+          persister.persist(false);
+        } catch (IOException ex) {
+          throw new UncheckedIOException(ex);
+        }
+        Registry.unregister("org.spf4j.perf.recorders",
+                this.processorTemplate.getInfo().getMeasuredEntity().toString());
+      }
+    }
+  }
+
+  @JmxExport(description = "measurements as csv")
+  public String getMeasurementsAsString() {
+    StringWriter sw = new StringWriter(128);
+    Map<Object, MeasurementAccumulator> entitiesMeasurements = getEntitiesMeasurements();
+    MeasurementsInfo info = this.processorTemplate.getInfo();
+    try {
+      Csv.writeCsvRow2(sw, "Measured", (Object[]) info.getMeasurementNames());
+      Csv.writeCsvRow2(sw, "string", (Object[]) info.getMeasurementUnits());
+      for (Map.Entry<Object, MeasurementAccumulator> entry : entitiesMeasurements.entrySet()) {
+        Csv.writeCsvElement(entry.getKey().toString(), sw);
+        sw.write(',');
+        final long[] measurements = entry.getValue().get();
+        if (measurements != null) {
+          Csv.writeCsvRow(sw, measurements);
+        }
+      }
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+    return sw.toString();
+  }
+
+  public CompositeDataSupport getMeasurements() {
+    Map<Object, MeasurementAccumulator> entitiesMeasurements = getEntitiesMeasurements();
+    MeasurementsInfo info = this.processorTemplate.getInfo();
+    int nrStuff = entitiesMeasurements.size();
+    String[] names = new String[nrStuff];
+    String[] descriptions = new String[nrStuff];
+    OpenType<?>[] types = new OpenType[nrStuff];
+    Object[] values = new Object[nrStuff];
+    int i = 0;
+    for (Map.Entry<Object, MeasurementAccumulator> entry : entitiesMeasurements.entrySet()) {
+      MeasurementAccumulator acc = entry.getValue();
+      MeasurementsInfo eInfo = acc.getInfo();
+      String cattrName = eInfo.getMeasuredEntity().toString();
+      names[i] = cattrName;
+      String cattrDesc = eInfo.getDescription();
+      if (cattrDesc.isEmpty()) {
+        cattrDesc = cattrName;
+      }
+      descriptions[i] = cattrDesc;
+      types[i] = eInfo.toCompositeType();
+      values[i] = acc.getCompositeData();
+      i++;
+    }
+    try {
+      String name = info.getMeasuredEntity().toString();
+      String description = info.getDescription();
+      if (description.isEmpty()) {
+        description = name;
+      }
+      CompositeType setType = new CompositeType(name, description, names, descriptions, types);
+      return new CompositeDataSupport(setType, names, values);
+    } catch (OpenDataException ex) {
+      throw new IllegalArgumentException("Not composite data compatible " + this, ex);
+    }
+  }
+
+  @JmxExport
+  public void clear() {
+    getEntitiesMeasurementsAndReset();
+  }
+
+  /**
+   * The stable recorder handed out to the users, it resolves the current thread's accumulator for every record.
+   */
+  private final class EntityRecorder implements MeasurementRecorder {
+
+    private final Object what;
+
+    EntityRecorder(final Object what) {
+      this.what = what;
+    }
+
+    @Override
+    public void record(final long measurement) {
+      threadLocalAccumulators.get().record(what, measurement);
+    }
+
+    @Override
+    public void recordAt(final long timestampMillis, final long measurement) {
+      record(measurement);
+    }
+
+    @Override
+    public void close() {
+      // nothing to close, the source owns all resources.
+    }
+
+    @Override
+    public String toString() {
+      return "EntityRecorder{" + "what=" + what + '}';
+    }
+
+  }
+
+  /**
+   * Per thread accumulator generations.
+   * The current generation is written only by the owning thread. The owning thread increments the writeSequence
+   * before and after every access of the current generation, an odd value means a record is in flight.
+   */
+  private final class ThreadAccumulators {
+
+    private final Thread thread;
+
+    private volatile ConcurrentMap<Object, MeasurementAccumulator> current;
+
+    /**
+     * only accessed by the persister.
+     */
+    private ConcurrentMap<Object, MeasurementAccumulator> spare;
+
+    private volatile long writeSequence;
+
+    ThreadAccumulators(final Thread thread) {
+      this.thread = thread;
+      this.current = new ConcurrentHashMap<>();
+      this.spare = new ConcurrentHashMap<>();
+      this.writeSequence = 0;
+    }
+
+    @SuppressFBWarnings("VO_VOLATILE_INCREMENT") // single writer.
+    void record(final Object what, final long measurement) {
+      writeSequence++;
+      try {
+        ConcurrentMap<Object, MeasurementAccumulator> gen = current;
+        MeasurementAccumulator acc = gen.get(what);
+        if (acc == null) {
+          acc = processorTemplate.createLike(Pair.of(processorTemplate.getInfo().getMeasuredEntity(), what));
+          gen.put(what, acc);
+        }
+        acc.record(measurement);
+      } finally {
+        writeSequence++;
+      }
+    }
+
+    Thread getThread() {
+      return thread;
+    }
+
+    Map<Object, MeasurementAccumulator> getCurrent() {
+      return current;
+    }
+
+    void setSpare(final ConcurrentMap<Object, MeasurementAccumulator> spare) {
+      this.spare = spare;
+    }
+
+    /**
+     * Swap in the spare generation and wait for any in flight record on the retired generation to complete.
+     * @return the retired generation, which from now on is owned exclusively by the caller.
+     */
+    @SuppressFBWarnings("MDM_THREAD_YIELD")
+    ConcurrentMap<Object, MeasurementAccumulator> retireGeneration() {
+      ConcurrentMap<Object, MeasurementAccumulator> retired = current;
+      current = spare;
+      spare = null;
+      final long seq = writeSequence;
+      if ((seq & 1) != 0) {
+        // a record started before the swap, it might be writing into the retired generation.
+        long crtSeq;
+        do {
+          Thread.yield();
+          crtSeq = writeSequence;
+        } while (crtSeq == seq);
+      }
+      return retired;
+    }
+
+    @Override
+    public String toString() {
+      return "ThreadAccumulators{" + "thread=" + thread + ", current=" + current + '}';
+    }
+
+  }
+
+  private class Persister extends AbstractRunnable {
+
+    private final MeasurementStore database;
+    private final int sampleTimeMillis;
+    private final MeasurementAccumulator processor;
+    private volatile long lastRun = 0;
+
+    Persister(final MeasurementStore database, final int sampleTimeMillis,
+            final MeasurementAccumulator processor) {
+      super(true);
+      this.database = database;
+      this.sampleTimeMillis = sampleTimeMillis;
+      this.processor = processor;
+    }
+
+    @Override
+    public void doRun() throws IOException {
+      persist(true);
+    }
+
+    public void persist(final boolean warn) throws IOException {
+      long currentTime = System.currentTimeMillis();
+      if (currentTime > lastRun) {
+        lastRun = currentTime;
+        for (MeasurementAccumulator m
+                : LockFreeMeasurementRecorderSource.this.getEntitiesMeasurementsAndReset().values()) {
+          final MeasurementsInfo info = m.getInfo();
+          long tableId;
+          synchronized (tableIds) {
+            tableId = tableIds.get(info);
+            if (tableId == 0) {
+              tableId = database.alocateMeasurements(info, sampleTimeMillis);
+              tableIds.put(info, tableId);
+            }
+          }
+          final long[] data = m.getThenReset();
+          if (data != null) {
+            database.saveMeasurements(tableId, currentTime, data);
+          }
+        }
+      } else if (warn) {
+        LOG.warn("Last measurement recording for {} was at {} current run is {}, something is wrong",
+                processor.getInfo(), lastRun, currentTime);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "LockFreeMeasurementRecorderSource{" + "threadAccumulators=" + threadAccumulators
+            + ", samplingFuture=" + samplingFuture + ", processorTemplate=" + processorTemplate
+            + ", tableIds=" + tableIds + ", persister=" + persister + ", shutdownHook=" + shutdownHook + '}';
+  }
+
+}
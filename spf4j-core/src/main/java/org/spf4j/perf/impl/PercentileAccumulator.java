@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementsInfo;
+
+/**
+ * A high resolution (HDR histogram style) accumulator, that records values in [0, highestTrackableValue]
+ * with a relative error smaller than 10 ^ -significantDigits. (see http://hdrhistogram.org)
+ *
+ * The accumulator exports: total, count, min, max, p50, p90, p99, p99_9.
+ * Memory use is fixed, determined by highestTrackableValue and significantDigits, and record does not allocate.
+ * Values larger than highestTrackableValue are accounted in the highest bucket, negative values in the lowest.
+ * total, min and max are always exact.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+@ParametersAreNonnullByDefault
+public final class PercentileAccumulator extends AbstractMeasurementAccumulator {
+
+  private static final String[] MEASUREMENTS = {"total", "count", "min", "max", "p50", "p90", "p99", "p99_9"};
+
+  private static final double[] PERCENTILES = {0.5, 0.9, 0.99, 0.999};
+
+  private final MeasurementsInfo info;
+  private final long highestTrackableValue;
+  private final int significantDigits;
+  private final int subBucketHalfCountMagnitude;
+  private final int subBucketHalfCount;
+  private final long subBucketMask;
+  private final int leadingZeroCountBase;
+  private final long[] counts;
+
+  private long minMeasurement;
+  private long maxMeasurement;
+  private long measurementCount;
+  private long measurementTotal;
+
+  /**
+   * @param measuredEntity - an object representing the thing we accumulate measurements for.
+   * @param description - description of the thing we accumulate measurements for.
+   * @param unitOfMeasurement - unit of measurement.
+   * @param highestTrackableValue - the highest value that will be tracked with the given precision. (>= 2)
+   * @param significantDigits - number of significant decimal digits to maintain [1 - 5].
+   */
+  public PercentileAccumulator(final Object measuredEntity,
+          final String description,
+          final String unitOfMeasurement,
+          final long highestTrackableValue,
+          final int significantDigits) {
+    this(new MeasurementsInfoImpl(measuredEntity, description, MEASUREMENTS,
+            new String[] {unitOfMeasurement, "count", unitOfMeasurement, unitOfMeasurement,
+              unitOfMeasurement, unitOfMeasurement, unitOfMeasurement, unitOfMeasurement}),
+            highestTrackableValue, significantDigits);
+  }
+
+  private PercentileAccumulator(final MeasurementsInfo info, final long highestTrackableValue,
+          final int significantDigits) {
+    if (significantDigits < 1 || significantDigits > 5) {
+      throw new IllegalArgumentException("significantDigits must be in [1, 5] and not " + significantDigits);
+    }
+    if (highestTrackableValue < 2) {
+      throw new IllegalArgumentException("highestTrackableValue must be >= 2 and not " + highestTrackableValue);
+    }
+    this.info = info;
+    this.highestTrackableValue = highestTrackableValue;
+    this.significantDigits = significantDigits;
+    long largestValueWithSingleUnitResolution = 2 * (long) Math.pow(10, significantDigits);
+    int subBucketCountMagnitude = (int) Math.ceil(Math.log(largestValueWithSingleUnitResolution) / Math.log(2));
+    this.subBucketHalfCountMagnitude = subBucketCountMagnitude - 1;
+    int subBucketCount = 1 << subBucketCountMagnitude;
+    this.subBucketHalfCount = subBucketCount / 2;
+    this.subBucketMask = subBucketCount - 1;
+    this.leadingZeroCountBase = 64 - subBucketHalfCountMagnitude - 1;
+    // number of buckets needed to cover highestTrackableValue.
+    long smallestUntrackableValue = ((long) subBucketCount);
+    int bucketsNeeded = 1;
+    while (smallestUntrackableValue <= highestTrackableValue) {
+      if (smallestUntrackableValue > (Long.MAX_VALUE / 2)) {
+        bucketsNeeded++;
+        break;
+      }
+      smallestUntrackableValue <<= 1;
+      bucketsNeeded++;
+    }
+    this.counts = new long[(bucketsNeeded + 1) * subBucketHalfCount];
+    this.minMeasurement = Long.MAX_VALUE;
+    this.maxMeasurement = Long.MIN_VALUE;
+  }
+
+  @SuppressFBWarnings("IS2_INCONSISTENT_SYNC") // invoked with the lock on from held.
+  private PercentileAccumulator(final PercentileAccumulator from) {
+    this.info = from.info;
+    this.highestTrackableValue = from.highestTrackableValue;
+    this.significantDigits = from.significantDigits;
+    this.subBucketHalfCountMagnitude = from.subBucketHalfCountMagnitude;
+    this.subBucketHalfCount = from.subBucketHalfCount;
+    this.subBucketMask = from.subBucketMask;
+    this.leadingZeroCountBase = from.leadingZeroCountBase;
+    this.counts = from.counts.clone();
+    this.minMeasurement = from.minMeasurement;
+    this.maxMeasurement = from.maxMeasurement;
+    this.measurementCount = from.measurementCount;
+    this.measurementTotal = from.measurementTotal;
+  }
+
+  public long getHighestTrackableValue() {
+    return highestTrackableValue;
+  }
+
+  public int getSignificantDigits() {
+    return significantDigits;
+  }
+
+  public String getUnitOfMeasurement() {
+    return info.getMeasurementUnit(0);
+  }
+
+  int countsIndexFor(final long value) {
+    long v = value < 0 ? 0 : Math.min(value, highestTrackableValue);
+    int bucketIndex = leadingZeroCountBase - Long.numberOfLeadingZeros(v | subBucketMask);
+    int subBucketIndex = (int) (v >>> bucketIndex);
+    return ((bucketIndex + 1) << subBucketHalfCountMagnitude) + (subBucketIndex - subBucketHalfCount);
+  }
+
+  /**
+   * @param index a counts index.
+   * @return the highest value that is accounted for in the bucket with the provided index.
+   */
+  long highestEquivalentValue(final int index) {
+    int bucketIndex = (index >> subBucketHalfCountMagnitude) - 1;
+    int subBucketIndex = (index & (subBucketHalfCount - 1)) + subBucketHalfCount;
+    if (bucketIndex < 0) {
+      subBucketIndex -= subBucketHalfCount;
+      bucketIndex = 0;
+    }
+    long lowValue = ((long) subBucketIndex) << bucketIndex;
+    return lowValue + (1L << bucketIndex) - 1;
+  }
+
+  @Override
+  public synchronized void record(final long measurement) {
+    measurementCount++;
+    measurementTotal += measurement;
+    if (measurement < minMeasurement) {
+      minMeasurement = measurement;
+    }
+    if (measurement > maxMeasurement) {
+      maxMeasurement = measurement;
+    }
+    counts[countsIndexFor(measurement)]++;
+  }
+
+  /**
+   * @param percentile the percentile [0, 1].
+   * @return the value at percentile, exact values are reported for the lowest and highest values, 0 if no
+   * measurements.
+   */
+  public synchronized long getValueAtPercentile(final double percentile) {
+    return valueAtPercentile(percentile);
+  }
+
+  private long valueAtPercentile(final double percentile) {
+    if (measurementCount == 0) {
+      return 0;
+    }
+    long countAtPercentile = Math.max(1, (long) Math.ceil(percentile * measurementCount));
+    long total = 0;
+    for (int i = 0; i < counts.length; i++) {
+      total += counts[i];
+      if (total >= countAtPercentile) {
+        return Math.max(minMeasurement, Math.min(maxMeasurement, highestEquivalentValue(i)));
+      }
+    }
+    return maxMeasurement;
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public synchronized long[] get() {
+    if (measurementCount == 0) {
+      return null;
+    }
+    long[] result = new long[MEASUREMENTS.length];
+    result[0] = measurementTotal;
+    result[1] = measurementCount;
+    result[2] = minMeasurement;
+    result[3] = maxMeasurement;
+    for (int i = 0; i < PERCENTILES.length; i++) {
+      result[4 + i] = valueAtPercentile(PERCENTILES[i]);
+    }
+    return result;
+  }
+
+  @Override
+  @SuppressFBWarnings("PZLA_PREFER_ZERO_LENGTH_ARRAYS")
+  @Nullable
+  public long[] getThenReset() {
+    final PercentileAccumulator vals = reset();
+    if (vals == null) {
+      return null;
+    } else {
+      return vals.get();
+    }
+  }
+
+  @Override
+  @SuppressFBWarnings("NOS_NON_OWNED_SYNCHRONIZATION")
+  public MeasurementAccumulator aggregate(final MeasurementAccumulator mSource) {
+    if (mSource instanceof PercentileAccumulator) {
+      PercentileAccumulator other = ((PercentileAccumulator) mSource).createClone();
+      if (other.counts.length != counts.length || other.subBucketMask != subBucketMask) {
+        throw new IllegalArgumentException("Cannot aggregate " + this + " with different precision " + mSource);
+      }
+      PercentileAccumulator result = createClone();
+      result.add(other);
+      return result;
+    } else {
+      throw new IllegalArgumentException("Cannot aggregate " + this + " with " + mSource);
+    }
+  }
+
+  /**
+   * @param other the accumulator to add to this one, must not be modified concurrently.
+   */
+  private synchronized void add(final PercentileAccumulator other) {
+    for (int i = 0; i < counts.length; i++) {
+      counts[i] += other.counts[i];
+    }
+    measurementCount += other.measurementCount;
+    measurementTotal += other.measurementTotal;
+    minMeasurement = Math.min(minMeasurement, other.minMeasurement);
+    maxMeasurement = Math.max(maxMeasurement, other.maxMeasurement);
+  }
+
+  @Override
+  public synchronized PercentileAccumulator createClone() {
+    return new PercentileAccumulator(this);
+  }
+
+  @Override
+  @Nullable
+  public synchronized PercentileAccumulator reset() {
+    if (measurementCount == 0) {
+      return null;
+    } else {
+      PercentileAccumulator result = createClone();
+      this.minMeasurement = Long.MAX_VALUE;
+      this.maxMeasurement = Long.MIN_VALUE;
+      this.measurementCount = 0;
+      this.measurementTotal = 0;
+      Arrays.fill(this.counts, 0L);
+      return result;
+    }
+  }
+
+  @Override
+  public MeasurementAccumulator createLike(final Object entity) {
+    return new PercentileAccumulator(entity, info.getDescription(), getUnitOfMeasurement(),
+            highestTrackableValue, significantDigits);
+  }
+
+  @Override
+  public MeasurementsInfo getInfo() {
+    return info;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "PercentileAccumulator{" + "info=" + info + ", highestTrackableValue=" + highestTrackableValue
+            + ", significantDigits=" + significantDigits + ", minMeasurement=" + minMeasurement
+            + ", maxMeasurement=" + maxMeasurement + ", measurementCount=" + measurementCount
+            + ", measurementTotal=" + measurementTotal + '}';
+  }
+
+}
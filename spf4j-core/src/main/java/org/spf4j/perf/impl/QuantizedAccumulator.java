@@ -227,7 +227,7 @@ public final class QuantizedAccumulator extends AbstractMeasurementAccumulator {
   }
 
   //CHECKSTYLE:OFF
-  private QuantizedAccumulator(final MeasurementsInfo info, final int factor,
+  QuantizedAccumulator(final MeasurementsInfo info, final int factor,
           final int lowerMagnitude, final int higherMagnitude,
           final long minMeasurement, final long maxMeasurement,
           final long measurementCount, final long measurementTotal,
@@ -253,6 +253,30 @@ public final class QuantizedAccumulator extends AbstractMeasurementAccumulator {
     return info.getMeasurementUnit(0);
   }
 
+  int getFactor() {
+    return factor;
+  }
+
+  int getLowerMagnitude() {
+    return lowerMagnitude;
+  }
+
+  int getHigherMagnitude() {
+    return higherMagnitude;
+  }
+
+  int getQuantasPerMagnitude() {
+    return quantasPerMagnitude;
+  }
+
+  /**
+   * @return the bucket limits, shared with all the accumulators created like this one, do not modify.
+   */
+  @SuppressFBWarnings("EI_EXPOSE_REP")
+  long[] getBucketLimits() {
+    return bucketLimits;
+  }
+
 /**
  * bucketLimits:  -10, -5, 0, 5, 10
  * buckets: [< -10], [-10 <= x < -5], [-5 <= x < 0], [0 <= x < 5], [5 <= x < 10], [x >= 10]
@@ -47,6 +47,7 @@ import org.slf4j.LoggerFactory;
 import org.spf4j.base.CharSequences;
 import org.spf4j.io.Csv;
 import org.spf4j.io.csv.CsvParseException;
+import org.spf4j.perf.MeasurementAccumulator;
 import org.spf4j.perf.MeasurementRecorder;
 import org.spf4j.perf.MeasurementRecorderSource;
 import org.spf4j.perf.MeasurementStore;
@@ -66,6 +67,11 @@ public final class RecorderFactory {
 
   public static final MeasurementStore MEASUREMENT_STORE;
 
+  /**
+   * when true, the createScalable*RecorderSource methods will create LockFreeMeasurementRecorderSource instances.
+   */
+  private static final boolean LOCK_FREE_RECORDER_SOURCES = Boolean.getBoolean("spf4j.perf.lockFreeRecorderSources");
+
   static {
     MeasurementStore mStore;
     try {
@@ -181,6 +187,44 @@ public final class RecorderFactory {
     return mr;
   }
 
+  /**
+   * Create a quantized measurement recorder backed by a single ConcurrentQuantizedAccumulator shared by all threads.
+   * Same buckets as createScalableQuantizedRecorder, but memory use does not grow with the number of threads.
+   */
+  public static MeasurementRecorder createConcurrentQuantizedRecorder(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final int factor, final int lowerMagnitude,
+          final int higherMagnitude, final int quantasPerMagnitude) {
+    ConcurrentMeasurementRecorder mr = new ConcurrentMeasurementRecorder(new ConcurrentQuantizedAccumulator(forWhat,
+            "", unitOfMeasurement, factor, lowerMagnitude, higherMagnitude,
+            quantasPerMagnitude), sampleTimeMillis, MEASUREMENT_STORE);
+    mr.registerJmx();
+    return mr;
+  }
+
+  /**
+   * Create a high resolution percentile recorder, see PercentileAccumulator for detail.
+   *
+   * example : createScalablePercentileRecorder("response time", "ms", 60000, 3600000, 3)
+   * will aggregate and persist every minute total, count, min, max, p50, p90, p99 and p99_9 with 3 significant
+   * digits for values up to one hour.
+   *
+   * @param forWhat an object identifying what is being measured, ex: "response time"
+   * @param unitOfMeasurement the unit of measurement of the measurements, ex "milliseconds"
+   * @param sampleTimeMillis the sampling (accumulating interval) ex: 60000 for minute level detail.
+   * @param highestTrackableValue the highest value that will be tracked with the requested precision.
+   * @param significantDigits the number of significant decimal digits [1 - 5].
+   * @return a measurement recorder.
+   */
+  public static MeasurementRecorder createScalablePercentileRecorder(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final long highestTrackableValue, final int significantDigits) {
+    ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new PercentileAccumulator(forWhat, "",
+            unitOfMeasurement, highestTrackableValue, significantDigits), sampleTimeMillis, MEASUREMENT_STORE);
+    mr.registerJmx();
+    return mr;
+  }
+
   public static MeasurementRecorder createScalableCountingRecorder(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
     ScalableMeasurementRecorder mr = new ScalableMeasurementRecorder(new CountingAccumulator(forWhat, "",
@@ -201,30 +245,72 @@ public final class RecorderFactory {
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
           final int factor, final int lowerMagnitude,
           final int higherMagnitude, final int quantasPerMagnitude) {
-    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
-            new QuantizedAccumulator(forWhat, "",
+    return createScalableRecorderSource(new QuantizedAccumulator(forWhat, "",
+                    unitOfMeasurement, factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude),
+            sampleTimeMillis);
+  }
+
+  /**
+   * Create a quantized measurement recorder source, with a ConcurrentQuantizedAccumulator per measured entity
+   * shared by all threads.
+   */
+  public static MeasurementRecorderSource createConcurrentQuantizedRecorderSource(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final int factor, final int lowerMagnitude,
+          final int higherMagnitude, final int quantasPerMagnitude) {
+    ConcurrentMeasurementRecorderSource mrs = new ConcurrentMeasurementRecorderSource(
+            new ConcurrentQuantizedAccumulator(forWhat, "",
                     unitOfMeasurement, factor, lowerMagnitude, higherMagnitude, quantasPerMagnitude),
             sampleTimeMillis, MEASUREMENT_STORE);
     mrs.registerJmx();
     return mrs;
   }
 
+  public static MeasurementRecorderSource createScalablePercentileRecorderSource(
+          final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis,
+          final long highestTrackableValue, final int significantDigits) {
+    return createScalableRecorderSource(new PercentileAccumulator(forWhat, "",
+            unitOfMeasurement, highestTrackableValue, significantDigits), sampleTimeMillis);
+  }
+
   public static MeasurementRecorderSource createScalableCountingRecorderSource(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
-    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
-            new CountingAccumulator(forWhat, "",
-                    unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE);
-    mrs.registerJmx();
-    return mrs;
+    return createScalableRecorderSource(new CountingAccumulator(forWhat, "", unitOfMeasurement),
+            sampleTimeMillis);
   }
 
   public static MeasurementRecorderSource createScalableMinMaxAvgRecorderSource(
           final Object forWhat, final String unitOfMeasurement, final int sampleTimeMillis) {
-    ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(
-            new MinMaxAvgAccumulator(forWhat, "",
-                    unitOfMeasurement), sampleTimeMillis, MEASUREMENT_STORE);
-    mrs.registerJmx();
-    return mrs;
+    return createScalableRecorderSource(new MinMaxAvgAccumulator(forWhat, "", unitOfMeasurement),
+            sampleTimeMillis);
+  }
+
+  /**
+   * Create a recorder source that will accumulate measurements per thread, and persist them every sampleTimeMillis.
+   * @param accumulatorTemplate the accumulator template used to create the per entity accumulators.
+   * @param sampleTimeMillis the sampling (accumulating interval).
+   * @param lockFree if true, a LockFreeMeasurementRecorderSource is created (no monitor on the recording path,
+   * resets do not block recording), otherwise a ScalableMeasurementRecorderSource.
+   * @return the recorder source.
+   */
+  public static MeasurementRecorderSource createScalableRecorderSource(
+          final MeasurementAccumulator accumulatorTemplate, final int sampleTimeMillis, final boolean lockFree) {
+    if (lockFree) {
+      LockFreeMeasurementRecorderSource mrs = new LockFreeMeasurementRecorderSource(accumulatorTemplate,
+              sampleTimeMillis, MEASUREMENT_STORE);
+      mrs.registerJmx();
+      return mrs;
+    } else {
+      ScalableMeasurementRecorderSource mrs = new ScalableMeasurementRecorderSource(accumulatorTemplate,
+              sampleTimeMillis, MEASUREMENT_STORE);
+      mrs.registerJmx();
+      return mrs;
+    }
+  }
+
+  private static MeasurementRecorderSource createScalableRecorderSource(
+          final MeasurementAccumulator accumulatorTemplate, final int sampleTimeMillis) {
+    return createScalableRecorderSource(accumulatorTemplate, sampleTimeMillis, LOCK_FREE_RECORDER_SOURCES);
   }
 
   public static MultiMeasurementRecorder createDirectRecorder(final Object measuredEntity, final String description,
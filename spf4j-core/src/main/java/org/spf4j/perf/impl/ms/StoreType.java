@@ -38,6 +38,7 @@ import java.net.URISyntaxException;
 import org.spf4j.jmx.Registry;
 import org.spf4j.perf.MeasurementStore;
 import org.spf4j.perf.impl.NopMeasurementStore;
+import org.spf4j.perf.impl.ms.graphite.GraphiteNioStore;
 import org.spf4j.perf.impl.ms.graphite.GraphiteTcpStore;
 import org.spf4j.perf.impl.ms.graphite.GraphiteUdpStore;
 import org.spf4j.perf.impl.ms.tsdb.TSDBMeasurementStore;
@@ -89,6 +90,26 @@ public enum StoreType {
             }
         }
     }),
+    GRAPHITE_NIO_UDP(new StoreFactory() {
+        @Override
+        public MeasurementStore create(final String config) {
+            try {
+                return new GraphiteNioStore(GraphiteNioStore.Transport.UDP, config);
+            } catch (URISyntaxException ex) {
+                throw new IllegalArgumentException("Invalid configuration " + config, ex);
+            }
+        }
+    }),
+    GRAPHITE_NIO_TCP(new StoreFactory() {
+        @Override
+        public MeasurementStore create(final String config) {
+            try {
+                return new GraphiteNioStore(GraphiteNioStore.Transport.TCP, config);
+            } catch (URISyntaxException ex) {
+                throw new IllegalArgumentException("Invalid configuration " + config, ex);
+            }
+        }
+    }),
     NOP_STORE(new StoreFactory() {
 
         @Override
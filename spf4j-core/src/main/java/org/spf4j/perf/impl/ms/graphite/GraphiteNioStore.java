@@ -0,0 +1,444 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl.ms.graphite;
+
+import com.google.common.base.Charsets;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayDeque;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.concurrent.DefaultScheduler;
+import org.spf4j.jmx.JmxExport;
+import org.spf4j.perf.MeasurementStore;
+import org.spf4j.perf.MeasurementsInfo;
+import org.spf4j.perf.impl.ms.Id2Info;
+
+/**
+ * Graphite store that encodes measurements into direct ByteBuffer batches and writes them over a non-blocking
+ * NIO channel, instead of doing one (blocking) write per measurement line like GraphiteTcpStore/GraphiteUdpStore.
+ *
+ * Lines never span batches. With UDP every batch is sent as a single datagram, so batches are sized to fit
+ * in a MTU. Batches are sent when they are full, on flush, and every lingerMillis by a background task.
+ * The amount of buffered data is bounded; when the Graphite endpoint can not keep up (or is down),
+ * the oldest batches are dropped.
+ *
+ * @author zoly
+ */
+// counters are only updated while holding the lock, and are read unsynchronized for monitoring.
+@SuppressFBWarnings({"IS2_INCONSISTENT_SYNC", "VO_VOLATILE_INCREMENT"})
+public final class GraphiteNioStore implements MeasurementStore {
+
+  private static final Logger LOG = LoggerFactory.getLogger(GraphiteNioStore.class);
+
+  /**
+   * IPv4 ethernet MTU - IP header - UDP header.
+   */
+  public static final int DEFAULT_MAX_DATAGRAM_SIZE
+          = Integer.getInteger("spf4j.perf.ms.graphite.maxDatagramBytes", 1472);
+
+  public static final int DEFAULT_TCP_BATCH_SIZE
+          = Integer.getInteger("spf4j.perf.ms.graphite.tcpBatchBytes", 64 * 1024);
+
+  public static final int DEFAULT_MAX_BUFFERED_BYTES
+          = Integer.getInteger("spf4j.perf.ms.graphite.maxBufferedBytes", 4 * 1024 * 1024);
+
+  public static final int DEFAULT_LINGER_MILLIS
+          = Integer.getInteger("spf4j.perf.ms.graphite.lingerMillis", 1000);
+
+  private static final int CLOSE_TIMEOUT_MILLIS
+          = Integer.getInteger("spf4j.perf.ms.graphite.closeTimeoutMillis", 5000);
+
+  public enum Transport {
+    TCP, UDP
+  }
+
+  private final Transport transport;
+
+  /**
+   * re-resolved on connect while unresolved, (DNS might not be available at startup)
+   */
+  private volatile InetSocketAddress address;
+
+  private final int batchSize;
+
+  private final int maxBatches;
+
+  @GuardedBy("this")
+  private final ArrayDeque<ByteBuffer> sealed;
+
+  @GuardedBy("this")
+  private final ArrayDeque<ByteBuffer> free;
+
+  @GuardedBy("this")
+  private ByteBuffer current;
+
+  @GuardedBy("this")
+  private final StringBuilder line;
+
+  @GuardedBy("this")
+  private final CharsetEncoder encoder;
+
+  @GuardedBy("this")
+  @Nullable
+  private ByteChannel channel;
+
+  @GuardedBy("this")
+  private boolean connectionFailed;
+
+  private volatile long sentBytes;
+
+  private volatile long droppedBytes;
+
+  private volatile long droppedLines;
+
+  private final ScheduledFuture<?> lingerFlush;
+
+  public GraphiteNioStore(final Transport transport, final String hostPort) throws URISyntaxException {
+    this(transport, new URI("graphite" + transport + "://" + hostPort));
+  }
+
+  public GraphiteNioStore(final Transport transport, final URI uri) {
+    this(transport, uri.getHost(), uri.getPort());
+  }
+
+  public GraphiteNioStore(final Transport transport, final String hostName, final int port) {
+    this(transport, hostName, port,
+            transport == Transport.UDP ? DEFAULT_MAX_DATAGRAM_SIZE : DEFAULT_TCP_BATCH_SIZE,
+            DEFAULT_MAX_BUFFERED_BYTES, DEFAULT_LINGER_MILLIS);
+  }
+
+  /**
+   * @param transport the transport to use.
+   * @param hostName graphite host.
+   * @param port graphite port.
+   * @param batchSize the batch size in bytes. (max datagram size for UDP)
+   * @param maxBufferedBytes the max number of bytes buffered, when exceeded the oldest batches are dropped.
+   * @param lingerMillis the max time data is buffered before it is sent. (if the endpoint keeps up)
+   */
+  public GraphiteNioStore(final Transport transport, final String hostName, final int port,
+          final int batchSize, final int maxBufferedBytes, final int lingerMillis) {
+    if (batchSize <= 0 || lingerMillis <= 0) {
+      throw new IllegalArgumentException("Invalid batchSize " + batchSize + " or lingerMillis " + lingerMillis);
+    }
+    this.transport = transport;
+    this.address = new InetSocketAddress(hostName, port);
+    this.batchSize = batchSize;
+    this.maxBatches = Math.max(2, maxBufferedBytes / batchSize);
+    this.sealed = new ArrayDeque<>();
+    this.free = new ArrayDeque<>();
+    this.current = ByteBuffer.allocateDirect(batchSize);
+    this.line = new StringBuilder(128);
+    this.encoder = Charsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    this.channel = null;
+    this.connectionFailed = false;
+    this.lingerFlush = DefaultScheduler.INSTANCE.scheduleWithFixedDelay(new AbstractRunnable(true) {
+      @Override
+      public void doRun() {
+        flush();
+      }
+    }, lingerMillis, lingerMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public long alocateMeasurements(final MeasurementsInfo measurement, final int sampleTimeMillis) {
+    return Id2Info.getId(measurement);
+  }
+
+  @Override
+  public synchronized void saveMeasurements(final long tableId, final long timeStampMillis,
+          final long... measurements) throws IOException {
+    MeasurementsInfo info = Id2Info.getInfo(tableId);
+    int nrSealed = sealed.size();
+    for (int i = 0; i < measurements.length; i++) {
+      line.setLength(0);
+      GraphiteUdpStore.writeMetric(info, info.getMeasurementName(i), measurements[i], timeStampMillis, line);
+      append(line);
+    }
+    if (sealed.size() != nrSealed) {
+      // full batches are pipelined right away, the last partial batch will go out on flush.
+      send();
+    }
+  }
+
+  private void append(final CharSequence text) {
+    int mark = current.position();
+    encoder.reset();
+    CoderResult cr = encoder.encode(CharBuffer.wrap(text), current, true);
+    if (!cr.isOverflow()) {
+      cr = encoder.flush(current);
+    }
+    if (cr.isOverflow()) {
+      current.position(mark);
+      if (mark == 0) {
+        droppedLines++;
+        LOG.warn("Measurement line larger than batch size {}, dropping {}", batchSize, text);
+        return;
+      }
+      seal();
+      append(text);
+    }
+  }
+
+  private void seal() {
+    current.flip();
+    if (sealed.size() >= maxBatches) {
+      ByteBuffer head = sealed.pollFirst();
+      if (head.position() > 0) {
+        // partially written, can not be dropped without corrupting the TCP stream.
+        dropBatch(sealed.pollFirst());
+        sealed.addFirst(head);
+      } else {
+        dropBatch(head);
+      }
+    }
+    sealed.addLast(current);
+    ByteBuffer next = free.pollFirst();
+    if (next == null) {
+      next = ByteBuffer.allocateDirect(batchSize);
+    }
+    current = next;
+  }
+
+  private void dropBatch(final ByteBuffer batch) {
+    int nrBytes = batch.remaining();
+    int nrLines = 0;
+    for (int i = batch.position(), l = batch.limit(); i < l; i++) {
+      if (batch.get(i) == '\n') {
+        nrLines++;
+      }
+    }
+    droppedBytes += nrBytes;
+    droppedLines += nrLines;
+    LOG.warn("Graphite endpoint {} is not keeping up, dropped {} lines", address, nrLines);
+    recycle(batch);
+  }
+
+  private void recycle(final ByteBuffer batch) {
+    batch.clear();
+    if (free.size() < maxBatches) {
+      free.addLast(batch);
+    }
+  }
+
+  /**
+   * Write the sealed batches, without blocking.
+   * @return true if all sealed batches have been written.
+   */
+  private boolean send() {
+    ByteBuffer head;
+    while ((head = sealed.peekFirst()) != null) {
+      ByteChannel ch = getConnectedChannel();
+      if (ch == null) {
+        return false;
+      }
+      try {
+        int nrBytes = ch.write(head);
+        sentBytes += nrBytes;
+      } catch (IOException ex) {
+        LOG.warn("Failed writing to graphite endpoint {}", address, ex);
+        closeChannel();
+        if (transport == Transport.UDP) {
+          // best effort, will not retry datagrams.
+          dropBatch(sealed.pollFirst());
+        } else {
+          // we don't know how much the endpoint got, resend the entire batch. (graphite overwrites datapoints)
+          head.rewind();
+        }
+        return false;
+      }
+      if (head.hasRemaining()) {
+        // socket buffer is full.
+        return false;
+      }
+      recycle(sealed.pollFirst());
+    }
+    return true;
+  }
+
+  @Nullable
+  private ByteChannel getConnectedChannel() {
+    ByteChannel opened = null;
+    try {
+      if (channel == null) {
+        InetSocketAddress addr = address;
+        if (addr.isUnresolved()) {
+          addr = new InetSocketAddress(addr.getHostString(), addr.getPort());
+          address = addr;
+        }
+        if (transport == Transport.UDP) {
+          DatagramChannel dc = DatagramChannel.open();
+          opened = dc;
+          dc.configureBlocking(false);
+          dc.connect(addr);
+        } else {
+          SocketChannel sc = SocketChannel.open();
+          opened = sc;
+          sc.configureBlocking(false);
+          sc.connect(addr);
+        }
+        channel = opened;
+        opened = null;
+      }
+      if (channel instanceof SocketChannel) {
+        SocketChannel sc = (SocketChannel) channel;
+        if (!sc.isConnected() && !sc.finishConnect()) {
+          return null;
+        }
+      }
+      if (connectionFailed) {
+        LOG.info("Connected to graphite endpoint {}", address);
+        connectionFailed = false;
+      }
+      return channel;
+    } catch (IOException | RuntimeException ex) { // UnresolvedAddressException & co are runtime exceptions.
+      if (!connectionFailed) {
+        LOG.warn("Unable to connect to graphite endpoint {}, will retry", address, ex);
+        connectionFailed = true;
+      }
+      if (opened != null) {
+        try {
+          opened.close();
+        } catch (IOException cex) {
+          LOG.debug("Failed closing {}", opened, cex);
+        }
+      }
+      closeChannel();
+      return null;
+    }
+  }
+
+  private void closeChannel() {
+    if (channel != null) {
+      try {
+        channel.close();
+      } catch (IOException ex) {
+        LOG.debug("Failed closing {}", channel, ex);
+      }
+      channel = null;
+    }
+  }
+
+  /**
+   * Seal the current batch and send everything without blocking; whatever can not be sent now
+   * stays buffered and will be retried.
+   */
+  @Override
+  @JmxExport(description = "flush out buffers")
+  public synchronized void flush() {
+    if (current.position() > 0) {
+      seal();
+    }
+    send();
+  }
+
+  @JmxExport(description = "number of bytes sent")
+  public long getSentBytes() {
+    return sentBytes;
+  }
+
+  @JmxExport(description = "number of bytes dropped because the endpoint could not keep up")
+  public long getDroppedBytes() {
+    return droppedBytes;
+  }
+
+  @JmxExport(description = "number of measurement lines dropped")
+  public long getDroppedLines() {
+    return droppedLines;
+  }
+
+  @JmxExport(description = "number of bytes waiting to be sent")
+  public synchronized long getBufferedBytes() {
+    long result = current.position();
+    for (ByteBuffer batch : sealed) {
+      result += batch.remaining();
+    }
+    return result;
+  }
+
+  /**
+   * Try to send all buffered data for at most spf4j.perf.ms.graphite.closeTimeoutMillis, and release resources.
+   */
+  @Override
+  @SuppressFBWarnings({"MDM_THREAD_YIELD", "NOS_NON_OWNED_SYNCHRONIZATION"}) // best effort wait on close only.
+  public void close() {
+    lingerFlush.cancel(false);
+    long deadline = System.currentTimeMillis() + CLOSE_TIMEOUT_MILLIS;
+    try {
+      while (true) {
+        synchronized (this) {
+          if (current.position() > 0) {
+            seal();
+          }
+          if (send() || System.currentTimeMillis() >= deadline) {
+            break;
+          }
+        }
+        Thread.sleep(10);
+      }
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (this) {
+      if (!sealed.isEmpty()) {
+        LOG.warn("Unable to send {} bytes to {} on close", getBufferedBytes(), address);
+      }
+      closeChannel();
+      sealed.clear();
+      free.clear();
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "GraphiteNioStore{" + "transport=" + transport + ", address=" + address + '}';
+  }
+
+}
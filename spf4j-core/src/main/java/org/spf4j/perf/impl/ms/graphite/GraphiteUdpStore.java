@@ -172,6 +172,16 @@ public final class GraphiteUdpStore implements MeasurementStore {
   public static void writeMetric(final MeasurementsInfo measurementInfo, final String measurementName,
           final long measurement, final long timeStampMillis, final Writer os)
           throws IOException {
+    writeMetric(measurementInfo, measurementName, measurement, timeStampMillis, (Appendable) os);
+  }
+
+  /**
+   * Write with the plaintext protocol to a Appendable.
+   * @see #writeMetric(MeasurementsInfo, String, long, long, Writer)
+   */
+  public static void writeMetric(final MeasurementsInfo measurementInfo, final String measurementName,
+          final long measurement, final long timeStampMillis, final Appendable os)
+          throws IOException {
     Strings.writeReplaceWhitespaces(measurementInfo.getMeasuredEntity().toString(), '-', os);
     os.append('/');
     Strings.writeReplaceWhitespaces(measurementName, '-', os);
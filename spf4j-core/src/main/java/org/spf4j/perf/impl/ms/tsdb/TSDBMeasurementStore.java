@@ -33,13 +33,20 @@ package org.spf4j.perf.impl.ms.tsdb;
 
 import org.spf4j.perf.MeasurementsInfo;
 import org.spf4j.perf.MeasurementStore;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.AbstractRunnable;
+import org.spf4j.concurrent.DefaultScheduler;
 import org.spf4j.jmx.JmxExport;
+import org.spf4j.tsdb2.RollupCompactor;
 import org.spf4j.tsdb2.TSDBQuery;
 import org.spf4j.tsdb2.TSDBWriter;
 import org.spf4j.tsdb2.avro.ColumnDef;
@@ -54,10 +61,59 @@ import org.spf4j.tsdb2.avro.Type;
 public final class TSDBMeasurementStore
         implements MeasurementStore {
 
+  /**
+   * Rollup tiers in milliseconds, comma separated. (ex: 60000,3600000) No rollups by default.
+   */
+  private static final String ROLLUP_TIERS = System.getProperty("spf4j.perf.ms.tsdb.rollupTiers", "");
+
+  private static final long ROLLUP_INTERVAL_MILLIS = Long.getLong("spf4j.perf.ms.tsdb.rollupIntervalMillis", 60000L);
+
   private final TSDBWriter database;
 
+  @Nullable
+  private final RollupCompactor compactor;
+
+  @Nullable
+  private final ScheduledFuture<?> compaction;
+
   public TSDBMeasurementStore(final File databaseFile) throws IOException {
+    this(databaseFile, parseTiers(ROLLUP_TIERS));
+  }
+
+  /**
+   * @param databaseFile the database file.
+   * @param rollupTiers the rollup tiers (see RollupCompactor), no rollups will be written if empty.
+   * @throws IOException
+   */
+  @SuppressFBWarnings("SIC_INNER_SHOULD_BE_STATIC_ANON")
+  public TSDBMeasurementStore(final File databaseFile, final long... rollupTiers) throws IOException {
     this.database = new TSDBWriter(databaseFile, 1024, "", false);
+    if (rollupTiers.length > 0) {
+      final RollupCompactor comp = new RollupCompactor(database, rollupTiers);
+      this.compactor = comp;
+      this.compaction = DefaultScheduler.INSTANCE.scheduleWithFixedDelay(new AbstractRunnable(true) {
+        @Override
+        public void doRun() throws IOException {
+          comp.compact();
+        }
+      }, ROLLUP_INTERVAL_MILLIS, ROLLUP_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    } else {
+      this.compactor = null;
+      this.compaction = null;
+    }
+  }
+
+  private static long[] parseTiers(final String tiers) {
+    String trimmed = tiers.trim();
+    if (trimmed.isEmpty()) {
+      return new long[0];
+    }
+    String[] parts = trimmed.split(",");
+    long[] result = new long[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      result[i] = Long.parseLong(parts[i].trim());
+    }
+    return result;
   }
 
   @Override
@@ -92,7 +148,26 @@ public final class TSDBMeasurementStore
 
   @Override
   public void close() throws IOException {
-    database.close();
+    if (compaction != null) {
+      compaction.cancel(false);
+    }
+    try (TSDBWriter db = database) {
+      if (compactor != null) {
+        compactor.close();
+      }
+    }
+  }
+
+  /**
+   * Roll up all the completed time buckets.
+   * @return the number of rollup rows written.
+   */
+  @JmxExport(description = "roll up all completed time buckets")
+  public int compact() throws IOException {
+    if (compactor == null) {
+      return 0;
+    }
+    return compactor.compact();
   }
 
   @JmxExport(description = "flush out buffers")
@@ -32,9 +32,11 @@
 package org.spf4j.ssdump2;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TIntIntMap;
 import gnu.trove.map.TIntObjectMap;
 import gnu.trove.map.TMap;
 import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
 import gnu.trove.map.hash.TIntObjectHashMap;
 import java.io.BufferedOutputStream;
 import java.io.File;
@@ -56,6 +58,8 @@ import org.apache.avro.specific.SpecificDatumWriter;
 import org.spf4j.base.Handler;
 import org.spf4j.io.MemorizingBufferedInputStream;
 import org.spf4j.ssdump2.avro.AMethod;
+import org.spf4j.stackmonitor.CompactSampleTree;
+import org.spf4j.stackmonitor.MethodTable;
 import org.spf4j.stackmonitor.SampleNode;
 import org.spf4j.ssdump2.avro.ASample;
 import org.spf4j.base.Method;
@@ -133,6 +137,40 @@ public final class Converter {
     return nid;
   }
 
+  /**
+   * Convert a compact sample tree to ASample records, with the same numbering as the SampleNode conversion.
+   * (breadth first)
+   */
+  public static <E extends Exception> int convert(final CompactSampleTree tree,
+          final int parentId, final int id, final Handler<ASample, E> handler) throws E {
+    int nrNodes = tree.getNrNodes();
+    int[] queue = new int[nrNodes];
+    int[] newIds = new int[nrNodes];
+    int head = 0;
+    int tail = 0;
+    queue[tail++] = CompactSampleTree.ROOT;
+    int nid = id;
+    while (head < tail) {
+      int n = queue[head++];
+      newIds[n] = nid;
+      ASample sample = new ASample();
+      sample.id = nid;
+      sample.count = tree.getSampleCount(n);
+      Method m = tree.getMethod(n);
+      AMethod am = new AMethod();
+      am.setName(m.getMethodName());
+      am.setDeclaringClass(m.getDeclaringClass());
+      sample.method = am;
+      sample.parentId = n == CompactSampleTree.ROOT ? parentId : newIds[tree.getParent(n)];
+      for (int c = tree.getFirstChild(n); c != CompactSampleTree.NONE; c = tree.getNextSibling(c)) {
+        queue[tail++] = c;
+      }
+      handler.handle(sample, parentId);
+      nid++;
+    }
+    return nid;
+  }
+
   public static SampleNode convert(final Iterator<ASample> samples) {
     TIntObjectMap<SampleNode> index = new TIntObjectHashMap<>();
     while (samples.hasNext()) {
@@ -166,6 +204,18 @@ public final class Converter {
     }
   }
 
+  public static void save(final File file, final CompactSampleTree collected) throws IOException {
+    try (BufferedOutputStream bos = new BufferedOutputStream(
+            Files.newOutputStream(file.toPath()))) {
+      final SpecificDatumWriter<ASample> writer = new SpecificDatumWriter<>(ASample.SCHEMA$);
+      final BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(bos, null);
+      Converter.convert(collected, -1, 0, (final ASample object, final long deadline) -> {
+                writer.write(object, encoder);
+      });
+      encoder.flush();
+    }
+  }
+
   @SuppressFBWarnings("NP_LOAD_OF_KNOWN_NULL_VALUE")
   public static SampleNode load(final File file) throws IOException {
     try (MemorizingBufferedInputStream bis
@@ -205,4 +255,39 @@ public final class Converter {
       });
     }
   }
+
+  /**
+   * Load a ssdump2 file into a tree, streaming, without materializing a SampleNode tree.
+   * The samples are added to the samples already in the tree.
+   */
+  public static void loadInto(final File file, final CompactSampleTree tree) throws IOException {
+    try (MemorizingBufferedInputStream bis
+            = new MemorizingBufferedInputStream(Files.newInputStream(file.toPath()))) {
+      final PushbackInputStream pis = new PushbackInputStream(bis);
+      final SpecificDatumReader<ASample> reader = new SpecificDatumReader<>(ASample.SCHEMA$);
+      final BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(pis, null);
+      // sample id -> tree node
+      TIntIntMap index = new TIntIntHashMap(1024, 0.5f, -1, CompactSampleTree.NONE);
+      ASample asmp = null;
+      int read;
+      while ((read = pis.read()) >= 0) {
+        pis.unread(read);
+        asmp = reader.read(asmp, decoder);
+        int node;
+        if (index.isEmpty()) {
+          node = CompactSampleTree.ROOT;
+        } else {
+          int parent = index.get(asmp.parentId);
+          if (parent == CompactSampleTree.NONE) {
+            throw new IOException("Invalid ssdump2 " + file + ", no parent for " + asmp);
+          }
+          AMethod method = asmp.getMethod();
+          node = tree.getOrAddChild(parent, MethodTable.getId(method.declaringClass, method.getName()));
+        }
+        tree.addNodeSamples(node, asmp.count);
+        index.put(asmp.id, node);
+      }
+    }
+  }
+
 }
@@ -0,0 +1,521 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump3;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.TMap;
+import gnu.trove.map.TObjectIntMap;
+import gnu.trove.map.hash.THashMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import javax.annotation.Nullable;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+import org.spf4j.base.Method;
+import org.spf4j.ssdump2.Converter;
+import org.spf4j.stackmonitor.CompactSampleTree;
+import org.spf4j.stackmonitor.MethodTable;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ * ssdump3 stack sample file format.
+ *
+ * Compared with ssdump2 (one avro ASample record per node, repeating the method strings), ssdump3 writes every
+ * class and method name once (a dictionary), and the nodes in depth first pre-order as
+ * (method index, sample count, number of children) varints, the node ids and parent links being implicit.
+ * As such a tree can be loaded in a single streaming pass, without a node id index.
+ *
+ * Layout:
+ * <pre>
+ * magic: 'S' 'S' 'D' '3', version: 1 byte, compression: 1 byte (0 = none, 1 = deflate).
+ * payload (deflated if compression = 1), avro binary encoded:
+ *   int nrClasses, string className[nrClasses]
+ *   int nrMethods, (int classIdx, string methodName)[nrMethods]
+ *   version 1: nodes, root first, depth first pre-order: (int methodIdx, int count, int nrChildren)...
+ *   version 2: int nrTrees, (string label, nodes)[nrTrees], multiple labeled trees (like samples by SampleType).
+ * </pre>
+ *
+ * @author zoly
+ */
+public final class Ssdump3 {
+
+  public static final String EXTENSION = ".ssdump3";
+
+  /**
+   * the label of the tree read from a single tree file.
+   */
+  public static final String DEFAULT_LABEL = "samples";
+
+  private static final byte[] MAGIC = {'S', 'S', 'D', '3'};
+
+  /**
+   * single tree.
+   */
+  private static final int VERSION = 1;
+
+  /**
+   * multiple labeled trees.
+   */
+  private static final int VERSION_LABELED = 2;
+
+  public enum Compression {
+    NONE, DEFLATE
+  }
+
+  private Ssdump3() {
+  }
+
+  public static void save(final File file, final SampleNode samples) throws IOException {
+    save(file, samples, Compression.DEFLATE);
+  }
+
+  public static void save(final File file, final SampleNode samples, final Compression compression)
+          throws IOException {
+    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+      write(os, samples, compression);
+    }
+  }
+
+  public static void save(final File file, final CompactSampleTree samples) throws IOException {
+    save(file, samples, Compression.DEFLATE);
+  }
+
+  public static void save(final File file, final CompactSampleTree samples, final Compression compression)
+          throws IOException {
+    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+      write(os, samples, compression);
+    }
+  }
+
+  /**
+   * Save multiple labeled sample trees (like the samples by SampleType) to a file.
+   */
+  public static void save(final File file, final Map<String, SampleNode> samples) throws IOException {
+    try (OutputStream os = new BufferedOutputStream(Files.newOutputStream(file.toPath()))) {
+      write(os, samples, Compression.DEFLATE);
+    }
+  }
+
+  /**
+   * Write a sample tree to a output stream. The output stream is not closed.
+   */
+  public static void write(final OutputStream os, final SampleNode samples, final Compression compression)
+          throws IOException {
+    TObjectIntHashMap<Method> methodIdx = new TObjectIntHashMap<>(64, 0.5f, -1);
+    List<Method> methods = new ArrayList<>();
+    addMethods(samples, methodIdx, methods);
+    writeBody(os, VERSION, compression, methods, (encoder) -> writeNodes(encoder, samples, methodIdx));
+  }
+
+  /**
+   * Write multiple labeled sample trees to a output stream, sharing the method dictionary.
+   * The output stream is not closed.
+   */
+  public static void write(final OutputStream os, final Map<String, SampleNode> samples,
+          final Compression compression) throws IOException {
+    TObjectIntHashMap<Method> methodIdx = new TObjectIntHashMap<>(64, 0.5f, -1);
+    List<Method> methods = new ArrayList<>();
+    for (SampleNode node : samples.values()) {
+      addMethods(node, methodIdx, methods);
+    }
+    writeBody(os, VERSION_LABELED, compression, methods, (encoder) -> {
+      encoder.writeInt(samples.size());
+      for (Map.Entry<String, SampleNode> entry : samples.entrySet()) {
+        encoder.writeString(entry.getKey());
+        writeNodes(encoder, entry.getValue(), methodIdx);
+      }
+    });
+  }
+
+  private static void addMethods(final SampleNode samples, final TObjectIntHashMap<Method> methodIdx,
+          final List<Method> methods) {
+    if (methodIdx.putIfAbsent(Method.ROOT, methods.size()) == methodIdx.getNoEntryValue()) {
+      methods.add(Method.ROOT);
+    }
+    Deque<SampleNode> nodes = new ArrayDeque<>();
+    nodes.add(samples);
+    while (!nodes.isEmpty()) {
+      TMap<Method, SampleNode> subNodes = nodes.pollLast().getSubNodes();
+      if (subNodes != null) {
+        subNodes.forEachEntry((m, n) -> {
+          if (methodIdx.putIfAbsent(m, methods.size()) == methodIdx.getNoEntryValue()) {
+            methods.add(m);
+          }
+          nodes.addLast(n);
+          return true;
+        });
+      }
+    }
+  }
+
+  private static void writeNodes(final BinaryEncoder encoder, final SampleNode samples,
+          final TObjectIntMap<Method> methodIdx) throws IOException {
+    Deque<Object> stack = new ArrayDeque<>();
+    stack.addLast(samples);
+    stack.addLast(Method.ROOT);
+    while (!stack.isEmpty()) {
+      Method m = (Method) stack.pollLast();
+      SampleNode node = (SampleNode) stack.pollLast();
+      TMap<Method, SampleNode> subNodes = node.getSubNodes();
+      encoder.writeInt(methodIdx.get(m));
+      encoder.writeInt(node.getSampleCount());
+      if (subNodes == null) {
+        encoder.writeInt(0);
+      } else {
+        encoder.writeInt(subNodes.size());
+        subNodes.forEachEntry((sm, sn) -> {
+          stack.addLast(sn);
+          stack.addLast(sm);
+          return true;
+        });
+      }
+    }
+  }
+
+  /**
+   * Write a compact sample tree to a output stream. The output stream is not closed.
+   */
+  public static void write(final OutputStream os, final CompactSampleTree samples, final Compression compression)
+          throws IOException {
+    final int nrNodes = samples.getNrNodes();
+    TIntIntHashMap methodIdx = new TIntIntHashMap(Math.min(nrNodes, 4096) * 2, 0.5f, -1, -1);
+    List<Method> methods = new ArrayList<>();
+    for (int n = 0; n < nrNodes; n++) {
+      if (methodIdx.putIfAbsent(samples.getMethodId(n), methods.size()) == -1) {
+        methods.add(samples.getMethod(n));
+      }
+    }
+    writeBody(os, VERSION, compression, methods, (encoder) -> {
+      int[] stack = new int[64];
+      int top = 0;
+      stack[top++] = CompactSampleTree.ROOT;
+      while (top > 0) {
+        int node = stack[--top];
+        encoder.writeInt(methodIdx.get(samples.getMethodId(node)));
+        encoder.writeInt(samples.getSampleCount(node));
+        int nrChildren = 0;
+        for (int c = samples.getFirstChild(node); c != CompactSampleTree.NONE; c = samples.getNextSibling(c)) {
+          if (top >= stack.length) {
+            stack = Arrays.copyOf(stack, stack.length * 2);
+          }
+          stack[top++] = c;
+          nrChildren++;
+        }
+        encoder.writeInt(nrChildren);
+      }
+    });
+  }
+
+  private interface NodeWriter {
+    void write(BinaryEncoder encoder) throws IOException;
+  }
+
+  private static void writeBody(final OutputStream os, final int version, final Compression compression,
+          final List<Method> methods, final NodeWriter nodeWriter) throws IOException {
+    os.write(MAGIC);
+    os.write(version);
+    os.write(compression.ordinal());
+    Deflater deflater = null;
+    OutputStream pos = os;
+    if (compression == Compression.DEFLATE) {
+      deflater = new Deflater(Deflater.BEST_SPEED);
+      pos = new DeflaterOutputStream(os, deflater, 8192);
+    }
+    try {
+      BinaryEncoder encoder = EncoderFactory.get().binaryEncoder(pos, null);
+      TObjectIntHashMap<String> classIdx = new TObjectIntHashMap<>(methods.size() * 2, 0.5f, -1);
+      List<String> classes = new ArrayList<>();
+      int[] methodClass = new int[methods.size()];
+      for (int i = 0; i < methodClass.length; i++) {
+        String declaringClass = methods.get(i).getDeclaringClass();
+        int idx = classIdx.putIfAbsent(declaringClass, classes.size());
+        if (idx == -1) {
+          idx = classes.size();
+          classes.add(declaringClass);
+        }
+        methodClass[i] = idx;
+      }
+      encoder.writeInt(classes.size());
+      for (String clasz : classes) {
+        encoder.writeString(clasz);
+      }
+      encoder.writeInt(methodClass.length);
+      for (int i = 0; i < methodClass.length; i++) {
+        encoder.writeInt(methodClass[i]);
+        encoder.writeString(methods.get(i).getMethodName());
+      }
+      nodeWriter.write(encoder);
+      encoder.flush();
+      if (deflater != null) {
+        ((DeflaterOutputStream) pos).finish();
+      }
+    } finally {
+      if (deflater != null) {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * Load a stack sample file, ssdump3 or ssdump2.
+   * @return the sample tree (all labeled trees aggregated), null if the file contains no samples.
+   */
+  @Nullable
+  public static SampleNode load(final File file) throws IOException {
+    Map<String, SampleNode> all = loadAll(file);
+    SampleNode result = null;
+    for (SampleNode node : all.values()) {
+      result = result == null ? node : SampleNode.aggregate(result, node);
+    }
+    return result;
+  }
+
+  /**
+   * Load all labeled sample trees from a stack sample file, ssdump3 or ssdump2.
+   * Single tree files will return one tree labeled DEFAULT_LABEL.
+   */
+  public static Map<String, SampleNode> loadAll(final File file) throws IOException {
+    try (InputStream is = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+      if (readMagic(is)) {
+        return readBody(is, Ssdump3::readNodes);
+      }
+    }
+    SampleNode samples = Converter.load(file);
+    return samples == null ? Collections.emptyMap() : Collections.singletonMap(DEFAULT_LABEL, samples);
+  }
+
+  /**
+   * Load a stack sample file, ssdump3 or ssdump2, into a tree, streaming, without materializing
+   * a SampleNode tree. All labeled trees are added to the samples already in the tree.
+   * This allows aggregating large sample files with a small memory footprint.
+   */
+  public static void loadInto(final File file, final CompactSampleTree tree) throws IOException {
+    try (InputStream is = new BufferedInputStream(Files.newInputStream(file.toPath()))) {
+      if (readMagic(is)) {
+        readBody(is, (decoder, methods) -> {
+          readNodes(decoder, methods, tree);
+          return tree;
+        });
+        return;
+      }
+    }
+    Converter.loadInto(file, tree);
+  }
+
+  private static boolean readMagic(final InputStream is) throws IOException {
+    byte[] magic = new byte[MAGIC.length];
+    int nr = 0;
+    while (nr < magic.length) {
+      int r = is.read(magic, nr, magic.length - nr);
+      if (r < 0) {
+        break;
+      }
+      nr += r;
+    }
+    return nr == MAGIC.length && Arrays.equals(MAGIC, magic);
+  }
+
+  /**
+   * Read a single tree ssdump3 from a input stream. The input stream is not closed.
+   */
+  public static SampleNode read(final InputStream is) throws IOException {
+    Map<String, SampleNode> all = readAll(is);
+    if (all.size() != 1) {
+      throw new IOException("Expected a single sample tree, not " + all.keySet());
+    }
+    return all.values().iterator().next();
+  }
+
+  /**
+   * Read all labeled trees from a ssdump3 input stream. The input stream is not closed.
+   */
+  public static Map<String, SampleNode> readAll(final InputStream is) throws IOException {
+    for (byte b : MAGIC) {
+      int r = is.read();
+      if (r != b) {
+        throw new IOException("Not a ssdump3 stream, unexpected byte " + r);
+      }
+    }
+    return readBody(is, Ssdump3::readNodes);
+  }
+
+  private interface TreeReader<T> {
+    T read(BinaryDecoder decoder, Method[] methods) throws IOException;
+  }
+
+  @SuppressFBWarnings("NP_LOAD_OF_KNOWN_NULL_VALUE")
+  private static <T> Map<String, T> readBody(final InputStream is, final TreeReader<T> treeReader)
+          throws IOException {
+    int version = is.read();
+    if (version != VERSION && version != VERSION_LABELED) {
+      throw new IOException("Unsupported ssdump3 version " + version);
+    }
+    int compression = is.read();
+    Inflater inflater = null;
+    InputStream pis;
+    if (compression == Compression.NONE.ordinal()) {
+      pis = is;
+    } else if (compression == Compression.DEFLATE.ordinal()) {
+      inflater = new Inflater();
+      // the avro decoder does small reads when refilling its buffer, which are expensive on a inflater stream.
+      pis = new BufferedInputStream(new InflaterInputStream(is, inflater, 8192), 65536);
+    } else {
+      throw new IOException("Unsupported ssdump3 compression " + compression);
+    }
+    try {
+      BinaryDecoder decoder = DecoderFactory.get().binaryDecoder(pis, null);
+      String[] classes = new String[decoder.readInt()];
+      for (int i = 0; i < classes.length; i++) {
+        classes[i] = decoder.readString();
+      }
+      Method[] methods = new Method[decoder.readInt()];
+      for (int i = 0; i < methods.length; i++) {
+        String declaringClass = classes[decoder.readInt()];
+        methods[i] = Method.getMethod(declaringClass, decoder.readString());
+      }
+      if (version == VERSION) {
+        return Collections.singletonMap(DEFAULT_LABEL, treeReader.read(decoder, methods));
+      }
+      int nrTrees = decoder.readInt();
+      Map<String, T> result = new LinkedHashMap<>(nrTrees + nrTrees / 2);
+      for (int i = 0; i < nrTrees; i++) {
+        String label = decoder.readString();
+        result.put(label, treeReader.read(decoder, methods));
+      }
+      return result;
+    } finally {
+      if (inflater != null) {
+        inflater.end();
+      }
+    }
+  }
+
+  private static SampleNode readNodes(final BinaryDecoder decoder, final Method[] methods) throws IOException {
+    decoder.readInt(); // root method
+    int rootCount = decoder.readInt();
+    int rootChildren = decoder.readInt();
+    SampleNode root = new SampleNode(rootCount, rootChildren == 0 ? null : new THashMap<>(rootChildren + 1));
+    // stack of parents and their number of children still to read.
+    SampleNode[] parents = new SampleNode[64];
+    int[] remaining = new int[64];
+    int top = 0;
+    if (rootChildren > 0) {
+      parents[0] = root;
+      remaining[0] = rootChildren;
+      top = 1;
+    }
+    while (top > 0) {
+      Method method = methods[decoder.readInt()];
+      int count = decoder.readInt();
+      int nrChildren = decoder.readInt();
+      SampleNode node = new SampleNode(count, nrChildren == 0 ? null : new THashMap<>(nrChildren + 1));
+      int parentIdx = top - 1;
+      parents[parentIdx].getSubNodes().put(method, node);
+      if (--remaining[parentIdx] == 0) {
+        parents[parentIdx] = null;
+        top--;
+      }
+      if (nrChildren > 0) {
+        if (top >= parents.length) {
+          parents = Arrays.copyOf(parents, parents.length * 2);
+          remaining = Arrays.copyOf(remaining, remaining.length * 2);
+        }
+        parents[top] = node;
+        remaining[top] = nrChildren;
+        top++;
+      }
+    }
+    return root;
+  }
+
+  private static void readNodes(final BinaryDecoder decoder, final Method[] methods,
+          final CompactSampleTree tree) throws IOException {
+    int[] methodIds = new int[methods.length];
+    for (int i = 0; i < methods.length; i++) {
+      methodIds[i] = MethodTable.getId(methods[i]);
+    }
+    decoder.readInt(); // root method
+    tree.addNodeSamples(CompactSampleTree.ROOT, decoder.readInt());
+    int rootChildren = decoder.readInt();
+    // stack of parents and their number of children still to read.
+    int[] parents = new int[64];
+    int[] remaining = new int[64];
+    int top = 0;
+    if (rootChildren > 0) {
+      parents[0] = CompactSampleTree.ROOT;
+      remaining[0] = rootChildren;
+      top = 1;
+    }
+    while (top > 0) {
+      int methodId = methodIds[decoder.readInt()];
+      int count = decoder.readInt();
+      int nrChildren = decoder.readInt();
+      int parentIdx = top - 1;
+      int node = tree.getOrAddChild(parents[parentIdx], methodId);
+      tree.addNodeSamples(node, count);
+      if (--remaining[parentIdx] == 0) {
+        top--;
+      }
+      if (nrChildren > 0) {
+        if (top >= parents.length) {
+          parents = Arrays.copyOf(parents, parents.length * 2);
+          remaining = Arrays.copyOf(remaining, remaining.length * 2);
+        }
+        parents[top] = node;
+        remaining[top] = nrChildren;
+        top++;
+      }
+    }
+  }
+
+}
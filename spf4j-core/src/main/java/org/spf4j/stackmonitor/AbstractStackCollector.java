@@ -31,7 +31,12 @@
  */
 package org.spf4j.stackmonitor;
 
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.WeakHashMap;
 import java.util.function.Function;
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
 
 /**
@@ -42,54 +47,164 @@ public abstract class AbstractStackCollector implements StackCollector {
 
 
     private final Object sampleSync = new Object();
+    /**
+     * samples by SampleType ordinal.
+     */
     @GuardedBy(value = "sampleSync")
-    private SampleNode samples;
+    private final CompactSampleTree[] samples;
+    @GuardedBy(value = "sampleSync")
+    private final Map<Thread, ThreadSamples> threadSamples = new WeakHashMap<>();
 
+    public AbstractStackCollector() {
+        samples = new CompactSampleTree[SampleType.size()];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = new CompactSampleTree();
+        }
+    }
 
+    /**
+     * Apply function on the collected samples of every sample type.
+     * @return the samples (all types) before the function was applied.
+     */
     @Override
+    @Nullable
     public final SampleNode applyOnSamples(final Function<SampleNode, SampleNode> predicate) {
         synchronized (sampleSync) {
-            SampleNode result = samples;
-            samples = predicate.apply(samples);
+            SampleNode result = aggregate().toSampleNode();
+            for (CompactSampleTree tree : samples) {
+                if (!tree.isEmpty()) {
+                    SampleNode newSamples = predicate.apply(tree.toSampleNode());
+                    tree.clear();
+                    if (newSamples != null) {
+                        tree.add(newSamples);
+                    }
+                }
+            }
             return result;
         }
     }
 
+    @GuardedBy(value = "sampleSync")
+    private CompactSampleTree aggregate() {
+        CompactSampleTree result = new CompactSampleTree();
+        for (CompactSampleTree tree : samples) {
+            result.addAll(tree);
+        }
+        return result;
+    }
 
     @Override
+    @Nullable
     public final SampleNode clear() {
         synchronized (sampleSync) {
-            SampleNode result = samples;
-            samples = null;
+            SampleNode result = aggregate().toSampleNode();
+            for (CompactSampleTree tree : samples) {
+                tree.clear();
+            }
+            return result;
+        }
+    }
+
+    @Override
+    public final Map<SampleType, SampleNode> clearByType() {
+        synchronized (sampleSync) {
+            Map<SampleType, SampleNode> result = new EnumMap<>(SampleType.class);
+            for (int i = 0; i < samples.length; i++) {
+                CompactSampleTree tree = samples[i];
+                if (!tree.isEmpty()) {
+                    result.put(SampleType.fromOrdinal(i), tree.toSampleNode());
+                    tree.clear();
+                }
+            }
             return result;
         }
     }
 
     @Override
     public final void addSample(final StackTraceElement[] stackTrace) {
+        addSample(SampleType.CPU, stackTrace);
+    }
+
+    @Override
+    public final void addSample(final SampleType type, final StackTraceElement[] stackTrace) {
         synchronized (sampleSync) {
-            if (samples == null) {
-                samples = SampleNode.createSampleNode(stackTrace);
-            } else {
-                SampleNode.addToSampleNode(samples, stackTrace);
+            samples[type.ordinal()].addSample(stackTrace);
+        }
+    }
+
+    /**
+     * Add a sample of a thread, only the part of the stack that differs from the previous sample
+     * of the same thread (and sample type) is resolved against the sample tree.
+     */
+    protected final void addSample(final Thread thread, final SampleType type,
+            final StackTraceElement[] stackTrace) {
+        int typeIdx = type.ordinal();
+        synchronized (sampleSync) {
+            ThreadSamples ts = threadSamples.get(thread);
+            if (ts == null) {
+                ts = new ThreadSamples(samples.length);
+                threadSamples.put(thread, ts);
+            }
+            CompactSampleTree.SamplePath path = ts.paths[typeIdx];
+            if (path == null) {
+                path = new CompactSampleTree.SamplePath();
+                ts.paths[typeIdx] = path;
+            }
+            samples[typeIdx].addSample(path, stackTrace);
+            ts.lastTypeIdx = typeIdx;
+        }
+    }
+
+    /**
+     * Add a sample of a thread that did not execute since its previous sample, by repeating the previous sample,
+     * no stack trace is needed since the stack did not change.
+     * @return false if the previous sample of the thread is not of the same type or is not available anymore,
+     * (the samples were cleared), nothing is added in this case and the stack trace is needed.
+     */
+    protected final boolean addRepeatSample(final Thread thread, final SampleType type) {
+        int typeIdx = type.ordinal();
+        synchronized (sampleSync) {
+            ThreadSamples ts = threadSamples.get(thread);
+            if (ts == null || ts.lastTypeIdx != typeIdx) {
+                return false;
             }
+            return samples[typeIdx].addRepeatSample(ts.paths[typeIdx]) != CompactSampleTree.NONE;
+        }
+    }
+
+    /**
+     * Add a sample of a thread, classified by the thread state (no CPU usage information).
+     */
+    protected final void addSample(final Thread thread, final Thread.State state,
+            final StackTraceElement[] stackTrace) {
+        addSample(thread, SampleType.of(state, stackTrace.length > 0 ? stackTrace[0] : null, -1), stackTrace);
+    }
+
+    /**
+     * The sample paths of a thread, by sample type, and the type of its last sample.
+     */
+    private static final class ThreadSamples {
+
+        private final CompactSampleTree.SamplePath[] paths;
+
+        private int lastTypeIdx = -1;
+
+        ThreadSamples(final int nrTypes) {
+            this.paths = new CompactSampleTree.SamplePath[nrTypes];
         }
     }
 
     @Override
     public final String toString() {
         synchronized (sampleSync) {
-            return "AbstractStackCollector{" + "samples=" + samples  + '}';
+            return "AbstractStackCollector{" + "samples=" + Arrays.toString(samples)  + '}';
         }
     }
 
     public final int getNrNodes() {
         synchronized (sampleSync) {
-            if (samples == null) {
-                return 0;
-            } else {
-                return samples.getNrNodes();
-            }
+            CompactSampleTree all = aggregate();
+            return all.isEmpty() ? 0 : all.getNrNodes();
         }
     }
 
@@ -0,0 +1,662 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import gnu.trove.map.TMap;
+import gnu.trove.map.hash.THashMap;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.annotation.ParametersAreNonnullByDefault;
+import org.spf4j.base.JsonWriteable;
+import org.spf4j.base.Method;
+import org.spf4j.ds.Graph;
+import org.spf4j.ds.HashMapGraph;
+
+/**
+ * A compact stack sample tree (trie), equivalent of a SampleNode tree.
+ *
+ * Methods are interned to int ids (see MethodTable), and the nodes are stored in parallel primitive arrays
+ * (parent, method id, sample count, first child, next sibling), node 0 being the root. Children are found
+ * via a single open addressing hash index keyed by (parent node, method id), so adding a sample does not allocate
+ * except when the arrays need to grow. A child node id is always larger than its parent node id,
+ * which allows most traversals to be simple loops over the node arrays.
+ *
+ * This class is not thread safe.
+ *
+ * @author zoly
+ */
+@ParametersAreNonnullByDefault
+@SuppressFBWarnings(value = "PL_PARALLEL_LISTS", justification = "the whole point of this class")
+public final class CompactSampleTree implements JsonWriteable {
+
+  public static final int ROOT = 0;
+
+  public static final int NONE = -1;
+
+  private static final int DEFAULT_CAPACITY = 64;
+
+  private static final int COMMA = -1;
+
+  private static final int END_CHILDREN = -2;
+
+  private int[] parents;
+
+  private int[] methodIds;
+
+  private int[] counts;
+
+  private int[] firstChildren;
+
+  private int[] nextSiblings;
+
+  private int size;
+
+  /**
+   * incremented every time node ids are invalidated (clear).
+   */
+  private int generation;
+
+  /**
+   * open addressing index of (node id + 1), 0 is a empty slot.
+   */
+  private int[] childIndex;
+
+  public CompactSampleTree() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public CompactSampleTree(final int initialCapacity) {
+    int capacity = Math.max(initialCapacity, 2);
+    parents = new int[capacity];
+    methodIds = new int[capacity];
+    counts = new int[capacity];
+    firstChildren = new int[capacity];
+    nextSiblings = new int[capacity];
+    childIndex = new int[Integer.highestOneBit(capacity - 1) << 2];
+    initRoot();
+  }
+
+  private CompactSampleTree(final CompactSampleTree other) {
+    int capacity = Math.max(other.size, DEFAULT_CAPACITY);
+    parents = Arrays.copyOf(other.parents, capacity);
+    methodIds = Arrays.copyOf(other.methodIds, capacity);
+    counts = Arrays.copyOf(other.counts, capacity);
+    firstChildren = Arrays.copyOf(other.firstChildren, capacity);
+    nextSiblings = Arrays.copyOf(other.nextSiblings, capacity);
+    childIndex = other.childIndex.clone();
+    size = other.size;
+  }
+
+  private void initRoot() {
+    parents[ROOT] = NONE;
+    methodIds[ROOT] = MethodTable.ROOT_ID;
+    counts[ROOT] = 0;
+    firstChildren[ROOT] = NONE;
+    nextSiblings[ROOT] = NONE;
+    size = 1;
+  }
+
+  /**
+   * Create a tree from a SampleNode tree.
+   */
+  public static CompactSampleTree from(final SampleNode node) {
+    CompactSampleTree result = new CompactSampleTree();
+    result.add(node);
+    return result;
+  }
+
+  public static CompactSampleTree aggregate(final CompactSampleTree tree1, final CompactSampleTree tree2) {
+    CompactSampleTree result = tree1.copy();
+    result.addAll(tree2);
+    return result;
+  }
+
+  public CompactSampleTree copy() {
+    return new CompactSampleTree(this);
+  }
+
+  /**
+   * Remove all samples.
+   */
+  public void clear() {
+    if (parents.length > DEFAULT_CAPACITY) {
+      parents = new int[DEFAULT_CAPACITY];
+      methodIds = new int[DEFAULT_CAPACITY];
+      counts = new int[DEFAULT_CAPACITY];
+      firstChildren = new int[DEFAULT_CAPACITY];
+      nextSiblings = new int[DEFAULT_CAPACITY];
+      childIndex = new int[DEFAULT_CAPACITY * 2];
+    } else {
+      Arrays.fill(childIndex, 0);
+    }
+    initRoot();
+    generation++;
+  }
+
+  /**
+   * Add a stack sample.
+   * @param stackTrace the stack trace, (top of the stack first, like Thread.getStackTrace)
+   * @return the node id of the top of the stack.
+   */
+  public int addSample(final StackTraceElement... stackTrace) {
+    counts[ROOT]++;
+    int node = ROOT;
+    for (int i = stackTrace.length - 1; i >= 0; i--) {
+      node = getOrAddChild(node, MethodTable.getId(stackTrace[i]));
+      counts[node]++;
+    }
+    return node;
+  }
+
+  /**
+   * Add a stack sample, without growing this tree beyond maxNodes.
+   * If the stack does not fit, the sample is accounted only to the deepest ancestor that fits.
+   * @param stackTrace the stack trace, (top of the stack first, like Thread.getStackTrace)
+   * @param maxNodes the max number of nodes of this tree.
+   * @return true if the entire stack was added.
+   */
+  public boolean addSample(final StackTraceElement[] stackTrace, final int maxNodes) {
+    counts[ROOT]++;
+    int node = ROOT;
+    for (int i = stackTrace.length - 1; i >= 0; i--) {
+      int methodId = MethodTable.getId(stackTrace[i]);
+      node = size < maxNodes ? getOrAddChild(node, methodId) : getChild(node, methodId);
+      if (node == NONE) {
+        return false;
+      }
+      counts[node]++;
+    }
+    return true;
+  }
+
+  /**
+   * Add a stack sample, reusing the node path resolved for the previous sample of the same source (thread).
+   * Only the frames above the longest common root prefix with the previous sample are resolved,
+   * for threads that sit in the same (deep) stack sample after sample, this is just a frame compare per frame.
+   * @param previous the previous sample path of the source, will be updated with this sample.
+   * @param stackTrace the stack trace, (top of the stack first, like Thread.getStackTrace)
+   * @return the node id of the top of the stack.
+   */
+  public int addSample(final SamplePath previous, final StackTraceElement[] stackTrace) {
+    counts[ROOT]++;
+    final int depth = stackTrace.length;
+    int common = 0;
+    if (previous.tree == this && previous.generation == generation) {
+      final StackTraceElement[] prev = previous.frames;
+      final int prevDepth = prev.length;
+      final int max = Math.min(depth, prevDepth);
+      while (common < max && sameMethod(stackTrace[depth - 1 - common], prev[prevDepth - 1 - common])) {
+        common++;
+      }
+    }
+    int[] path = previous.nodes;
+    if (path.length < depth) {
+      path = Arrays.copyOf(path, Math.max(depth, path.length * 2));
+    }
+    for (int i = 0; i < common; i++) {
+      counts[path[i]]++;
+    }
+    int node = common == 0 ? ROOT : path[common - 1];
+    for (int i = common; i < depth; i++) {
+      node = getOrAddChild(node, MethodTable.getId(stackTrace[depth - 1 - i]));
+      counts[node]++;
+      path[i] = node;
+    }
+    previous.tree = this;
+    previous.generation = generation;
+    previous.frames = stackTrace;
+    previous.nodes = path;
+    return node;
+  }
+
+  /**
+   * Add a sample identical to the previous sample of a source (thread), without needing its stack trace.
+   * Used for threads that did not execute since their previous sample, (their stack did not change).
+   * @param previous the previous sample path of the source.
+   * @return the node id of the top of the stack, or NONE if the previous sample path is not valid for this tree,
+   * (no previous sample, or the tree was cleared since), in which case nothing is added.
+   */
+  public int addRepeatSample(final SamplePath previous) {
+    if (previous.tree != this || previous.generation != generation) {
+      return NONE;
+    }
+    counts[ROOT]++;
+    final int depth = previous.frames.length;
+    final int[] path = previous.nodes;
+    for (int i = 0; i < depth; i++) {
+      counts[path[i]]++;
+    }
+    return depth == 0 ? ROOT : path[depth - 1];
+  }
+
+  private static boolean sameMethod(final StackTraceElement a, final StackTraceElement b) {
+    // class and method names are interned by the JVM, so equals will mostly be a reference compare.
+    return a == b || (a.getMethodName().equals(b.getMethodName()) && a.getClassName().equals(b.getClassName()));
+  }
+
+  /**
+   * Add all samples from a SampleNode tree.
+   */
+  public void add(final SampleNode node) {
+    Deque<Object> dq = new ArrayDeque<>();
+    dq.add(node);
+    dq.add(ROOT);
+    while (!dq.isEmpty()) {
+      SampleNode sn = (SampleNode) dq.pollFirst();
+      int nodeId = (Integer) dq.pollFirst();
+      counts[nodeId] += sn.getSampleCount();
+      TMap<Method, SampleNode> subNodes = sn.getSubNodes();
+      if (subNodes != null) {
+        for (Map.Entry<Method, SampleNode> entry : subNodes.entrySet()) {
+          dq.addLast(entry.getValue());
+          dq.addLast(getOrAddChild(nodeId, MethodTable.getId(entry.getKey())));
+        }
+      }
+    }
+  }
+
+  /**
+   * Add all samples from another tree.
+   */
+  public void addAll(final CompactSampleTree other) {
+    addAll(other, Integer.MAX_VALUE);
+  }
+
+  /**
+   * Add all samples from another tree, without growing this tree beyond maxNodes.
+   * Samples of stacks that do not fit are accounted only to their deepest ancestor that fits.
+   * @return the number of nodes from other that did not fit.
+   */
+  public int addAll(final CompactSampleTree other, final int maxNodes) {
+    int[] map = new int[other.size];
+    map[ROOT] = ROOT;
+    counts[ROOT] += other.counts[ROOT];
+    int dropped = 0;
+    for (int n = 1; n < other.size; n++) {
+      // parents always come before children.
+      int parent = map[other.parents[n]];
+      int nn;
+      if (parent == NONE) {
+        nn = NONE;
+      } else if (size < maxNodes) {
+        nn = getOrAddChild(parent, other.methodIds[n]);
+      } else {
+        nn = getChild(parent, other.methodIds[n]);
+      }
+      if (nn == NONE) {
+        // counts are inclusive, the ancestors already account for these samples.
+        dropped++;
+      } else {
+        counts[nn] += other.counts[n];
+      }
+      map[n] = nn;
+    }
+    return dropped;
+  }
+
+  /**
+   * Add samples to a node and all its ancestors.
+   */
+  public void addSamples(final int node, final int nrSamples) {
+    int n = node;
+    do {
+      counts[n] += nrSamples;
+      n = parents[n];
+    } while (n != NONE);
+  }
+
+  /**
+   * Add samples to a single node, not to its ancestors.
+   * (counts are inclusive, used when copying a tree node by node)
+   */
+  public void addNodeSamples(final int node, final int nrSamples) {
+    counts[node] += nrSamples;
+  }
+
+  /**
+   * @return the child node of parent for methodId, or NONE if there is no such child.
+   */
+  public int getChild(final int parent, final int methodId) {
+    final int[] idx = childIndex;
+    final int mask = idx.length - 1;
+    int i = hash(parent, methodId) & mask;
+    int slot;
+    while ((slot = idx[i]) != 0) {
+      int n = slot - 1;
+      if (methodIds[n] == methodId && parents[n] == parent) {
+        return n;
+      }
+      i = (i + 1) & mask;
+    }
+    return NONE;
+  }
+
+  /**
+   * @return the child node of parent for methodId. A new node with 0 samples is created if it does not exist.
+   */
+  public int getOrAddChild(final int parent, final int methodId) {
+    int[] idx = childIndex;
+    int mask = idx.length - 1;
+    int i = hash(parent, methodId) & mask;
+    int slot;
+    while ((slot = idx[i]) != 0) {
+      int n = slot - 1;
+      if (methodIds[n] == methodId && parents[n] == parent) {
+        return n;
+      }
+      i = (i + 1) & mask;
+    }
+    final int n = size;
+    if (n == parents.length) {
+      grow();
+    }
+    parents[n] = parent;
+    methodIds[n] = methodId;
+    counts[n] = 0;
+    firstChildren[n] = NONE;
+    nextSiblings[n] = firstChildren[parent];
+    firstChildren[parent] = n;
+    size = n + 1;
+    if (size * 2 > idx.length) {
+      rehash(idx.length * 2);
+    } else {
+      idx[i] = n + 1;
+    }
+    return n;
+  }
+
+  private static int hash(final int parent, final int methodId) {
+    int h = parent * 0x9E3779B9 + methodId;
+    return h ^ (h >>> 15);
+  }
+
+  private void grow() {
+    int newCapacity = parents.length + Math.max(parents.length >> 1, 1);
+    parents = Arrays.copyOf(parents, newCapacity);
+    methodIds = Arrays.copyOf(methodIds, newCapacity);
+    counts = Arrays.copyOf(counts, newCapacity);
+    firstChildren = Arrays.copyOf(firstChildren, newCapacity);
+    nextSiblings = Arrays.copyOf(nextSiblings, newCapacity);
+  }
+
+  private void rehash(final int capacity) {
+    int[] idx = new int[capacity];
+    int mask = capacity - 1;
+    for (int n = 1; n < size; n++) {
+      int i = hash(parents[n], methodIds[n]) & mask;
+      while (idx[i] != 0) {
+        i = (i + 1) & mask;
+      }
+      idx[i] = n + 1;
+    }
+    childIndex = idx;
+  }
+
+  public int getNrNodes() {
+    return size;
+  }
+
+  /**
+   * @return the total number of samples.
+   */
+  public int getSampleCount() {
+    return counts[ROOT];
+  }
+
+  public boolean isEmpty() {
+    return counts[ROOT] == 0;
+  }
+
+  public int getSampleCount(final int node) {
+    return counts[node];
+  }
+
+  public int getMethodId(final int node) {
+    return methodIds[node];
+  }
+
+  public Method getMethod(final int node) {
+    return MethodTable.getMethod(methodIds[node]);
+  }
+
+  public int getParent(final int node) {
+    return parents[node];
+  }
+
+  public int getFirstChild(final int node) {
+    return firstChildren[node];
+  }
+
+  public int getNextSibling(final int node) {
+    return nextSiblings[node];
+  }
+
+  /**
+   * @return the approximate heap memory used by this tree, in bytes.
+   */
+  public long getMemoryUsage() {
+    return 5L * 4 * parents.length + 4L * childIndex.length + 6 * 16 + 32;
+  }
+
+  /**
+   * @return the equivalent SampleNode tree, null if there are no samples.
+   */
+  @Nullable
+  public SampleNode toSampleNode() {
+    if (counts[ROOT] == 0) {
+      return null;
+    }
+    SampleNode[] nodes = new SampleNode[size];
+    // children have larger ids, so they are created before their parents.
+    for (int n = size - 1; n >= 0; n--) {
+      TMap<Method, SampleNode> subNodes = null;
+      for (int c = firstChildren[n]; c != NONE; c = nextSiblings[c]) {
+        if (subNodes == null) {
+          subNodes = new THashMap<>(4);
+        }
+        subNodes.put(getMethod(c), nodes[c]);
+        nodes[c] = null;
+      }
+      nodes[n] = new SampleNode(counts[n], subNodes);
+    }
+    return nodes[ROOT];
+  }
+
+  /**
+   * Same semantics as SampleNode.filteredBy: the sub-trees of methods that match the predicate are removed,
+   * and their sample counts are subtracted from all their ancestors. Nodes left with 0 samples are removed.
+   * @return the filtered tree, null if there are no samples left.
+   */
+  @Nullable
+  public CompactSampleTree filteredBy(final Predicate<Method> predicate) {
+    boolean[] matches = new boolean[size];
+    for (int n = 1; n < size; n++) {
+      matches[n] = predicate.test(getMethod(n));
+    }
+    int[] newCounts = counts.clone();
+    for (int n = size - 1; n > 0; n--) {
+      int removed = matches[n] ? counts[n] : counts[n] - newCounts[n];
+      int p = parents[n];
+      newCounts[p] -= removed;
+      if (newCounts[p] < 0) {
+        throw new IllegalStateException("child sample counts must be <= parent sample count, at node " + p);
+      }
+    }
+    if (newCounts[ROOT] == 0) {
+      return null;
+    }
+    CompactSampleTree result = new CompactSampleTree(size);
+    result.counts[ROOT] = newCounts[ROOT];
+    int[] map = new int[size];
+    map[ROOT] = ROOT;
+    for (int n = 1; n < size; n++) {
+      int mp = map[parents[n]];
+      if (mp == NONE || matches[n] || newCounts[n] == 0) {
+        map[n] = NONE;
+      } else {
+        int nn = result.getOrAddChild(mp, methodIds[n]);
+        result.counts[nn] = newCounts[n];
+        map[n] = nn;
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Same semantics as SampleNode.forEach(handler, Method.ROOT, Method.ROOT, new HashMap()).
+   */
+  public void forEach(final SampleNode.InvocationHandler handler) {
+    Map<Method, Integer> ancestors = new HashMap<>();
+    // a negative entry (~node) marks the exit from a node.
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = ROOT;
+    while (top > 0) {
+      int n = stack[--top];
+      if (n < 0) {
+        Method m = getMethod(~n);
+        int val = ancestors.get(m);
+        if (val == 1) {
+          ancestors.remove(m);
+        } else {
+          ancestors.put(m, val - 1);
+        }
+        continue;
+      }
+      Method to = getMethod(n);
+      Method from = n == ROOT ? Method.ROOT : getMethod(parents[n]);
+      handler.handle(from, to, counts[n], ancestors);
+      int c = firstChildren[n];
+      if (c != NONE) {
+        ancestors.merge(to, 1, Integer::sum);
+        stack = ensureCapacity(stack, top + 1);
+        stack[top++] = ~n;
+        for (; c != NONE; c = nextSiblings[c]) {
+          stack = ensureCapacity(stack, top + 1);
+          stack[top++] = c;
+        }
+      }
+    }
+  }
+
+  @Nonnull
+  public Graph<InvokedMethod, SampleNode.InvocationCount> toGraph() {
+    final HashMapGraph<InvokedMethod, SampleNode.InvocationCount> result = new HashMapGraph<>();
+    forEach(SampleNode.graphBuilder(result));
+    return result;
+  }
+
+  /**
+   * Writes the same json as SampleNode.writeTo.
+   */
+  @Override
+  public void writeTo(final Appendable appendable) throws IOException {
+    // entries: node ids, COMMA or END_CHILDREN.
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = ROOT;
+    while (top > 0) {
+      int n = stack[--top];
+      if (n == COMMA) {
+        appendable.append(',');
+      } else if (n == END_CHILDREN) {
+        appendable.append("]}");
+      } else {
+        appendable.append("{\"");
+        getMethod(n).writeTo(appendable);
+        appendable.append("\":");
+        appendable.append(Integer.toString(counts[n]));
+        int c = firstChildren[n];
+        if (c == NONE) {
+          appendable.append('}');
+        } else {
+          appendable.append(",\"c\":[");
+          stack = ensureCapacity(stack, top + 2);
+          stack[top++] = END_CHILDREN;
+          stack[top++] = c;
+          for (c = nextSiblings[c]; c != NONE; c = nextSiblings[c]) {
+            stack = ensureCapacity(stack, top + 2);
+            stack[top++] = COMMA;
+            stack[top++] = c;
+          }
+        }
+      }
+    }
+  }
+
+  private static int[] ensureCapacity(final int[] stack, final int capacity) {
+    if (capacity > stack.length) {
+      return Arrays.copyOf(stack, Math.max(capacity, stack.length * 2));
+    }
+    return stack;
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder sb = new StringBuilder(64);
+    writeTo(sb);
+    return sb.toString();
+  }
+
+  /**
+   * The last sample added by a source (thread) and the node path it resolved to, (root first).
+   * Used for delta sample ingestion, see addSample(SamplePath, StackTraceElement[]).
+   * Not thread safe.
+   */
+  public static final class SamplePath {
+
+    private static final StackTraceElement[] EMPTY = new StackTraceElement[0];
+
+    private CompactSampleTree tree;
+
+    private int generation;
+
+    private StackTraceElement[] frames = EMPTY;
+
+    private int[] nodes = new int[16];
+
+    @Override
+    public String toString() {
+      return "SamplePath{" + "generation=" + generation + ", depth=" + frames.length + '}';
+    }
+
+  }
+
+}
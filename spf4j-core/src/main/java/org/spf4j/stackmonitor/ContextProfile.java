@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.Map;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.ExecutionContext;
+import org.spf4j.base.Timing;
+
+/**
+ * The execution context of a thread, plus the stack samples collected for it once it runs longer
+ * than the slow request threshold.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+final class ContextProfile implements Map.Entry<Thread, ExecutionContext> {
+
+  private final String name;
+
+  private final Thread thread;
+
+  private final ExecutionContext context;
+
+  private final long startNanos;
+
+  /**
+   * created by the sampling thread on the first sample, null for requests that were never sampled.
+   */
+  @Nullable
+  private volatile CompactSampleTree samples;
+
+  @GuardedBy("this")
+  private int droppedSamples;
+
+  @GuardedBy("this")
+  private boolean closed;
+
+  ContextProfile(final String name, final Thread thread, final ExecutionContext context, final long startNanos) {
+    this.name = name;
+    this.thread = thread;
+    this.context = context;
+    this.startNanos = startNanos;
+  }
+
+  long getStartNanos() {
+    return startNanos;
+  }
+
+  /**
+   * Add a stack sample to this context profile.
+   * @param stackTrace the sampled stack.
+   * @param maxNodes the maximum number of nodes of the profile.
+   */
+  synchronized void addSample(final StackTraceElement[] stackTrace, final int maxNodes) {
+    if (closed) {
+      return;
+    }
+    CompactSampleTree tree = samples;
+    if (tree == null) {
+      tree = new CompactSampleTree(Math.min(maxNodes, 64));
+      samples = tree;
+    }
+    if (!tree.addSample(stackTrace, maxNodes)) {
+      droppedSamples++;
+    }
+  }
+
+  /**
+   * Close this profile.
+   * @param endNanos the context end time.
+   * @return the profile, or null if the context has not been sampled.
+   */
+  @Nullable
+  RequestProfile close(final long endNanos) {
+    if (samples == null) { // never sampled, the common (fast request) case.
+      return null;
+    }
+    return closeSampled(endNanos);
+  }
+
+  private synchronized RequestProfile closeSampled(final long endNanos) {
+    closed = true;
+    return new RequestProfile(name, thread.getName(),
+            Timing.getCurrentTiming().fromNanoTimeToInstant(startNanos), endNanos - startNanos,
+            samples.toSampleNode(), droppedSamples);
+  }
+
+  @Override
+  public Thread getKey() {
+    return thread;
+  }
+
+  @Override
+  public ExecutionContext getValue() {
+    return context;
+  }
+
+  @Override
+  public ExecutionContext setValue(final ExecutionContext value) {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public String toString() {
+    return "ContextProfile{" + "name=" + name + ", thread=" + thread + ", context=" + context
+            + ", startNanos=" + startNanos + '}';
+  }
+
+}
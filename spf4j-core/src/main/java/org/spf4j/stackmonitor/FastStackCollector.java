@@ -32,12 +32,17 @@
 package org.spf4j.stackmonitor;
 
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.map.hash.TLongLongHashMap;
 import gnu.trove.set.hash.THashSet;
 import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.Arrays;
 import java.util.Set;
 import java.util.function.Predicate;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import org.spf4j.base.Runtime;
 import org.spf4j.base.Threads;
 
 /**
@@ -46,6 +51,13 @@ import org.spf4j.base.Threads;
  * generated by sampling. 2) Stack trace for the sampling Thread is not created at all, saving some time and creating
  * less garbage.
  *
+ * The steady state sampling does not allocate beyond what the JVM allocates for the thread list,
+ * the thread cpu times and the stack dump: the sampling buffers are reused, frames are mapped to interned method ids
+ * (see MethodTable), and only the changed part of a thread stack is resolved against the sample tree.
+ * Threads that did not use any CPU since their previous sample (idle pool threads, typically most of the threads
+ * of a server) did not execute, and their stack did not change, so they are not dumped at all,
+ * their previous sample is repeated.
+ *
  * @author zoly
  */
 public final class FastStackCollector extends AbstractStackCollector {
@@ -58,10 +70,47 @@ public final class FastStackCollector extends AbstractStackCollector {
     "VM JFR Buffer Thread"
   };
 
+  private static final boolean COLLECT_THREAD_CPU_TIME =
+          Boolean.parseBoolean(System.getProperty("spf4j.perf.ms.collectThreadCpuTime", "true"));
+
+  /**
+   * Repeat the previous sample of threads that did not use CPU since, instead of dumping their stack.
+   * Requires a thread cpu time with a resolution better than the sampling interval, which is not the case on Windows.
+   */
+  private static final boolean REPEAT_IDLE_THREAD_SAMPLES = Boolean.parseBoolean(
+          System.getProperty("spf4j.perf.ms.repeatIdleThreadSamples", Boolean.toString(!Runtime.isWindows())));
+
+  private static final long[] NO_CPU_DELTAS = new long[0];
+
   private final Predicate<Thread> threadFilter;
 
   private Thread[] requestFor = new Thread[]{};
 
+  private long[] threadIds = new long[]{};
+
+  @Nullable
+  private final com.sun.management.ThreadMXBean threadMX;
+
+  /**
+   * thread id -> cpu time at the previous sample.
+   */
+  private TLongLongHashMap prevCpuTimes = new TLongLongHashMap(64, 0.5f, -1, -1);
+
+  private TLongLongHashMap cpuTimes = new TLongLongHashMap(64, 0.5f, -1, -1);
+
+  private volatile int maxSampledThreads = Integer.MAX_VALUE;
+
+  /**
+   * the position of the first thread of the next round-robin subset.
+   */
+  private int nextSubsetStart;
+
+  private volatile int lastNrSampledThreads = -1;
+
+  private volatile int lastNrThreads = -1;
+
+  private int lastNrDumpedThreads = -1;
+
   public FastStackCollector(final boolean collectForMain, final String... xtraIgnoredThreads) {
     this(createNameBasedFilter(false, collectForMain, xtraIgnoredThreads));
   }
@@ -91,7 +140,28 @@ public final class FastStackCollector extends AbstractStackCollector {
    * @param threadFilter when returns true the thread is being ignored
    */
   public FastStackCollector(final Predicate<Thread> threadFilter) {
+    this(threadFilter, COLLECT_THREAD_CPU_TIME);
+  }
+
+  /**
+   * @param threadFilter when returns true the thread is being ignored
+   * @param collectThreadCpuTime if true, the per thread CPU time used between samples is used to tell apart
+   * runnable threads that use CPU from runnable threads that wait (in native code, typically IO).
+   */
+  public FastStackCollector(final Predicate<Thread> threadFilter, final boolean collectThreadCpuTime) {
     this.threadFilter = threadFilter;
+    this.threadMX = collectThreadCpuTime ? getCpuTimeThreadMXBean() : null;
+  }
+
+  @Nullable
+  @SuppressFBWarnings("IICU_INCORRECT_INTERNAL_CLASS_USE") // batch cpu time is only available via com.sun
+  private static com.sun.management.ThreadMXBean getCpuTimeThreadMXBean() {
+    ThreadMXBean mxBean = ManagementFactory.getThreadMXBean();
+    if (mxBean instanceof com.sun.management.ThreadMXBean
+            && mxBean.isThreadCpuTimeSupported() && mxBean.isThreadCpuTimeEnabled()) {
+      return (com.sun.management.ThreadMXBean) mxBean;
+    }
+    return null;
   }
 
   /**
@@ -133,12 +203,33 @@ public final class FastStackCollector extends AbstractStackCollector {
         requestFor[j++] = th;
       }
     }
+    final int nrCandidates = j;
+    final int maxThreads = maxSampledThreads;
+    if (nrCandidates > maxThreads) {
+      // sample a round-robin subset, rotate so that the subset is at the start of requestFor.
+      int start = nextSubsetStart % nrCandidates;
+      rotateLeft(requestFor, nrCandidates, start);
+      nextSubsetStart = start + maxThreads;
+      j = maxThreads;
+    }
+    long[] cpuDeltas = getCpuDeltas(j, nrCandidates);
+    lastNrSampledThreads = j;
+    lastNrThreads = nrCandidates;
+    if (REPEAT_IDLE_THREAD_SAMPLES && cpuDeltas.length > 0) {
+      j = repeatIdleThreadSamples(j, cpuDeltas);
+    }
+    lastNrDumpedThreads = j;
     Arrays.fill(requestFor, j, requestFor.length, null);
+    if (j == 0) {
+      return;
+    }
     StackTraceElement[][] stackDump = Threads.getStackTraces(requestFor);
     for (int i = 0; i < j; i++) {
       StackTraceElement[] stackTrace = stackDump[i];
       if (stackTrace != null && stackTrace.length > 0) {
-        addSample(stackTrace);
+        Thread thread = requestFor[i];
+        addSample(thread, SampleType.of(thread.getState(), stackTrace[0], i < cpuDeltas.length ? cpuDeltas[i] : -1),
+                stackTrace);
       } else {
         addSample(new StackTraceElement[]{
           new StackTraceElement("Thread", requestFor[i].getName(), "", 0)
@@ -147,6 +238,121 @@ public final class FastStackCollector extends AbstractStackCollector {
     }
   }
 
+  /**
+   * Repeat the previous samples of the threads that did not use CPU since,
+   * and move the threads that still need to be dumped (and their cpu deltas) to the start of requestFor.
+   * @return the number of threads that need to be dumped.
+   */
+  private int repeatIdleThreadSamples(final int nrThreads, final long[] cpuDeltas) {
+    int nrDump = 0;
+    for (int i = 0; i < nrThreads; i++) {
+      Thread thread = requestFor[i];
+      long cpuDelta = cpuDeltas[i];
+      if (cpuDelta != 0 || !addRepeatSample(thread, SampleType.of(thread.getState(), null, 0))) {
+        requestFor[nrDump] = thread;
+        cpuDeltas[nrDump] = cpuDelta;
+        nrDump++;
+      }
+    }
+    return nrDump;
+  }
+
+  /**
+   * rotate in place (no garbage) the first length elements of array to the left by distance.
+   */
+  static void rotateLeft(final Object[] array, final int length, final int distance) {
+    if (distance > 0 && distance < length) {
+      reverse(array, 0, distance);
+      reverse(array, distance, length);
+      reverse(array, 0, length);
+    }
+  }
+
+  private static void reverse(final Object[] array, final int from, final int to) {
+    for (int i = from, j = to - 1; i < j; i++, j--) {
+      Object tmp = array[i];
+      array[i] = array[j];
+      array[j] = tmp;
+    }
+  }
+
+  /**
+   * @return the number of threads whose stack was dumped at the last sample,
+   * the other sampled threads were idle and their previous sample was repeated.
+   */
+  int getLastNrDumpedThreads() {
+    return lastNrDumpedThreads;
+  }
+
+  @Override
+  public boolean setMaxSampledThreads(final int maxThreads) {
+    if (maxThreads < 1) {
+      throw new IllegalArgumentException("Invalid max sampled threads " + maxThreads);
+    }
+    this.maxSampledThreads = maxThreads;
+    return true;
+  }
+
+  public int getMaxSampledThreads() {
+    return maxSampledThreads;
+  }
+
+  @Override
+  public int getLastNrSampledThreads() {
+    return lastNrSampledThreads;
+  }
+
+  @Override
+  public int getLastNrThreads() {
+    return lastNrThreads;
+  }
+
+  /**
+   * @param nrThreads the number of sampled threads, at the start of requestFor.
+   * @param nrCandidates the number of threads eligible for sampling, the ones not sampled follow the sampled ones.
+   * @return the cpu time used by the requested threads since their previous sample, (-1 if not known),
+   * empty if thread cpu time is not collected.
+   */
+  private long[] getCpuDeltas(final int nrThreads, final int nrCandidates) {
+    if (threadMX == null) {
+      return NO_CPU_DELTAS;
+    }
+    long[] ids = threadIds;
+    if (ids.length != nrThreads) {
+      // getThreadCpuTime needs an array of the exact size, reallocated only when the number of threads changes.
+      ids = new long[nrThreads];
+      threadIds = ids;
+    }
+    for (int i = 0; i < nrThreads; i++) {
+      ids[i] = requestFor[i].getId();
+    }
+    long[] result = threadMX.getThreadCpuTime(ids);
+    TLongLongHashMap prev = prevCpuTimes;
+    TLongLongHashMap current = cpuTimes;
+    current.clear();
+    for (int i = 0; i < nrThreads; i++) {
+      long cpuTime = result[i];
+      if (cpuTime >= 0) {
+        long id = ids[i];
+        current.put(id, cpuTime);
+        long prevCpuTime = prev.get(id);
+        result[i] = prevCpuTime < 0 ? -1 : cpuTime - prevCpuTime;
+      }
+    }
+    // the threads not sampled this time keep the cpu time from their last sample.
+    for (int i = nrThreads; i < nrCandidates; i++) {
+      long id = requestFor[i].getId();
+      long prevCpuTime = prev.get(id);
+      if (prevCpuTime >= 0) {
+        current.put(id, prevCpuTime);
+      }
+    }
+    // swap, so that only the threads still alive are remembered.
+    prevCpuTimes = current;
+    cpuTimes = prev;
+    return result;
+  }
+
   public static final class ThreadNamesPredicate implements Predicate<Thread> {
 
     private final Set<String> ignoredThreadNames;
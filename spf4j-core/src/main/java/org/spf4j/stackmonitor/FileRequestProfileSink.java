@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.util.function.Consumer;
+import javax.annotation.concurrent.ThreadSafe;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.DateTimeFormats;
+import org.spf4j.ssdump3.Ssdump3;
+
+/**
+ * Request profile sink that writes every profile to a ssdump3 file:
+ * [folder]/[prefix]_[context name]_[start time]_[duration]ms.ssdump3
+ *
+ * Write failures are logged, since they should not fail the request.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+public final class FileRequestProfileSink implements Consumer<RequestProfile> {
+
+  private static final Logger LOG = LoggerFactory.getLogger(FileRequestProfileSink.class);
+
+  private final File folder;
+
+  private final String filePrefix;
+
+  public FileRequestProfileSink(final File folder, final String filePrefix) {
+    this.folder = folder;
+    this.filePrefix = filePrefix;
+  }
+
+  @Override
+  @SuppressFBWarnings("PATH_TRAVERSAL_IN") // the context name is sanitized.
+  public void accept(final RequestProfile profile) {
+    File file = new File(folder, filePrefix + '_' + toFileNamePart(profile.getName()) + '_'
+            + DateTimeFormats.TS_FORMAT.format(profile.getStartTime()) + '_' + profile.getDurationMillis()
+            + "ms" + Ssdump3.EXTENSION);
+    try {
+      Ssdump3.save(file, profile.getSamples());
+    } catch (IOException ex) {
+      LOG.warn("Unable to write request profile {} to {}", profile, file, ex);
+    }
+  }
+
+  private static String toFileNamePart(final String name) {
+    int length = name.length();
+    StringBuilder result = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      char c = name.charAt(i);
+      result.append(c == '.' || c == '-' || Character.isLetterOrDigit(c) ? c : '_');
+    }
+    return result.toString();
+  }
+
+  @Override
+  public String toString() {
+    return "FileRequestProfileSink{" + "folder=" + folder + ", filePrefix=" + filePrefix + '}';
+  }
+
+}
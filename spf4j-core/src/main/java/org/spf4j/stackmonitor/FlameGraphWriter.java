@@ -0,0 +1,319 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import com.google.common.escape.Escaper;
+import com.google.common.html.HtmlEscapers;
+import com.google.common.io.Resources;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import org.spf4j.base.Method;
+
+/**
+ * Headless flame graph (and icicle graph) writer.
+ *
+ * The graph is streamed to a Appendable, node by node, no DOM is built.
+ * Frames narrower than minFrameWidth pixels are not written (with their subtrees).
+ *
+ * writeSvg writes a static svg, (the frame tooltips show the method and sample counts), writeHtml writes a
+ * self contained html page with the svg plus search (regular expression, matched % of samples)
+ * and zoom (click on a frame).
+ *
+ * @author zoly
+ */
+public final class FlameGraphWriter {
+
+  /**
+   * Flame graphs have the root at the bottom, icicle graphs at the top.
+   */
+  public enum Orientation {
+    FLAME, ICICLE
+  }
+
+  /**
+   * Decides the appearance of a frame.
+   */
+  public interface FrameStyler {
+
+    /**
+     * @return the svg fill color of a node.
+     */
+    String getColor(CompactSampleTree tree, int node);
+
+    /**
+     * Append extra information to the tooltip of a node.
+     */
+    default void appendInfo(final CompactSampleTree tree, final int node, final Appendable to) throws IOException {
+      // nothing by default.
+    }
+  }
+
+  /**
+   * the classic flame graph warm colors, based on the method name hash.
+   */
+  public static final FrameStyler WARM_COLORS = (tree, node) -> {
+    int h = tree.getMethod(node).getMethodName().hashCode();
+    return "rgb(" + (205 + ((h & 0x7FFFFFFF) % 50)) + ',' + (((h >>> 8) & 0x7FFFFFFF) % 230) + ','
+            + (((h >>> 16) & 0x7FFFFFFF) % 55) + ')';
+  };
+
+  /**
+   * colors by package, all the methods of the classes of a package have the same color.
+   */
+  public static final FrameStyler PACKAGE_COLORS = (tree, node) -> {
+    String declaringClass = tree.getMethod(node).getDeclaringClass();
+    int lastDot = declaringClass.lastIndexOf('.');
+    // spread the hash bits, so that similar package names get distinguishable colors.
+    int h = lastDot < 0 ? 0 : declaringClass.substring(0, lastDot).hashCode() * 0x9E3779B1;
+    return "hsl(" + ((h & 0x7FFFFFFF) % 360) + ",60%," + (55 + ((h >>> 16) & 0x7FFFFFFF) % 25) + "%)";
+  };
+
+  private static final int CHAR_WIDTH = 7;
+
+  private final int width;
+
+  private final int frameHeight;
+
+  private final double minFrameWidth;
+
+  public FlameGraphWriter() {
+    this(1200, 16, 0.1);
+  }
+
+  /**
+   * @param width the width of the graph in pixels.
+   * @param frameHeight the height of a frame in pixels.
+   * @param minFrameWidth frames narrower than this (pixels) are omitted.
+   */
+  public FlameGraphWriter(final int width, final int frameHeight, final double minFrameWidth) {
+    if (width <= 0 || frameHeight <= 0) {
+      throw new IllegalArgumentException("Invalid width " + width + " or frame height " + frameHeight);
+    }
+    this.width = width;
+    this.frameHeight = frameHeight;
+    this.minFrameWidth = minFrameWidth;
+  }
+
+  /**
+   * Write a svg flame graph, the frame widths are proportional to the tree node sample counts.
+   */
+  public void writeSvg(final CompactSampleTree tree, final String title, final FrameStyler styler,
+          final Appendable out) throws IOException {
+    writeSvg(tree, title, styler, Orientation.FLAME, out);
+  }
+
+  /**
+   * Write a svg flame or icicle graph, the frame widths are proportional to the tree node sample counts.
+   */
+  public void writeSvg(final CompactSampleTree tree, final String title, final FrameStyler styler,
+          final Orientation orientation, final Appendable out) throws IOException {
+    writeSvg(tree, title, styler, orientation, out, false);
+  }
+
+  /**
+   * Write a self contained html page with a interactive (search, zoom) flame or icicle graph.
+   */
+  public void writeHtml(final CompactSampleTree tree, final String title, final FrameStyler styler,
+          final Orientation orientation, final Appendable out) throws IOException {
+    String eTitle = HtmlEscapers.htmlEscaper().escape(title);
+    out.append("<!DOCTYPE html>\n<html>\n<head>\n<meta charset=\"utf-8\">\n<title>").append(eTitle)
+            .append("</title>\n<style>\nbody {font-family: monospace; margin: 4px}\n"
+                    + "#fg g {cursor: pointer}\n#fg g:hover rect {stroke: black; stroke-width: 0.5}\n"
+                    + "</style>\n</head>\n<body>\n<div>"
+                    + "<input id=\"search\" size=\"50\" placeholder=\"search methods (regular expression)\"> "
+                    + "<button id=\"reset\">reset zoom</button> <span id=\"matched\"></span></div>\n");
+    writeSvg(tree, title, styler, orientation, out, true);
+    out.append("<script>\n").append(Script.FLAMEGRAPH_JS).append("</script>\n</body>\n</html>\n");
+  }
+
+  /**
+   * Write a self contained html page with a interactive flame or icicle graph, colored by package.
+   */
+  public static void writeHtml(final SampleNode samples, final String title, final Orientation orientation,
+          final Appendable out) throws IOException {
+    new FlameGraphWriter().writeHtml(CompactSampleTree.from(samples), title, PACKAGE_COLORS, orientation, out);
+  }
+
+  private void writeSvg(final CompactSampleTree tree, final String title, final FrameStyler styler,
+          final Orientation orientation, final Appendable out, final boolean interactive) throws IOException {
+    Escaper escaper = HtmlEscapers.htmlEscaper();
+    int totalSamples = tree.getSampleCount();
+    double scale = totalSamples == 0 ? 0 : (double) width / totalSamples;
+    int maxDepth = getMaxDepth(tree, scale);
+    int height = (maxDepth + 1) * frameHeight + 2 * frameHeight;
+    out.append("<svg xmlns=\"http://www.w3.org/2000/svg\" width=\"").append(Integer.toString(width))
+            .append("\" height=\"").append(Integer.toString(height)).append("\" viewBox=\"0 0 ")
+            .append(Integer.toString(width)).append(' ').append(Integer.toString(height))
+            .append("\" font-family=\"monospace\" font-size=\"").append(Integer.toString(frameHeight * 3 / 4))
+            .append('"');
+    if (interactive) {
+      out.append(" id=\"fg\" data-fh=\"").append(Integer.toString(frameHeight)).append("\" data-icicle=\"")
+              .append(Boolean.toString(orientation == Orientation.ICICLE)).append('"');
+    }
+    out.append(">\n<text x=\"").append(Integer.toString(width / 2)).append("\" y=\"")
+            .append(Integer.toString(frameHeight)).append("\" text-anchor=\"middle\">")
+            .append(escaper.escape(title)).append("</text>\n");
+    if (totalSamples > 0) {
+      writeFrames(tree, styler, orientation, out, escaper, scale, height);
+    }
+    out.append("</svg>\n");
+  }
+
+  private void writeFrames(final CompactSampleTree tree, final FrameStyler styler, final Orientation orientation,
+          final Appendable out, final Escaper escaper, final double scale, final int height) throws IOException {
+    int[] nodes = new int[64];
+    int[] depths = new int[64];
+    double[] xs = new double[64];
+    nodes[0] = CompactSampleTree.ROOT;
+    int top = 1;
+    while (top > 0) {
+      top--;
+      int node = nodes[top];
+      int depth = depths[top];
+      double x = xs[top];
+      int count = tree.getSampleCount(node);
+      double w = count * scale;
+      int y = orientation == Orientation.FLAME ? height - (depth + 1) * frameHeight
+              : (depth + 1) * frameHeight + frameHeight / 4;
+      writeFrame(tree, node, count, x, y, w, styler, out, escaper);
+      double cx = x;
+      for (int c = tree.getFirstChild(node); c != CompactSampleTree.NONE; c = tree.getNextSibling(c)) {
+        double cw = tree.getSampleCount(c) * scale;
+        if (cw >= minFrameWidth) {
+          if (top >= nodes.length) {
+            nodes = Arrays.copyOf(nodes, nodes.length * 2);
+            depths = Arrays.copyOf(depths, depths.length * 2);
+            xs = Arrays.copyOf(xs, xs.length * 2);
+          }
+          nodes[top] = c;
+          depths[top] = depth + 1;
+          xs[top] = cx;
+          top++;
+        }
+        cx += cw;
+      }
+    }
+  }
+
+  private void writeFrame(final CompactSampleTree tree, final int node, final int count,
+          final double x, final int y, final double w, final FrameStyler styler,
+          final Appendable out, final Escaper escaper) throws IOException {
+    String name;
+    String fullName;
+    if (node == CompactSampleTree.ROOT) {
+      name = "all";
+      fullName = name;
+    } else {
+      Method method = tree.getMethod(node);
+      name = methodName(method);
+      fullName = method.getDeclaringClass() + '.' + method.getMethodName();
+    }
+    out.append("<g><title>").append(escaper.escape(fullName)).append(" (").append(Integer.toString(count))
+            .append(" samples");
+    styler.appendInfo(tree, node, out);
+    out.append(")</title><rect x=\"");
+    appendDecimal(x, out);
+    out.append("\" y=\"").append(Integer.toString(y)).append("\" width=\"");
+    appendDecimal(w, out);
+    out.append("\" height=\"").append(Integer.toString(frameHeight - 1)).append("\" fill=\"")
+            .append(node == CompactSampleTree.ROOT ? "rgb(200,200,200)" : styler.getColor(tree, node))
+            .append("\"/>");
+    int nrChars = (int) (w / CHAR_WIDTH);
+    if (nrChars >= 3) {
+      out.append("<text x=\"");
+      appendDecimal(x + 2, out);
+      out.append("\" y=\"").append(Integer.toString(y + frameHeight * 3 / 4)).append("\">");
+      if (name.length() <= nrChars) {
+        out.append(escaper.escape(name));
+      } else {
+        out.append(escaper.escape(name.substring(0, nrChars - 2))).append("..");
+      }
+      out.append("</text>");
+    }
+    out.append("</g>\n");
+  }
+
+  private int getMaxDepth(final CompactSampleTree tree, final double scale) {
+    int nrNodes = tree.getNrNodes();
+    int[] depths = new int[nrNodes];
+    int max = 0;
+    // parents always have smaller ids than their children.
+    for (int n = 1; n < nrNodes; n++) {
+      int depth = depths[tree.getParent(n)] + 1;
+      depths[n] = depth;
+      if (depth > max && tree.getSampleCount(n) * scale >= minFrameWidth) {
+        max = depth;
+      }
+    }
+    return max;
+  }
+
+  static String methodName(final Method method) {
+    String declaringClass = method.getDeclaringClass();
+    int lastDot = declaringClass.lastIndexOf('.');
+    return (lastDot < 0 ? declaringClass : declaringClass.substring(lastDot + 1)) + '.' + method.getMethodName();
+  }
+
+  /**
+   * Append a non negative number with one decimal.
+   */
+  static void appendDecimal(final double value, final Appendable out) throws IOException {
+    long tenths = Math.round(value * 10);
+    out.append(Long.toString(tenths / 10)).append('.').append((char) ('0' + (int) (tenths % 10)));
+  }
+
+  /**
+   * Lazy loaded flame graph script.
+   */
+  private static final class Script {
+
+    private static final String FLAMEGRAPH_JS;
+
+    static {
+      try {
+        FLAMEGRAPH_JS = Resources.toString(Resources.getResource(FlameGraphWriter.class, "flamegraph.js"),
+                StandardCharsets.UTF_8);
+      } catch (IOException ex) {
+        throw new UncheckedIOException(ex);
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "FlameGraphWriter{" + "width=" + width + ", frameHeight=" + frameHeight
+            + ", minFrameWidth=" + minFrameWidth + '}';
+  }
+
+}
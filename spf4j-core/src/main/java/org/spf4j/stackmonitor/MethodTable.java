@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import javax.annotation.concurrent.GuardedBy;
+import org.spf4j.base.Method;
+
+/**
+ * Global symbol table that interns methods (declaring class, method name) to int ids.
+ *
+ * Lookups of already interned methods (the sampling hot path) are lock free: the open addressing table is
+ * published via a volatile reference, and entries are immutable. Only adding a new method takes a lock.
+ * Id 0 is always Method.ROOT.
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings(value = "VO_VOLATILE_REFERENCE_TO_ARRAY",
+        justification = "elements are immutable, a missed element is handled by the synchronized slow path")
+public final class MethodTable {
+
+  public static final int ROOT_ID = 0;
+
+  private static final Object SYNC = new Object();
+
+  private static volatile Entry[] table = new Entry[4096];
+
+  private static volatile Method[] methods = new Method[2048];
+
+  @GuardedBy("SYNC")
+  private static int size = 0;
+
+  static {
+    getId(Method.ROOT.getDeclaringClass(), Method.ROOT.getMethodName());
+  }
+
+  private MethodTable() { }
+
+  private static final class Entry {
+
+    private final String declaringClass;
+
+    private final String methodName;
+
+    private final int hash;
+
+    private final int id;
+
+    Entry(final String declaringClass, final String methodName, final int hash, final int id) {
+      this.declaringClass = declaringClass;
+      this.methodName = methodName;
+      this.hash = hash;
+      this.id = id;
+    }
+
+    boolean matches(final int phash, final String pdeclaringClass, final String pmethodName) {
+      return hash == phash && methodName.equals(pmethodName) && declaringClass.equals(pdeclaringClass);
+    }
+
+  }
+
+  private static int hash(final String declaringClass, final String methodName) {
+    int h = 31 * declaringClass.hashCode() + methodName.hashCode();
+    return h ^ (h >>> 16);
+  }
+
+  public static int getId(final StackTraceElement elem) {
+    return getId(elem.getClassName(), elem.getMethodName());
+  }
+
+  public static int getId(final Method method) {
+    return getId(method.getDeclaringClass(), method.getMethodName());
+  }
+
+  /**
+   * @return the id of the method, the method is interned if not already.
+   */
+  public static int getId(final String declaringClass, final String methodName) {
+    final int h = hash(declaringClass, methodName);
+    final Entry[] t = table;
+    final int mask = t.length - 1;
+    int i = h & mask;
+    Entry e;
+    while ((e = t[i]) != null) {
+      if (e.matches(h, declaringClass, methodName)) {
+        return e.id;
+      }
+      i = (i + 1) & mask;
+    }
+    return add(declaringClass, methodName, h);
+  }
+
+  private static int add(final String declaringClass, final String methodName, final int h) {
+    synchronized (SYNC) {
+      Entry[] t = table;
+      int mask = t.length - 1;
+      int i = h & mask;
+      Entry e;
+      while ((e = t[i]) != null) {
+        if (e.matches(h, declaringClass, methodName)) {
+          return e.id;
+        }
+        i = (i + 1) & mask;
+      }
+      final int id = size;
+      Method method = Method.getMethod(declaringClass, methodName);
+      Method[] m = methods;
+      if (id >= m.length) {
+        Method[] nm = new Method[m.length * 2];
+        System.arraycopy(m, 0, nm, 0, m.length);
+        m = nm;
+      }
+      m[id] = method;
+      methods = m;
+      Entry entry = new Entry(declaringClass, methodName, h, id);
+      size = id + 1;
+      if (size * 2 > t.length) {
+        Entry[] nt = new Entry[t.length * 2];
+        int nmask = nt.length - 1;
+        for (Entry oe : t) {
+          if (oe != null) {
+            int j = oe.hash & nmask;
+            while (nt[j] != null) {
+              j = (j + 1) & nmask;
+            }
+            nt[j] = oe;
+          }
+        }
+        int j = h & nmask;
+        while (nt[j] != null) {
+          j = (j + 1) & nmask;
+        }
+        nt[j] = entry;
+        table = nt;
+      } else {
+        t[i] = entry;
+      }
+      return id;
+    }
+  }
+
+  /**
+   * @param id the method id.
+   * @return the method with the id.
+   */
+  public static Method getMethod(final int id) {
+    Method[] m = methods;
+    if (id < m.length) {
+      Method result = m[id];
+      if (result != null) {
+        return result;
+      }
+    }
+    // the id was obtained by racing with the thread that interned the method.
+    synchronized (SYNC) {
+      return methods[id];
+    }
+  }
+
+  /**
+   * @return the number of interned methods.
+   */
+  public static int size() {
+    synchronized (SYNC) {
+      return size;
+    }
+  }
+
+}
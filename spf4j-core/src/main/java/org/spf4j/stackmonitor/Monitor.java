@@ -60,6 +60,9 @@ public final class Monitor {
         @Option(name = "-si", usage = "the stack sampling interval in milliseconds")
         private int sampleInterval = 100;
 
+        @Option(name = "-ob", usage = "the sampling overhead budget, fraction of wall time (0.01 = 1%), 0 no limit")
+        private double overheadBudget = 0;
+
         @Option(name = "-di", usage = "the stack dump to file interval in milliseconds")
         private int dumpInterval = 3600000;
 
@@ -116,6 +119,9 @@ public final class Monitor {
             }
 
         }, "Sampling report"));
+        if (options.overheadBudget > 0) {
+            sampler.setOverheadBudget(options.overheadBudget);
+        }
         sampler.registerJmx();
 
         if (options.startSampler) {
@@ -54,7 +54,7 @@ public final class MxStackCollector extends AbstractStackCollector {
         for (ThreadInfo entry : stackDump) {
             StackTraceElement[] stackTrace = entry.getStackTrace();
             if (stackTrace.length > 0 && (entry.getThreadId() != id)) {
-                addSample(stackTrace);
+                addSample(SampleType.of(entry.getThreadState(), stackTrace[0], -1), stackTrace);
             }
         }
     }
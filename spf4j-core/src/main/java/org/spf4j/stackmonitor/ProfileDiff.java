@@ -0,0 +1,414 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import gnu.trove.map.TIntIntMap;
+import gnu.trove.map.hash.TIntIntHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import javax.annotation.concurrent.Immutable;
+import org.spf4j.base.Method;
+import org.spf4j.ssdump3.Ssdump3;
+
+/**
+ * The difference between 2 stack sample profiles (baseline and current),
+ * normalized by the total number of samples of each profile.
+ *
+ * Provides:
+ * <ul>
+ * <li>the diff tree: the union of the 2 profile trees, with the baseline and current sample counts of every node.</li>
+ * <li>per method self and total (inclusive, recursion counted once) sample fraction deltas.</li>
+ * <li>a ranked text report of the biggest regressions (and improvements).</li>
+ * <li>a differential flame graph: frame widths from the current profile, red frames grew, blue frames shrank.</li>
+ * </ul>
+ *
+ * Profiles can be loaded from multiple ssdump2/ssdump3 files (aggregated),
+ * the files are streamed into compact trees, so large dumps can be compared with a modest heap.
+ *
+ * @author zoly
+ */
+@Immutable
+public final class ProfileDiff {
+
+  private static final Comparator<MethodDelta> BY_TOTAL_DELTA =
+          Comparator.comparingDouble(MethodDelta::getTotalDelta);
+
+  private static final Comparator<MethodDelta> BY_SELF_DELTA =
+          Comparator.comparingDouble(MethodDelta::getSelfDelta);
+
+  /**
+   * the union of both trees, node counts are the current counts.
+   */
+  private final CompactSampleTree tree;
+
+  private final int[] baselineCounts;
+
+  private final int baselineTotal;
+
+  private final int currentTotal;
+
+  private final List<MethodDelta> methodDeltas;
+
+  private ProfileDiff(final CompactSampleTree tree, final int[] baselineCounts,
+          final int baselineTotal, final int currentTotal) {
+    this.tree = tree;
+    this.baselineCounts = baselineCounts;
+    this.baselineTotal = baselineTotal;
+    this.currentTotal = currentTotal;
+    this.methodDeltas = Collections.unmodifiableList(computeMethodDeltas());
+  }
+
+  /**
+   * Load and compare the profiles, each profile is the aggregate of the samples of its files.
+   * @param baselineFiles the baseline ssdump2 or ssdump3 files.
+   * @param currentFiles the current ssdump2 or ssdump3 files.
+   */
+  public static ProfileDiff load(final Iterable<File> baselineFiles, final Iterable<File> currentFiles)
+          throws IOException {
+    CompactSampleTree baseline = new CompactSampleTree();
+    for (File file : baselineFiles) {
+      Ssdump3.loadInto(file, baseline);
+    }
+    CompactSampleTree current = new CompactSampleTree();
+    for (File file : currentFiles) {
+      Ssdump3.loadInto(file, current);
+    }
+    return compute(baseline, current);
+  }
+
+  public static ProfileDiff compute(final SampleNode baseline, final SampleNode current) {
+    return compute(CompactSampleTree.from(baseline), CompactSampleTree.from(current));
+  }
+
+  public static ProfileDiff compute(final CompactSampleTree baseline, final CompactSampleTree current) {
+    CompactSampleTree union = current.copy();
+    int nrBaseline = baseline.getNrNodes();
+    int[] map = new int[nrBaseline];
+    map[CompactSampleTree.ROOT] = CompactSampleTree.ROOT;
+    // parents always have smaller ids than their children.
+    for (int n = 1; n < nrBaseline; n++) {
+      map[n] = union.getOrAddChild(map[baseline.getParent(n)], baseline.getMethodId(n));
+    }
+    int[] baselineCounts = new int[union.getNrNodes()];
+    for (int n = 0; n < nrBaseline; n++) {
+      baselineCounts[map[n]] = baseline.getSampleCount(n);
+    }
+    return new ProfileDiff(union, baselineCounts, baseline.getSampleCount(), current.getSampleCount());
+  }
+
+  private List<MethodDelta> computeMethodDeltas() {
+    int nrNodes = tree.getNrNodes();
+    TIntIntMap methodIdx = new TIntIntHashMap(nrNodes / 4 + 16, 0.5f, -1, -1);
+    int[] nodeMethodIdx = new int[nrNodes];
+    for (int n = 1; n < nrNodes; n++) {
+      int methodId = tree.getMethodId(n);
+      int idx = methodIdx.get(methodId);
+      if (idx < 0) {
+        idx = methodIdx.size();
+        methodIdx.put(methodId, idx);
+      }
+      nodeMethodIdx[n] = idx;
+    }
+    int nrMethods = methodIdx.size();
+    long[] baseSelf = new long[nrMethods];
+    long[] currSelf = new long[nrMethods];
+    long[] baseTotal = new long[nrMethods];
+    long[] currTotal = new long[nrMethods];
+    // self = node count - children counts.
+    for (int n = 1; n < nrNodes; n++) {
+      int idx = nodeMethodIdx[n];
+      baseSelf[idx] += baselineCounts[n];
+      currSelf[idx] += tree.getSampleCount(n);
+      int parent = tree.getParent(n);
+      if (parent != CompactSampleTree.ROOT) {
+        int pidx = nodeMethodIdx[parent];
+        baseSelf[pidx] -= baselineCounts[n];
+        currSelf[pidx] -= tree.getSampleCount(n);
+      }
+    }
+    // total, a method that is on the stack multiple times (recursion) is counted once.
+    int[] onStack = new int[nrMethods];
+    int[] stack = new int[64];
+    int top = 0;
+    stack[top++] = CompactSampleTree.ROOT;
+    while (top > 0) {
+      int n = stack[--top];
+      if (n < 0) { // exiting ~n
+        onStack[nodeMethodIdx[~n]]--;
+        continue;
+      }
+      if (n != CompactSampleTree.ROOT) {
+        int idx = nodeMethodIdx[n];
+        if (onStack[idx]++ == 0) {
+          baseTotal[idx] += baselineCounts[n];
+          currTotal[idx] += tree.getSampleCount(n);
+        }
+        stack[top++] = ~n;
+      }
+      for (int c = tree.getFirstChild(n); c != CompactSampleTree.NONE; c = tree.getNextSibling(c)) {
+        if (top >= stack.length) {
+          stack = Arrays.copyOf(stack, stack.length * 2);
+        }
+        stack[top++] = c;
+      }
+    }
+    Method[] methods = new Method[nrMethods];
+    methodIdx.forEachEntry((methodId, idx) -> {
+      methods[idx] = MethodTable.getMethod(methodId);
+      return true;
+    });
+    List<MethodDelta> result = new ArrayList<>(nrMethods);
+    for (int i = 0; i < nrMethods; i++) {
+      result.add(new MethodDelta(methods[i], fraction(baseSelf[i], baselineTotal), fraction(currSelf[i], currentTotal),
+              fraction(baseTotal[i], baselineTotal), fraction(currTotal[i], currentTotal)));
+    }
+    return result;
+  }
+
+  private static double fraction(final long count, final int total) {
+    return total == 0 ? 0 : (double) count / total;
+  }
+
+  /**
+   * @return the union of the baseline and current trees, the node sample counts are the current sample counts.
+   */
+  public CompactSampleTree getTree() {
+    return tree.copy();
+  }
+
+  public int getBaselineCount(final int node) {
+    return baselineCounts[node];
+  }
+
+  public int getCurrentCount(final int node) {
+    return tree.getSampleCount(node);
+  }
+
+  /**
+   * @return the normalized (fraction of all samples) difference between current and baseline for a diff tree node.
+   */
+  public double getDelta(final int node) {
+    return fraction(tree.getSampleCount(node), currentTotal) - fraction(baselineCounts[node], baselineTotal);
+  }
+
+  public int getBaselineTotal() {
+    return baselineTotal;
+  }
+
+  public int getCurrentTotal() {
+    return currentTotal;
+  }
+
+  /**
+   * @return the self and total deltas for all methods present in any of the profiles.
+   */
+  public List<MethodDelta> getMethodDeltas() {
+    return methodDeltas;
+  }
+
+  /**
+   * @return the methods with the largest total (inclusive) increase, largest first.
+   */
+  public List<MethodDelta> getTopTotalRegressions(final int nr) {
+    return top(BY_TOTAL_DELTA.reversed(), nr, true);
+  }
+
+  /**
+   * @return the methods with the largest self (exclusive) increase, largest first.
+   */
+  public List<MethodDelta> getTopSelfRegressions(final int nr) {
+    return top(BY_SELF_DELTA.reversed(), nr, false);
+  }
+
+  private List<MethodDelta> top(final Comparator<MethodDelta> comparator, final int nr, final boolean total) {
+    List<MethodDelta> result = new ArrayList<>(methodDeltas);
+    result.sort(comparator);
+    int i = 0;
+    int l = Math.min(nr, result.size());
+    while (i < l && (total ? result.get(i).getTotalDelta() : result.get(i).getSelfDelta()) > 0) {
+      i++;
+    }
+    return new ArrayList<>(result.subList(0, i));
+  }
+
+  /**
+   * @return the max total delta, (largest method inclusive regression), 0 if no regressions.
+   */
+  public double getMaxTotalRegression() {
+    List<MethodDelta> top = getTopTotalRegressions(1);
+    return top.isEmpty() ? 0 : top.get(0).getTotalDelta();
+  }
+
+  /**
+   * Write a ranked text report of the biggest regressions and improvements.
+   */
+  public void writeReport(final Appendable out, final int nrMethods) throws IOException {
+    out.append("Baseline samples: ").append(Integer.toString(baselineTotal))
+            .append(", current samples: ").append(Integer.toString(currentTotal)).append('\n');
+    out.append("\nTop self time regressions (% of samples, baseline -> current):\n");
+    int i = 1;
+    for (MethodDelta delta : getTopSelfRegressions(nrMethods)) {
+      appendLine(out, i++, delta.getMethod(), delta.getBaselineSelf(), delta.getCurrentSelf());
+    }
+    out.append("\nTop total time regressions (% of samples, baseline -> current):\n");
+    i = 1;
+    for (MethodDelta delta : getTopTotalRegressions(nrMethods)) {
+      appendLine(out, i++, delta.getMethod(), delta.getBaselineTotal(), delta.getCurrentTotal());
+    }
+    out.append("\nTop self time improvements (% of samples, baseline -> current):\n");
+    i = 1;
+    List<MethodDelta> improvements = new ArrayList<>(methodDeltas);
+    improvements.sort(BY_SELF_DELTA);
+    for (MethodDelta delta : improvements) {
+      if (i > nrMethods || delta.getSelfDelta() >= 0) {
+        break;
+      }
+      appendLine(out, i++, delta.getMethod(), delta.getBaselineSelf(), delta.getCurrentSelf());
+    }
+  }
+
+  private static void appendLine(final Appendable out, final int rank, final Method method,
+          final double baseline, final double current) throws IOException {
+    out.append(String.format("%4d. %+8.3f%% %8.3f%% -> %8.3f%%  %s.%s%n", rank, (current - baseline) * 100,
+            baseline * 100, current * 100, method.getDeclaringClass(), method.getMethodName()));
+  }
+
+  /**
+   * Write a differential svg flame graph, the frame widths are the current samples,
+   * red frames grew, blue frames shrank, (color intensity proportional to the normalized delta).
+   */
+  public void writeFlameGraph(final Appendable out, final String title) throws IOException {
+    new FlameGraphWriter().writeSvg(tree, title, createDiffStyler(), out);
+  }
+
+  /**
+   * Write a differential flame graph as a self contained interactive (search, zoom) html page.
+   */
+  public void writeFlameGraphHtml(final Appendable out, final String title) throws IOException {
+    new FlameGraphWriter().writeHtml(tree, title, createDiffStyler(), FlameGraphWriter.Orientation.FLAME, out);
+  }
+
+  private FlameGraphWriter.FrameStyler createDiffStyler() {
+    double maxAbsDelta = 0;
+    int nrNodes = tree.getNrNodes();
+    for (int n = 1; n < nrNodes; n++) {
+      maxAbsDelta = Math.max(maxAbsDelta, Math.abs(getDelta(n)));
+    }
+    final double scale = maxAbsDelta == 0 ? 0 : 1 / maxAbsDelta;
+    return new FlameGraphWriter.FrameStyler() {
+      @Override
+      public String getColor(final CompactSampleTree t, final int node) {
+        double delta = getDelta(node);
+        int shade = 255 - (int) Math.round(Math.min(1, Math.abs(delta) * scale) * 200);
+        if (delta > 0) {
+          return "rgb(255," + shade + ',' + shade + ')';
+        } else {
+          return "rgb(" + shade + ',' + shade + ",255)";
+        }
+      }
+
+      @Override
+      public void appendInfo(final CompactSampleTree t, final int node, final Appendable to) throws IOException {
+        to.append(", baseline ").append(Integer.toString(baselineCounts[node])).append(" samples, ")
+                .append(String.format("%+.3f%%", getDelta(node) * 100));
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    return "ProfileDiff{" + "nrNodes=" + tree.getNrNodes() + ", baselineTotal=" + baselineTotal
+            + ", currentTotal=" + currentTotal + '}';
+  }
+
+  /**
+   * The normalized (fraction of total samples) self and total time of a method, in the baseline and current profiles.
+   */
+  @Immutable
+  public static final class MethodDelta {
+
+    private final Method method;
+    private final double baselineSelf;
+    private final double currentSelf;
+    private final double baselineTotal;
+    private final double currentTotal;
+
+    public MethodDelta(final Method method, final double baselineSelf, final double currentSelf,
+            final double baselineTotal, final double currentTotal) {
+      this.method = method;
+      this.baselineSelf = baselineSelf;
+      this.currentSelf = currentSelf;
+      this.baselineTotal = baselineTotal;
+      this.currentTotal = currentTotal;
+    }
+
+    public Method getMethod() {
+      return method;
+    }
+
+    public double getBaselineSelf() {
+      return baselineSelf;
+    }
+
+    public double getCurrentSelf() {
+      return currentSelf;
+    }
+
+    public double getBaselineTotal() {
+      return baselineTotal;
+    }
+
+    public double getCurrentTotal() {
+      return currentTotal;
+    }
+
+    public double getSelfDelta() {
+      return currentSelf - baselineSelf;
+    }
+
+    public double getTotalDelta() {
+      return currentTotal - baselineTotal;
+    }
+
+    @Override
+    public String toString() {
+      return "MethodDelta{" + "method=" + method + ", baselineSelf=" + baselineSelf + ", currentSelf=" + currentSelf
+              + ", baselineTotal=" + baselineTotal + ", currentTotal=" + currentTotal + '}';
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import org.kohsuke.args4j.CmdLineException;
+import org.kohsuke.args4j.CmdLineParser;
+import org.kohsuke.args4j.Option;
+import org.spf4j.base.SysExits;
+
+/**
+ * Command line utility to compare stack sample profiles (ssdump2 or ssdump3 files),
+ * for example profiles produced by Spf4jJmhProfiler before and after a change.
+ *
+ * Writes a ranked text report of the biggest regressions to stdout and [output].txt,
+ * and a differential flame graph to [output].svg and (interactive) [output].html.
+ * With -maxRegression, exits with 1 if a method's total time share grew by more than the threshold.
+ *
+ * @author zoly
+ */
+public final class ProfileDiffCmd {
+
+  private static class Options {
+
+    @Option(name = "-b", usage = "baseline profile file (ssdump2, ssdump3), can be repeated", required = true)
+    private List<File> baseline = new ArrayList<>();
+
+    @Option(name = "-c", usage = "current profile file (ssdump2, ssdump3), can be repeated", required = true)
+    private List<File> current = new ArrayList<>();
+
+    @Option(name = "-o", usage = "output file prefix, [prefix].txt, [prefix].svg and [prefix].html will be written")
+    private String output = "profileDiff";
+
+    @Option(name = "-n", usage = "the number of methods in each report section")
+    private int nrMethods = 20;
+
+    @Option(name = "-maxRegression", usage = "fail (exit code 1) if any method total time share grows"
+            + " by more than this (percent of samples)")
+    private double maxRegression = Double.POSITIVE_INFINITY;
+
+  }
+
+  private ProfileDiffCmd() { }
+
+  @SuppressWarnings("checkstyle:regexp")
+  @SuppressFBWarnings("PATH_TRAVERSAL_IN") // command line tool, files are provided by the user.
+  public static void main(final String[] args) throws IOException {
+    Options options = new Options();
+    CmdLineParser parser = new CmdLineParser(options);
+    try {
+      parser.parseArgument(args);
+    } catch (CmdLineException e) {
+      System.err.println("Error: " + e.getMessage() + "\nUsage:");
+      parser.printUsage(System.err);
+      System.exit(SysExits.EX_USAGE.exitCode());
+    }
+    ProfileDiff diff = ProfileDiff.load(options.baseline, options.current);
+    Path txtFile = Paths.get(options.output + ".txt");
+    try (Writer w = Files.newBufferedWriter(txtFile, StandardCharsets.UTF_8)) {
+      diff.writeReport(w, options.nrMethods);
+    }
+    PrintStream out = System.out;
+    diff.writeReport(out, options.nrMethods);
+    Path svgFile = Paths.get(options.output + ".svg");
+    try (Writer w = Files.newBufferedWriter(svgFile, StandardCharsets.UTF_8)) {
+      diff.writeFlameGraph(w, "Profile diff " + options.baseline + " -> " + options.current);
+    }
+    Path htmlFile = Paths.get(options.output + ".html");
+    try (Writer w = Files.newBufferedWriter(htmlFile, StandardCharsets.UTF_8)) {
+      diff.writeFlameGraphHtml(w, "Profile diff " + options.baseline + " -> " + options.current);
+    }
+    out.println("\nWritten " + txtFile + ", " + svgFile + ", " + htmlFile);
+    double maxRegression = diff.getMaxTotalRegression() * 100;
+    if (maxRegression > options.maxRegression) {
+      System.err.println("Regression of " + maxRegression + "% exceeds " + options.maxRegression + '%');
+      System.exit(SysExits.EX_GENERAL.exitCode());
+    }
+  }
+
+}
@@ -0,0 +1,345 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import org.spf4j.base.CharSequences;
+import org.spf4j.base.DateTimeFormats;
+import org.spf4j.ssdump2.Converter;
+
+/**
+ * Bounded, time bucketed history of stack samples, suitable for always on profiling.
+ *
+ * Samples are kept in time slots, one CompactSampleTree per slot, organized in levels. Level 0 slots are slotMillis
+ * long, level n slots are slotMillis * mergeFactor^n long. Every level is a ring of slotsPerLevel slots,
+ * a slot evicted from a level is merged into the slot covering it in the next (coarser) level,
+ * and a slot evicted from the last level is discarded.
+ * A slot tree never grows beyond maxNodesPerSlot nodes (samples of stacks that do not fit
+ * are accounted to their deepest ancestor that fits), so the memory used is bounded
+ * by nrLevels * slotsPerLevel * maxNodesPerSlot nodes.
+ *
+ * With the defaults (1 minute slots, 60 slots per level, 3 levels, merge factor 10) the history covers
+ * the last hour with 1 minute resolution, the last 10 hours with 10 minute resolution,
+ * and the last 100 hours with 100 minute resolution.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+public final class ProfileHistory {
+
+  private static final long DEFAULT_SLOT_MILLIS = Long.getLong("spf4j.perf.ms.history.slotMillis", 60000);
+
+  private static final int DEFAULT_SLOTS_PER_LEVEL = Integer.getInteger("spf4j.perf.ms.history.slotsPerLevel", 60);
+
+  private static final int DEFAULT_NR_LEVELS = Integer.getInteger("spf4j.perf.ms.history.nrLevels", 3);
+
+  private static final int DEFAULT_MERGE_FACTOR = Integer.getInteger("spf4j.perf.ms.history.mergeFactor", 10);
+
+  private static final int DEFAULT_MAX_NODES_PER_SLOT =
+          Integer.getInteger("spf4j.perf.ms.history.maxNodesPerSlot", 10000);
+
+  private final long[] slotMillis;
+
+  private final int slotsPerLevel;
+
+  private final int maxNodesPerSlot;
+
+  @GuardedBy("this")
+  private final List<ArrayDeque<Slot>> levels;
+
+  @GuardedBy("this")
+  private long droppedNodes;
+
+  /**
+   * slots starting before this time contain samples that were exported, see exportNew.
+   */
+  @GuardedBy("this")
+  private long exportedMillis = Long.MIN_VALUE;
+
+  public ProfileHistory() {
+    this(DEFAULT_SLOT_MILLIS, DEFAULT_SLOTS_PER_LEVEL, DEFAULT_NR_LEVELS, DEFAULT_MERGE_FACTOR,
+            DEFAULT_MAX_NODES_PER_SLOT);
+  }
+
+  public ProfileHistory(final long slotMillis, final int slotsPerLevel, final int nrLevels,
+          final int mergeFactor, final int maxNodesPerSlot) {
+    if (slotMillis <= 0 || slotsPerLevel <= 0 || nrLevels <= 0 || mergeFactor <= 1 || maxNodesPerSlot <= 0) {
+      throw new IllegalArgumentException("Invalid profile history config, slotMillis=" + slotMillis
+              + ", slotsPerLevel=" + slotsPerLevel + ", nrLevels=" + nrLevels + ", mergeFactor=" + mergeFactor
+              + ", maxNodesPerSlot=" + maxNodesPerSlot);
+    }
+    this.slotMillis = new long[nrLevels];
+    long millis = slotMillis;
+    for (int i = 0; i < nrLevels; i++) {
+      this.slotMillis[i] = millis;
+      millis *= mergeFactor;
+    }
+    this.slotsPerLevel = slotsPerLevel;
+    this.maxNodesPerSlot = maxNodesPerSlot;
+    this.levels = new ArrayList<>(nrLevels);
+    for (int i = 0; i < nrLevels; i++) {
+      levels.add(new ArrayDeque<>(slotsPerLevel + 1));
+    }
+  }
+
+  /**
+   * Add samples to the history.
+   * @param timeMillis the time the samples belong to. Samples older than the latest slot are added to the latest slot.
+   * @param samples the samples to add.
+   */
+  public synchronized void add(final long timeMillis, final CompactSampleTree samples) {
+    ArrayDeque<Slot> level0 = levels.get(0);
+    Slot head = level0.peekLast();
+    long time = Math.max(timeMillis, exportedMillis);
+    if (head == null || time >= head.endMillis || head.startMillis < exportedMillis) {
+      head = newSlot(0, time, new CompactSampleTree());
+      push(0, head);
+    }
+    droppedNodes += head.samples.addAll(samples, maxNodesPerSlot);
+  }
+
+  public void add(final long timeMillis, final SampleNode samples) {
+    add(timeMillis, CompactSampleTree.from(samples));
+  }
+
+  /**
+   * @return a new slot for the time, aligned to the level slot duration,
+   * and starting no earlier than exportedMillis if the time is not earlier than it.
+   */
+  @GuardedBy("this")
+  private Slot newSlot(final int level, final long timeMillis, final CompactSampleTree samples) {
+    long millis = slotMillis[level];
+    long start = timeMillis - Math.floorMod(timeMillis, millis);
+    if (timeMillis >= exportedMillis) {
+      return new Slot(Math.max(start, exportedMillis), start + millis, samples);
+    } else {
+      return new Slot(start, start + millis, samples);
+    }
+  }
+
+  @GuardedBy("this")
+  private void push(final int level, final Slot slot) {
+    ArrayDeque<Slot> slots = levels.get(level);
+    slots.addLast(slot);
+    if (slots.size() > slotsPerLevel) {
+      Slot evicted = slots.pollFirst();
+      int nextLevel = level + 1;
+      if (nextLevel < levels.size()) {
+        merge(nextLevel, evicted);
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private void merge(final int level, final Slot slot) {
+    // evicted slots are always newer than all the slots of the coarser level.
+    Slot target = levels.get(level).peekLast();
+    if (target == null || slot.startMillis >= target.endMillis
+            || (slot.startMillis >= exportedMillis && target.startMillis < exportedMillis)) {
+      // do not mix samples that were not exported yet with exported samples.
+      push(level, newSlot(level, slot.startMillis, slot.samples));
+    } else {
+      droppedNodes += target.samples.addAll(slot.samples, maxNodesPerSlot);
+    }
+  }
+
+  /**
+   * @param fromMillis window start (inclusive).
+   * @param toMillis window end (exclusive).
+   * @return the aggregate of all slots overlapping the time window, or null if there are no samples.
+   * The result is slot granular: a slot partially overlapping the window is included entirely.
+   */
+  @Nullable
+  public synchronized CompactSampleTree query(final long fromMillis, final long toMillis) {
+    CompactSampleTree result = new CompactSampleTree();
+    for (ArrayDeque<Slot> slots : levels) {
+      for (Slot slot : slots) {
+        if (slot.startMillis < toMillis && slot.endMillis > fromMillis) {
+          result.addAll(slot.samples);
+        }
+      }
+    }
+    return result.isEmpty() ? null : result;
+  }
+
+  @Nullable
+  public SampleNode getSamples(final long fromMillis, final long toMillis) {
+    CompactSampleTree result = query(fromMillis, toMillis);
+    return result == null ? null : result.toSampleNode();
+  }
+
+  /**
+   * @return the aggregate of the slots starting in the [fromMillis, toMillis) interval, or null if no samples.
+   */
+  @Nullable
+  private synchronized CompactSampleTree queryStartingIn(final long fromMillis, final long toMillis) {
+    CompactSampleTree result = new CompactSampleTree();
+    for (ArrayDeque<Slot> slots : levels) {
+      for (Slot slot : slots) {
+        if (slot.startMillis >= fromMillis && slot.startMillis < toMillis) {
+          result.addAll(slot.samples);
+        }
+      }
+    }
+    return result.isEmpty() ? null : result;
+  }
+
+  /**
+   * Export the samples added since the previous export, every sample is exported once.
+   * The slots holding the exported samples are closed, samples added after the export go to new slots.
+   * @param nowMillis the current time.
+   * @return the aggregate of the samples added since the previous export, or null if there are none.
+   */
+  @Nullable
+  public synchronized CompactSampleTree exportNew(final long nowMillis) {
+    CompactSampleTree result = new CompactSampleTree();
+    long newExportedMillis = Math.max(nowMillis, exportedMillis);
+    for (ArrayDeque<Slot> slots : levels) {
+      for (Slot slot : slots) {
+        if (slot.startMillis >= exportedMillis) {
+          result.addAll(slot.samples);
+          newExportedMillis = Math.max(newExportedMillis, slot.startMillis + 1);
+        }
+      }
+    }
+    exportedMillis = newExportedMillis;
+    return result.isEmpty() ? null : result;
+  }
+
+  /**
+   * Write one ssdump2 file for every window of windowMillis in the [fromMillis, toMillis) interval
+   * that has samples. Every slot is written to the file of the window its start belongs to,
+   * so that no samples are written to multiple files.
+   * @return the written files.
+   */
+  @SuppressFBWarnings("PATH_TRAVERSAL_IN") // the file name is validated for path separators.
+  public List<File> dump(final File folder, final String filePrefix,
+          final long fromMillis, final long toMillis, final long windowMillis) throws IOException {
+    if (windowMillis <= 0) {
+      throw new IllegalArgumentException("Invalid window " + windowMillis);
+    }
+    List<File> result = new ArrayList<>();
+    for (long start = fromMillis; start < toMillis; start += windowMillis) {
+      long end = Math.min(start + windowMillis, toMillis);
+      CompactSampleTree samples = queryStartingIn(start, end);
+      if (samples != null) {
+        File file = new File(folder, CharSequences.validatedFileName(filePrefix + '_'
+                + DateTimeFormats.TS_FORMAT.format(Instant.ofEpochMilli(start)) + '_'
+                + DateTimeFormats.TS_FORMAT.format(Instant.ofEpochMilli(end)) + ".ssdump2"));
+        Converter.save(file, samples);
+        result.add(file);
+      }
+    }
+    return result;
+  }
+
+  public synchronized void clear() {
+    for (ArrayDeque<Slot> slots : levels) {
+      slots.clear();
+    }
+  }
+
+  /**
+   * @return the start of the oldest slot, or Long.MAX_VALUE if there is no history.
+   */
+  public synchronized long getStartMillis() {
+    for (int i = levels.size() - 1; i >= 0; i--) {
+      Slot first = levels.get(i).peekFirst();
+      if (first != null) {
+        return first.startMillis;
+      }
+    }
+    return Long.MAX_VALUE;
+  }
+
+  public long getSlotMillis() {
+    return slotMillis[0];
+  }
+
+  public synchronized int getNrSlots() {
+    int result = 0;
+    for (ArrayDeque<Slot> slots : levels) {
+      result += slots.size();
+    }
+    return result;
+  }
+
+  public synchronized int getNrNodes() {
+    int result = 0;
+    for (ArrayDeque<Slot> slots : levels) {
+      for (Slot slot : slots) {
+        result += slot.samples.getNrNodes();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return the number of nodes that were dropped because of the maxNodesPerSlot limit.
+   */
+  public synchronized long getDroppedNodes() {
+    return droppedNodes;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "ProfileHistory{" + "slotMillis=" + slotMillis[0] + ", slotsPerLevel=" + slotsPerLevel
+            + ", nrLevels=" + levels.size() + ", maxNodesPerSlot=" + maxNodesPerSlot
+            + ", nrSlots=" + getNrSlots() + ", droppedNodes=" + droppedNodes + '}';
+  }
+
+  private static final class Slot {
+
+    private final long startMillis;
+
+    private final long endMillis;
+
+    private final CompactSampleTree samples;
+
+    Slot(final long startMillis, final long endMillis, final CompactSampleTree samples) {
+      this.startMillis = startMillis;
+      this.endMillis = endMillis;
+      this.samples = samples;
+    }
+
+  }
+
+}
@@ -31,21 +31,42 @@
  */
 package org.spf4j.stackmonitor;
 
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import javax.annotation.Nullable;
 import org.spf4j.base.ExecutionContext;
 import org.spf4j.base.ExecutionContextFactory;
+import org.spf4j.base.TimeSource;
 
 /**
+ * Execution context factory wrapper that keeps track of the current thread root contexts.
+ *
+ * Used with TracingExecutionContextStackCollector, it also supports slow request profiling: contexts that live
+ * longer than the slow request threshold get their own (node count bounded) stack sample profile, which is handed
+ * to the request profile sink when the context is closed. (see TopRequestProfiles, FileRequestProfileSink)
+ * Requests faster than the threshold are not sampled into a profile.
+ *
  * @author Zoltan Farkas
  */
 public final class ProfiledExecutionContextFactory implements ExecutionContextFactory<ExecutionContext> {
 
-  private final ConcurrentNavigableMap<Thread, ExecutionContext> currentContexts;
+  private final ConcurrentNavigableMap<Thread, ContextProfile> currentContexts;
 
   private final ExecutionContextFactory<ExecutionContext> wrapped;
 
+  private volatile long slowRequestThresholdNanos = TimeUnit.MILLISECONDS.toNanos(
+          Long.getLong("spf4j.perf.ms.slowRequestThresholdMillis", 1000));
+
+  private volatile int maxRequestProfileNodes = Integer.getInteger("spf4j.perf.ms.maxRequestProfileNodes", 4096);
+
+  @Nullable
+  private volatile Consumer<RequestProfile> requestProfileSink;
+
   public ProfiledExecutionContextFactory(final ExecutionContextFactory<ExecutionContext> wrapped) {
     this.wrapped = wrapped;
     this.currentContexts = new ConcurrentSkipListMap<>(ProfiledExecutionContextFactory::compare);
@@ -60,9 +81,54 @@ public final class ProfiledExecutionContextFactory implements ExecutionContextFa
   }
 
   public Iterable<Map.Entry<Thread, ExecutionContext>> getCurrentThreadContexts() {
-    return currentContexts.entrySet();
+    return Collections.unmodifiableCollection(currentContexts.values());
+  }
+
+  Collection<ContextProfile> getCurrentContextProfiles() {
+    return currentContexts.values();
+  }
+
+  /**
+   * @return the sink slow request profiles are handed to, null if slow request profiling is disabled.
+   */
+  @Nullable
+  public Consumer<RequestProfile> getRequestProfileSink() {
+    return requestProfileSink;
+  }
+
+  /**
+   * @param requestProfileSink the sink slow request profiles are handed to (on the thread that closes the context),
+   * null to disable slow request profiling.
+   */
+  public void setRequestProfileSink(@Nullable final Consumer<RequestProfile> requestProfileSink) {
+    this.requestProfileSink = requestProfileSink;
   }
 
+  public long getSlowRequestThresholdNanos() {
+    return slowRequestThresholdNanos;
+  }
+
+  public void setSlowRequestThresholdNanos(final long slowRequestThresholdNanos) {
+    this.slowRequestThresholdNanos = slowRequestThresholdNanos;
+  }
+
+  public int getMaxRequestProfileNodes() {
+    return maxRequestProfileNodes;
+  }
+
+  public void setMaxRequestProfileNodes(final int maxRequestProfileNodes) {
+    if (maxRequestProfileNodes < 1) {
+      throw new IllegalArgumentException("Invalid max request profile nodes " + maxRequestProfileNodes);
+    }
+    this.maxRequestProfileNodes = maxRequestProfileNodes;
+  }
+
+  /**
+   * @return true if the context is to be profiled at nowNanos.
+   */
+  boolean isSlow(final ContextProfile profile, final long nowNanos) {
+    return nowNanos - profile.getStartNanos() >= slowRequestThresholdNanos && requestProfileSink != null;
+  }
 
   @Override
   public ExecutionContext start(final String name, final ExecutionContext parent, final long deadlineNanos,
@@ -75,19 +141,27 @@ public final class ProfiledExecutionContextFactory implements ExecutionContextFa
           final long deadlineNanos, final Runnable onClose) {
     Thread currentThread = Thread.currentThread();
     ExecutionContext ctx = wrapped.startThreadRoot(name, parent, deadlineNanos, () -> {
-      currentContexts.remove(currentThread);
+      ContextProfile profile = currentContexts.remove(currentThread);
+      if (profile != null) {
+        RequestProfile requestProfile = profile.close(TimeSource.nanoTime());
+        if (requestProfile != null) {
+          Consumer<RequestProfile> sink = requestProfileSink;
+          if (sink != null) {
+            sink.accept(requestProfile);
+          }
+        }
+      }
       onClose.run();
     });
-    currentContexts.put(currentThread, ctx);
+    currentContexts.put(currentThread, new ContextProfile(name, currentThread, ctx, TimeSource.nanoTime()));
     return ctx;
   }
 
   @Override
   public String toString() {
     return "ProfiledExecutionContextFactory{" + "currentContexts="
-            + currentContexts + ", wrapped=" + wrapped + '}';
+            + currentContexts + ", wrapped=" + wrapped + ", slowRequestThresholdNanos=" + slowRequestThresholdNanos
+            + ", maxRequestProfileNodes=" + maxRequestProfileNodes + '}';
   }
 
-
-
 }
@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * The stack sample profile of a (slow) request, the code executed within an execution context.
+ *
+ * @author zoly
+ */
+@Immutable
+public final class RequestProfile {
+
+  private final String name;
+
+  private final String threadName;
+
+  private final Instant startTime;
+
+  private final long durationNanos;
+
+  private final SampleNode samples;
+
+  private final int droppedSamples;
+
+  public RequestProfile(final String name, final String threadName, final Instant startTime,
+          final long durationNanos, final SampleNode samples, final int droppedSamples) {
+    this.name = name;
+    this.threadName = threadName;
+    this.startTime = startTime;
+    this.durationNanos = durationNanos;
+    this.samples = samples;
+    this.droppedSamples = droppedSamples;
+  }
+
+  /**
+   * @return the execution context name.
+   */
+  public String getName() {
+    return name;
+  }
+
+  public String getThreadName() {
+    return threadName;
+  }
+
+  public Instant getStartTime() {
+    return startTime;
+  }
+
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  public long getDurationMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(durationNanos);
+  }
+
+  /**
+   * @return the stack samples collected while the request was executing.
+   */
+  public SampleNode getSamples() {
+    return samples;
+  }
+
+  /**
+   * @return the number of samples that did not fit in the profile node limit,
+   * accounted only to their deepest ancestor that did fit.
+   */
+  public int getDroppedSamples() {
+    return droppedSamples;
+  }
+
+  @Override
+  public String toString() {
+    return "RequestProfile{" + "name=" + name + ", threadName=" + threadName + ", startTime=" + startTime
+            + ", durationNanos=" + durationNanos + ", nrSamples=" + samples.getSampleCount()
+            + ", droppedSamples=" + droppedSamples + '}';
+  }
+
+}
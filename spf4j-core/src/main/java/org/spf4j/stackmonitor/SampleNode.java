@@ -376,9 +376,15 @@ public final class SampleNode implements Serializable, JsonWriteable {
   @Nonnull
   public static Graph<InvokedMethod, InvocationCount> toGraph(final SampleNode rootNode) {
     final HashMapGraph<InvokedMethod, InvocationCount> result = new HashMapGraph<>();
+    rootNode.forEach(graphBuilder(result), Method.ROOT, Method.ROOT, new HashMap<Method, Integer>());
+    return result;
+  }
 
-    rootNode.forEach((final Method pfrom, final Method pto,
-            final int count, final Map<Method, Integer> ancestors) -> {
+  /**
+   * @return a invocation handler that adds all invocations to the provided graph.
+   */
+  static InvocationHandler graphBuilder(final HashMapGraph<InvokedMethod, InvocationCount> result) {
+    return (final Method pfrom, final Method pto, final int count, final Map<Method, Integer> ancestors) -> {
       InvokedMethod from;
       InvokedMethod to;
       Integer val = ancestors.get(pfrom);
@@ -401,10 +407,7 @@ public final class SampleNode implements Serializable, JsonWriteable {
       } else {
         ic.setValue(count + ic.getValue());
       }
-    }, Method.ROOT, Method.ROOT, new HashMap<Method, Integer>());
-
-    return result;
-
+    };
   }
 
   @Override
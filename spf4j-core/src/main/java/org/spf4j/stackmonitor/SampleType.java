@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import gnu.trove.set.hash.THashSet;
+import java.util.Arrays;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Classification of a stack sample by what the sampled thread was doing. Allows off-CPU analysis
+ * (where are the threads waiting) in addition to CPU hot spot analysis.
+ *
+ * @author zoly
+ */
+public enum SampleType {
+  /**
+   * The thread is runnable and consuming CPU.
+   */
+  CPU,
+  /**
+   * The thread is runnable from the JVM's point of view, but it is in a blocking native (IO) call,
+   * or it did not consume any CPU since it was last sampled.
+   */
+  IO,
+  /**
+   * The thread is blocked on a monitor.
+   */
+  BLOCKED,
+  /**
+   * The thread is waiting (Object.wait, LockSupport.park, Thread.sleep...).
+   */
+  WAITING;
+
+  /**
+   * Native methods that block in IO (or in a IO multiplexer).
+   */
+  private static final Set<String> IO_METHODS = new THashSet<>(Arrays.asList(
+          "socketRead0", "socketWrite0", "socketAccept", "socketConnect", "accept0", "connect0",
+          "read0", "readv0", "write0", "writev0", "pread0", "pwrite0", "receive0", "send0",
+          "readBytes", "writeBytes", "epollWait", "poll", "poll0", "kevent0", "doSelect",
+          "waitForProcessExit", "available0"));
+
+  private static final SampleType[] VALUES = values();
+
+  /**
+   * @param state the thread state.
+   * @param top the top stack frame, null if not available.
+   * @param cpuDeltaNanos the CPU time the thread used since its previous sample, negative if not available.
+   * @return the sample type.
+   */
+  public static SampleType of(final Thread.State state, @Nullable final StackTraceElement top,
+          final long cpuDeltaNanos) {
+    switch (state) {
+      case RUNNABLE:
+        if (cpuDeltaNanos == 0 || (top != null && top.isNativeMethod() && IO_METHODS.contains(top.getMethodName()))) {
+          return IO;
+        }
+        return CPU;
+      case BLOCKED:
+        return BLOCKED;
+      default:
+        return WAITING;
+    }
+  }
+
+  static SampleType fromOrdinal(final int ordinal) {
+    return VALUES[ordinal];
+  }
+
+  static int size() {
+    return VALUES.length;
+  }
+
+}
@@ -35,15 +35,24 @@ import com.google.common.base.Preconditions;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.File;
 import java.io.IOException;
+import java.io.Writer;
 import java.lang.management.GarbageCollectorMXBean;
 import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import javax.annotation.PreDestroy;
@@ -59,6 +68,7 @@ import org.spf4j.jmx.JmxExport;
 import org.spf4j.jmx.Registry;
 import org.spf4j.perf.memory.GCUsageSampler;
 import org.spf4j.ssdump2.Converter;
+import org.spf4j.ssdump3.Ssdump3;
 
 /**
  * Utility to sample stack traces. Stack traces can be persisted for later analysis.
@@ -84,6 +94,23 @@ public final class Sampler {
 
 
 
+  /**
+   * The file format (extension) of the periodic dumps, ".ssdump2" (default) or ".ssdump3".
+   * ssdump3 dumps contain the samples by SampleType (CPU, IO, BLOCKED, WAITING), ssdump2 only the total.
+   */
+  private static final String DUMP_FILE_EXTENSION = System.getProperty("spf4j.perf.ms.dumpFileExtension",
+          ".ssdump2");
+
+  /**
+   * The default fraction of wall time the sampler can spend sampling, 0 (default) for no limit.
+   * When set, the sampling interval is increased up to MAX_SAMPLE_TIME_FACTOR * sampleTime, and if that is not enough,
+   * round-robin subsets of threads are sampled (if supported by the stack collector) to stay within the budget.
+   */
+  private static final double DEFAULT_OVERHEAD_BUDGET =
+          Double.parseDouble(System.getProperty("spf4j.perf.ms.overheadBudget", "0"));
+
+  private static final int MAX_SAMPLE_TIME_FACTOR = Integer.getInteger("spf4j.perf.ms.maxSampleTimeFactor", 10);
+
   private static final StackTraceElement[] GC_FAKE_STACK = new StackTraceElement[]{
     new StackTraceElement("java.lang.System", "gc", "System.java", -1)
   };
@@ -99,6 +126,14 @@ public final class Sampler {
 
   private final String filePrefix;
 
+  @Nullable
+  private volatile ProfileHistory history;
+
+  private volatile double overheadBudget;
+
+  @Nullable
+  private volatile SamplingRateController rateController;
+
   @Override
   public String toString() {
     return "Sampler{" + "stopped=" + stopped + ", sampleTimeNanos="
@@ -141,6 +176,8 @@ public final class Sampler {
     this.dumpTimeNanos = TimeUnit.MILLISECONDS.toNanos(dumpTimeMillis);
     this.stackCollector = collector;
     this.filePrefix = dumpFolder + File.separator + dumpFilePrefix;
+    this.history = Boolean.getBoolean("spf4j.perf.ms.history.enabled") ? new ProfileHistory() : null;
+    this.overheadBudget = DEFAULT_OVERHEAD_BUDGET;
   }
 
   public static synchronized Sampler getSampler(final int sampleTimeMillis,
@@ -171,7 +208,9 @@ public final class Sampler {
     if (stopped) {
       stopped = false;
       final int stNanos = sampleTimeNanos;
-      final int stMs = (int) TimeUnit.NANOSECONDS.toMillis(sampleTimeNanos);
+      final SamplingRateController controller = new SamplingRateController(stNanos, MAX_SAMPLE_TIME_FACTOR,
+              overheadBudget);
+      rateController = controller;
       final List<GarbageCollectorMXBean> gcBeans = ManagementFactory.getGarbageCollectorMXBeans();
       samplerFuture = DefaultExecutor.INSTANCE.submit(new AbstractRunnable("SPF4J-Sampling-Thread") {
 
@@ -181,19 +220,24 @@ public final class Sampler {
         public void doRun() throws IOException, InterruptedException {
           final Thread samplerThread = Thread.currentThread();
           final ThreadLocalRandom random = ThreadLocalRandom.current();
-          int dumpCounterNanos = 0;
+          long dumpCounterNanos = 0;
           int coarseCounter = 0;
           int coarseCount = STOP_FLAG_READ_MILLIS / stNanos;
           boolean lstopped = stopped;
           long prevGcTimeMillis = 0;
-          int sleepTimeNanos = 0;
-          int halfStNanos = stNanos / 2;
-          if (halfStNanos == 0) {
-            halfStNanos = 1;
-          }
-          int maxSleeepNanos = stNanos + halfStNanos;
+          long sleepTimeNanos = 0;
+          int maxSampledThreads = -1;
+          long lastHistoryMillis = System.currentTimeMillis();
           while (!lstopped) {
+            long sampleStartNanos = TimeSource.nanoTime();
             stackCollector.sample(samplerThread);
+            controller.sampled(sampleStartNanos, TimeSource.nanoTime(),
+                    stackCollector.getLastNrSampledThreads(), stackCollector.getLastNrThreads());
+            int newMaxSampledThreads = controller.getMaxSampledThreads();
+            if (newMaxSampledThreads != maxSampledThreads) {
+              stackCollector.setMaxSampledThreads(newMaxSampledThreads);
+              maxSampledThreads = newMaxSampledThreads;
+            }
             dumpCounterNanos += sleepTimeNanos;
             coarseCounter++;
             if (coarseCounter >= coarseCount) {
@@ -201,12 +245,23 @@ public final class Sampler {
               lstopped = stopped;
               long gcTimeMillis = GCUsageSampler.getGCTime(gcBeans);
               if (gcTimeMillis > prevGcTimeMillis) {
-                int fakeSamples = (int) ((gcTimeMillis - prevGcTimeMillis)) / stMs;
+                int fakeSamples = (int) (TimeUnit.MILLISECONDS.toNanos(gcTimeMillis - prevGcTimeMillis)
+                        / controller.getIntervalNanos());
                 for (int i = 0; i < fakeSamples; i++) { // can be optimized
                   stackCollector.addSample(GC_FAKE_STACK);
                 }
                 prevGcTimeMillis = gcTimeMillis;
               }
+              ProfileHistory lhistory = history;
+              if (lhistory != null) {
+                long nowMillis = System.currentTimeMillis();
+                long slotMillis = lhistory.getSlotMillis();
+                if (nowMillis / slotMillis != lastHistoryMillis / slotMillis) {
+                  // the samples since the last move belong mostly to the previous slot.
+                  moveToHistory(lhistory, lastHistoryMillis + (nowMillis - lastHistoryMillis) / 2);
+                  lastHistoryMillis = nowMillis;
+                }
+              }
             }
             if (dumpCounterNanos >= dumpTimeNanos) {
               long nanosSinceLastDump = TimeSource.nanoTime() - lastDumpTimeNanos;
@@ -217,7 +272,7 @@ public final class Sampler {
                 dumpCounterNanos -= dumpTimeNanos - nanosSinceLastDump;
               }
             }
-            sleepTimeNanos = random.nextInt(halfStNanos, maxSleeepNanos);
+            sleepTimeNanos = controller.nextSleepNanos(random);
             TimeUnit.NANOSECONDS.sleep(sleepTimeNanos);
           }
         }
@@ -228,6 +283,13 @@ public final class Sampler {
 
   }
 
+  private void moveToHistory(final ProfileHistory lhistory, final long timeMillis) {
+    SampleNode collected = stackCollector.clear();
+    if (collected != null) {
+      lhistory.add(timeMillis, collected);
+    }
+  }
+
   @JmxExport(description = "save stack samples to file")
   @Nullable
   public File dumpToFile() throws IOException {
@@ -249,18 +311,48 @@ public final class Sampler {
           @Nullable final String id) throws IOException {
     String fileName = filePrefix + CharSequences.validatedFileName(((id == null) ? "" : '_' + id) + '_'
             + DateTimeFormats.TS_FORMAT.format(Timing.getCurrentTiming().fromNanoTimeToInstant(lastDumpTimeNanos))
-            + '_' + DateTimeFormats.TS_FORMAT.format(Instant.now()) + ".ssdump2");
+            + '_' + DateTimeFormats.TS_FORMAT.format(Instant.now()) + DUMP_FILE_EXTENSION);
     File file = new File(fileName);
     return dumpToFile(file);
   }
 
   @Nullable
   public File dumpToFile(@Nonnull final File file) throws IOException {
-    Preconditions.checkArgument(file.getName().endsWith(".ssdump2"),
-            "File name must have ssdump2 extension not %s", file);
-    SampleNode collected = stackCollector.clear();
+    String fileName = file.getName();
+    Preconditions.checkArgument(fileName.endsWith(".ssdump2") || fileName.endsWith(Ssdump3.EXTENSION),
+            "File name must have ssdump2 or ssdump3 extension not %s", file);
+    ProfileHistory lhistory = history;
+    SampleNode collected;
+    if (lhistory == null) {
+      if (fileName.endsWith(Ssdump3.EXTENSION)) {
+        // ssdump3 can store the samples by type (CPU, IO, BLOCKED, WAITING).
+        Map<SampleType, SampleNode> byType = stackCollector.clearByType();
+        if (byType.isEmpty()) {
+          return null;
+        }
+        Map<String, SampleNode> labeled = new LinkedHashMap<>(byType.size() * 2);
+        for (Map.Entry<SampleType, SampleNode> entry : byType.entrySet()) {
+          labeled.put(entry.getKey().name(), entry.getValue());
+        }
+        Ssdump3.save(file, labeled);
+        lastDumpTimeNanos = TimeSource.nanoTime();
+        return file;
+      }
+      collected = stackCollector.clear();
+    } else {
+      // with history enabled the samples are periodically moved to the history,
+      // so the dump contains the history samples not dumped before.
+      long nowMillis = System.currentTimeMillis();
+      moveToHistory(lhistory, nowMillis);
+      CompactSampleTree exported = lhistory.exportNew(nowMillis);
+      collected = exported == null ? null : exported.toSampleNode();
+    }
     if (collected != null) {
-      Converter.save(file, collected);
+      if (fileName.endsWith(Ssdump3.EXTENSION)) {
+        Ssdump3.save(file, collected);
+      } else {
+        Converter.save(file, collected);
+      }
       lastDumpTimeNanos = TimeSource.nanoTime();
       return file;
     } else {
@@ -268,6 +360,130 @@ public final class Sampler {
     }
   }
 
+  /**
+   * @return the profile history, null if not enabled.
+   */
+  @Nullable
+  public ProfileHistory getHistory() {
+    return history;
+  }
+
+  /**
+   * Enable (or disable with null) the profile history.
+   * When enabled, collected samples are moved to the history at every history slot boundary.
+   */
+  public void setHistory(@Nullable final ProfileHistory history) {
+    this.history = history;
+  }
+
+  /**
+   * @return the aggregate samples from the profile history for the time window, as json.
+   */
+  @JmxExport(description = "aggregate stack samples from the profile history for a time window, as json")
+  @Nullable
+  public String queryHistory(
+          @JmxExport(value = "from", description = "window start, ISO-8601 instant (2017-05-01T14:03:00Z)")
+          final String from,
+          @JmxExport(value = "to", description = "window end, ISO-8601 instant (2017-05-01T14:05:00Z)")
+          final String to) {
+    ProfileHistory lhistory = getEnabledHistory();
+    moveToHistory(lhistory, System.currentTimeMillis());
+    CompactSampleTree samples = lhistory.query(Instant.parse(from).toEpochMilli(), Instant.parse(to).toEpochMilli());
+    return samples == null ? null : samples.toString();
+  }
+
+  /**
+   * Dump the profile history for a time window to files, one file per window of windowMinutes.
+   * @return the written files.
+   */
+  @JmxExport(description = "save stack samples from the profile history to files, one ssdump2 file per window")
+  @SuppressFBWarnings("PATH_TRAVERSAL_IN") // the folder and prefix are not user input.
+  public List<String> dumpHistory(
+          @JmxExport(value = "from", description = "interval start, ISO-8601 instant (2017-05-01T14:03:00Z)")
+          final String from,
+          @JmxExport(value = "to", description = "interval end, ISO-8601 instant (2017-05-01T15:03:00Z)")
+          final String to,
+          @JmxExport(value = "windowMinutes", description = "the time window covered by a file")
+          final int windowMinutes) throws IOException {
+    ProfileHistory lhistory = getEnabledHistory();
+    moveToHistory(lhistory, System.currentTimeMillis());
+    File destFile = new File(filePrefix);
+    List<File> files = lhistory.dump(destFile.getParentFile(), destFile.getName(),
+            Instant.parse(from).toEpochMilli(), Instant.parse(to).toEpochMilli(),
+            TimeUnit.MINUTES.toMillis(windowMinutes));
+    List<String> result = new ArrayList<>(files.size());
+    for (File file : files) {
+      result.add(file.getPath());
+    }
+    return result;
+  }
+
+  /**
+   * @return a self contained html interactive flame graph of the currently collected samples.
+   */
+  @JmxExport(description = "html flame graph (or icicle graph) of the currently collected stack samples")
+  public String flameGraph(
+          @JmxExport(value = "icicle", description = "if true, render a icicle graph (root at the top)")
+          final boolean icicle) throws IOException {
+    StringBuilder result = new StringBuilder(65536);
+    writeFlameGraph(icicle, result);
+    return result.toString();
+  }
+
+  /**
+   * Write a self contained html interactive flame graph of the currently collected samples to a file.
+   * @return the file path.
+   */
+  @JmxExport(description = "save a html flame graph (or icicle graph) of the currently collected stack samples")
+  @SuppressFBWarnings("PATH_TRAVERSAL_IN") // the folder and prefix are not user input.
+  public String flameGraphToFile(
+          @JmxExport(value = "icicle", description = "if true, render a icicle graph (root at the top)")
+          final boolean icicle) throws IOException {
+    Path file = Paths.get(filePrefix + CharSequences.validatedFileName('_'
+            + DateTimeFormats.TS_FORMAT.format(Instant.now()) + (icicle ? "_icicle" : "_flame") + ".html"));
+    try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+      writeFlameGraph(icicle, writer);
+    }
+    return file.toString();
+  }
+
+  private void writeFlameGraph(final boolean icicle, final Appendable out) throws IOException {
+    SampleNode samples = stackCollector.applyOnSamples(Function.identity());
+    new FlameGraphWriter().writeHtml(samples == null ? new CompactSampleTree() : CompactSampleTree.from(samples),
+            "Stack samples " + filePrefix + ' ' + Instant.now(), FlameGraphWriter.PACKAGE_COLORS,
+            icicle ? FlameGraphWriter.Orientation.ICICLE : FlameGraphWriter.Orientation.FLAME, out);
+  }
+
+  /**
+   * @return a self contained html interactive flame graph of the profile history for a time window.
+   */
+  @JmxExport(description = "html flame graph (or icicle graph) of the stack samples from the profile history"
+          + " for a time window")
+  public String historyFlameGraph(
+          @JmxExport(value = "from", description = "window start, ISO-8601 instant (2017-05-01T14:03:00Z)")
+          final String from,
+          @JmxExport(value = "to", description = "window end, ISO-8601 instant (2017-05-01T14:05:00Z)")
+          final String to,
+          @JmxExport(value = "icicle", description = "if true, render a icicle graph (root at the top)")
+          final boolean icicle) throws IOException {
+    ProfileHistory lhistory = getEnabledHistory();
+    moveToHistory(lhistory, System.currentTimeMillis());
+    CompactSampleTree samples = lhistory.query(Instant.parse(from).toEpochMilli(), Instant.parse(to).toEpochMilli());
+    StringBuilder result = new StringBuilder(65536);
+    new FlameGraphWriter().writeHtml(samples == null ? new CompactSampleTree() : samples,
+            "Stack samples " + filePrefix + ' ' + from + " - " + to, FlameGraphWriter.PACKAGE_COLORS,
+            icicle ? FlameGraphWriter.Orientation.ICICLE : FlameGraphWriter.Orientation.FLAME, result);
+    return result.toString();
+  }
+
+  private ProfileHistory getEnabledHistory() {
+    ProfileHistory lhistory = history;
+    if (lhistory == null) {
+      throw new IllegalStateException("Profile history not enabled for " + this);
+    }
+    return lhistory;
+  }
+
   @JmxExport(description = "stop stack sampling")
   public synchronized void stop() throws InterruptedException {
     if (!stopped) {
@@ -293,6 +509,56 @@ public final class Sampler {
     this.sampleTimeNanos = (int) TimeUnit.MILLISECONDS.toNanos(sampleTimeMillis);
   }
 
+  /**
+   * @return the fraction of wall time the sampler can spend sampling, 0 for no limit.
+   */
+  @JmxExport(description = "the fraction of wall time the sampler can spend sampling (0.01 = 1%), 0 for no limit")
+  public double getOverheadBudget() {
+    return overheadBudget;
+  }
+
+  /**
+   * Set the fraction of wall time the sampler can spend sampling, 0 for no limit. If the budget is exceeded,
+   * the sampling interval is increased (up to spf4j.perf.ms.maxSampleTimeFactor times the sample time),
+   * and if that is not enough, round-robin subsets of threads are sampled.
+   */
+  @JmxExport
+  public void setOverheadBudget(final double overheadBudget) {
+    if (overheadBudget < 0 || overheadBudget >= 1) {
+      throw new IllegalArgumentException("Invalid overhead budget " + overheadBudget
+              + ", must be in [0, 1), 0 meaning no budget");
+    }
+    this.overheadBudget = overheadBudget;
+    SamplingRateController controller = rateController;
+    if (controller != null) {
+      controller.setOverheadBudget(overheadBudget);
+    }
+  }
+
+  @JmxExport(description = "the achieved stack sample rate (samples/second)")
+  public double getAchievedSampleRate() {
+    SamplingRateController controller = rateController;
+    return controller == null ? 0 : controller.getAchievedRate();
+  }
+
+  @JmxExport(description = "the achieved sampling overhead, fraction of wall time spent sampling")
+  public double getAchievedOverhead() {
+    SamplingRateController controller = rateController;
+    return controller == null ? 0 : controller.getAchievedOverhead();
+  }
+
+  @JmxExport(description = "the current average stack sample interval in milliseconds")
+  public double getCurrentSampleIntervalMillis() {
+    SamplingRateController controller = rateController;
+    return controller == null ? 0 : controller.getIntervalNanos() / 1000000d;
+  }
+
+  @JmxExport(description = "max number of threads sampled at once, Integer.MAX_VALUE when all threads are sampled")
+  public int getMaxSampledThreads() {
+    SamplingRateController controller = rateController;
+    return controller == null ? Integer.MAX_VALUE : controller.getMaxSampledThreads();
+  }
+
   @JmxExport(description = "is the stack sampling stopped")
   public boolean isStopped() {
     return stopped;
@@ -301,6 +567,10 @@ public final class Sampler {
   @JmxExport(description = "clear in memory collected stack samples")
   public void clear() {
     stackCollector.clear();
+    ProfileHistory lhistory = history;
+    if (lhistory != null) {
+      lhistory.clear();
+    }
   }
 
   public StackCollector getStackCollector() {
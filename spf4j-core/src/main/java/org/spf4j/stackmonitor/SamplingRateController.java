@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.concurrent.ThreadLocalRandom;
+import javax.annotation.concurrent.NotThreadSafe;
+
+/**
+ * Computes the sampling interval and the number of threads to sample, so that the time spent sampling
+ * stays within a budget (fraction of wall time).
+ *
+ * The sample interval is increased up to maxIntervalFactor * sampleTime, if this is not enough to meet the budget,
+ * the number of threads sampled at once is limited (the collector will sample round-robin subsets of threads).
+ *
+ * Not thread safe, all methods except the getters must be invoked from the sampling thread.
+ *
+ * @author zoly
+ */
+@NotThreadSafe
+final class SamplingRateController {
+
+  /**
+   * weight of the last measurement in the moving averages.
+   */
+  private static final double ALPHA = 0.2;
+
+  /**
+   * relative band around the budget limits within which the thread limit is not changed, to avoid flip-flopping.
+   */
+  private static final double HYSTERESIS = 0.2;
+
+  private final long sampleTimeNanos;
+
+  private final long maxSampleTimeNanos;
+
+  private volatile double overheadBudget;
+
+  private double avgCostNanos = -1;
+
+  private double avgCostPerThreadNanos = -1;
+
+  /**
+   * the fixed (independent of the number of threads sampled) sample cost.
+   */
+  private double fixedCostNanos;
+
+  /**
+   * moving averages of the number of sampled threads, of the cost and of their products,
+   * used to separate the fixed cost from the per thread cost (least squares).
+   */
+  private double avgThreads = -1;
+
+  private double avgThreadsSq;
+
+  private double avgThreadsCost;
+
+  private double avgPeriodNanos = -1;
+
+  private long lastSampleStartNanos;
+
+  private volatile int maxSampledThreads = Integer.MAX_VALUE;
+
+  private volatile long intervalNanos;
+
+  private volatile double achievedRate;
+
+  private volatile double achievedOverhead;
+
+  /**
+   * @param sampleTimeNanos the (minimum) average time between samples.
+   * @param maxIntervalFactor the maximum factor the sample time will be increased by to meet the budget.
+   * @param overheadBudget the fraction of wall time that can be spent sampling, 0 for no budget.
+   */
+  SamplingRateController(final long sampleTimeNanos, final int maxIntervalFactor, final double overheadBudget) {
+    if (sampleTimeNanos <= 0) {
+      throw new IllegalArgumentException("Invalid sample time " + sampleTimeNanos);
+    }
+    if (maxIntervalFactor < 1) {
+      throw new IllegalArgumentException("Invalid max interval factor " + maxIntervalFactor);
+    }
+    this.sampleTimeNanos = sampleTimeNanos;
+    this.maxSampleTimeNanos = sampleTimeNanos * maxIntervalFactor;
+    this.intervalNanos = sampleTimeNanos;
+    setOverheadBudget(overheadBudget);
+  }
+
+  /**
+   * Record a sample.
+   * @param startNanos the sample start time.
+   * @param endNanos the sample end time.
+   * @param nrSampledThreads the number of threads sampled.
+   * @param nrThreads the number of threads eligible for sampling.
+   */
+  void sampled(final long startNanos, final long endNanos, final int nrSampledThreads, final int nrThreads) {
+    long costNanos = endNanos - startNanos;
+    if (avgCostNanos < 0) {
+      avgCostNanos = costNanos;
+    } else {
+      avgCostNanos += ALPHA * (costNanos - avgCostNanos);
+      double periodNanos = startNanos - lastSampleStartNanos;
+      avgPeriodNanos = avgPeriodNanos < 0 ? periodNanos : avgPeriodNanos + ALPHA * (periodNanos - avgPeriodNanos);
+      achievedRate = 1000000000d / avgPeriodNanos;
+      achievedOverhead = Math.min(1d, avgCostNanos / avgPeriodNanos);
+    }
+    lastSampleStartNanos = startNanos;
+    estimateFixedCost(nrSampledThreads, costNanos);
+    if (nrSampledThreads > 0) {
+      double costPerThread = Math.max(0, costNanos - fixedCostNanos) / nrSampledThreads;
+      avgCostPerThreadNanos = avgCostPerThreadNanos < 0 ? costPerThread
+              : avgCostPerThreadNanos + ALPHA * (costPerThread - avgCostPerThreadNanos);
+    }
+    adapt(nrThreads);
+  }
+
+  private void estimateFixedCost(final int nrSampledThreads, final long costNanos) {
+    if (avgThreads < 0) {
+      avgThreads = nrSampledThreads;
+      avgThreadsSq = (double) nrSampledThreads * nrSampledThreads;
+      avgThreadsCost = (double) nrSampledThreads * costNanos;
+      return;
+    }
+    avgThreads += ALPHA * (nrSampledThreads - avgThreads);
+    avgThreadsSq += ALPHA * ((double) nrSampledThreads * nrSampledThreads - avgThreadsSq);
+    avgThreadsCost += ALPHA * ((double) nrSampledThreads * costNanos - avgThreadsCost);
+    double variance = avgThreadsSq - avgThreads * avgThreads;
+    if (variance >= 1) { // the nr of sampled threads varied enough for a meaningful regression.
+      double slope = (avgThreadsCost - avgThreads * avgCostNanos) / variance;
+      if (slope > 0) {
+        fixedCostNanos = Math.max(0, Math.min(avgCostNanos, avgCostNanos - slope * avgThreads));
+      }
+    }
+  }
+
+  private void adapt(final int nrThreads) {
+    double budget = overheadBudget;
+    if (budget <= 0) {
+      intervalNanos = sampleTimeNanos;
+      maxSampledThreads = Integer.MAX_VALUE;
+      return;
+    }
+    // cost / (cost + interval) <= budget  <=>  interval >= cost * (1 - budget) / budget
+    double idleFactor = (1 - budget) / budget;
+    // decide based on the cost of sampling all threads, not on the (limited) measured cost.
+    double fullCostNanos = avgCostPerThreadNanos < 0 ? avgCostNanos
+            : fixedCostNanos + avgCostPerThreadNanos * nrThreads;
+    double requiredNanos = fullCostNanos * idleFactor;
+    int currentLimit = maxSampledThreads;
+    boolean limited = currentLimit != Integer.MAX_VALUE;
+    if (requiredNanos <= maxSampleTimeNanos * (limited ? 1 - HYSTERESIS : 1)) {
+      intervalNanos = Math.max(sampleTimeNanos, (long) requiredNanos);
+      maxSampledThreads = Integer.MAX_VALUE;
+    } else {
+      intervalNanos = maxSampleTimeNanos;
+      if (requiredNanos <= maxSampleTimeNanos) {
+        return; // limited, within the hysteresis band.
+      }
+      // the number of threads that can be sampled at the max interval.
+      long affordable = avgCostPerThreadNanos <= 0 ? nrThreads
+              : (long) ((maxSampleTimeNanos / idleFactor - fixedCostNanos) / avgCostPerThreadNanos);
+      int newLimit = affordable >= nrThreads ? nrThreads : (int) Math.max(1, affordable);
+      if (!limited || Math.abs(newLimit - currentLimit) > currentLimit * HYSTERESIS) {
+        maxSampledThreads = newLimit;
+      }
+    }
+  }
+
+  /**
+   * @return the time to sleep until the next sample, randomized ±50% around the current sampling interval.
+   */
+  long nextSleepNanos(final ThreadLocalRandom random) {
+    long halfInterval = Math.max(1, intervalNanos / 2);
+    return random.nextLong(halfInterval, intervalNanos + halfInterval);
+  }
+
+  long getIntervalNanos() {
+    return intervalNanos;
+  }
+
+  int getMaxSampledThreads() {
+    return maxSampledThreads;
+  }
+
+  double getOverheadBudget() {
+    return overheadBudget;
+  }
+
+  void setOverheadBudget(final double overheadBudget) {
+    if (overheadBudget < 0 || overheadBudget >= 1) {
+      throw new IllegalArgumentException("Invalid overhead budget " + overheadBudget
+              + ", must be in [0, 1), 0 meaning no budget");
+    }
+    this.overheadBudget = overheadBudget;
+  }
+
+  /**
+   * @return the achieved sample rate (samples/second).
+   */
+  double getAchievedRate() {
+    return achievedRate;
+  }
+
+  /**
+   * @return the achieved overhead, the fraction of wall time spent sampling.
+   */
+  double getAchievedOverhead() {
+    return achievedOverhead;
+  }
+
+  @Override
+  public String toString() {
+    return "SamplingRateController{" + "sampleTimeNanos=" + sampleTimeNanos + ", maxSampleTimeNanos="
+            + maxSampleTimeNanos + ", overheadBudget=" + overheadBudget + ", intervalNanos=" + intervalNanos
+            + ", maxSampledThreads=" + maxSampledThreads + ", achievedRate=" + achievedRate
+            + ", achievedOverhead=" + achievedOverhead + '}';
+  }
+
+}
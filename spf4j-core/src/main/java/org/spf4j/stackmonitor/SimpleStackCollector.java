@@ -46,7 +46,7 @@ public final class SimpleStackCollector extends AbstractStackCollector {
         for (Map.Entry<Thread, StackTraceElement[]> element : stackDump.entrySet()) {
             StackTraceElement[] stackTrace = element.getValue();
             if (stackTrace.length > 0) {
-                addSample(stackTrace);
+                addSample(element.getKey(), element.getKey().getState(), stackTrace);
             } else {
                 addSample(new StackTraceElement[] {
                   new StackTraceElement("Thread", element.getKey().getName(), "", 0)
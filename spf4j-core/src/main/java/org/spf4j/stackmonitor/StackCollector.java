@@ -31,6 +31,8 @@
  */
 package org.spf4j.stackmonitor;
 
+import java.util.Collections;
+import java.util.Map;
 import java.util.function.Function;
 
 
@@ -53,4 +55,46 @@ public interface StackCollector {
 
     void addSample(StackTraceElement[] stackTrace);
 
+    /**
+     * Add a sample of the specified type.
+     * Collectors that do not classify samples, add all samples to the same tree.
+     */
+    default void addSample(final SampleType type, final StackTraceElement[] stackTrace) {
+      addSample(stackTrace);
+    }
+
+    /**
+     * Clear the collected samples, and return them by sample type.
+     * Collectors that do not classify samples, return all samples as CPU samples.
+     * @return the samples by type, only the types with samples are present.
+     */
+    default Map<SampleType, SampleNode> clearByType() {
+      SampleNode samples = clear();
+      return samples == null ? Collections.emptyMap() : Collections.singletonMap(SampleType.CPU, samples);
+    }
+
+    /**
+     * Limit the number of threads sampled by one sample() invocation.
+     * When there are more threads, collectors that support this will sample round-robin subsets of threads.
+     * @param maxSampledThreads the max number of threads to sample, Integer.MAX_VALUE for no limit.
+     * @return true if supported by this collector.
+     */
+    default boolean setMaxSampledThreads(final int maxSampledThreads) {
+      return false;
+    }
+
+    /**
+     * @return the number of threads sampled by the last sample() invocation, -1 if not known.
+     */
+    default int getLastNrSampledThreads() {
+      return -1;
+    }
+
+    /**
+     * @return the number of threads eligible for sampling at the last sample() invocation, -1 if not known.
+     */
+    default int getLastNrThreads() {
+      return -1;
+    }
+
 }
@@ -72,7 +72,7 @@ public final class ThreadStackCollector extends AbstractStackCollector {
     for (int j = 0; j < i; j++) {
       StackTraceElement[] stackTrace = stackTraces[j];
       if (stackTrace != null && stackTrace.length > 0) {
-        addSample(stackTrace);
+        addSample(requestFor[j], requestFor[j].getState(), stackTrace);
       } else {
         addSample(new StackTraceElement[]{
           new StackTraceElement("Thread", requestFor[j].getName(), "", 0)
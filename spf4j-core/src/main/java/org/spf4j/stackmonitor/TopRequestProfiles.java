@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Consumer;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+
+/**
+ * In memory request profile sink, that keeps the K slowest request profiles.
+ *
+ * @author zoly
+ */
+@ThreadSafe
+public final class TopRequestProfiles implements Consumer<RequestProfile> {
+
+  private static final Comparator<RequestProfile> BY_DURATION =
+          Comparator.comparingLong(RequestProfile::getDurationNanos);
+
+  private final int maxProfiles;
+
+  /**
+   * min heap, the fastest of the retained profiles is at the head.
+   */
+  @GuardedBy("this")
+  private final PriorityQueue<RequestProfile> profiles;
+
+  public TopRequestProfiles(final int maxProfiles) {
+    if (maxProfiles < 1) {
+      throw new IllegalArgumentException("Invalid max profiles " + maxProfiles);
+    }
+    this.maxProfiles = maxProfiles;
+    this.profiles = new PriorityQueue<>(maxProfiles + 1, BY_DURATION);
+  }
+
+  @Override
+  public synchronized void accept(final RequestProfile profile) {
+    if (profiles.size() < maxProfiles) {
+      profiles.add(profile);
+    } else if (profile.getDurationNanos() > profiles.peek().getDurationNanos()) {
+      profiles.poll();
+      profiles.add(profile);
+    }
+  }
+
+  /**
+   * @return the retained profiles, slowest first.
+   */
+  public synchronized List<RequestProfile> getProfiles() {
+    List<RequestProfile> result = new ArrayList<>(profiles);
+    result.sort(BY_DURATION.reversed());
+    return result;
+  }
+
+  /**
+   * @return the retained profiles, slowest first, and clears them.
+   */
+  public synchronized List<RequestProfile> clear() {
+    List<RequestProfile> result = getProfiles();
+    profiles.clear();
+    return result;
+  }
+
+  @Override
+  public synchronized String toString() {
+    return "TopRequestProfiles{" + "maxProfiles=" + maxProfiles + ", profiles=" + profiles + '}';
+  }
+
+}
@@ -31,37 +31,71 @@
  */
 package org.spf4j.stackmonitor;
 
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.util.Arrays;
 import java.util.Map;
 import java.util.function.Supplier;
+import javax.annotation.Nullable;
 import org.spf4j.base.ExecutionContext;
 import org.spf4j.base.Threads;
+import org.spf4j.base.TimeSource;
 
 /**
  * A stack sample collector that collects samples only for code executed within a execution context.
- * Plus this collector will attach the samples to the contexts.
+ *
+ * When created with a ProfiledExecutionContextFactory, the samples of the contexts that run longer than the
+ * factory slow request threshold are also collected into a per context profile (bounded in nodes) that is handed
+ * to the factory request profile sink when the context closes.
+ *
+ * When created with a context supplier (deprecated), the samples are attached to the contexts
+ * (unbounded, "TSS" baggage).
  *
  * This context requires ProfiledExecutionContextFactory wrapper.
  *
  * @author Zoltan Farkas
  */
+@SuppressFBWarnings("PL_PARALLEL_LISTS")
 public final class TracingExecutionContextStackCollector extends AbstractStackCollector {
 
+  @Nullable
   private final Supplier<Iterable<Map.Entry<Thread, ExecutionContext>>> execCtxSupplier;
 
+  @Nullable
+  private final ProfiledExecutionContextFactory contextFactory;
+
   private Thread[] requestFor;
 
   private ExecutionContext[] contexts;
 
+  private ContextProfile[] profiles;
+
+  /**
+   * @deprecated use TracingExecutionContextStackCollector(int, ProfiledExecutionContextFactory),
+   * the samples attached to the execution contexts are not bounded.
+   */
+  @Deprecated
   public TracingExecutionContextStackCollector(final int maxNrThreads,
           final Supplier<Iterable<Map.Entry<Thread, ExecutionContext>>> execCtxSupplier) {
     requestFor = new Thread[maxNrThreads];
     contexts = new ExecutionContext[maxNrThreads];
     this.execCtxSupplier = execCtxSupplier;
+    this.contextFactory = null;
+  }
+
+  public TracingExecutionContextStackCollector(final int maxNrThreads,
+          final ProfiledExecutionContextFactory contextFactory) {
+    requestFor = new Thread[maxNrThreads];
+    profiles = new ContextProfile[maxNrThreads];
+    this.execCtxSupplier = null;
+    this.contextFactory = contextFactory;
   }
 
   @Override
   public void sample(final Thread ignore) {
+    if (contextFactory != null) {
+      sampleProfiles(contextFactory);
+      return;
+    }
     Iterable<Map.Entry<Thread, ExecutionContext>> currentThreads = execCtxSupplier.get();
     int i = 0;
     for (Map.Entry<Thread, ExecutionContext> entry : currentThreads) {
@@ -76,7 +110,7 @@ public final class TracingExecutionContextStackCollector extends AbstractStackCo
     for (int j = 0; j < i; j++) {
       StackTraceElement[] stackTrace = stackTraces[j];
       if (stackTrace != null && stackTrace.length > 0) {
-        addSample(stackTrace);
+        addSample(requestFor[j], requestFor[j].getState(), stackTrace);
         contexts[j].compute("TSS", (String k, SampleNode v) -> {
           if (v == null) {
             return SampleNode.createSampleNode(stackTrace);
@@ -86,11 +120,43 @@ public final class TracingExecutionContextStackCollector extends AbstractStackCo
           }
         });
       } else {
-        addSample(new StackTraceElement[]{
-          new StackTraceElement("Thread", requestFor[j].getName(), "", 0)
-        });
+        addThreadSample(requestFor[j]);
       }
     }
   }
 
+  private void sampleProfiles(final ProfiledExecutionContextFactory factory) {
+    int i = 0;
+    for (ContextProfile profile : factory.getCurrentContextProfiles()) {
+      requestFor[i] = profile.getKey();
+      profiles[i++] = profile;
+      if (i >= requestFor.length) {
+        break;
+      }
+    }
+    Arrays.fill(requestFor, i, requestFor.length, null);
+    Arrays.fill(profiles, i, profiles.length, null);
+    StackTraceElement[][] stackTraces = Threads.getStackTraces(requestFor);
+    long nowNanos = TimeSource.nanoTime();
+    int maxNodes = factory.getMaxRequestProfileNodes();
+    for (int j = 0; j < i; j++) {
+      StackTraceElement[] stackTrace = stackTraces[j];
+      if (stackTrace != null && stackTrace.length > 0) {
+        addSample(requestFor[j], requestFor[j].getState(), stackTrace);
+        ContextProfile profile = profiles[j];
+        if (factory.isSlow(profile, nowNanos)) {
+          profile.addSample(stackTrace, maxNodes);
+        }
+      } else {
+        addThreadSample(requestFor[j]);
+      }
+    }
+  }
+
+  private void addThreadSample(final Thread thread) {
+    addSample(new StackTraceElement[]{
+      new StackTraceElement("Thread", thread.getName(), "", 0)
+    });
+  }
+
 }
@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Minimal big endian bit stream reader, the counterpart of BitWriter.
+ *
+ * @author zoly
+ */
+final class BitReader {
+
+  private final ByteBuffer buffer;
+
+  private int current;
+
+  private int bitPos;
+
+  BitReader(final ByteBuffer buffer) {
+    this.buffer = buffer.duplicate();
+    this.current = 0;
+    this.bitPos = 8;
+  }
+
+  boolean readBit() {
+    return readBits(1) != 0;
+  }
+
+  /**
+   * @param nrBits the number of bits to read. (0 - 64)
+   * @return the bits read, right aligned.
+   */
+  long readBits(final int nrBits) {
+    long result = 0;
+    int remaining = nrBits;
+    while (remaining > 0) {
+      if (bitPos == 8) {
+        current = buffer.get() & 0xFF;
+        bitPos = 0;
+      }
+      int avail = 8 - bitPos;
+      int n = Math.min(avail, remaining);
+      int bits = (current >>> (avail - n)) & ((1 << n) - 1);
+      result = (result << n) | bits;
+      bitPos += n;
+      remaining -= n;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "BitReader{" + "buffer=" + buffer + ", bitPos=" + bitPos + '}';
+  }
+
+}
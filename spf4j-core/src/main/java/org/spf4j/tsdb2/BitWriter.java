@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Minimal big endian bit stream writer.
+ *
+ * @author zoly
+ */
+final class BitWriter {
+
+  private byte[] buffer;
+
+  private int size;
+
+  private int current;
+
+  private int bitPos;
+
+  BitWriter(final int initialSize) {
+    this.buffer = new byte[Math.max(initialSize, 8)];
+    this.size = 0;
+    this.current = 0;
+    this.bitPos = 0;
+  }
+
+  void writeBit(final boolean bit) {
+    writeBits(bit ? 1 : 0, 1);
+  }
+
+  /**
+   * write the least significant nrBits of value.
+   * @param value the value.
+   * @param nrBits the number of bits (0 - 64).
+   */
+  void writeBits(final long value, final int nrBits) {
+    int remaining = nrBits;
+    while (remaining > 0) {
+      int free = 8 - bitPos;
+      int n = Math.min(free, remaining);
+      int bits = (int) (value >>> (remaining - n)) & ((1 << n) - 1);
+      current |= bits << (free - n);
+      bitPos += n;
+      remaining -= n;
+      if (bitPos == 8) {
+        appendCurrent();
+      }
+    }
+  }
+
+  private void appendCurrent() {
+    if (size >= buffer.length) {
+      buffer = Arrays.copyOf(buffer, buffer.length << 1);
+    }
+    buffer[size++] = (byte) current;
+    current = 0;
+    bitPos = 0;
+  }
+
+  /**
+   * @return the number of bits written.
+   */
+  long getBitSize() {
+    return size * 8L + bitPos;
+  }
+
+  /**
+   * flush any partially written byte and return the written content.
+   * @return
+   */
+  ByteBuffer toByteBuffer() {
+    if (bitPos > 0) {
+      appendCurrent();
+    }
+    return ByteBuffer.wrap(Arrays.copyOf(buffer, size));
+  }
+
+  @Override
+  public String toString() {
+    return "BitWriter{" + "size=" + size + ", bitPos=" + bitPos + '}';
+  }
+
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.hash.TLongObjectHashMap;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.spf4j.tsdb2.avro.ColumnEncoding;
+import org.spf4j.tsdb2.avro.ColumnarDataBlock;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+import org.spf4j.tsdb2.avro.EncodedColumn;
+import org.spf4j.tsdb2.avro.TableColumns;
+
+/**
+ * Conversion between the row based DataBlock and the columnar ColumnarDataBlock.
+ *
+ * In a columnar block, rows are grouped per table. Timestamps are delta of delta encoded, and every column is encoded
+ * either as zig-zag deltas or gorilla style XOR with the previous value, whichever is smaller.
+ * All encoded values are bit packed, a unchanged value (or a unchanged timestamp delta) takes 1 bit.
+ *
+ * Signed value encoding (after zig-zag):
+ * 0 -> '0', up to 4 bits -> '10' + 4 bits, up to 8 bits -> '110' + 8 bits, up to 16 bits -> '1110' + 16 bits,
+ * up to 32 bits -> '11110' + 32 bits, otherwise '11111' + 64 bits.
+ *
+ * @author zoly
+ */
+final class ColumnarBlocks {
+
+  private ColumnarBlocks() { }
+
+  /**
+   * Convert a row block to a columnar block.
+   * @param block the row block.
+   * @return null if the block cannot be converted. (rows of the same table with different number of columns)
+   */
+  @Nullable
+  @SuppressFBWarnings("PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS")
+  static ColumnarDataBlock toColumnar(final DataBlock block) {
+    List<DataRow> rows = block.getValues();
+    TLongObjectHashMap<List<DataRow>> tableRows = new TLongObjectHashMap<>();
+    TLongArrayList tableOrder = new TLongArrayList();
+    for (DataRow row : rows) {
+      long tableId = row.getTableDefId();
+      List<DataRow> tRows = tableRows.get(tableId);
+      if (tRows == null) {
+        tRows = new ArrayList<>();
+        tableRows.put(tableId, tRows);
+        tableOrder.add(tableId);
+      } else if (tRows.get(0).getData().size() != row.getData().size()) {
+        return null;
+      }
+      tRows.add(row);
+    }
+    List<TableColumns> tables = new ArrayList<>(tableOrder.size());
+    for (int i = 0, l = tableOrder.size(); i < l; i++) {
+      long tableId = tableOrder.get(i);
+      tables.add(toTableColumns(tableId, tableRows.get(tableId)));
+    }
+    return new ColumnarDataBlock(block.getBaseTimestamp(), tables);
+  }
+
+  @SuppressFBWarnings("LII_LIST_INDEXED_ITERATING") // row data is a list of longs.
+  private static TableColumns toTableColumns(final long tableId, final List<DataRow> rows) {
+    int nrRows = rows.size();
+    BitWriter tsWriter = new BitWriter(nrRows / 4 + 8);
+    long prevTs = 0;
+    long prevDelta = 0;
+    for (DataRow row : rows) {
+      long ts = row.getRelTimeStamp();
+      long delta = ts - prevTs;
+      writeSigned(tsWriter, delta - prevDelta);
+      prevDelta = delta;
+      prevTs = ts;
+    }
+    int nrColumns = rows.get(0).getData().size();
+    List<EncodedColumn> columns = new ArrayList<>(nrColumns);
+    long[] values = new long[nrRows];
+    for (int c = 0; c < nrColumns; c++) {
+      int r = 0;
+      for (DataRow row : rows) {
+        values[r++] = row.getData().get(c);
+      }
+      BitWriter delta = encodeDelta(values);
+      BitWriter xor = encodeXor(values);
+      if (delta.getBitSize() <= xor.getBitSize()) {
+        columns.add(new EncodedColumn(ColumnEncoding.DELTA, delta.toByteBuffer()));
+      } else {
+        columns.add(new EncodedColumn(ColumnEncoding.XOR, xor.toByteBuffer()));
+      }
+    }
+    return new TableColumns(tableId, nrRows, tsWriter.toByteBuffer(), columns);
+  }
+
+  static BitWriter encodeDelta(final long[] values) {
+    BitWriter writer = new BitWriter(values.length / 4 + 8);
+    long prev = 0;
+    for (long value : values) {
+      writeSigned(writer, value - prev);
+      prev = value;
+    }
+    return writer;
+  }
+
+  static long[] decodeDelta(final ByteBuffer data, final int nrValues) {
+    BitReader reader = new BitReader(data);
+    long[] result = new long[nrValues];
+    long prev = 0;
+    for (int i = 0; i < nrValues; i++) {
+      prev += readSigned(reader);
+      result[i] = prev;
+    }
+    return result;
+  }
+
+  static BitWriter encodeXor(final long[] values) {
+    BitWriter writer = new BitWriter(values.length / 4 + 8);
+    if (values.length == 0) {
+      return writer;
+    }
+    long prev = values[0];
+    writer.writeBits(prev, 64);
+    int prevLeading = -1;
+    int prevTrailing = 0;
+    for (int i = 1; i < values.length; i++) {
+      long value = values[i];
+      long xor = value ^ prev;
+      if (xor == 0) {
+        writer.writeBit(false);
+      } else {
+        writer.writeBit(true);
+        int leading = Math.min(Long.numberOfLeadingZeros(xor), 63);
+        int trailing = Long.numberOfTrailingZeros(xor);
+        if (prevLeading >= 0 && leading >= prevLeading && trailing >= prevTrailing) {
+          writer.writeBit(false);
+          writer.writeBits(xor >>> prevTrailing, 64 - prevLeading - prevTrailing);
+        } else {
+          writer.writeBit(true);
+          int meaningful = 64 - leading - trailing;
+          writer.writeBits(leading, 6);
+          writer.writeBits(meaningful - 1, 6);
+          writer.writeBits(xor >>> trailing, meaningful);
+          prevLeading = leading;
+          prevTrailing = trailing;
+        }
+      }
+      prev = value;
+    }
+    return writer;
+  }
+
+  @SuppressFBWarnings("SUA_SUSPICIOUS_UNINITIALIZED_ARRAY")
+  static long[] decodeXor(final ByteBuffer data, final int nrValues) {
+    long[] result = new long[nrValues];
+    if (nrValues == 0) {
+      return result;
+    }
+    BitReader reader = new BitReader(data);
+    long prev = reader.readBits(64);
+    result[0] = prev;
+    int prevLeading = 0;
+    int prevTrailing = 0;
+    for (int i = 1; i < nrValues; i++) {
+      if (reader.readBit()) {
+        if (reader.readBit()) {
+          prevLeading = (int) reader.readBits(6);
+          int meaningful = (int) reader.readBits(6) + 1;
+          prevTrailing = 64 - prevLeading - meaningful;
+        }
+        prev ^= reader.readBits(64 - prevLeading - prevTrailing) << prevTrailing;
+      }
+      result[i] = prev;
+    }
+    return result;
+  }
+
+  static void writeSigned(final BitWriter writer, final long value) {
+    long zz = (value << 1) ^ (value >> 63);
+    if (zz == 0) {
+      writer.writeBit(false);
+    } else if ((zz >>> 4) == 0) {
+      writer.writeBits(0b10, 2);
+      writer.writeBits(zz, 4);
+    } else if ((zz >>> 8) == 0) {
+      writer.writeBits(0b110, 3);
+      writer.writeBits(zz, 8);
+    } else if ((zz >>> 16) == 0) {
+      writer.writeBits(0b1110, 4);
+      writer.writeBits(zz, 16);
+    } else if ((zz >>> 32) == 0) {
+      writer.writeBits(0b11110, 5);
+      writer.writeBits(zz, 32);
+    } else {
+      writer.writeBits(0b11111, 5);
+      writer.writeBits(zz, 64);
+    }
+  }
+
+  static long readSigned(final BitReader reader) {
+    long zz;
+    if (!reader.readBit()) {
+      return 0;
+    } else if (!reader.readBit()) {
+      zz = reader.readBits(4);
+    } else if (!reader.readBit()) {
+      zz = reader.readBits(8);
+    } else if (!reader.readBit()) {
+      zz = reader.readBits(16);
+    } else if (!reader.readBit()) {
+      zz = reader.readBits(32);
+    } else {
+      zz = reader.readBits(64);
+    }
+    return (zz >>> 1) ^ -(zz & 1);
+  }
+
+  /**
+   * @return the table timestamps relative to the block base timestamp.
+   */
+  static long[] decodeRelTimestamps(final TableColumns table) {
+    int nrRows = table.getNrRows();
+    BitReader reader = new BitReader(table.getTimestamps());
+    long[] result = new long[nrRows];
+    long prevTs = 0;
+    long prevDelta = 0;
+    for (int i = 0; i < nrRows; i++) {
+      prevDelta += readSigned(reader);
+      prevTs += prevDelta;
+      result[i] = prevTs;
+    }
+    return result;
+  }
+
+  /**
+   * @return the table values, [row][column].
+   */
+  static long[][] decodeRows(final TableColumns table) {
+    int nrRows = table.getNrRows();
+    List<EncodedColumn> columns = table.getColumns();
+    int nrColumns = columns.size();
+    long[][] result = new long[nrRows][nrColumns];
+    int c = 0;
+    for (EncodedColumn column : columns) {
+      long[] values;
+      switch (column.getEncoding()) {
+        case DELTA:
+          values = decodeDelta(column.getData(), nrRows);
+          break;
+        case XOR:
+          values = decodeXor(column.getData(), nrRows);
+          break;
+        default:
+          throw new UnsupportedOperationException("Unsupported encoding " + column.getEncoding());
+      }
+      for (int r = 0; r < nrRows; r++) {
+        result[r][c] = values[r];
+      }
+      c++;
+    }
+    return result;
+  }
+
+  /**
+   * Convert a columnar block to a row block, rows will be grouped by table.
+   */
+  static DataBlock toDataBlock(final ColumnarDataBlock block) {
+    List<DataRow> rows = new ArrayList<>();
+    for (TableColumns table : block.getTables()) {
+      long tableId = table.getTableDefId();
+      long[] timestamps = decodeRelTimestamps(table);
+      long[][] values = decodeRows(table);
+      for (int i = 0; i < timestamps.length; i++) {
+        List<Long> data = new ArrayList<>(values[i].length);
+        for (long val : values[i]) {
+          data.add(val);
+        }
+        rows.add(new DataRow((int) timestamps[i], tableId, data));
+      }
+    }
+    return new DataBlock(block.getBaseTimestamp(), rows);
+  }
+
+}
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Arrays;
+
+/**
+ * Aggregated values of all rows of a table in a fixed width time bucket.
+ * For every column min, max, sum and last value are available.
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings("EI_EXPOSE_REP")
+public final class DownsampledRow {
+
+  private final long bucketStart;
+
+  private final long bucketMillis;
+
+  private long count;
+
+  private final long[] min;
+
+  private final long[] max;
+
+  private final long[] sum;
+
+  private final long[] last;
+
+  private long lastTimestamp;
+
+  DownsampledRow(final long bucketStart, final long bucketMillis, final int nrColumns) {
+    this.bucketStart = bucketStart;
+    this.bucketMillis = bucketMillis;
+    this.count = 0;
+    this.min = new long[nrColumns];
+    Arrays.fill(min, Long.MAX_VALUE);
+    this.max = new long[nrColumns];
+    Arrays.fill(max, Long.MIN_VALUE);
+    this.sum = new long[nrColumns];
+    this.last = new long[nrColumns];
+    this.lastTimestamp = Long.MIN_VALUE;
+  }
+
+  /**
+   * aggregate a raw row.
+   */
+  void add(final long timestamp, final long[] values) {
+    int n = Math.min(values.length, min.length);
+    for (int i = 0; i < n; i++) {
+      long value = values[i];
+      if (value < min[i]) {
+        min[i] = value;
+      }
+      if (value > max[i]) {
+        max[i] = value;
+      }
+      sum[i] += value;
+    }
+    if (timestamp >= lastTimestamp) {
+      System.arraycopy(values, 0, last, 0, n);
+      lastTimestamp = timestamp;
+    }
+    count++;
+  }
+
+  /**
+   * aggregate a rollup row. (see RollupCompactor.toRollupRow)
+   */
+  void addRollup(final long timestamp, final long[] rollup) {
+    int n = Math.min((rollup.length - 1) / 4, min.length);
+    int j = 1;
+    for (int i = 0; i < n; i++) {
+      long rmin = rollup[j++];
+      long rmax = rollup[j++];
+      if (rmin < min[i]) {
+        min[i] = rmin;
+      }
+      if (rmax > max[i]) {
+        max[i] = rmax;
+      }
+      sum[i] += rollup[j++];
+      if (timestamp >= lastTimestamp) {
+        last[i] = rollup[j];
+      }
+      j++;
+    }
+    if (timestamp >= lastTimestamp) {
+      lastTimestamp = timestamp;
+    }
+    count += rollup[0];
+  }
+
+  public long getBucketStart() {
+    return bucketStart;
+  }
+
+  public long getBucketEnd() {
+    return bucketStart + bucketMillis;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long[] getMin() {
+    return min;
+  }
+
+  public long[] getMax() {
+    return max;
+  }
+
+  public long[] getSum() {
+    return sum;
+  }
+
+  public long[] getLast() {
+    return last;
+  }
+
+  public long getLastTimestamp() {
+    return lastTimestamp;
+  }
+
+  @Override
+  public String toString() {
+    return "DownsampledRow{" + "bucketStart=" + bucketStart + ", bucketMillis=" + bucketMillis
+            + ", count=" + count + ", min=" + Arrays.toString(min) + ", max=" + Arrays.toString(max)
+            + ", sum=" + Arrays.toString(sum) + ", last=" + Arrays.toString(last) + '}';
+  }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import org.spf4j.base.Handler;
+
+/**
+ * Aggregates rows into fixed width, epoch aligned time buckets, and hands the buckets to a handler
+ * (in time order) as soon as they are complete.
+ *
+ * @author zoly
+ */
+final class Downsampler<E extends Exception> {
+
+  private final long bucketMillis;
+
+  private final Handler<DownsampledRow, E> handler;
+
+  private final TreeMap<Long, DownsampledRow> openBuckets;
+
+  Downsampler(final long bucketMillis, final Handler<DownsampledRow, E> handler) {
+    if (bucketMillis <= 0) {
+      throw new IllegalArgumentException("Invalid bucket size " + bucketMillis);
+    }
+    this.bucketMillis = bucketMillis;
+    this.handler = handler;
+    this.openBuckets = new TreeMap<>();
+  }
+
+  static long bucketStart(final long timestamp, final long bucketMillis) {
+    return timestamp - Math.floorMod(timestamp, bucketMillis);
+  }
+
+  private DownsampledRow getBucket(final long timestamp, final int nrColumns) {
+    long start = bucketStart(timestamp, bucketMillis);
+    DownsampledRow row = openBuckets.get(start);
+    if (row == null) {
+      row = new DownsampledRow(start, bucketMillis, nrColumns);
+      openBuckets.put(start, row);
+    }
+    return row;
+  }
+
+  void add(final long timestamp, final long[] values) {
+    getBucket(timestamp, values.length).add(timestamp, values);
+  }
+
+  void addRollup(final long timestamp, final long[] rollup) {
+    getBucket(timestamp, (rollup.length - 1) / 4).addRollup(timestamp, rollup);
+  }
+
+  /**
+   * Hand over all buckets that end before or at the provided timestamp.
+   * @param timestamp no more data older than this timestamp will be added.
+   */
+  void completeBefore(final long timestamp) throws E {
+    Iterator<Map.Entry<Long, DownsampledRow>> iterator = openBuckets.entrySet().iterator();
+    while (iterator.hasNext()) {
+      DownsampledRow row = iterator.next().getValue();
+      if (row.getBucketEnd() > timestamp) {
+        break;
+      }
+      iterator.remove();
+      handler.handle(row, Long.MAX_VALUE);
+    }
+  }
+
+  void completeAll() throws E {
+    completeBefore(Long.MAX_VALUE);
+  }
+
+  @Override
+  public String toString() {
+    return "Downsampler{" + "bucketMillis=" + bucketMillis + ", openBuckets=" + openBuckets.size() + '}';
+  }
+
+}
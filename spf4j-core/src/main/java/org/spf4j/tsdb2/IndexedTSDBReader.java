@@ -0,0 +1,373 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.io.CountingInputStream;
+import com.google.common.primitives.Longs;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.apache.avro.util.ByteBufferInputStream;
+import org.spf4j.base.Handler;
+import org.spf4j.io.BufferedInputStream;
+import org.spf4j.tsdb2.avro.ColumnarDataBlock;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+import org.spf4j.tsdb2.avro.Header;
+import org.spf4j.tsdb2.avro.TableColumns;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Memory mapped tsdb2 file reader that uses the sparse block index (see TSDBIndex) to only decode the blocks that
+ * overlap the queried time range and contain the queried tables.
+ *
+ * If the file has no index (written by an old version) or the index is stale, the index will be rebuilt
+ * transparently in memory. The reader never writes the index file, see persistIndex.
+ *
+ * @author zoly
+ */
+public final class IndexedTSDBReader implements Closeable {
+
+  private static final boolean CORUPTION_LENIENT = Boolean.getBoolean("spf4j.tsdb2.lenientRead");
+
+  private static final int MAX_MAP_WINDOW = Integer.getInteger("spf4j.tsdb2.maxMapWindowBytes", 64 * 1024 * 1024);
+
+  private final File file;
+  private final FileChannel channel;
+  private final Header header;
+  private final Schema writerSchema;
+  private final SpecificDatumReader<Object> recordReader;
+  private final TSDBIndex index;
+  private long size;
+
+  private MappedByteBuffer window;
+  private long windowOffset;
+
+  public IndexedTSDBReader(final File file) throws IOException {
+    this.file = file;
+    long dataStart;
+    try (CountingInputStream cis = new CountingInputStream(
+            new BufferedInputStream(Files.newInputStream(file.toPath()), 8192));
+            DataInputStream dis = new DataInputStream(cis)) {
+      TSDBWriter.validateType(dis);
+      size = dis.readLong();
+      SpecificDatumReader<Header> reader = new SpecificDatumReader<>(Header.getClassSchema());
+      header = reader.read(null, DecoderFactory.get().directBinaryDecoder(dis, null));
+      dataStart = cis.getCount();
+    }
+    writerSchema = new Schema.Parser().parse(header.getContentSchema());
+    recordReader = new SpecificDatumReader<>(writerSchema, TSDBWriter.FILE_RECORD_SCHEMA);
+    // the index is only read, the data file writer (or persistIndex) maintains the index file.
+    index = TSDBIndex.load(TSDBIndex.getIndexFile(file), dataStart, size);
+    index.scan(file, writerSchema, size, CORUPTION_LENIENT);
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    window = null;
+    windowOffset = -1;
+  }
+
+  /**
+   * Re-read the EOF pointer and index any data written since the last read.
+   * @return true if new data is available.
+   * @throws IOException
+   */
+  public synchronized boolean refresh() throws IOException {
+    ByteBuffer bb = ByteBuffer.allocate(8);
+    long position = TSDBWriter.MAGIC.length;
+    while (bb.hasRemaining()) {
+      int nr = channel.read(bb, position + bb.position());
+      if (nr < 0) {
+        throw new IOException("Unexpected EOF reading " + file);
+      }
+    }
+    bb.flip();
+    long newSize = bb.getLong();
+    if (newSize == size) {
+      return false;
+    }
+    size = newSize;
+    window = null;
+    return index.scan(file, writerSchema, size, CORUPTION_LENIENT);
+  }
+
+  /**
+   * Persist the in memory index to the index file (data file name + ".idx"), so that subsequent readers do not
+   * need to rebuild it. Must not be invoked while a TSDBWriter is writing the data file.
+   * @throws IOException
+   */
+  public synchronized void persistIndex() throws IOException {
+    index.writeTo(TSDBIndex.getIndexFile(file));
+  }
+
+  public Header getHeader() {
+    return header;
+  }
+
+  public synchronized long getSize() {
+    return size;
+  }
+
+  /**
+   * @return the smallest timestamp in this file, Long.MAX_VALUE if the file contains no data.
+   */
+  public synchronized long getMinTimestamp() {
+    return index.getMinTimestamp();
+  }
+
+  /**
+   * @return the largest timestamp in this file, Long.MIN_VALUE if the file contains no data.
+   */
+  public synchronized long getMaxTimestamp() {
+    return index.getMaxTimestamp();
+  }
+
+  public synchronized List<TableDef> getTableDefs() throws IOException {
+    List<TSDBIndex.TableDefEntry> tdEntries = index.getTableDefs();
+    List<TableDef> result = new ArrayList<>(tdEntries.size());
+    for (TSDBIndex.TableDefEntry entry : tdEntries) {
+      result.add((TableDef) readRecord(entry));
+    }
+    return result;
+  }
+
+  /**
+   * Read the data blocks that contain data for any of the provided tables in the provided time range.
+   * The returned blocks can contain rows for other tables or outside of the time range.
+   *
+   * @param tableIds the table ids.
+   * @param startTimeMillis start of the time range (inclusive).
+   * @param endTimeMillis end of the time range (inclusive).
+   * @return the data blocks, in file order.
+   * @throws IOException
+   */
+  public synchronized List<DataBlock> getDataBlocks(final long[] tableIds,
+          final long startTimeMillis, final long endTimeMillis) throws IOException {
+    List<TSDBIndex.BlockEntry> blocks = index.getBlocks();
+    int from = index.getFirstBlockIdx(startTimeMillis);
+    int to = index.getEndBlockIdx(endTimeMillis);
+    List<DataBlock> result = new ArrayList<>();
+    for (int i = from; i < to; i++) {
+      TSDBIndex.BlockEntry entry = blocks.get(i);
+      if (entry.overlaps(startTimeMillis, endTimeMillis) && entry.containsAny(tableIds)) {
+        Object record = readRecord(entry);
+        if (record instanceof ColumnarDataBlock) {
+          result.add(ColumnarBlocks.toDataBlock((ColumnarDataBlock) record));
+        } else {
+          result.add((DataBlock) record);
+        }
+      }
+    }
+    return result;
+  }
+
+  public synchronized TimeSeries getTimeSeries(final long[] tableIds,
+          final long startTimeMillis, final long endTimeMillis) throws IOException {
+    TLongList timestamps = new TLongArrayList();
+    List<long[]> metrics = new ArrayList<>();
+    forEachRow(tableIds, startTimeMillis, endTimeMillis, (ts, values) -> {
+      timestamps.add(ts);
+      metrics.add(values);
+    }, null);
+    return new TimeSeries(timestamps.toArray(), metrics.toArray(new long[metrics.size()][]));
+  }
+
+  /**
+   * Downsample the data of the provided tables in the provided time range, into fixed width time buckets.
+   * Buckets are aligned to epoch, and are handed to the handler in time order as soon as they are complete,
+   * (no bucket will receive any more data) so that only the incomplete buckets are held in memory.
+   *
+   * @param tableIds the table ids.
+   * @param startTimeMillis start of the time range (inclusive).
+   * @param endTimeMillis end of the time range (inclusive).
+   * @param bucketMillis the bucket width.
+   * @param handler the handler the buckets are handed to.
+   */
+  //CHECKSTYLE:OFF
+  public synchronized <E extends Exception> void downsample(final long[] tableIds,
+          final long startTimeMillis, final long endTimeMillis, final long bucketMillis,
+          final Handler<DownsampledRow, E> handler) throws IOException, E {
+    //CHECKSTYLE:ON
+    Downsampler<E> downsampler = new Downsampler<>(bucketMillis, handler);
+    forEachRow(tableIds, startTimeMillis, endTimeMillis, downsampler::add, downsampler::completeBefore);
+    downsampler.completeAll();
+  }
+
+  /**
+   * Handles the rows of a table.
+   */
+  @FunctionalInterface
+  interface RowHandler {
+    void handle(long timestamp, long[] values);
+  }
+
+  /**
+   * Handles the rows of multiple tables.
+   */
+  @FunctionalInterface
+  interface TableRowHandler {
+    void handle(long tableId, long timestamp, long[] values);
+  }
+
+  /**
+   * Handles the end of a block.
+   */
+  @FunctionalInterface
+  interface BlockEndHandler<E extends Exception> {
+    /**
+     * @param minNextTimestamp the smallest timestamp that can be encountered in the next blocks.
+     */
+    void blockEnd(long minNextTimestamp) throws E;
+  }
+
+  /**
+   * Iterate through the rows of the provided tables in the provided time range, in file order.
+   */
+  <E extends Exception> void forEachRow(final long[] tableIds,
+          final long startTimeMillis, final long endTimeMillis,
+          final RowHandler rowHandler, @Nullable final BlockEndHandler<E> blockEndHandler) throws IOException, E {
+    forEachTableRow(tableIds, startTimeMillis, endTimeMillis,
+            (tableId, ts, values) -> rowHandler.handle(ts, values), blockEndHandler);
+  }
+
+  /**
+   * Iterate through the rows of the provided tables in the provided time range, in file order.
+   * Every block is read once, for all the provided tables.
+   */
+  <E extends Exception> void forEachTableRow(final long[] tableIds,
+          final long startTimeMillis, final long endTimeMillis,
+          final TableRowHandler rowHandler, @Nullable final BlockEndHandler<E> blockEndHandler)
+          throws IOException, E {
+    List<TSDBIndex.BlockEntry> blocks = index.getBlocks();
+    int from = index.getFirstBlockIdx(startTimeMillis);
+    int to = index.getEndBlockIdx(endTimeMillis);
+    for (int i = from; i < to; i++) {
+      TSDBIndex.BlockEntry entry = blocks.get(i);
+      if (entry.overlaps(startTimeMillis, endTimeMillis) && entry.containsAny(tableIds)) {
+        Object record = readRecord(entry);
+        if (record instanceof ColumnarDataBlock) {
+          handleColumnarData((ColumnarDataBlock) record, tableIds, startTimeMillis, endTimeMillis, rowHandler);
+        } else {
+          handleRowData((DataBlock) record, tableIds, startTimeMillis, endTimeMillis, rowHandler);
+        }
+        if (blockEndHandler != null) {
+          blockEndHandler.blockEnd(index.getMinTimestampFrom(i + 1));
+        }
+      }
+    }
+  }
+
+  private static void handleRowData(final DataBlock data, final long[] tableIds,
+          final long startTimeMillis, final long endTimeMillis, final TableRowHandler handler) {
+    long baseTs = data.baseTimestamp;
+    for (DataRow row : data.getValues()) {
+      if (Longs.contains(tableIds, row.tableDefId)) {
+        final long ts = baseTs + row.relTimeStamp;
+        if (ts >= startTimeMillis && ts <= endTimeMillis) {
+          handler.handle(row.tableDefId, ts, Longs.toArray(row.data));
+        }
+      }
+    }
+  }
+
+  /**
+   * only the columns of the requested tables are decoded.
+   */
+  private static void handleColumnarData(final ColumnarDataBlock data, final long[] tableIds,
+          final long startTimeMillis, final long endTimeMillis, final TableRowHandler handler) {
+    long baseTs = data.getBaseTimestamp();
+    for (TableColumns table : data.getTables()) {
+      if (!Longs.contains(tableIds, table.getTableDefId())) {
+        continue;
+      }
+      long[] relTs = ColumnarBlocks.decodeRelTimestamps(table);
+      long[][] values = null;
+      for (int i = 0; i < relTs.length; i++) {
+        final long ts = baseTs + relTs[i];
+        if (ts >= startTimeMillis && ts <= endTimeMillis) {
+          if (values == null) {
+            values = ColumnarBlocks.decodeRows(table);
+          }
+          handler.handle(table.getTableDefId(), ts, values[i]);
+        }
+      }
+    }
+  }
+
+  private Object readRecord(final TSDBIndex.Entry entry) throws IOException {
+    long offset = entry.getOffset();
+    int length = entry.getLength();
+    if (window == null || offset < windowOffset || offset + length > windowOffset + window.capacity()) {
+      long mapSize = Math.min(Math.max(MAX_MAP_WINDOW, length), size - offset);
+      window = channel.map(FileChannel.MapMode.READ_ONLY, offset, mapSize);
+      windowOffset = offset;
+    }
+    ByteBuffer slice = window.duplicate();
+    int start = (int) (offset - windowOffset);
+    slice.limit(start + length);
+    slice.position(start);
+    InputStream is = new ByteBufferInputStream(Collections.singletonList(slice));
+    BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(is, null);
+    try {
+      return recordReader.read(null, decoder);
+    } catch (IOException | RuntimeException ex) {
+      throw new IOException("Error reading tsdb file " + file + " at " + offset, ex);
+    }
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    window = null;
+    channel.close();
+  }
+
+  @Override
+  public String toString() {
+    return "IndexedTSDBReader{" + "file=" + file + ", size=" + size + ", index=" + index + '}';
+  }
+
+}
@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.primitives.Longs;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Writes rollup tables (downsampled data) next to the raw tables of a tsdb2 file.
+ *
+ * For every raw table name and rollup tier a table named: tableName + "@rollup:" + tierMillis is written,
+ * with the columns: count, and for every raw column: col.min, col.max, col.sum, col.last.
+ * The timestamp of a rollup row is the start of its (epoch aligned) time bucket.
+ *
+ * Every compact() invocation rolls up all the buckets that have completed since the previous invocation.
+ * A bucket is considered complete when data newer than the bucket end is present in the file for the same table.
+ * Compaction state is recovered from the file, so a compactor can be created for a file that is appended to.
+ * TSDBQuery.getDownsampledTimeSeries uses the rollup tables when possible.
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings("PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS")
+public final class RollupCompactor implements Closeable {
+
+  static final String ROLLUP_SEPARATOR = "@rollup:";
+
+  private final TSDBWriter writer;
+
+  private final long[] tiers;
+
+  private final Map<String, long[]> rawTableIds;
+
+  /**
+   * table name -> rollup state for every tier.
+   */
+  private final Map<String, TierState[]> state;
+
+  private IndexedTSDBReader reader;
+
+  private int nrKnownTableDefs;
+
+  /**
+   * @param writer the writer of the file to compact. rollup rows will be written with this writer.
+   * @param tierMillis the rollup tiers. (bucket widths)
+   */
+  public RollupCompactor(final TSDBWriter writer, final long... tierMillis) {
+    this.writer = writer;
+    for (long tier : tierMillis) {
+      if (tier <= 0 || tier > Integer.MAX_VALUE) {
+        throw new IllegalArgumentException("Invalid tier " + tier);
+      }
+    }
+    this.tiers = tierMillis.clone();
+    this.rawTableIds = new HashMap<>();
+    this.state = new HashMap<>();
+    this.reader = null;
+    this.nrKnownTableDefs = 0;
+  }
+
+  public static String getRollupTableName(final String tableName, final long tierMillis) {
+    return tableName + ROLLUP_SEPARATOR + tierMillis;
+  }
+
+  public static boolean isRollupTable(final String tableName) {
+    return tableName.contains(ROLLUP_SEPARATOR);
+  }
+
+  /**
+   * @return the rollup tier for the rollup table name, or -1 if it is not a rollup table of the raw table name.
+   */
+  static long getRollupTier(final String rawTableName, final String tableName) {
+    if (tableName.length() <= rawTableName.length() + ROLLUP_SEPARATOR.length()
+            || !tableName.startsWith(rawTableName)
+            || !tableName.startsWith(ROLLUP_SEPARATOR, rawTableName.length())) {
+      return -1;
+    }
+    try {
+      return Long.parseLong(tableName.substring(rawTableName.length() + ROLLUP_SEPARATOR.length()));
+    } catch (NumberFormatException ex) {
+      return -1;
+    }
+  }
+
+  /**
+   * Convert a downsampled row to a rollup table row.
+   */
+  static long[] toRollupRow(final DownsampledRow row) {
+    long[] min = row.getMin();
+    long[] max = row.getMax();
+    long[] sum = row.getSum();
+    long[] last = row.getLast();
+    long[] result = new long[1 + min.length * 4];
+    result[0] = row.getCount();
+    int j = 1;
+    for (int i = 0; i < min.length; i++) {
+      result[j++] = min[i];
+      result[j++] = max[i];
+      result[j++] = sum[i];
+      result[j++] = last[i];
+    }
+    return result;
+  }
+
+  static TableDef createRollupTableDef(final TableDef raw, final long tierMillis) {
+    List<ColumnDef> rawColumns = raw.getColumns();
+    List<ColumnDef> columns = new ArrayList<>(rawColumns.size() * 4 + 1);
+    columns.add(ColumnDef.newBuilder().setName("count").setUnitOfMeasurement("count").build());
+    for (ColumnDef col : rawColumns) {
+      String uom = col.getUnitOfMeasurement();
+      columns.add(ColumnDef.newBuilder().setName(col.getName() + ".min").setUnitOfMeasurement(uom).build());
+      columns.add(ColumnDef.newBuilder().setName(col.getName() + ".max").setUnitOfMeasurement(uom).build());
+      columns.add(ColumnDef.newBuilder().setName(col.getName() + ".sum").setUnitOfMeasurement(uom).build());
+      columns.add(ColumnDef.newBuilder().setName(col.getName() + ".last").setUnitOfMeasurement(uom).build());
+    }
+    return TableDef.newBuilder()
+            .setName(getRollupTableName(raw.getName(), tierMillis))
+            .setDescription("rollup of " + raw.getName())
+            .setSampleTime((int) tierMillis)
+            .setColumns(columns)
+            .build();
+  }
+
+  /**
+   * Roll up all buckets completed since the last invocation.
+   * @return the number of rollup rows written.
+   * @throws IOException
+   */
+  public synchronized int compact() throws IOException {
+    if (reader == null) {
+      writer.flush();
+      reader = new IndexedTSDBReader(writer.getFile());
+    } else {
+      reader.refresh();
+    }
+    List<TableDef> tableDefs = reader.getTableDefs();
+    if (tableDefs.size() > nrKnownTableDefs) {
+      updateTables(tableDefs);
+      nrKnownTableDefs = tableDefs.size();
+    }
+    int nrRows = 0;
+    for (Map.Entry<String, long[]> entry : rawTableIds.entrySet()) {
+      String tableName = entry.getKey();
+      long[] ids = entry.getValue();
+      TierState[] tierStates = state.get(tableName);
+      for (TierState ts : tierStates) {
+        nrRows += rollup(ids, ts);
+      }
+    }
+    if (nrRows > 0) {
+      writer.flush();
+    }
+    return nrRows;
+  }
+
+  private int rollup(final long[] rawIds, final TierState ts) throws IOException {
+    List<DownsampledRow> rows = new ArrayList<>();
+    reader.downsample(rawIds, ts.nextBucketStart, Long.MAX_VALUE, ts.tierMillis,
+            (DownsampledRow row, long deadline) -> rows.add(row));
+    // the last bucket might not be complete.
+    int nrComplete = rows.size() - 1;
+    for (int i = 0; i < nrComplete; i++) {
+      DownsampledRow row = rows.get(i);
+      if (ts.rollupTableId < 0) {
+        ts.rollupTableId = writer.writeTableDef(createRollupTableDef(ts.rawTableDef, ts.tierMillis));
+      }
+      writer.writeDataRow(ts.rollupTableId, row.getBucketStart(), toRollupRow(row));
+      ts.nextBucketStart = row.getBucketEnd();
+    }
+    return Math.max(nrComplete, 0);
+  }
+
+  private void updateTables(final List<TableDef> tableDefs) throws IOException {
+    Map<String, List<TableDef>> rollupTables = new HashMap<>();
+    for (TableDef td : tableDefs) {
+      String name = td.getName();
+      if (isRollupTable(name)) {
+        String rawName = name.substring(0, name.lastIndexOf(ROLLUP_SEPARATOR));
+        rollupTables.computeIfAbsent(rawName, (n) -> new ArrayList<>(2)).add(td);
+      } else {
+        long[] ids = rawTableIds.get(name);
+        if (ids == null) {
+          rawTableIds.put(name, new long[] {td.getId()});
+          TierState[] tierStates = new TierState[tiers.length];
+          for (int i = 0; i < tiers.length; i++) {
+            tierStates[i] = new TierState(tiers[i], td);
+          }
+          state.put(name, tierStates);
+        } else if (!Longs.contains(ids, td.getId())) {
+          long[] newIds = Arrays.copyOf(ids, ids.length + 1);
+          newIds[ids.length] = td.getId();
+          rawTableIds.put(name, newIds);
+        }
+      }
+    }
+    // recover state from existing rollup tables.
+    for (Map.Entry<String, List<TableDef>> entry : rollupTables.entrySet()) {
+      TierState[] tierStates = state.get(entry.getKey());
+      if (tierStates == null) {
+        continue;
+      }
+      for (TableDef rollupTd : entry.getValue()) {
+        TierState ts = getTierState(tierStates, getRollupTier(entry.getKey(), rollupTd.getName()));
+        if (ts != null && ts.rollupTableId != rollupTd.getId()) {
+          if (ts.rollupTableId < 0) {
+            ts.rollupTableId = rollupTd.getId();
+          }
+          long[] timestamps = reader.getTimeSeries(new long[] {rollupTd.getId()}, ts.nextBucketStart, Long.MAX_VALUE)
+                  .getTimeStamps();
+          if (timestamps.length > 0) {
+            ts.nextBucketStart = Math.max(ts.nextBucketStart, timestamps[timestamps.length - 1] + ts.tierMillis);
+          }
+        }
+      }
+    }
+  }
+
+  @Nullable
+  private static TierState getTierState(final TierState[] tierStates, final long tierMillis) {
+    for (TierState ts : tierStates) {
+      if (ts.tierMillis == tierMillis) {
+        return ts;
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "RollupCompactor{" + "writer=" + writer + ", tiers=" + Arrays.toString(tiers) + '}';
+  }
+
+  private static final class TierState {
+
+    private final long tierMillis;
+
+    private final TableDef rawTableDef;
+
+    private long rollupTableId;
+
+    private long nextBucketStart;
+
+    TierState(final long tierMillis, final TableDef rawTableDef) {
+      this.tierMillis = tierMillis;
+      this.rawTableDef = rawTableDef;
+      this.rollupTableId = -1;
+      this.nextBucketStart = 0;
+    }
+
+    @Override
+    public String toString() {
+      return "TierState{" + "tierMillis=" + tierMillis + ", rollupTableId=" + rollupTableId
+              + ", nextBucketStart=" + nextBucketStart + '}';
+    }
+
+  }
+
+}
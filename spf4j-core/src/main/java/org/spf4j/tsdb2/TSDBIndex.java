@@ -0,0 +1,567 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.set.hash.TLongHashSet;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import javax.annotation.Nullable;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.specific.SpecificDatumReader;
+import org.spf4j.base.Strings;
+import org.spf4j.io.BufferedInputStream;
+import org.spf4j.io.BufferedOutputStream;
+import org.spf4j.tsdb2.avro.ColumnarDataBlock;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+import org.spf4j.tsdb2.avro.TableColumns;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Sparse index of a tsdb2 file. For every record in the data file the index contains its position and size, and for
+ * data blocks additionally the base timestamp, the min and max row timestamp and the set of table ids present in the
+ * block.
+ *
+ * The index is kept in a side file (data file name + ".idx") that is appended by TSDBWriter on every flush. Since the
+ * index can always be derived from the data file, it is validated against the data file when loaded, and any missing
+ * or invalid tail is rebuilt from the data file. (this allows old files, written without index, to be read with
+ * IndexedTSDBReader)
+ *
+ * @author zoly
+ */
+final class TSDBIndex {
+
+  static final byte[] MAGIC = Strings.toUtf8("TSDB2IDX");
+
+  private static final byte TABLE_DEF = 0;
+
+  private static final byte DATA_BLOCK = 1;
+
+  private final List<Entry> entries;
+
+  private final List<TableDefEntry> tableDefs;
+
+  private final List<BlockEntry> blocks;
+
+  /**
+   * the data file offset up to which this index is complete.
+   */
+  private long coveredSize;
+
+  private int nrPersisted;
+
+  private long[] minSuffix;
+
+  TSDBIndex(final long dataStart) {
+    this.entries = new ArrayList<>();
+    this.tableDefs = new ArrayList<>();
+    this.blocks = new ArrayList<>();
+    this.coveredSize = dataStart;
+    this.nrPersisted = 0;
+    this.minSuffix = null;
+  }
+
+  @SuppressFBWarnings("PATH_TRAVERSAL_IN")
+  static File getIndexFile(final File tsdbFile) {
+    return new File(tsdbFile.getParentFile(), tsdbFile.getName() + ".idx");
+  }
+
+  /**
+   * Load a index from the index file. only entries that are consistent with the data file are loaded.
+   *
+   * @param indexFile the index file.
+   * @param dataStart the offset in the data file of the first record. (right after the header)
+   * @param size the data file EOF pointer.
+   * @return the loaded index. The index might not cover the entire file.
+   * @throws IOException
+   */
+  static TSDBIndex load(final File indexFile, final long dataStart, final long size) throws IOException {
+    TSDBIndex result = new TSDBIndex(dataStart);
+    if (!indexFile.exists()) {
+      return result;
+    }
+    try (DataInputStream dis = new DataInputStream(new BufferedInputStream(
+            Files.newInputStream(indexFile.toPath()), 8192))) {
+      byte[] readMagic = new byte[MAGIC.length];
+      ByteStreams.readFully(dis, readMagic);
+      if (!Arrays.equals(MAGIC, readMagic)) {
+        return result;
+      }
+      while (true) {
+        Entry entry;
+        try {
+          entry = readEntry(dis);
+        } catch (EOFException ex) {
+          // partially written entry, or end of index.
+          break;
+        }
+        if (entry == null || entry.offset != result.coveredSize || entry.getEnd() > size) {
+          break;
+        }
+        result.add(entry);
+      }
+    }
+    result.nrPersisted = result.entries.size();
+    return result;
+  }
+
+  @Nullable
+  private static Entry readEntry(final DataInput dis) throws IOException {
+    byte kind = dis.readByte();
+    long offset = dis.readLong();
+    int length = dis.readInt();
+    switch (kind) {
+      case TABLE_DEF:
+        return new TableDefEntry(offset, length);
+      case DATA_BLOCK:
+        long baseTs = dis.readLong();
+        long minTs = dis.readLong();
+        long maxTs = dis.readLong();
+        int nrIds = dis.readInt();
+        if (nrIds < 0 || nrIds > length / 8) {
+          // corrupted entry, a block cannot contain more ids than it can fit.
+          return null;
+        }
+        long[] ids = new long[nrIds];
+        for (int i = 0; i < nrIds; i++) {
+          ids[i] = dis.readLong();
+        }
+        return new BlockEntry(offset, length, baseTs, minTs, maxTs, ids);
+      default:
+        return null;
+    }
+  }
+
+  /**
+   * Scan the data file from the covered size to the provided size, and index all records found.
+   *
+   * @param tsdbFile the data file.
+   * @param writerSchema the file record schema as written in the file header.
+   * @param size the data file EOF pointer.
+   * @param lenient if true corrupted records will end the scan, otherwise a IOException will be thrown.
+   * @return true if new entries were added.
+   * @throws IOException
+   */
+  @SuppressFBWarnings({"EXS_EXCEPTION_SOFTENING_RETURN_FALSE", "ITC_INHERITANCE_TYPE_CHECKING"})
+  boolean scan(final File tsdbFile, final Schema writerSchema, final long size, final boolean lenient)
+          throws IOException {
+    if (coveredSize >= size) {
+      return false;
+    }
+    SpecificDatumReader<Object> recordReader = new SpecificDatumReader<>(writerSchema,
+            TSDBWriter.FILE_RECORD_SCHEMA);
+    boolean added = false;
+    final long scanStart = coveredSize;
+    try (InputStream fis = Files.newInputStream(tsdbFile.toPath())) {
+      ByteStreams.skipFully(fis, coveredSize);
+      CountingInputStream cis = new CountingInputStream(new BufferedInputStream(fis, 65536));
+      BinaryDecoder decoder = DecoderFactory.get().directBinaryDecoder(cis, null);
+      Object record = null;
+      while (coveredSize < size) {
+        long position = coveredSize;
+        try {
+          record = recordReader.read(record, decoder);
+        } catch (IOException | RuntimeException ex) {
+          if (lenient) {
+            return added;
+          } else {
+            throw new IOException("Error reading tsdb file " + tsdbFile + " at " + position, ex);
+          }
+        }
+        long end = scanStart + cis.getCount();
+        int length = (int) (end - position);
+        if (record instanceof TableDef) {
+          add(new TableDefEntry(position, length));
+        } else if (record instanceof ColumnarDataBlock) {
+          add(createBlockEntry(position, length, (ColumnarDataBlock) record));
+        } else {
+          add(createBlockEntry(position, length, (DataBlock) record));
+        }
+        added = true;
+      }
+    }
+    return added;
+  }
+
+  static BlockEntry createBlockEntry(final long offset, final int length, final DataBlock block) {
+    long baseTs = block.getBaseTimestamp();
+    long minTs = Long.MAX_VALUE;
+    long maxTs = Long.MIN_VALUE;
+    TLongHashSet ids = new TLongHashSet();
+    for (DataRow row : block.getValues()) {
+      long ts = baseTs + row.getRelTimeStamp();
+      if (ts < minTs) {
+        minTs = ts;
+      }
+      if (ts > maxTs) {
+        maxTs = ts;
+      }
+      ids.add(row.getTableDefId());
+    }
+    long[] idArr = ids.toArray();
+    Arrays.sort(idArr);
+    return new BlockEntry(offset, length, baseTs, minTs, maxTs, idArr);
+  }
+
+  static BlockEntry createBlockEntry(final long offset, final int length, final ColumnarDataBlock block) {
+    long baseTs = block.getBaseTimestamp();
+    long minTs = Long.MAX_VALUE;
+    long maxTs = Long.MIN_VALUE;
+    List<TableColumns> tables = block.getTables();
+    TLongHashSet ids = new TLongHashSet(tables.size());
+    for (TableColumns table : tables) {
+      for (long relTs : ColumnarBlocks.decodeRelTimestamps(table)) {
+        long ts = baseTs + relTs;
+        if (ts < minTs) {
+          minTs = ts;
+        }
+        if (ts > maxTs) {
+          maxTs = ts;
+        }
+      }
+      ids.add(table.getTableDefId());
+    }
+    long[] idArr = ids.toArray();
+    Arrays.sort(idArr);
+    return new BlockEntry(offset, length, baseTs, minTs, maxTs, idArr);
+  }
+
+  void add(final Entry entry) {
+    if (entry.offset != coveredSize) {
+      throw new IllegalArgumentException("Entry " + entry + " not contiguous with " + coveredSize);
+    }
+    entries.add(entry);
+    if (entry instanceof BlockEntry) {
+      BlockEntry be = (BlockEntry) entry;
+      if (!blocks.isEmpty()) {
+        be.maxPrefix = Math.max(be.maxTs, blocks.get(blocks.size() - 1).maxPrefix);
+      } else {
+        be.maxPrefix = be.maxTs;
+      }
+      blocks.add(be);
+      minSuffix = null;
+    } else {
+      tableDefs.add((TableDefEntry) entry);
+    }
+    coveredSize = entry.getEnd();
+  }
+
+  /**
+   * Write the index header. (magic)
+   */
+  static void writeHeader(final OutputStream os) throws IOException {
+    os.write(MAGIC);
+  }
+
+  /**
+   * Write all entries that have not been written yet.
+   */
+  void writeNew(final DataOutput out) throws IOException {
+    int size = entries.size();
+    for (Entry entry : entries.subList(nrPersisted, size)) {
+      entry.write(out);
+    }
+    nrPersisted = size;
+  }
+
+  /**
+   * @return the index file size for all persisted entries.
+   */
+  long getPersistedSize() {
+    long result = MAGIC.length;
+    for (Entry entry : entries.subList(0, nrPersisted)) {
+      result += entry.getSerializedSize();
+    }
+    return result;
+  }
+
+  /**
+   * Atomically (re)write the index file with all the entries.
+   * @param indexFile
+   * @throws IOException
+   */
+  @SuppressFBWarnings("NP_NULL_ON_SOME_PATH_FROM_RETURN_VALUE") // index file is always absolute.
+  void writeTo(final File indexFile) throws IOException {
+    Path target = indexFile.getAbsoluteFile().toPath();
+    Path tmp = Files.createTempFile(target.getParent(), indexFile.getName(), ".tmp");
+    try {
+      try (DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 8192))) {
+        writeHeader(dos);
+        nrPersisted = 0;
+        writeNew(dos);
+      }
+      Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException | RuntimeException ex) {
+      Files.deleteIfExists(tmp);
+      throw ex;
+    }
+  }
+
+  long getCoveredSize() {
+    return coveredSize;
+  }
+
+  List<TableDefEntry> getTableDefs() {
+    return tableDefs;
+  }
+
+  List<BlockEntry> getBlocks() {
+    return blocks;
+  }
+
+  /**
+   * @return the index of the first block that might contain data with timestamp >= startTimeMillis.
+   */
+  int getFirstBlockIdx(final long startTimeMillis) {
+    // maxPrefix is monotonic, so we can binary search.
+    int low = 0;
+    int high = blocks.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (blocks.get(mid).maxPrefix < startTimeMillis) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the index (exclusive) of the last block that might contain data with timestamp <= endTimeMillis.
+   */
+  int getEndBlockIdx(final long endTimeMillis) {
+    long[] suffix = getMinSuffix();
+    // minSuffix is monotonic, so we can binary search.
+    int low = 0;
+    int high = suffix.length;
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      if (suffix[mid] <= endTimeMillis) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * @return the min timestamp of the data in the blocks starting with blockIdx.
+   */
+  long getMinTimestampFrom(final int blockIdx) {
+    long[] suffix = getMinSuffix();
+    return blockIdx < suffix.length ? suffix[blockIdx] : Long.MAX_VALUE;
+  }
+
+  /**
+   * @return the min timestamp of all indexed data, Long.MAX_VALUE if there is no data.
+   */
+  long getMinTimestamp() {
+    return getMinTimestampFrom(0);
+  }
+
+  /**
+   * @return the max timestamp of all indexed data, Long.MIN_VALUE if there is no data.
+   */
+  long getMaxTimestamp() {
+    return blocks.isEmpty() ? Long.MIN_VALUE : blocks.get(blocks.size() - 1).maxPrefix;
+  }
+
+  private long[] getMinSuffix() {
+    long[] result = minSuffix;
+    if (result == null) {
+      int nrBlocks = blocks.size();
+      result = new long[nrBlocks];
+      long min = Long.MAX_VALUE;
+      for (int i = nrBlocks - 1; i >= 0; i--) {
+        min = Math.min(min, blocks.get(i).minTs);
+        result[i] = min;
+      }
+      minSuffix = result;
+    }
+    return result;
+  }
+
+  @Override
+  public String toString() {
+    return "TSDBIndex{" + "nrEntries=" + entries.size() + ", coveredSize=" + coveredSize + '}';
+  }
+
+  abstract static class Entry {
+
+    private final long offset;
+
+    private final int length;
+
+    Entry(final long offset, final int length) {
+      this.offset = offset;
+      this.length = length;
+    }
+
+    final long getOffset() {
+      return offset;
+    }
+
+    final int getLength() {
+      return length;
+    }
+
+    final long getEnd() {
+      return offset + length;
+    }
+
+    abstract void write(DataOutput out) throws IOException;
+
+    abstract int getSerializedSize();
+
+  }
+
+  static final class TableDefEntry extends Entry {
+
+    TableDefEntry(final long offset, final int length) {
+      super(offset, length);
+    }
+
+    @Override
+    void write(final DataOutput out) throws IOException {
+      out.writeByte(TABLE_DEF);
+      out.writeLong(getOffset());
+      out.writeInt(getLength());
+    }
+
+    @Override
+    int getSerializedSize() {
+      return 13;
+    }
+
+    @Override
+    public String toString() {
+      return "TableDefEntry{" + "offset=" + getOffset() + ", length=" + getLength() + '}';
+    }
+
+  }
+
+  static final class BlockEntry extends Entry {
+
+    private final long baseTimestamp;
+
+    private final long minTs;
+
+    private final long maxTs;
+
+    private final long[] tableIds;
+
+    private long maxPrefix;
+
+    @SuppressFBWarnings("EI_EXPOSE_REP2")
+    BlockEntry(final long offset, final int length, final long baseTimestamp,
+            final long minTs, final long maxTs, final long[] tableIds) {
+      super(offset, length);
+      this.baseTimestamp = baseTimestamp;
+      this.minTs = minTs;
+      this.maxTs = maxTs;
+      this.tableIds = tableIds;
+    }
+
+    long getBaseTimestamp() {
+      return baseTimestamp;
+    }
+
+    long getMinTs() {
+      return minTs;
+    }
+
+    long getMaxTs() {
+      return maxTs;
+    }
+
+    boolean overlaps(final long startTimeMillis, final long endTimeMillis) {
+      return minTs <= endTimeMillis && maxTs >= startTimeMillis;
+    }
+
+    boolean containsAny(final long[] ids) {
+      for (long id : ids) {
+        if (Arrays.binarySearch(tableIds, id) >= 0) {
+          return true;
+        }
+      }
+      return false;
+    }
+
+    @Override
+    void write(final DataOutput out) throws IOException {
+      out.writeByte(DATA_BLOCK);
+      out.writeLong(getOffset());
+      out.writeInt(getLength());
+      out.writeLong(baseTimestamp);
+      out.writeLong(minTs);
+      out.writeLong(maxTs);
+      out.writeInt(tableIds.length);
+      for (long id : tableIds) {
+        out.writeLong(id);
+      }
+    }
+
+    @Override
+    int getSerializedSize() {
+      return 41 + 8 * tableIds.length;
+    }
+
+    @Override
+    public String toString() {
+      return "BlockEntry{" + "offset=" + getOffset() + ", length=" + getLength() + ", baseTimestamp="
+              + baseTimestamp + ", minTs=" + minTs + ", maxTs=" + maxTs
+              + ", tableIds=" + Arrays.toString(tableIds) + '}';
+    }
+
+  }
+
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import gnu.trove.list.TLongList;
+import gnu.trove.list.array.TLongArrayList;
+import gnu.trove.map.TLongIntMap;
+import gnu.trove.map.hash.TLongIntHashMap;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Predicate;
+import javax.annotation.Nullable;
+import org.spf4j.base.Pair;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.Header;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Queries a set of tsdb2 files (like the files rotated by a process on every restart) as if they were one.
+ *
+ * Files are pruned by header and by the time range of their data (from the file index), the matching files are
+ * scanned in parallel on a ForkJoinPool, and the rows are merged by time into one TimeSeries per table name.
+ * When the definitions of a table differ across files, the result has the union of the columns (by column name,
+ * in order of first appearance) and the values of columns that a file does not have are MISSING.
+ *
+ * @author zoly
+ */
+public final class TSDBMultiFileQuery {
+
+  /**
+   * The value of a column that does not exist in the table definition of the file a row comes from.
+   */
+  public static final long MISSING = Long.MIN_VALUE;
+
+  private TSDBMultiFileQuery() {
+  }
+
+  /**
+   * @param directory the directory to list.
+   * @param glob the file name glob, like: "*.tsdb2".
+   * @return the files matching the glob, sorted by name.
+   * @throws IOException
+   */
+  public static List<File> getFiles(final File directory, final String glob) throws IOException {
+    List<File> result = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory.toPath(), glob)) {
+      for (Path path : stream) {
+        if (Files.isRegularFile(path)) {
+          result.add(path.toFile());
+        }
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
+  public static Map<String, Pair<TableDef, TimeSeries>> getTimeSeries(final File directory, final String glob,
+          @Nullable final Set<String> tableNames, final long startTimeMillis, final long endTimeMillis)
+          throws IOException {
+    return getTimeSeries(ForkJoinPool.commonPool(), getFiles(directory, glob), (h) -> true,
+            tableNames, startTimeMillis, endTimeMillis);
+  }
+
+  /**
+   * Get the time series of the provided tables from multiple files.
+   *
+   * @param pool the pool the files are scanned with.
+   * @param files the tsdb2 files.
+   * @param headerFilter only files with a header matching this filter are scanned.
+   * @param tableNames the table names, null for all tables.
+   * @param startTimeMillis start of the time range (inclusive).
+   * @param endTimeMillis end of the time range (inclusive).
+   * @return table name -> (merged table definition, time series); only tables that have data are returned.
+   * The merged table definition has id -1.
+   * @throws IOException
+   */
+  @SuppressFBWarnings("LEST_LOST_EXCEPTION_STACK_TRACE") // cause is rethrown.
+  public static Map<String, Pair<TableDef, TimeSeries>> getTimeSeries(final ForkJoinPool pool,
+          final Collection<File> files, final Predicate<Header> headerFilter,
+          @Nullable final Set<String> tableNames, final long startTimeMillis, final long endTimeMillis)
+          throws IOException {
+    try {
+      return pool.invoke(new QueryTask(files, headerFilter, tableNames, startTimeMillis, endTimeMillis));
+    } catch (UncheckedIOException ex) {
+      throw ex.getCause();
+    }
+  }
+
+  /**
+   * The data of a table from a single file.
+   */
+  private static final class TablePart {
+
+    private final TableDef tableDef;
+
+    private final long[] timestamps;
+
+    private final long[][] values;
+
+    TablePart(final TableDef tableDef, final TimeSeries series) {
+      this.tableDef = tableDef;
+      this.timestamps = series.getTimeStamps();
+      this.values = series.getValues();
+    }
+
+  }
+
+  private static final class Cursor {
+
+    private final int partIdx;
+
+    private final TablePart part;
+
+    private int row;
+
+    Cursor(final int partIdx, final TablePart part) {
+      this.partIdx = partIdx;
+      this.part = part;
+      this.row = 0;
+    }
+
+  }
+
+  @SuppressFBWarnings("SE_BAD_FIELD") // tasks are never serialized.
+  private static final class QueryTask extends RecursiveTask<Map<String, Pair<TableDef, TimeSeries>>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final Collection<File> files;
+
+    private final Predicate<Header> headerFilter;
+
+    private final Set<String> tableNames;
+
+    private final long startTimeMillis;
+
+    private final long endTimeMillis;
+
+    QueryTask(final Collection<File> files, final Predicate<Header> headerFilter,
+            @Nullable final Set<String> tableNames, final long startTimeMillis, final long endTimeMillis) {
+      this.files = files;
+      this.headerFilter = headerFilter;
+      this.tableNames = tableNames;
+      this.startTimeMillis = startTimeMillis;
+      this.endTimeMillis = endTimeMillis;
+    }
+
+    @Override
+    protected Map<String, Pair<TableDef, TimeSeries>> compute() {
+      List<FileScanTask> tasks = new ArrayList<>(files.size());
+      for (File file : files) {
+        tasks.add(new FileScanTask(file, headerFilter, tableNames, startTimeMillis, endTimeMillis));
+      }
+      invokeAll(tasks);
+      // file order is preserved, so the columns of the merged tables are in a deterministic order.
+      Map<String, List<TablePart>> byName = new LinkedHashMap<>();
+      for (FileScanTask task : tasks) {
+        for (TablePart part : task.join()) {
+          byName.computeIfAbsent(part.tableDef.getName(), (n) -> new ArrayList<>(files.size())).add(part);
+        }
+      }
+      Map<String, Pair<TableDef, TimeSeries>> result = new LinkedHashMap<>(byName.size() + byName.size() / 2);
+      for (Map.Entry<String, List<TablePart>> entry : byName.entrySet()) {
+        result.put(entry.getKey(), merge(entry.getValue()));
+      }
+      return result;
+    }
+
+  }
+
+  @SuppressFBWarnings("SE_BAD_FIELD")
+  private static final class FileScanTask extends RecursiveTask<List<TablePart>> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final File file;
+
+    private final Predicate<Header> headerFilter;
+
+    private final Set<String> tableNames;
+
+    private final long startTimeMillis;
+
+    private final long endTimeMillis;
+
+    FileScanTask(final File file, final Predicate<Header> headerFilter,
+            @Nullable final Set<String> tableNames, final long startTimeMillis, final long endTimeMillis) {
+      this.file = file;
+      this.headerFilter = headerFilter;
+      this.tableNames = tableNames;
+      this.startTimeMillis = startTimeMillis;
+      this.endTimeMillis = endTimeMillis;
+    }
+
+    @Override
+    protected List<TablePart> compute() {
+      try (IndexedTSDBReader reader = new IndexedTSDBReader(file)) {
+        if (!headerFilter.test(reader.getHeader())
+                || reader.getMaxTimestamp() < startTimeMillis || reader.getMinTimestamp() > endTimeMillis) {
+          return Collections.emptyList();
+        }
+        List<TableDef> tables = new ArrayList<>();
+        for (TableDef td : reader.getTableDefs()) {
+          if (tableNames == null || tableNames.contains(td.getName())) {
+            tables.add(td);
+          }
+        }
+        int nrTables = tables.size();
+        if (nrTables == 0) {
+          return Collections.emptyList();
+        }
+        // the blocks are read in one pass, and the rows are split by table.
+        long[] tableIds = new long[nrTables];
+        TLongIntMap id2Idx = new TLongIntHashMap(nrTables + nrTables / 2);
+        TLongList[] timestamps = new TLongList[nrTables];
+        List<List<long[]>> values = new ArrayList<>(nrTables);
+        for (int i = 0; i < nrTables; i++) {
+          tableIds[i] = tables.get(i).getId();
+          id2Idx.put(tableIds[i], i);
+          timestamps[i] = new TLongArrayList();
+          values.add(new ArrayList<>());
+        }
+        reader.forEachTableRow(tableIds, startTimeMillis, endTimeMillis, (tableId, ts, row) -> {
+          int idx = id2Idx.get(tableId);
+          timestamps[idx].add(ts);
+          values.get(idx).add(row);
+        }, null);
+        List<TablePart> result = new ArrayList<>(nrTables);
+        for (int i = 0; i < nrTables; i++) {
+          if (!timestamps[i].isEmpty()) {
+            List<long[]> rows = values.get(i);
+            result.add(new TablePart(tables.get(i),
+                    new TimeSeries(timestamps[i].toArray(), rows.toArray(new long[rows.size()][]))));
+          }
+        }
+        return result;
+      } catch (IOException ex) {
+        throw new UncheckedIOException("Failed querying " + file, ex);
+      }
+    }
+
+  }
+
+  /**
+   * Merge the parts of a table by time. (k-way merge, parts are in time order in the common case)
+   */
+  @SuppressFBWarnings("CLI_CONSTANT_LIST_INDEX")
+  private static Pair<TableDef, TimeSeries> merge(final List<TablePart> parts) {
+    Map<String, Integer> colIdx = new LinkedHashMap<>();
+    List<ColumnDef> columns = new ArrayList<>();
+    int nrParts = parts.size();
+    int[][] colMaps = new int[nrParts][];
+    int total = 0;
+    for (int p = 0; p < nrParts; p++) {
+      TablePart part = parts.get(p);
+      sortByTime(part);
+      List<ColumnDef> partCols = part.tableDef.getColumns();
+      int[] colMap = new int[partCols.size()];
+      for (int i = 0; i < colMap.length; i++) {
+        ColumnDef cd = partCols.get(i);
+        String colName = cd.getName();
+        Integer idx = colIdx.get(colName);
+        if (idx == null) {
+          idx = columns.size();
+          colIdx.put(colName, idx);
+          columns.add(cd);
+        }
+        colMap[i] = idx;
+      }
+      colMaps[p] = colMap;
+      total += part.timestamps.length;
+    }
+    final int nrColumns = columns.size();
+    boolean[] sameLayout = new boolean[nrParts];
+    for (int p = 0; p < nrParts; p++) {
+      sameLayout[p] = isIdentity(colMaps[p], nrColumns);
+    }
+    long[] timestamps = new long[total];
+    long[][] values = new long[total][];
+    // ties are broken by part order, so the merge is stable.
+    PriorityQueue<Cursor> cursors = new PriorityQueue<>(nrParts, (a, b) -> {
+      int cmp = Long.compare(a.part.timestamps[a.row], b.part.timestamps[b.row]);
+      return cmp != 0 ? cmp : Integer.compare(a.partIdx, b.partIdx);
+    });
+    for (int p = 0; p < nrParts; p++) {
+      TablePart part = parts.get(p);
+      if (part.timestamps.length > 0) {
+        cursors.add(new Cursor(p, part));
+      }
+    }
+    int k = 0;
+    Cursor cursor;
+    while ((cursor = cursors.poll()) != null) {
+      int p = cursor.partIdx;
+      TablePart part = cursor.part;
+      int row = cursor.row;
+      timestamps[k] = part.timestamps[row];
+      long[] rowValues = part.values[row];
+      if (sameLayout[p] && rowValues.length == nrColumns) {
+        values[k] = rowValues;
+      } else {
+        long[] mapped = new long[nrColumns];
+        Arrays.fill(mapped, MISSING);
+        int[] colMap = colMaps[p];
+        for (int i = 0, l = Math.min(colMap.length, rowValues.length); i < l; i++) {
+          mapped[colMap[i]] = rowValues[i];
+        }
+        values[k] = mapped;
+      }
+      k++;
+      if (++cursor.row < part.timestamps.length) {
+        cursors.add(cursor);
+      }
+    }
+    TableDef merged = TableDef.newBuilder(parts.get(0).tableDef).setId(-1).setColumns(columns).build();
+    return Pair.of(merged, new TimeSeries(timestamps, values));
+  }
+
+  private static boolean isIdentity(final int[] colMap, final int nrColumns) {
+    if (colMap.length != nrColumns) {
+      return false;
+    }
+    for (int i = 0; i < colMap.length; i++) {
+      if (colMap[i] != i) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * rows are in file order, which is time order unless samples were written out of order.
+   */
+  private static void sortByTime(final TablePart part) {
+    long[] ts = part.timestamps;
+    boolean sorted = true;
+    for (int i = 1; i < ts.length; i++) {
+      if (ts[i] < ts[i - 1]) {
+        sorted = false;
+        break;
+      }
+    }
+    if (sorted) {
+      return;
+    }
+    Integer[] order = new Integer[ts.length];
+    for (int i = 0; i < order.length; i++) {
+      order[i] = i;
+    }
+    Arrays.sort(order, Comparator.comparingLong((Integer i) -> ts[i]));
+    long[] sortedTs = new long[ts.length];
+    long[][] sortedValues = new long[ts.length][];
+    for (int i = 0; i < order.length; i++) {
+      sortedTs[i] = ts[order[i]];
+      sortedValues[i] = part.values[order[i]];
+    }
+    System.arraycopy(sortedTs, 0, ts, 0, ts.length);
+    System.arraycopy(sortedValues, 0, part.values, 0, ts.length);
+  }
+
+}
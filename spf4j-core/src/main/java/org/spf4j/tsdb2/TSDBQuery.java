@@ -34,9 +34,7 @@ package org.spf4j.tsdb2;
 import com.google.common.base.Charsets;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.ListMultimap;
-import com.google.common.primitives.Longs;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
-import gnu.trove.list.TLongList;
 import gnu.trove.list.array.TLongArrayList;
 import gnu.trove.map.TLongObjectMap;
 import gnu.trove.map.hash.TLongObjectHashMap;
@@ -75,13 +73,9 @@ public final class TSDBQuery {
   @SuppressFBWarnings("RV_RETURN_VALUE_IGNORED")
   public static ListMultimap<String, TableDef> getAllTables(final File tsdbFile) throws IOException {
     ListMultimap<String, TableDef> result = ArrayListMultimap.create();
-    try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
-      Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
-        if (read.isLeft()) {
-          final TableDef tdef = read.getLeft();
-          result.put(tdef.getName(), tdef);
-        }
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(tsdbFile)) {
+      for (TableDef tdef : reader.getTableDefs()) {
+        result.put(tdef.getName(), tdef);
       }
     }
     return result;
@@ -92,15 +86,11 @@ public final class TSDBQuery {
   public static ListMultimap<String, TableDef> getTables(final File tsdbFile, final Set<String> tables)
           throws IOException {
     ListMultimap<String, TableDef> result = ArrayListMultimap.create();
-    try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
-      Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
-        if (read.isLeft()) {
-          final TableDef tdef = read.getLeft();
-          final String name = tdef.getName();
-          if (tables.contains(name)) {
-            result.put(name, tdef);
-          }
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(tsdbFile)) {
+      for (TableDef tdef : reader.getTableDefs()) {
+        final String name = tdef.getName();
+        if (tables.contains(name)) {
+          result.put(name, tdef);
         }
       }
     }
@@ -183,45 +173,90 @@ public final class TSDBQuery {
   @Nonnull
   public static List<TableDef> getTableDef(final File tsdbFile, final String tableName) throws IOException {
     List<TableDef> result = new ArrayList<>();
-    try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
-      Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
-        if (read.isLeft()) {
-          TableDef left = read.getLeft();
-          if (Strings.equals(tableName, left.name)) {
-            result.add(left);
-          }
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(tsdbFile)) {
+      for (TableDef tdef : reader.getTableDefs()) {
+        if (Strings.equals(tableName, tdef.name)) {
+          result.add(tdef);
         }
       }
     }
     return result;
   }
 
+  /**
+   * Get the time series data for the provided tables and time range.
+   * Uses the file block index to only decode the data blocks that overlap the time range.
+   */
   public static TimeSeries getTimeSeries(final File tsdbFile, final long[] tableIds,
           final long startTimeMillis, final long endTimeMillis) throws IOException {
-    TLongList timestamps = new TLongArrayList();
-    List<long[]> metrics = new ArrayList<>();
-    try (TSDBReader reader = new TSDBReader(tsdbFile, 8192)) {
-      Either<TableDef, DataBlock> read;
-      while ((read = reader.read()) != null) {
-        if (read.isRight()) {
-          DataBlock data = read.getRight();
-          long baseTs = data.baseTimestamp;
-          for (DataRow row : data.getValues()) {
-            for (long tableId : tableIds) {
-              if (tableId == row.tableDefId) {
-                final long ts = baseTs + row.relTimeStamp;
-                if (ts >= startTimeMillis && ts <= endTimeMillis) {
-                  timestamps.add(ts);
-                  metrics.add(Longs.toArray(row.data));
-                }
-              }
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(tsdbFile)) {
+      return reader.getTimeSeries(tableIds, startTimeMillis, endTimeMillis);
+    }
+  }
+
+  /**
+   * Get the data of a table downsampled in fixed width, epoch aligned time buckets.
+   * If rollup tables (see RollupCompactor) exist for the table with a tier the bucket width is a multiple of,
+   * the rollup data is used, and the raw data is read only for the time ranges not covered by the rollup.
+   *
+   * @param tsdbFile the tsdb2 file.
+   * @param tableName the table name.
+   * @param startTimeMillis start of the time range (inclusive).
+   * @param endTimeMillis end of the time range (inclusive).
+   * @param bucketMillis the bucket width.
+   * @return the time buckets that contain data, in time order.
+   * @throws IOException
+   */
+  public static List<DownsampledRow> getDownsampledTimeSeries(final File tsdbFile, final String tableName,
+          final long startTimeMillis, final long endTimeMillis, final long bucketMillis) throws IOException {
+    List<DownsampledRow> result = new ArrayList<>();
+    Downsampler<RuntimeException> downsampler = new Downsampler<>(bucketMillis,
+            (DownsampledRow row, long deadline) -> result.add(row));
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(tsdbFile)) {
+      TLongArrayList rawIds = new TLongArrayList();
+      TLongObjectMap<TLongArrayList> rollupIds = new TLongObjectHashMap<>();
+      long bestTier = -1;
+      for (TableDef td : reader.getTableDefs()) {
+        String name = td.getName();
+        if (tableName.equals(name)) {
+          rawIds.add(td.getId());
+        } else {
+          long tier = RollupCompactor.getRollupTier(tableName, name);
+          if (tier > 0 && bucketMillis % tier == 0) {
+            TLongArrayList ids = rollupIds.get(tier);
+            if (ids == null) {
+              ids = new TLongArrayList(2);
+              rollupIds.put(tier, ids);
+            }
+            ids.add(td.getId());
+            if (tier > bestTier) {
+              bestTier = tier;
             }
           }
         }
       }
+      long[] raw = rawIds.toArray();
+      long rawStart = startTimeMillis;
+      if (bestTier > 0) {
+        final long tier = bestTier;
+        long alignedStart = Downsampler.bucketStart(startTimeMillis + tier - 1, tier);
+        long alignedEnd = Downsampler.bucketStart(endTimeMillis + 1, tier);
+        if (alignedStart < alignedEnd) {
+          long[] coveredEnd = {Long.MIN_VALUE};
+          reader.forEachRow(rollupIds.get(tier).toArray(), alignedStart, alignedEnd - 1, (ts, values) -> {
+            downsampler.addRollup(ts, values);
+            coveredEnd[0] = Math.max(coveredEnd[0], ts + tier);
+          }, null);
+          if (coveredEnd[0] > alignedStart) {
+            reader.forEachRow(raw, startTimeMillis, alignedStart - 1, downsampler::add, null);
+            rawStart = coveredEnd[0];
+          }
+        }
+      }
+      reader.forEachRow(raw, rawStart, endTimeMillis, downsampler::add, null);
     }
-    return new TimeSeries(timestamps.toArray(), metrics.toArray(new long[metrics.size()][]));
+    downsampler.completeAll();
+    return result;
   }
 
   public static long[] getIds(final Collection<TableDef> tableDefs) {
@@ -46,7 +46,6 @@ import java.nio.file.StandardWatchEventKinds;
 import java.nio.file.WatchEvent;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
-import java.util.Arrays;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
@@ -59,6 +58,7 @@ import org.spf4j.base.Either;
 import org.spf4j.base.Handler;
 import org.spf4j.concurrent.DefaultExecutor;
 import org.spf4j.io.MemorizingBufferedInputStream;
+import org.spf4j.tsdb2.avro.ColumnarDataBlock;
 import org.spf4j.tsdb2.avro.DataBlock;
 import org.spf4j.tsdb2.avro.Header;
 import org.spf4j.tsdb2.avro.TableDef;
@@ -93,8 +93,7 @@ public final  class TSDBReader implements Closeable {
         size = dis.readLong();
         header = reader.read(null, decoder);
         recordReader = new SpecificDatumReader<>(
-                new Schema.Parser().parse(header.getContentSchema()),
-                Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$)));
+                new Schema.Parser().parse(header.getContentSchema()), TSDBWriter.FILE_RECORD_SCHEMA);
     }
 
 
@@ -114,6 +113,11 @@ public final  class TSDBReader implements Closeable {
     }
 
 
+    /**
+     * Read the next record. Columnar blocks are converted to row blocks. (rows will be grouped by table)
+     * @return the next record or null if EOF.
+     * @throws IOException
+     */
     @Nullable
     public synchronized Either<TableDef, DataBlock> read() throws IOException {
         final long position = bis.getCount();
@@ -136,6 +140,8 @@ public final  class TSDBReader implements Closeable {
                 throw new IOException("Table Id should be equal with file position " + position + ", " + td.id);
             }
             return Either.left(td);
+        } else if (result instanceof ColumnarDataBlock) {
+            return Either.right(ColumnarBlocks.toDataBlock((ColumnarDataBlock) result));
         } else {
             return Either.right((DataBlock) result);
         }
@@ -197,20 +203,7 @@ public final  class TSDBReader implements Closeable {
           }
           watch = true;
         }
-        SensitivityWatchEventModifier sensitivity;
-        switch (es) {
-            case LOW:
-                sensitivity = SensitivityWatchEventModifier.LOW;
-                break;
-            case MEDIUM:
-                sensitivity = SensitivityWatchEventModifier.MEDIUM;
-                break;
-            case HIGH:
-                sensitivity = SensitivityWatchEventModifier.HIGH;
-                break;
-            default:
-                throw new UnsupportedOperationException("Unsupported sensitivity " + es);
-        }
+        SensitivityWatchEventModifier sensitivity = toWatchModifier(es);
         final Path path = file.getParentFile().toPath();
         try (WatchService watchService = path.getFileSystem().newWatchService()) {
             path.register(watchService, new WatchEvent.Kind[] {StandardWatchEventKinds.ENTRY_MODIFY,
@@ -244,6 +237,23 @@ public final  class TSDBReader implements Closeable {
         }
     }
 
+    static SensitivityWatchEventModifier toWatchModifier(final EventSensitivity es) {
+        switch (es) {
+            case LOW:
+                return SensitivityWatchEventModifier.LOW;
+            case MEDIUM:
+                return SensitivityWatchEventModifier.MEDIUM;
+            case HIGH:
+                return SensitivityWatchEventModifier.HIGH;
+            default:
+                throw new UnsupportedOperationException("Unsupported sensitivity " + es);
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
     //CHECKSTYLE:OFF
     public synchronized <E extends Exception> void readAll(final Handler<Either<TableDef, DataBlock>, E> handler)
             throws IOException, E {
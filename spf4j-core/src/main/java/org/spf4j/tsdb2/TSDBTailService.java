@@ -0,0 +1,471 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.sun.nio.file.SensitivityWatchEventModifier;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.Either;
+import org.spf4j.base.Handler;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ * Tails many tsdb2 files using a single WatchService thread.
+ *
+ * Every subscribed file has its own TSDBReader that keeps its read offset, and a bounded read-ahead queue.
+ * When a file changes, the watcher thread re-reads the EOF pointer (reReadSize) and decodes records only
+ * while there is room in the queue, so a slow handler will leave the reader where it is instead of buffering
+ * the whole file in memory (back-pressure). Records are delivered to the handlers on the handler executor,
+ * in file order, by at most one task per subscription at a time.
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings("IICU_INCORRECT_INTERNAL_CLASS_USE")
+public final class TSDBTailService implements Closeable {
+
+  private static final Logger LOG = LoggerFactory.getLogger(TSDBTailService.class);
+
+  private static final int DEFAULT_MAX_PENDING = Integer.getInteger("spf4j.tsdb2.tail.maxPendingPerFile", 64);
+
+  private static final long POLL_MILLIS = Long.getLong("spf4j.tsdb2.tail.pollMillis", 1000L);
+
+  private final SensitivityWatchEventModifier sensitivity;
+
+  private final int maxPendingPerFile;
+
+  private final Executor handlerExecutor;
+
+  @GuardedBy("this")
+  private final Map<Path, DirWatch> directories;
+
+  @GuardedBy("this")
+  private WatchService watchService;
+
+  @GuardedBy("this")
+  private Thread watcher;
+
+  private volatile boolean closed;
+
+  public TSDBTailService() {
+    this(TSDBReader.EventSensitivity.MEDIUM, DEFAULT_MAX_PENDING, DefaultExecutor.INSTANCE);
+  }
+
+  /**
+   * @param es the watch event sensitivity.
+   * @param maxPendingPerFile the maximum number of decoded records waiting for a handler, per file.
+   * @param handlerExecutor the executor the handlers are invoked on.
+   */
+  public TSDBTailService(final TSDBReader.EventSensitivity es, final int maxPendingPerFile,
+          final Executor handlerExecutor) {
+    if (maxPendingPerFile < 1) {
+      throw new IllegalArgumentException("Invalid maxPendingPerFile " + maxPendingPerFile);
+    }
+    this.sensitivity = TSDBReader.toWatchModifier(es);
+    this.maxPendingPerFile = maxPendingPerFile;
+    this.handlerExecutor = handlerExecutor;
+    this.directories = new HashMap<>();
+  }
+
+  /**
+   * Subscribe to a tsdb2 file. The handler will receive all records from the beginning of the file,
+   * followed by every record appended to it, until the subscription is canceled or the service is closed.
+   * A handler exception will cancel the subscription.
+   *
+   * @param file the file to tail.
+   * @param handler the record handler.
+   * @return the subscription.
+   * @throws IOException
+   */
+  //CHECKSTYLE:OFF
+  public <E extends Exception> Subscription<E> subscribe(final File file,
+          final Handler<Either<TableDef, DataBlock>, E> handler) throws IOException {
+    //CHECKSTYLE:ON
+    final File absFile = file.getAbsoluteFile();
+    Subscription<E> sub = new Subscription<>(new TSDBReader(absFile, 8192), handler);
+    try {
+      register(sub);
+    } catch (IOException | RuntimeException ex) {
+      sub.reader.close();
+      throw ex;
+    }
+    sub.fillAndDrain();
+    return sub;
+  }
+
+  private synchronized void register(final Subscription<?> sub) throws IOException {
+    if (closed) {
+      throw new IllegalStateException("Service is closed " + this);
+    }
+    if (watchService == null) {
+      watchService = FileSystems.getDefault().newWatchService();
+    }
+    Path dir = sub.path.getParent();
+    DirWatch dw = directories.get(dir);
+    if (dw == null) {
+      WatchKey key = dir.register(watchService, new WatchEvent.Kind[] {StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.OVERFLOW
+      }, sensitivity);
+      dw = new DirWatch(key);
+      directories.put(dir, dw);
+    }
+    dw.subscriptions.add(sub);
+    if (watcher == null) {
+      watcher = new Thread(new Runnable() {
+        @Override
+        public void run() {
+          watchLoop();
+        }
+      }, "spf4j-tsdb2-tail");
+      watcher.setDaemon(true);
+      watcher.start();
+    }
+  }
+
+  private synchronized void unregister(final Subscription<?> sub) {
+    Path dir = sub.path.getParent();
+    DirWatch dw = directories.get(dir);
+    if (dw != null && dw.subscriptions.remove(sub) && dw.subscriptions.isEmpty()) {
+      dw.key.cancel();
+      directories.remove(dir);
+    }
+  }
+
+  @Nullable
+  private synchronized DirWatch getDirWatch(final Path dir) {
+    return directories.get(dir);
+  }
+
+  private synchronized DirWatch[] getDirWatches() {
+    return directories.values().toArray(new DirWatch[directories.size()]);
+  }
+
+  private synchronized WatchService getWatchService() {
+    return watchService;
+  }
+
+  private void watchLoop() {
+    WatchService ws = getWatchService();
+    try {
+      while (!closed) {
+        WatchKey key = ws.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+        if (key == null) {
+          // no events, check all files, file systems might not report all changes.
+          for (DirWatch dw : getDirWatches()) {
+            for (Subscription<?> sub : dw.subscriptions) {
+              sub.fillAndDrain();
+            }
+          }
+          continue;
+        }
+        Path dir = (Path) key.watchable();
+        DirWatch dw = getDirWatch(dir);
+        List<WatchEvent<?>> events = key.pollEvents();
+        if (dw != null) {
+          for (WatchEvent<?> event : events) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+              for (Subscription<?> sub : dw.subscriptions) {
+                sub.fillAndDrain();
+              }
+            } else {
+              Path changed = dir.resolve((Path) event.context());
+              for (Subscription<?> sub : dw.subscriptions) {
+                if (sub.path.equals(changed)) {
+                  sub.fillAndDrain();
+                }
+              }
+            }
+          }
+        }
+        key.reset();
+      }
+    } catch (ClosedWatchServiceException ex) {
+      LOG.debug("Watch service closed", ex);
+    } catch (InterruptedException ex) {
+      LOG.debug("Watcher interrupted", ex);
+    } catch (RuntimeException ex) {
+      LOG.error("Unexpected watcher failure, {}", this, ex);
+    } finally {
+      watcherExited();
+    }
+  }
+
+  /**
+   * Allow a new watcher to be started by the next subscription, if this one ends while the service is open.
+   */
+  private synchronized void watcherExited() {
+    if (watcher == Thread.currentThread()) {
+      watcher = null;
+    }
+  }
+
+  /**
+   * @return the number of active subscriptions.
+   */
+  public synchronized int getNrSubscriptions() {
+    int result = 0;
+    for (DirWatch dw : directories.values()) {
+      result += dw.subscriptions.size();
+    }
+    return result;
+  }
+
+  /**
+   * Close the service, canceling all subscriptions.
+   */
+  @Override
+  @SuppressFBWarnings("NOS_NON_OWNED_SYNCHRONIZATION")
+  public void close() throws IOException {
+    DirWatch[] dws;
+    WatchService ws;
+    Thread w;
+    synchronized (this) {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      dws = directories.values().toArray(new DirWatch[directories.size()]);
+      ws = watchService;
+      w = watcher;
+    }
+    for (DirWatch dw : dws) {
+      for (Subscription<?> sub : dw.subscriptions) {
+        sub.cancel();
+      }
+    }
+    if (ws != null) {
+      ws.close();
+    }
+    if (w != null) {
+      try {
+        w.join(POLL_MILLIS * 2);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  @Override
+  public String toString() {
+    return "TSDBTailService{" + "maxPendingPerFile=" + maxPendingPerFile + ", closed=" + closed + '}';
+  }
+
+  private static final class DirWatch {
+
+    private final WatchKey key;
+
+    private final List<Subscription<?>> subscriptions;
+
+    DirWatch(final WatchKey key) {
+      this.key = key;
+      this.subscriptions = new CopyOnWriteArrayList<>();
+    }
+
+  }
+
+  /**
+   * A file subscription.
+   */
+  public final class Subscription<E extends Exception> implements Closeable {
+
+    private final TSDBReader reader;
+
+    private final Path path;
+
+    private final Handler<Either<TableDef, DataBlock>, E> handler;
+
+    private final BlockingQueue<Either<TableDef, DataBlock>> pending;
+
+    private final AtomicBoolean draining;
+
+    private final Runnable drainTask;
+
+    private volatile boolean canceled;
+
+    Subscription(final TSDBReader reader, final Handler<Either<TableDef, DataBlock>, E> handler) {
+      this.reader = reader;
+      this.path = reader.getFile().toPath();
+      this.handler = handler;
+      this.pending = new ArrayBlockingQueue<>(maxPendingPerFile);
+      this.draining = new AtomicBoolean();
+      this.drainTask = new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      };
+    }
+
+    /**
+     * Decode records into the read-ahead queue, while there is room in it.
+     * The EOF pointer is re-read only once the reader caught up with the last known one.
+     */
+    private synchronized void fill() throws IOException {
+      if (canceled) {
+        return;
+      }
+      boolean sizeRefreshed = false;
+      while (pending.remainingCapacity() > 0) {
+        Either<TableDef, DataBlock> data = reader.read();
+        if (data == null) {
+          if (sizeRefreshed || !reader.reReadSize()) {
+            break;
+          }
+          sizeRefreshed = true;
+        } else {
+          pending.add(data);
+        }
+      }
+    }
+
+    void fillAndDrain() {
+      try {
+        fill();
+      } catch (IOException | RuntimeException ex) {
+        LOG.error("Failed reading {}, canceling subscription", path, ex);
+        cancel();
+        return;
+      }
+      scheduleDrain();
+    }
+
+    /**
+     * Schedule the handler invocation, if the handler executor rejects, this subscription is canceled.
+     * (failures are isolated to the subscription, the watcher must keep serving the other subscriptions)
+     */
+    private void scheduleDrain() {
+      if (!canceled && !pending.isEmpty() && draining.compareAndSet(false, true)) {
+        try {
+          handlerExecutor.execute(drainTask);
+        } catch (RuntimeException ex) {
+          draining.set(false);
+          LOG.error("Failed scheduling handling of records from {}, canceling subscription", path, ex);
+          cancel();
+        }
+      }
+    }
+
+    @SuppressFBWarnings("REC_CATCH_EXCEPTION")
+    private void drain() {
+      try {
+        while (!canceled) {
+          Either<TableDef, DataBlock> data = pending.poll();
+          if (data == null) {
+            fill();
+            data = pending.poll();
+            if (data == null) {
+              break;
+            }
+          }
+          handler.handle(data, Long.MAX_VALUE);
+        }
+      } catch (Exception ex) {
+        LOG.error("Failed handling records from {}, canceling subscription", path, ex);
+        cancel();
+      } finally {
+        draining.set(false);
+      }
+      // records might have been added after the last poll, but before draining was reset.
+      scheduleDrain();
+    }
+
+    public File getFile() {
+      return reader.getFile();
+    }
+
+    /**
+     * @return the number of decoded records waiting to be handled.
+     */
+    public int getNrPending() {
+      return pending.size();
+    }
+
+    public boolean isCanceled() {
+      return canceled;
+    }
+
+    /**
+     * Stop tailing the file and release its resources. Records in flight might still be delivered.
+     */
+    @SuppressFBWarnings("NOS_NON_OWNED_SYNCHRONIZATION")
+    public void cancel() {
+      synchronized (this) {
+        if (canceled) {
+          return;
+        }
+        canceled = true;
+        pending.clear();
+        try {
+          reader.close();
+        } catch (IOException ex) {
+          LOG.warn("Failed closing {}", reader, ex);
+        }
+      }
+      unregister(this);
+    }
+
+    @Override
+    public void close() {
+      cancel();
+    }
+
+    @Override
+    public String toString() {
+      return "Subscription{" + "path=" + path + ", pending=" + pending.size() + ", canceled=" + canceled + '}';
+    }
+
+  }
+
+}
@@ -32,20 +32,26 @@
 package org.spf4j.tsdb2;
 
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import com.google.common.primitives.Longs;
 import edu.umd.cs.findbugs.annotations.CreatesObligation;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import java.io.Closeable;
 import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.Flushable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
 import org.apache.avro.Schema;
 import org.apache.avro.io.BinaryDecoder;
 import org.apache.avro.io.BinaryEncoder;
@@ -53,10 +59,13 @@ import org.apache.avro.io.DecoderFactory;
 import org.apache.avro.io.EncoderFactory;
 import org.apache.avro.specific.SpecificDatumReader;
 import org.apache.avro.specific.SpecificDatumWriter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.spf4j.base.Strings;
 import org.spf4j.io.BufferedInputStream;
 import org.spf4j.io.ByteArrayBuilder;
 import org.spf4j.recyclable.impl.ArraySuppliers;
+import org.spf4j.tsdb2.avro.ColumnarDataBlock;
 import org.spf4j.tsdb2.avro.DataBlock;
 import org.spf4j.tsdb2.avro.DataRow;
 import org.spf4j.tsdb2.avro.Header;
@@ -66,31 +75,129 @@ import org.spf4j.tsdb2.avro.TableDef;
  * Second generation Time-Series database format. The linked list structure from first generation is dropped to reduce
  * write overhead.
  *
+ * Next to the data file a sparse block index is maintained (see TSDBIndex), which allows IndexedTSDBReader to seek
+ * to the blocks that contain data for a time range without decoding the whole file.
  *
  * @author zoly
  */
 public final class TSDBWriter implements Closeable, Flushable {
 
   public static final Schema FILE_RECORD_SCHEMA
+          = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$, ColumnarDataBlock.SCHEMA$));
+
+  /**
+   * The record schema of files written without columnar blocks. (readable by older versions)
+   */
+  public static final Schema LEGACY_FILE_RECORD_SCHEMA
           = Schema.createUnion(Arrays.asList(TableDef.SCHEMA$, DataBlock.SCHEMA$));
 
+  /**
+   * Columnar blocks are opt in, files written with them cannot be read by older readers.
+   */
+  private static final boolean COLUMNAR_BLOCKS
+          = Boolean.parseBoolean(System.getProperty("spf4j.tsdb2.columnarBlocks", "false"));
+
+  private static final Durability DURABILITY
+          = Durability.valueOf(System.getProperty("spf4j.tsdb2.durability", "FORCE_ON_FLUSH"));
+
+  private static final long FORCE_INTERVAL_MILLIS = Long.getLong("spf4j.tsdb2.forceIntervalMillis", 5000L);
+
+  /**
+   * When data is forced to the storage device.
+   */
+  public enum Durability {
+    /**
+     * Every flush forces the data to disk before the EOF pointer is updated. Concurrent flushes are group committed,
+     * (one force for all blocks written while the previous force was in progress)
+     */
+    FORCE_ON_FLUSH,
+    /**
+     * The EOF pointer is updated on every flush, the data is forced at most once every force interval,
+     * and on close.
+     */
+    FORCE_PERIODIC,
+    /**
+     * The EOF pointer is updated on every flush, the data is never forced, and we rely on the OS to write it.
+     */
+    NO_FORCE
+  }
+
   static final byte[] MAGIC = Strings.toUtf8("TSDB2");
 
+  private static final Logger LOG = LoggerFactory.getLogger(TSDBWriter.class);
+
   private final File file;
   private final FileChannel channel;
   private final BinaryEncoder encoder;
   private final Header header;
-  private final SpecificDatumWriter<Object> recordWriter = new SpecificDatumWriter<>(FILE_RECORD_SCHEMA);
+  private final SpecificDatumWriter<Object> recordWriter;
+  private final boolean columnar;
   private final DataBlock writeBlock;
   private final int maxRowsPerBlock;
   private final RandomAccessFile raf;
 
   private final ByteArrayBuilder bab;
 
+  private final RandomAccessFile idxRaf;
+  private final ByteArrayBuilder idxBab;
+  private final DataOutputStream idxOut;
+  @Nullable
+  private TSDBIndex index;
+
+  private final Durability durability;
+  private final long forceIntervalNanos;
+  private final Object commitSync;
+  private final ByteBuffer eofPtrBuffer;
+  /**
+   * end of the data written to the file.
+   */
+  private volatile long writtenEof;
+  /**
+   * end of the data that was forced to the storage device, guarded by commitSync.
+   */
+  private long durableEof;
+  private volatile long lastForceNanos;
+
   @CreatesObligation
   public TSDBWriter(final File file, final int maxRowsPerBlock,
           final String description, final boolean append) throws IOException {
+    this(file, maxRowsPerBlock, description, append, COLUMNAR_BLOCKS);
+  }
+
+  /**
+   * @param file the file to write.
+   * @param maxRowsPerBlock the max number of rows to buffer before writing a data block.
+   * @param description the file description. (must be null when appending to a existing file)
+   * @param append append to existing file if true, overwrite otherwise.
+   * @param columnarBlocks write data in columnar blocks. (see ColumnarBlocks)
+   * When appending to a existing file, this is ignored and the format of the file is preserved.
+   * @throws IOException
+   */
+  @CreatesObligation
+  public TSDBWriter(final File file, final int maxRowsPerBlock,
+          final String description, final boolean append, final boolean columnarBlocks) throws IOException {
+    this(file, maxRowsPerBlock, description, append, columnarBlocks, DURABILITY, FORCE_INTERVAL_MILLIS);
+  }
+
+  /**
+   * @param file the file to write.
+   * @param maxRowsPerBlock the max number of rows to buffer before writing a data block.
+   * @param description the file description. (must be null when appending to a existing file)
+   * @param append append to existing file if true, overwrite otherwise.
+   * @param columnarBlocks write data in columnar blocks. (see ColumnarBlocks)
+   * @param durability when data is forced to the storage device.
+   * @param forceIntervalMillis the force interval for Durability.FORCE_PERIODIC.
+   * @throws IOException
+   */
+  @CreatesObligation
+  public TSDBWriter(final File file, final int maxRowsPerBlock,
+          final String description, final boolean append, final boolean columnarBlocks,
+          final Durability durability, final long forceIntervalMillis) throws IOException {
     this.file = file;
+    this.durability = durability;
+    this.forceIntervalNanos = TimeUnit.MILLISECONDS.toNanos(forceIntervalMillis);
+    this.commitSync = new Object();
+    this.eofPtrBuffer = ByteBuffer.allocate(8);
     this.maxRowsPerBlock = maxRowsPerBlock;
     this.writeBlock = new DataBlock();
     this.writeBlock.baseTimestamp = System.currentTimeMillis();
@@ -108,8 +215,11 @@ public final class TSDBWriter implements Closeable, Flushable {
       // new file or overwite, will write header;
       bab.write(MAGIC);
       toOutputStream(0, bab);
+      Schema contentSchema = columnarBlocks ? FILE_RECORD_SCHEMA : LEGACY_FILE_RECORD_SCHEMA;
+      columnar = columnarBlocks;
+      recordWriter = new SpecificDatumWriter<>(contentSchema);
       header = Header.newBuilder()
-              .setContentSchema(FILE_RECORD_SCHEMA.toString())
+              .setContentSchema(contentSchema.toString())
               .setDescription(description)
               .build();
       SpecificDatumWriter<Header> headerWriter = new SpecificDatumWriter<>(Header.SCHEMA$);
@@ -120,20 +230,73 @@ public final class TSDBWriter implements Closeable, Flushable {
       toByteArray(size, buffer, MAGIC.length);
       raf.write(buffer, 0, size);
       channel.force(true);
+      index = new TSDBIndex(size);
+      writtenEof = size;
     } else {
       if (description != null) {
         throw new IllegalArgumentException("Providing description when appending is not allowed for " + file);
       }
 
-      try (BufferedInputStream bis = new BufferedInputStream(Files.newInputStream(file.toPath()));
-              DataInputStream dis = new DataInputStream(bis)) {
+      long size;
+      long dataStart;
+      try (CountingInputStream cis = new CountingInputStream(
+              new BufferedInputStream(Files.newInputStream(file.toPath())));
+              DataInputStream dis = new DataInputStream(cis)) {
         validateType(dis);
-        long size = dis.readLong();
+        size = dis.readLong();
         SpecificDatumReader<Header> reader = new SpecificDatumReader<>(Header.getClassSchema());
         BinaryDecoder directBinaryDecoder = DecoderFactory.get().directBinaryDecoder(dis, null);
         header = reader.read(null, directBinaryDecoder);
+        dataStart = cis.getCount();
         raf.seek(size);
       }
+      Schema contentSchema = new Schema.Parser().parse(header.getContentSchema());
+      columnar = contentSchema.getIndexNamed(ColumnarDataBlock.SCHEMA$.getFullName()) != null;
+      recordWriter = new SpecificDatumWriter<>(contentSchema);
+      index = loadIndex(file, contentSchema, dataStart, size);
+      writtenEof = size;
+    }
+    durableEof = writtenEof;
+    lastForceNanos = System.nanoTime();
+    idxBab = new ByteArrayBuilder(1024, ArraySuppliers.Bytes.JAVA_NEW);
+    idxOut = new DataOutputStream(idxBab);
+    File idxFile = TSDBIndex.getIndexFile(file);
+    if (index == null) {
+      idxRaf = null;
+      Files.deleteIfExists(idxFile.toPath());
+    } else {
+      idxRaf = new RandomAccessFile(idxFile, "rw");
+      long persistedSize = index.getPersistedSize();
+      if (persistedSize <= TSDBIndex.MAGIC.length) {
+        idxRaf.setLength(0);
+        idxRaf.write(TSDBIndex.MAGIC);
+      } else {
+        idxRaf.setLength(persistedSize);
+        idxRaf.seek(persistedSize);
+      }
+      writeIndex();
+    }
+  }
+
+  @Nullable
+  private static TSDBIndex loadIndex(final File file, final Schema contentSchema,
+          final long dataStart, final long size) throws IOException {
+    TSDBIndex idx = TSDBIndex.load(TSDBIndex.getIndexFile(file), dataStart, size);
+    try {
+      idx.scan(file, contentSchema, size, false);
+    } catch (IOException ex) {
+      LOG.warn("Unable to index {}, index will not be maintained", file, ex);
+      return null;
+    }
+    return idx;
+  }
+
+  private void writeIndex() throws IOException {
+    if (index != null) {
+      idxBab.reset();
+      index.writeNew(idxOut);
+      idxOut.flush();
+      idxRaf.write(idxBab.getBuffer(), 0, idxBab.size());
     }
   }
 
@@ -151,30 +314,57 @@ public final class TSDBWriter implements Closeable, Flushable {
     tableDef.id = position;
     recordWriter.write(tableDef, encoder);
     encoder.flush();
-    raf.write(bab.getBuffer(), 0, bab.size());
+    final int size = bab.size();
+    raf.write(bab.getBuffer(), 0, size);
+    if (index != null) {
+      index.add(new TSDBIndex.TableDefEntry(position, size));
+    }
     return position;
   }
 
-  public synchronized void writeDataRow(final long tableId, final long timestamp, final long... data)
+  @SuppressFBWarnings("NOS_NON_OWNED_SYNCHRONIZATION")
+  public void writeDataRow(final long tableId, final long timestamp, final long... data)
           throws IOException {
-    if (this.writeBlock.values.size() >= this.maxRowsPerBlock) {
-      flush();
+    long eof = -1;
+    synchronized (this) {
+      if (this.writeBlock.values.size() >= this.maxRowsPerBlock) {
+        eof = writeBlock();
+      }
+      long relTs = timestamp - writeBlock.baseTimestamp;
+      if (relTs != (int) relTs && !writeBlock.values.isEmpty()) {
+        // relative timestamp does not fit, start a new block.
+        eof = writeBlock();
+      }
+      if (writeBlock.values.isEmpty()) {
+        writeBlock.baseTimestamp = timestamp;
+        relTs = 0;
+      }
+      DataRow row = new DataRow();
+      row.relTimeStamp = (int) relTs;
+      row.tableDefId = tableId;
+      row.setData(Longs.asList(data));
+      this.writeBlock.values.add(row);
+    }
+    if (eof >= 0) {
+      commit(eof, false);
     }
-    long baseTs = writeBlock.baseTimestamp;
-    DataRow row = new DataRow();
-    row.relTimeStamp = (int) (timestamp - baseTs);
-    row.tableDefId = tableId;
-    row.setData(Longs.asList(data));
-    this.writeBlock.values.add(row);
   }
 
   @Override
   public synchronized void close() throws IOException {
-    try (RandomAccessFile f = raf) {
-      flush();
+    try (RandomAccessFile f = raf; RandomAccessFile idxf = idxRaf) {
+      commit(writeBlock(), true);
     }
   }
 
+  public Durability getDurability() {
+    return durability;
+  }
+
+  public boolean isColumnar() {
+    return columnar;
+  }
+
   public File getFile() {
     return file;
   }
@@ -196,29 +386,108 @@ public final class TSDBWriter implements Closeable, Flushable {
   }
 
   /**
-   * Commits the data to disk.
+   * Writes the buffered rows to the file, and depending on the durability policy, forces the data to disk.
+   * The data is visible to readers after the EOF pointer is updated.
    *
    * @throws IOException
    */
   @Override
-  public synchronized void flush() throws IOException {
+  @SuppressFBWarnings("NOS_NON_OWNED_SYNCHRONIZATION")
+  public void flush() throws IOException {
+    long eof;
+    synchronized (this) {
+      eof = writeBlock();
+    }
+    commit(eof, false);
+  }
+
+  /**
+   * write the buffered rows as a block.
+   * @return the end of the written data.
+   */
+  private long writeBlock() throws IOException {
     if (writeBlock.getValues().size() > 0) {
+      final long position = raf.getFilePointer();
       bab.reset();
-      this.recordWriter.write(writeBlock, this.encoder);
+      ColumnarDataBlock columnarBlock = columnar ? ColumnarBlocks.toColumnar(writeBlock) : null;
+      if (columnarBlock != null) {
+        this.recordWriter.write(columnarBlock, this.encoder);
+      } else {
+        this.recordWriter.write(writeBlock, this.encoder);
+      }
       encoder.flush();
-      raf.write(bab.getBuffer(), 0, bab.size());
-      channel.force(true);
-      updateEOFPtrPointer();
+      final int size = bab.size();
+      raf.write(bab.getBuffer(), 0, size);
+      if (index != null) {
+        index.add(TSDBIndex.createBlockEntry(position, size, writeBlock));
+      }
       writeBlock.values.clear();
     }
-    channel.force(true);
+    // publish table definitions written since the last block as well, so that tailing readers see them.
+    final long eof = raf.getFilePointer();
+    if (eof > writtenEof) {
+      if (durability != Durability.FORCE_ON_FLUSH) {
+        writeEOFPtr(eof);
+      }
+      writtenEof = eof;
+      writeIndex();
+    }
+    return writtenEof;
+  }
+
+  /**
+   * Make the data up to eof durable according to the durability policy.
+   * The thread that obtains the commit lock forces all the data written so far,
+   * so that threads waiting for the lock will find their data already durable. (group commit)
+   */
+  private void commit(final long eof, final boolean isClose) throws IOException {
+    switch (durability) {
+      case NO_FORCE:
+        return;
+      case FORCE_PERIODIC:
+        if (!isClose && System.nanoTime() - lastForceNanos < forceIntervalNanos) {
+          return;
+        }
+        synchronized (commitSync) {
+          if (durableEof >= eof) {
+            return;
+          }
+          long toCommit = writtenEof;
+          channel.force(false);
+          durableEof = toCommit;
+          lastForceNanos = System.nanoTime();
+        }
+        return;
+      case FORCE_ON_FLUSH:
+        synchronized (commitSync) {
+          if (durableEof >= eof) {
+            return;
+          }
+          long toCommit = writtenEof;
+          channel.force(false);
+          writeEOFPtr(toCommit);
+          channel.force(false);
+          durableEof = toCommit;
+          lastForceNanos = System.nanoTime();
+        }
+        return;
+      default:
+        throw new UnsupportedOperationException("Unsupported durability " + durability);
+    }
   }
 
-  private void updateEOFPtrPointer() throws IOException {
-    long filePointer = raf.getFilePointer();
-    raf.seek(MAGIC.length);
-    raf.writeLong(filePointer);
-    raf.seek(filePointer);
+  /**
+   * positional write of the EOF pointer, does not change the file position.
+   * For FORCE_ON_FLUSH this is invoked holding commitSync, otherwise holding the writer lock.
+   */
+  private void writeEOFPtr(final long eof) throws IOException {
+    eofPtrBuffer.clear();
+    eofPtrBuffer.putLong(eof);
+    eofPtrBuffer.flip();
+    long position = MAGIC.length;
+    do {
+      position += channel.write(eofPtrBuffer, position);
+    } while (eofPtrBuffer.hasRemaining());
   }
 
   public Header getHeader() {
@@ -227,7 +496,7 @@ public final class TSDBWriter implements Closeable, Flushable {
 
   @Override
   public String toString() {
-    return "TSDBWriter{" + "file=" + file + ", raf=" + raf + '}';
+    return "TSDBWriter{" + "file=" + file + ", raf=" + raf + ", durability=" + durability + '}';
   }
 
 }
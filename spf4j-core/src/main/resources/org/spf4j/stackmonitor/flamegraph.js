@@ -0,0 +1,138 @@
+/*
+ * Flame graph search and zoom, used by org.spf4j.stackmonitor.FlameGraphWriter.writeHtml.
+ * The frame geometry is read from the svg, no data is duplicated in the page.
+ */
+(function () {
+  'use strict';
+  var SVG_NS = 'http://www.w3.org/2000/svg';
+  var svg = document.getElementById('fg');
+  var width = +svg.getAttribute('width');
+  var frameHeight = +svg.getAttribute('data-fh');
+  var icicle = svg.getAttribute('data-icicle') === 'true';
+  var eps = 0.11; // coordinates are rounded to 0.1 px.
+  var frames = [];
+
+  function shortName(name) {
+    var m = name.lastIndexOf('.');
+    if (m < 0) {
+      return name;
+    }
+    var c = name.lastIndexOf('.', m - 1);
+    return c < 0 ? name : name.substring(c + 1);
+  }
+
+  var gs = svg.getElementsByTagName('g');
+  for (var i = 0; i < gs.length; i++) {
+    var g = gs[i];
+    var rect = g.getElementsByTagName('rect')[0];
+    var title = g.getElementsByTagName('title')[0].textContent;
+    var p = title.indexOf(' (');
+    var name = p < 0 ? title : title.substring(0, p);
+    var frame = {
+      g: g, rect: rect, name: name, label: shortName(name),
+      x: +rect.getAttribute('x'), w: +rect.getAttribute('width'), y: +rect.getAttribute('y'),
+      fill: rect.getAttribute('fill'), text: g.getElementsByTagName('text')[0]
+    };
+    g.frameIdx = i;
+    frames.push(frame);
+  }
+
+  function deeper(a, b) {
+    return icicle ? a.y > b.y : a.y < b.y;
+  }
+
+  function place(f, x, w) {
+    f.rect.setAttribute('x', x.toFixed(1));
+    f.rect.setAttribute('width', w.toFixed(1));
+    var nrChars = Math.floor((w - 3) / 7);
+    if (nrChars < 3) {
+      if (f.text) {
+        f.text.textContent = '';
+      }
+      return;
+    }
+    if (!f.text) {
+      f.text = document.createElementNS(SVG_NS, 'text');
+      f.text.setAttribute('y', f.y + Math.floor(frameHeight * 3 / 4));
+      f.g.appendChild(f.text);
+    }
+    f.text.setAttribute('x', (x + 2).toFixed(1));
+    f.text.textContent = f.label.length <= nrChars ? f.label : f.label.substring(0, nrChars - 2) + '..';
+  }
+
+  function zoom(z) {
+    var scale = width / z.w;
+    for (var i = 0; i < frames.length; i++) {
+      var f = frames[i];
+      if (f === z || (deeper(f, z) && f.x >= z.x - eps && f.x + f.w <= z.x + z.w + eps)) {
+        f.g.style.display = '';
+        place(f, (f.x - z.x) * scale, f.w * scale);
+      } else if (deeper(z, f) && f.x <= z.x + eps && f.x + f.w >= z.x + z.w - eps) {
+        f.g.style.display = '';
+        place(f, 0, width);
+      } else {
+        f.g.style.display = 'none';
+      }
+    }
+  }
+
+  function reset() {
+    for (var i = 0; i < frames.length; i++) {
+      var f = frames[i];
+      f.g.style.display = '';
+      place(f, f.x, f.w);
+    }
+  }
+
+  function search(text) {
+    var matched = document.getElementById('matched');
+    var re = null;
+    if (text) {
+      try {
+        re = new RegExp(text);
+      } catch (e) {
+        matched.textContent = 'Invalid regular expression: ' + e.message;
+        return;
+      }
+    }
+    var matches = [];
+    for (var i = 0; i < frames.length; i++) {
+      var f = frames[i];
+      var match = re !== null && re.test(f.name);
+      f.rect.setAttribute('fill', match ? 'rgb(230,0,230)' : f.fill);
+      if (match) {
+        matches.push(f);
+      }
+    }
+    // the union of the matched frame intervals, nested matches are counted once.
+    matches.sort(function (a, b) {
+      return a.x - b.x;
+    });
+    var total = 0;
+    var end = -1;
+    for (var j = 0; j < matches.length; j++) {
+      var m = matches[j];
+      var start = Math.max(m.x, end);
+      var mend = m.x + m.w;
+      if (mend > start) {
+        total += mend - start;
+        end = mend;
+      }
+    }
+    matched.textContent = re === null ? '' : 'Matched: ' + (100 * total / width).toFixed(2) + '% of samples';
+  }
+
+  svg.addEventListener('click', function (e) {
+    var n = e.target;
+    while (n && n !== svg && n.frameIdx === undefined) {
+      n = n.parentNode;
+    }
+    if (n && n.frameIdx !== undefined) {
+      zoom(frames[n.frameIdx]);
+    }
+  });
+  document.getElementById('reset').addEventListener('click', reset);
+  document.getElementById('search').addEventListener('input', function (e) {
+    search(e.target.value);
+  });
+})();
@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.jmx.Client;
+import org.spf4j.jmx.Registry;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"HES_LOCAL_EXECUTOR_SERVICE", "PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS"})
+public class AdaptiveConcurrencyLimitingExecutorTest {
+
+  @Test
+  public void testLimitFollowsLatency() throws InterruptedException {
+    LifoThreadPool pool = LifoThreadPoolBuilder.newBuilder().withMaxSize(100).build();
+    AdaptiveConcurrencyLimitingExecutor executor = new AdaptiveConcurrencyLimitingExecutor("testLimit", pool,
+            RejectedExecutionHandler.REJECT_EXCEPTION_EXEC_HANDLER, 10, 2, 100);
+    // steady latency at full utilization, limit grows.
+    for (int i = 0; i < 100; i++) {
+      executor.onSample(1000000, executor.getLimit());
+    }
+    int grownLimit = executor.getLimit();
+    Assert.assertTrue("limit must grow: " + grownLimit, grownLimit > 10);
+    // low utilization, limit must not grow.
+    for (int i = 0; i < 100; i++) {
+      executor.onSample(1000000, 1);
+    }
+    Assert.assertEquals(grownLimit, executor.getLimit());
+    // latency goes up 10x, limit goes down, (sqrt(limit) headroom is kept).
+    for (int i = 0; i < 100; i++) {
+      executor.onSample(10000000, executor.getLimit());
+    }
+    Assert.assertThat(executor.getLimit(), Matchers.lessThan(10));
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void testLoadShedding() throws InterruptedException, Exception {
+    LifoThreadPool pool = LifoThreadPoolBuilder.newBuilder().withMaxSize(8).withDaemonThreads(true).build();
+    AdaptiveConcurrencyLimitingExecutor executor = new AdaptiveConcurrencyLimitingExecutor("testShed", pool,
+            RejectedExecutionHandler.REJECT_EXCEPTION_EXEC_HANDLER, 2, 2, 2);
+    executor.exportJmx();
+    try {
+      CountDownLatch release = new CountDownLatch(1);
+      CountDownLatch done = new CountDownLatch(2);
+      for (int i = 0; i < 2; i++) {
+        executor.execute(() -> {
+          try {
+            release.await();
+          } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+          }
+          done.countDown();
+        });
+      }
+      Assert.assertEquals(2, executor.getInFlight());
+      try {
+        executor.execute(() -> { });
+        Assert.fail();
+      } catch (RejectedExecutionException ex) {
+        // expected
+      }
+      Assert.assertEquals(1L, executor.getNrRejected());
+      Assert.assertEquals(2, Client.getAttribute("service:jmx:rmi:///jndi/rmi://:9999/jmxrmi",
+              AdaptiveConcurrencyLimitingExecutor.class.getName(), "testShed", "inFlight"));
+      release.countDown();
+      Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+      executor.shutdown();
+      Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+      Assert.assertEquals(0, executor.getInFlight());
+      Assert.assertTrue(executor.getShortLatencyMicros() > 0);
+    } finally {
+      executor.unregisterJmx();
+    }
+  }
+
+  @Test
+  public void testRecordersClosedOnTermination() throws InterruptedException {
+    for (int i = 0; i < 2; i++) {
+      LifoThreadPool pool = LifoThreadPoolBuilder.newBuilder().withMaxSize(2).build();
+      AdaptiveConcurrencyLimitingExecutor executor = new AdaptiveConcurrencyLimitingExecutor("testClose", pool);
+      Assert.assertNotNull(Registry.getRegistered("org.spf4j.perf.recorders", "testClose-run-time"));
+      executor.execute(() -> { });
+      executor.shutdown();
+      Assert.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+      Assert.assertNull(Registry.getRegistered("org.spf4j.perf.recorders", "testClose-run-time"));
+      Assert.assertNull(Registry.getRegistered("org.spf4j.perf.recorders", "testClose-queue-wait"));
+      Assert.assertNull(Registry.getRegistered("org.spf4j.perf.recorders", "testClose-concurrency-limit"));
+    }
+  }
+
+}
@@ -0,0 +1,299 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.AbstractMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS", "MDM_THREAD_YIELD", "SIC_INNER_SHOULD_BE_STATIC_ANON"})
+public class BoundedLoadingCacheTest {
+
+  private static final CacheLoader<Integer, String> LOADER = new CacheLoader<Integer, String>() {
+    @Override
+    public String load(final Integer key) {
+      return "V" + key;
+    }
+  };
+
+  @Test
+  public void testSizeBound() throws ExecutionException {
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .withMaximumSize(100).build(LOADER);
+    for (int i = 0; i < 10000; i++) {
+      Assert.assertEquals("V" + i, cache.get(i));
+    }
+    cache.cleanUp();
+    Assert.assertEquals(100, cache.size());
+    Assert.assertEquals(100, cache.weightedSize());
+    CacheStats stats = cache.stats();
+    Assert.assertEquals(10000, stats.missCount());
+    Assert.assertEquals(9900, stats.evictionCount());
+  }
+
+  @Test
+  public void testWeightBound() throws ExecutionException {
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .withMaximumWeight(1000, (Integer k, String v) -> v.length()).build(LOADER);
+    for (int i = 0; i < 10000; i++) {
+      Assert.assertEquals("V" + i, cache.get(i));
+    }
+    cache.cleanUp();
+    Assert.assertThat(cache.weightedSize(), Matchers.lessThanOrEqualTo(1000L));
+    Assert.assertThat(cache.size(), Matchers.greaterThan(150L));
+  }
+
+  @Test
+  public void testFrequentEntriesSurviveScan() throws ExecutionException {
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .withMaximumSize(100).build(LOADER);
+    for (int j = 0; j < 20; j++) {
+      for (int i = 0; i < 50; i++) {
+        cache.get(i);
+      }
+    }
+    // a scan of keys accessed only once, must not flush the frequently used keys.
+    for (int i = 1000; i < 11000; i++) {
+      cache.get(i);
+    }
+    cache.cleanUp();
+    int nrHot = 0;
+    for (int i = 0; i < 50; i++) {
+      if (cache.asMap().containsKey(i)) {
+        nrHot++;
+      }
+    }
+    Assert.assertThat(nrHot, Matchers.greaterThanOrEqualTo(45));
+    Assert.assertEquals(100, cache.size());
+  }
+
+  @Test
+  public void testExpireAfterWrite() throws ExecutionException, InterruptedException {
+    AtomicInteger nrLoads = new AtomicInteger();
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .withExpireAfterWrite(50, TimeUnit.MILLISECONDS).build(new CacheLoader<Integer, String>() {
+      @Override
+      public String load(final Integer key) {
+        return "V" + nrLoads.incrementAndGet();
+      }
+    });
+    Assert.assertEquals("V1", cache.get(1));
+    Assert.assertEquals("V1", cache.get(1));
+    Thread.sleep(100);
+    Assert.assertNull(cache.getIfPresent(1));
+    Assert.assertEquals("V2", cache.get(1));
+  }
+
+  @Test
+  public void testExpireAfterAccess() throws ExecutionException, InterruptedException {
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .withExpireAfterAccess(100, TimeUnit.MILLISECONDS).build(LOADER);
+    cache.get(1);
+    cache.get(2);
+    for (int i = 0; i < 6; i++) {
+      Thread.sleep(30);
+      Assert.assertEquals("V1", cache.getIfPresent(1));
+    }
+    Assert.assertNull(cache.getIfPresent(2));
+    cache.cleanUp();
+    Assert.assertEquals(1, cache.weightedSize());
+  }
+
+  @Test
+  public void testRefreshAfterWrite() throws ExecutionException, InterruptedException {
+    AtomicInteger nrLoads = new AtomicInteger();
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .withRefreshAfterWrite(20, TimeUnit.MILLISECONDS)
+            .withRefreshExecutor(Runnable::run)
+            .build(new CacheLoader<Integer, String>() {
+      @Override
+      public String load(final Integer key) {
+        return "V" + nrLoads.incrementAndGet();
+      }
+    });
+    Assert.assertEquals("V1", cache.get(1));
+    Thread.sleep(40);
+    // the read triggers the refresh, and gets the old value.
+    Assert.assertEquals("V1", cache.get(1));
+    Assert.assertEquals("V2", cache.get(1));
+    Assert.assertEquals(2, nrLoads.get());
+  }
+
+  @Test
+  public void testLoadsAreCoalescedAndFailuresNotCached() throws InterruptedException, ExecutionException {
+    AtomicInteger nrLoads = new AtomicInteger();
+    CountDownLatch started = new CountDownLatch(1);
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .build(new CacheLoader<Integer, String>() {
+      @Override
+      public String load(final Integer key) throws InterruptedException {
+        int nr = nrLoads.incrementAndGet();
+        if (key < 0) {
+          throw new IllegalArgumentException("Negative " + key);
+        }
+        started.countDown();
+        Thread.sleep(100);
+        return "V" + nr;
+      }
+    });
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> cache.getUnchecked(1));
+      threads[i].start();
+    }
+    Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+    Assert.assertEquals("V1", cache.get(1));
+    for (Thread thread : threads) {
+      thread.join(10000);
+    }
+    Assert.assertEquals(1, nrLoads.get());
+    for (int i = 0; i < 2; i++) {
+      try {
+        cache.getUnchecked(-1);
+        Assert.fail();
+      } catch (UncheckedExecutionException ex) {
+        Assert.assertEquals(IllegalArgumentException.class, ex.getCause().getCause().getClass());
+      }
+    }
+    Assert.assertEquals(3, nrLoads.get());
+    Assert.assertEquals(2, cache.stats().loadExceptionCount());
+    cache.cleanUp();
+    Assert.assertEquals(1, cache.weightedSize());
+  }
+
+  @Test
+  public void testConcurrentAccess() throws InterruptedException {
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .withMaximumSize(100).build(LOADER);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        java.util.concurrent.ThreadLocalRandom rnd = java.util.concurrent.ThreadLocalRandom.current();
+        for (int j = 0; j < 200000; j++) {
+          int key = rnd.nextInt(1000);
+          if (j % 100 == 0) {
+            cache.invalidate(key);
+          } else {
+            Assert.assertEquals("V" + key, cache.getUnchecked(key));
+          }
+        }
+      });
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join(60000);
+    }
+    cache.cleanUp();
+    // all entries in the map must be accounted in the eviction policy.
+    Assert.assertEquals(cache.size(), cache.weightedSize());
+    Assert.assertThat(cache.size(), Matchers.lessThanOrEqualTo(100L));
+  }
+
+  @Test
+  public void testPutInvalidate() throws ExecutionException {
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .withMaximumSize(10).build(LOADER);
+    cache.put(1, "A");
+    Assert.assertEquals("A", cache.get(1));
+    Assert.assertEquals("A", cache.asMap().put(1, "B"));
+    Assert.assertEquals("B", cache.getIfPresent(1));
+    cache.invalidate(1);
+    Assert.assertNull(cache.getIfPresent(1));
+    Assert.assertEquals("V1", cache.get(1));
+    cache.invalidateAll();
+    cache.cleanUp();
+    Assert.assertEquals(0, cache.size());
+    Assert.assertEquals(0, cache.weightedSize());
+  }
+
+  @Test
+  public void testMapView() throws ExecutionException {
+    BoundedLoadingCache<Integer, String> cache = BoundedLoadingCacheBuilder.<Integer, String>newBuilder()
+            .withMaximumWeight(1000, (Integer k, String v) -> v.length()).build(LOADER);
+    ConcurrentMap<Integer, String> map = cache.asMap();
+    for (int i = 0; i < 10; i++) {
+      cache.get(i);
+    }
+    Assert.assertTrue(map.containsValue("V3"));
+    Assert.assertFalse(map.remove(3, "X"));
+    Assert.assertTrue(map.remove(3, "V3"));
+    Assert.assertFalse(map.replace(4, "X", "Y"));
+    Assert.assertTrue(map.replace(4, "V4", "AAAA"));
+    Assert.assertEquals("AAAA", map.replace(4, "B"));
+    Assert.assertNull(map.replace(3, "B"));
+    Assert.assertEquals("VB", map.compute(5, (k, v) -> v.substring(0, 1) + "B"));
+    Assert.assertEquals("VBC", map.merge(5, "C", (v1, v2) -> v1 + v2));
+    Assert.assertNull(map.computeIfPresent(6, (k, v) -> null));
+    map.replaceAll((k, v) -> k == 7 ? "CCC" : v);
+    Assert.assertEquals("CCC", cache.getIfPresent(7));
+    Assert.assertTrue(map.keySet().remove(8));
+    Iterator<Integer> keys = map.keySet().iterator();
+    while (keys.hasNext()) {
+      if (keys.next() == 9) {
+        keys.remove();
+      }
+    }
+    Assert.assertTrue(map.entrySet().remove(new AbstractMap.SimpleEntry<>(0, "V0")));
+    for (Map.Entry<Integer, String> entry : map.entrySet()) {
+      if (entry.getKey() == 1) {
+        entry.setValue("D");
+      }
+    }
+    Assert.assertEquals(ImmutableMap.of(1, "D", 2, "V2", 4, "B", 5, "VBC", 7, "CCC"), new HashMap<>(map));
+    Assert.assertEquals(5, map.values().size());
+    cache.cleanUp();
+    Assert.assertEquals(5, cache.size());
+    Assert.assertEquals(1 + 2 + 1 + 3 + 3, cache.weightedSize());
+    map.clear();
+    cache.cleanUp();
+    Assert.assertEquals(0, cache.weightedSize());
+  }
+
+}
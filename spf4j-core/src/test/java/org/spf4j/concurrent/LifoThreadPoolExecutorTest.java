@@ -74,6 +74,48 @@ public class LifoThreadPoolExecutorTest {
     testPool(executor);
   }
 
+  /**
+   * Many submitters, with threads retiring (short idle time) while tasks are submitted and queued.
+   */
+  @Test
+  public void testConcurrentSubmitters() throws InterruptedException {
+    LifoThreadPoolExecutorSQP executor = new LifoThreadPoolExecutorSQP("test", 0, 4, 1, 16, 0);
+    final LongAdder adder = new LongAdder();
+    final LongAdder rejected = new LongAdder();
+    final int nrSubmitters = 8;
+    final int nrTasks = 200000;
+    Thread[] submitters = new Thread[nrSubmitters];
+    for (int i = 0; i < nrSubmitters; i++) {
+      submitters[i] = new Thread(() -> {
+        for (int j = 0; j < nrTasks; j++) {
+          try {
+            executor.execute(adder::increment);
+          } catch (RejectedExecutionException ex) {
+            rejected.increment();
+            adder.increment();
+          }
+          if (j % 10000 == 0) {
+            try {
+              Thread.sleep(2); // let pool threads retire.
+            } catch (InterruptedException ex) {
+              throw new RuntimeException(ex);
+            }
+          }
+        }
+      });
+      submitters[i].start();
+    }
+    for (Thread submitter : submitters) {
+      submitter.join(60000);
+    }
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10000, TimeUnit.MILLISECONDS));
+    LOG.debug("rejected = {}, {}", rejected, executor);
+    Assert.assertEquals(nrSubmitters * nrTasks, adder.sum());
+    Assert.assertEquals(0, executor.getNrQueuedTasks());
+    Assert.assertEquals(0, executor.getThreadCount());
+  }
+
   @Test(expected = RejectedExecutionException.class)
   public void testRejectZeroQueueSizeTp() {
     LifoThreadPool executor
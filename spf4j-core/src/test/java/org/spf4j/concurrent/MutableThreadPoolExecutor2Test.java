@@ -53,7 +53,7 @@ public class MutableThreadPoolExecutor2Test {
     }
 
     @SuppressFBWarnings("MDM_THREAD_YIELD")
-    public static void testPoolThreadDynamics(final MutableLifoThreadPoolExecutorSQP le) throws InterruptedException {
+    public static void testPoolThreadDynamics(final MutableLifoThreadPool le) throws InterruptedException {
         le.setMaxIdleTimeMillis(1000);
         LifoThreadPoolExecutor2Test.testMaxParallel(le, 10, 3, TimeUnit.SECONDS);
 
@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.ExecutionContext;
+import org.spf4j.base.ExecutionContexts;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"SIC_INNER_SHOULD_BE_STATIC_ANON", "PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS"})
+public class UnboundedAsyncLoadingCacheTest {
+
+  @Test
+  public void testConcurrentMissesAreCoalesced()
+          throws InterruptedException, ExecutionException, TimeoutException {
+    AtomicInteger nrLoads = new AtomicInteger();
+    CountDownLatch release = new CountDownLatch(1);
+    UnboundedAsyncLoadingCache<String, String> cache = new UnboundedAsyncLoadingCache<>(16,
+            new CacheLoader<String, String>() {
+      @Override
+      public String load(final String key) throws InterruptedException {
+        nrLoads.incrementAndGet();
+        release.await();
+        return "V" + key;
+      }
+    });
+    CompletableFuture<String> f1 = cache.get("a");
+    CompletableFuture<String> f2 = cache.get("a");
+    Assert.assertSame(f1, f2);
+    Assert.assertFalse(f1.isDone());
+    release.countDown();
+    Assert.assertEquals("Va", f1.get(10, TimeUnit.SECONDS));
+    Assert.assertEquals("Va", cache.get("a").getNow("missing"));
+    Assert.assertEquals(1, nrLoads.get());
+  }
+
+  @Test
+  public void testGetAllBatchesMisses() throws InterruptedException, ExecutionException, TimeoutException {
+    CopyOnWriteArrayList<Iterable<? extends String>> batches = new CopyOnWriteArrayList<>();
+    UnboundedAsyncLoadingCache<String, String> cache = new UnboundedAsyncLoadingCache<>(16, 8,
+            new CacheLoader<String, String>() {
+      @Override
+      public String load(final String key) {
+        return "V" + key;
+      }
+
+      @Override
+      public Map<String, String> loadAll(final Iterable<? extends String> keys) {
+        batches.add(ImmutableList.copyOf(keys));
+        return Maps.toMap(ImmutableList.<String>copyOf(keys), (key) -> "B" + key);
+      }
+    }, DefaultExecutor.INSTANCE);
+    Assert.assertEquals("Va", cache.get("a").get(10, TimeUnit.SECONDS));
+    Map<String, String> values = cache.getAll(ImmutableList.of("a", "b", "c", "b")).get(10, TimeUnit.SECONDS);
+    Assert.assertEquals(ImmutableMap.of("a", "Va", "b", "Bb", "c", "Bc"), values);
+    Assert.assertEquals(ImmutableList.of(ImmutableList.of("b", "c")), batches);
+    Assert.assertEquals(ImmutableMap.of("a", "Va", "b", "Bb", "c", "Bc"), cache.getLoaded());
+  }
+
+  @Test
+  public void testFailuresAreNotCached() throws InterruptedException, ExecutionException, TimeoutException {
+    AtomicInteger nrLoads = new AtomicInteger();
+    UnboundedAsyncLoadingCache<String, String> cache = new UnboundedAsyncLoadingCache<>(16,
+            new CacheLoader<String, String>() {
+      @Override
+      public String load(final String key) {
+        if (nrLoads.incrementAndGet() == 1) {
+          throw new IllegalStateException("first load of " + key + " fails");
+        }
+        return "V" + key;
+      }
+    });
+    try {
+      cache.get("a").get(10, TimeUnit.SECONDS);
+      Assert.fail();
+    } catch (ExecutionException ex) {
+      Assert.assertEquals(IllegalStateException.class, ex.getCause().getClass());
+    }
+    Assert.assertEquals("Va", cache.get("a").get(10, TimeUnit.SECONDS));
+    Assert.assertEquals(2, nrLoads.get());
+  }
+
+  @Test
+  public void testExecutionContextPropagation() throws InterruptedException, ExecutionException, TimeoutException {
+    AtomicReference<ExecutionContext> loadCtx = new AtomicReference<>();
+    UnboundedAsyncLoadingCache<String, String> cache = new UnboundedAsyncLoadingCache<>(16,
+            new CacheLoader<String, String>() {
+      @Override
+      public String load(final String key) {
+        loadCtx.set(ExecutionContexts.current());
+        return "V" + key;
+      }
+    });
+    try (ExecutionContext ctx = ExecutionContexts.start("testCtx", 10, TimeUnit.SECONDS)) {
+      Assert.assertEquals("Va", cache.get("a").get(10, TimeUnit.SECONDS));
+      Assert.assertSame(ctx, loadCtx.get().getParent());
+    }
+  }
+
+}
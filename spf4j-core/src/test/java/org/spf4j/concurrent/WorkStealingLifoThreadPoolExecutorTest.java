@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.concurrent;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"HES_LOCAL_EXECUTOR_SERVICE", "MDM_THREAD_YIELD"})
+public class WorkStealingLifoThreadPoolExecutorTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(WorkStealingLifoThreadPoolExecutorTest.class);
+
+  @Test
+  public void testLocalTasksAreStolen() throws InterruptedException {
+    WorkStealingLifoThreadPoolExecutor executor
+            = new WorkStealingLifoThreadPoolExecutor("test", 0, 2, 60000, 1024);
+    final int nrTasks = 100;
+    final CountDownLatch latch = new CountDownLatch(nrTasks);
+    final CountDownLatch parentDone = new CountDownLatch(1);
+    executor.execute(() -> {
+      for (int i = 0; i < nrTasks; i++) {
+        executor.execute(latch::countDown);
+      }
+      // the submitting thread is busy, the local tasks can only be executed by the other (thief) thread.
+      try {
+        if (latch.await(10, TimeUnit.SECONDS)) {
+          parentDone.countDown();
+        }
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    Assert.assertTrue(parentDone.await(20, TimeUnit.SECONDS));
+    Assert.assertEquals(nrTasks, executor.getNrStolenTasks());
+    Assert.assertEquals(0, executor.getNrQueuedTasks());
+    Assert.assertEquals(2, executor.getThreadCount());
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10000, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void testPoolThreadDynamics() throws InterruptedException {
+    MutableLifoThreadPool executor = LifoThreadPoolBuilder.newBuilder().workStealing()
+            .withPoolName("test").withCoreSize(2).withMaxSize(8).withQueueSizeLimit(1024).buildMutable();
+    MutableThreadPoolExecutor2Test.testPoolThreadDynamics(executor);
+    Assert.assertTrue(executor.isTerminated());
+  }
+
+  @Test(expected = RejectedExecutionException.class)
+  public void testRejectZeroQueueSizeTp() {
+    LifoThreadPool executor = LifoThreadPoolBuilder.newBuilder().workStealing()
+            .withCoreSize(0).withMaxSize(1).withQueueSizeLimit(0).build();
+    try {
+      executor.execute(() -> {
+        try {
+          Thread.sleep(10000);
+        } catch (InterruptedException ex) {
+          Thread.interrupted();
+        }
+      });
+      executor.execute(() -> {
+      });
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testNestedSubmissions() throws InterruptedException {
+    WorkStealingLifoThreadPoolExecutor executor = new WorkStealingLifoThreadPoolExecutor("test", 0, 4, 1,
+            new java.util.concurrent.ConcurrentLinkedQueue<>(), 64, false, 0,
+            RejectedExecutionHandler.RUN_IN_CALLER_EXEC_HANDLER, Thread.NORM_PRIORITY);
+    final LongAdder adder = new LongAdder();
+    final int nrSubmitters = 4;
+    final int nrTasks = 20000;
+    final int nrChildren = 10;
+    Thread[] submitters = new Thread[nrSubmitters];
+    for (int i = 0; i < nrSubmitters; i++) {
+      submitters[i] = new Thread(() -> {
+        for (int j = 0; j < nrTasks; j++) {
+          executor.execute(() -> {
+            for (int k = 0; k < nrChildren; k++) {
+              executor.execute(adder::increment);
+            }
+          });
+        }
+      });
+      submitters[i].start();
+    }
+    for (Thread submitter : submitters) {
+      submitter.join(60000);
+    }
+    executor.shutdown();
+    Assert.assertTrue(executor.awaitTermination(10000, TimeUnit.MILLISECONDS));
+    LOG.debug("Finished {}, stolen = {}", executor, executor.getNrStolenTasks());
+    Assert.assertEquals(nrSubmitters * nrTasks * nrChildren, adder.sum());
+    Assert.assertEquals(0, executor.getNrQueuedTasks());
+    Assert.assertEquals(0, executor.getThreadCount());
+  }
+
+}
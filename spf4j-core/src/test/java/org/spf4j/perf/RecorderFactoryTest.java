@@ -39,6 +39,7 @@ import java.io.IOException;
 import java.util.List;
 import org.junit.Assert;
 import org.junit.Test;
+import org.spf4j.perf.impl.QuantizedAccumulator;
 import org.spf4j.perf.impl.ms.tsdb.TSDBMeasurementStore;
 import org.spf4j.tsdb2.TimeSeries;
 import org.spf4j.tsdb2.TSDBQuery;
@@ -97,6 +98,30 @@ public final class RecorderFactoryTest {
     assertData("bla,X0", 2500);
   }
 
+  @Test
+  public void testCreateLockFreeQuantizedRecorderSource() throws IOException, InterruptedException {
+    MeasurementRecorderSource result = RecorderFactory.createScalableRecorderSource(
+            new QuantizedAccumulator("lockFreeBla", "", "ms", 10, 0, 3, 10), 1000, true);
+    for (int i = 0; i < 5000; i++) {
+      result.getRecorder("X" + i % 2).record(1);
+      Thread.sleep(1);
+    }
+    result.close();
+    assertData("lockFreeBla,X0", 2500);
+  }
+
+  @Test
+  public void testCreateConcurrentQuantizedRecorderSource() throws IOException, InterruptedException {
+    MeasurementRecorderSource result = RecorderFactory.createConcurrentQuantizedRecorderSource(
+            "concurrentBla", "ms", 1000, 10, 0, 3, 10);
+    for (int i = 0; i < 5000; i++) {
+      result.getRecorder("X" + i % 2).record(1);
+      Thread.sleep(1);
+    }
+    result.close();
+    assertData("concurrentBla,X1", 2500);
+  }
+
   @Test
   public void testOutofQuantizedZoneValues() throws IOException, InterruptedException {
     String forWhat = "largeVals";
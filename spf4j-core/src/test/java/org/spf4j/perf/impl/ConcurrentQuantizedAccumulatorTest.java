@@ -0,0 +1,152 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.perf.MeasurementAccumulator;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"CLI_CONSTANT_LIST_INDEX", "PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS"})
+public final class ConcurrentQuantizedAccumulatorTest {
+
+  @Test
+  public void testSameAsQuantized() {
+    QuantizedAccumulator expected = new QuantizedAccumulator("test", "", "ms", 10, -3, 3, 10);
+    ConcurrentQuantizedAccumulator instance = new ConcurrentQuantizedAccumulator("test", "", "ms", 10, -3, 3, 10);
+    Assert.assertNull(instance.get());
+    long[] values = {-15000, -300, -1, 0, 0, 1, 2, 2, 10, 11, 250, 15000};
+    for (long value : values) {
+      expected.record(value);
+      instance.record(value);
+    }
+    Assert.assertArrayEquals(expected.get(), instance.get());
+    Assert.assertArrayEquals(expected.get(), instance.createClone().get());
+    MeasurementAccumulator aggregate = instance.aggregate(instance);
+    Assert.assertArrayEquals(expected.aggregate(expected).get(), aggregate.get());
+    Assert.assertArrayEquals(expected.getThenReset(), instance.getThenReset());
+    Assert.assertNull(instance.get());
+    Assert.assertNull(instance.reset());
+  }
+
+  @Test
+  public void testConcurrentRecording() throws InterruptedException, ExecutionException {
+    final ConcurrentQuantizedAccumulator instance = new ConcurrentQuantizedAccumulator(
+            new QuantizedAccumulator("test", "", "ms", 10, 0, 3, 10), 4);
+    List<Future<?>> futures = new ArrayList<>(8);
+    for (int t = 0; t < 8; t++) {
+      futures.add(DefaultExecutor.INSTANCE.submit(() -> {
+        for (int i = 0; i < 10000; i++) {
+          instance.record(i % 2000);
+        }
+      }));
+    }
+    long count = 0;
+    long total = 0;
+    while (!futures.isEmpty()) {
+      long[] vals = instance.getThenReset();
+      if (vals != null) {
+        total += vals[0];
+        count += vals[1];
+      }
+      futures.removeIf((f) -> f.isDone());
+    }
+    long[] vals = instance.getThenReset();
+    if (vals != null) {
+      total += vals[0];
+      count += vals[1];
+    }
+    Assert.assertEquals(80000, count);
+    Assert.assertEquals(8 * 5 * 1999L * 1000, total);
+  }
+
+  @Test
+  public void testMinMaxConsistentWithCounts() throws InterruptedException, ExecutionException {
+    final ConcurrentQuantizedAccumulator instance = new ConcurrentQuantizedAccumulator(
+            new QuantizedAccumulator("test", "", "ms", 10, 0, 3, 10), 4);
+    List<Future<?>> futures = new ArrayList<>(4);
+    for (int t = 0; t < 4; t++) {
+      futures.add(DefaultExecutor.INSTANCE.submit(() -> {
+        for (int i = 1; i <= 20000; i++) {
+          instance.record(i % 1000 + 1);
+        }
+      }));
+    }
+    long count = 0;
+    while (!futures.isEmpty()) {
+      count += checkMinMax(instance.reset());
+      futures.removeIf((f) -> f.isDone());
+    }
+    count += checkMinMax(instance.reset());
+    Assert.assertEquals(80000, count);
+  }
+
+  private static long checkMinMax(final QuantizedAccumulator snapshot) {
+    if (snapshot == null) {
+      return 0;
+    }
+    long[] vals = snapshot.get();
+    Assert.assertTrue(snapshot.toString(), snapshot.getMinMeasurement() >= 1);
+    Assert.assertTrue(snapshot.toString(), snapshot.getMinMeasurement() <= snapshot.getMaxMeasurement());
+    return vals[1];
+  }
+
+  @Test
+  public void testConcurrentRecorder() throws IOException {
+    MeasurementAccumulator recorder = (MeasurementAccumulator) RecorderFactory.createConcurrentQuantizedRecorder(
+            "concurrentRecorderTest", "ms", 60000, 10, 0, 3, 10);
+    try {
+      recorder.record(5);
+      recorder.record(50);
+      Assert.assertArrayEquals(recorder.get(), recorder.createClone().get());
+      MeasurementAccumulator like = recorder.createLike("other");
+      Assert.assertEquals("other", like.getInfo().getMeasuredEntity());
+      Assert.assertNull(like.get());
+      long[] state = recorder.get();
+      Assert.assertArrayEquals(state, recorder.reset().get());
+      Assert.assertNull(recorder.get());
+    } finally {
+      recorder.close();
+    }
+  }
+
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.perf.impl.ms.graphite.GraphiteNioStore;
+
+/**
+ * @author zoly
+ */
+public final class GraphiteNioStoreTest {
+
+  @Test(timeout = 30000)
+  @SuppressFBWarnings("CC_CYCLOMATIC_COMPLEXITY")
+  public void testTcpBatching() throws IOException {
+    try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress());
+            GraphiteNioStore store = new GraphiteNioStore(GraphiteNioStore.Transport.TCP, "127.0.0.1",
+                    server.getLocalPort(), 256, 4096, 100000)) {
+      long id = store.alocateMeasurements(new MeasurementsInfoImpl("bla", "ms",
+              new String[]{"val1", "val2"}, new String[]{"ms", "ms"}), 0);
+      for (int i = 0; i < 100; i++) {
+        store.saveMeasurements(id, i, i, i * 2);
+      }
+      store.flush();
+      try (Socket socket = server.accept();
+              BufferedReader reader = new BufferedReader(
+                      new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8))) {
+        for (int i = 0; i < 100; i++) {
+          if (i % 10 == 0) {
+            store.flush();
+          }
+          Assert.assertEquals("bla/val1 " + i + ' ' + i, reader.readLine());
+          Assert.assertEquals("bla/val2 " + (i * 2) + ' ' + i, reader.readLine());
+        }
+      }
+      Assert.assertEquals(0, store.getDroppedLines());
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testUdpPacking() throws IOException {
+    try (DatagramSocket server = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+            GraphiteNioStore store = new GraphiteNioStore(GraphiteNioStore.Transport.UDP, "127.0.0.1",
+                    server.getLocalPort(), 512, 64 * 1024, 100000)) {
+      long id = store.alocateMeasurements(new MeasurementsInfoImpl("bla", "ms",
+              new String[]{"val1", "val2", "val3"}, new String[]{"ms", "ms", "ms"}), 0);
+      for (int i = 0; i < 20; i++) {
+        store.saveMeasurements(id, i, 1, 2, 3);
+      }
+      store.flush();
+      List<String> lines = new ArrayList<>(60);
+      byte[] buff = new byte[1024];
+      int nrDatagrams = 0;
+      while (lines.size() < 60) {
+        DatagramPacket packet = new DatagramPacket(buff, buff.length);
+        server.receive(packet);
+        nrDatagrams++;
+        Assert.assertTrue(packet.getLength() <= 512);
+        String payload = new String(packet.getData(), 0, packet.getLength(), StandardCharsets.UTF_8);
+        Assert.assertTrue(payload.endsWith("\n"));
+        for (String line : payload.split("\n")) {
+          lines.add(line);
+        }
+      }
+      Assert.assertTrue("datagrams " + nrDatagrams, nrDatagrams < 10);
+      Assert.assertEquals("bla/val1 1 0", lines.get(0));
+      Assert.assertEquals("bla/val3 3 19", lines.get(59));
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testDropOldest() throws IOException {
+    int port;
+    try (ServerSocket server = new ServerSocket(0, 10, InetAddress.getLoopbackAddress())) {
+      port = server.getLocalPort();
+    }
+    // nobody is listening, all data stays buffered.
+    try (GraphiteNioStore store = new GraphiteNioStore(GraphiteNioStore.Transport.TCP, "127.0.0.1",
+                    port, 100, 300, 100000)) {
+      long id = store.alocateMeasurements(new MeasurementsInfoImpl("bla", "ms",
+              new String[]{"val"}, new String[]{"ms"}), 0);
+      for (int i = 0; i < 100; i++) {
+        store.saveMeasurements(id, i, i);
+      }
+      store.flush();
+      Assert.assertTrue(store.getDroppedLines() > 0);
+      Assert.assertTrue(store.getBufferedBytes() <= 300);
+      Assert.assertEquals(0, store.getSentBytes());
+    }
+  }
+
+  @Test(timeout = 30000)
+  public void testUnresolvedHost() throws IOException {
+    try (GraphiteNioStore store = new GraphiteNioStore(GraphiteNioStore.Transport.TCP, "unresolvable.invalid",
+                    2003, 100, 300, 100000)) {
+      long id = store.alocateMeasurements(new MeasurementsInfoImpl("bla", "ms",
+              new String[]{"val"}, new String[]{"ms"}), 0);
+      store.saveMeasurements(id, 1, 1);
+      store.flush(); // must not throw, will retry.
+      store.flush();
+      Assert.assertEquals(0, store.getSentBytes());
+      Assert.assertTrue(store.getBufferedBytes() > 0);
+    }
+  }
+
+}
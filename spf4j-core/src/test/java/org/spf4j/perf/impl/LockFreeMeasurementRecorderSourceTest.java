@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.perf.MeasurementAccumulator;
+import org.spf4j.perf.MeasurementRecorder;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"CLI_CONSTANT_LIST_INDEX", "MDM_THREAD_YIELD", "PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS",
+  "SIC_INNER_SHOULD_BE_STATIC_ANON"})
+public final class LockFreeMeasurementRecorderSourceTest {
+
+  @Test
+  public void testRecordAndReset() throws InterruptedException, ExecutionException {
+    final LockFreeMeasurementRecorderSource source = new LockFreeMeasurementRecorderSource(
+            new MinMaxAvgAccumulator("lockFreeTest", "", "ms"), 100000000, new NopMeasurementStore());
+    final AtomicBoolean stop = new AtomicBoolean(false);
+    List<Future<Long>> futures = new ArrayList<>(4);
+    for (int t = 0; t < 4; t++) {
+      futures.add(DefaultExecutor.INSTANCE.submit(new Callable<Long>() {
+        @Override
+        public Long call() {
+          MeasurementRecorder recA = source.getRecorder("A");
+          long count = 0;
+          while (!stop.get()) {
+            recA.record(1);
+            source.getRecorder("B").record(2);
+            count++;
+          }
+          return count;
+        }
+      }));
+    }
+    long countA = 0;
+    long totalB = 0;
+    for (int i = 0; i < 20; i++) {
+      Thread.sleep(5);
+      Map<Object, MeasurementAccumulator> measurements = source.getEntitiesMeasurementsAndReset();
+      countA += getCount(measurements.get("A"));
+      totalB += getTotal(measurements.get("B"));
+    }
+    stop.set(true);
+    long expected = 0;
+    for (Future<Long> future : futures) {
+      expected += future.get();
+    }
+    Map<Object, MeasurementAccumulator> measurements = source.getEntitiesMeasurementsAndReset();
+    countA += getCount(measurements.get("A"));
+    totalB += getTotal(measurements.get("B"));
+    Assert.assertEquals(expected, countA);
+    Assert.assertEquals(expected * 2, totalB);
+    Assert.assertTrue(source.getEntitiesMeasurementsAndReset().isEmpty());
+    source.close();
+  }
+
+  @Test
+  public void testStableRecorder() {
+    LockFreeMeasurementRecorderSource source = new LockFreeMeasurementRecorderSource(
+            new CountingAccumulator("lockFreeTest2", "", "count"), 100000000, new NopMeasurementStore());
+    MeasurementRecorder recorder = source.getRecorder("X");
+    Assert.assertSame(recorder, source.getRecorder("X"));
+    recorder.record(3);
+    Assert.assertEquals(3L, source.getEntitiesMeasurements().get("X").get()[1]);
+    source.getEntitiesMeasurementsAndReset();
+    recorder.record(5);
+    Assert.assertEquals(5L, source.getEntitiesMeasurementsAndReset().get("X").get()[1]);
+    source.close();
+  }
+
+  private static long getCount(final MeasurementAccumulator acc) {
+    if (acc == null) {
+      return 0;
+    }
+    long[] vals = acc.get();
+    return vals == null ? 0 : vals[0];
+  }
+
+  private static long getTotal(final MeasurementAccumulator acc) {
+    if (acc == null) {
+      return 0;
+    }
+    long[] vals = acc.get();
+    return vals == null ? 0 : vals[1];
+  }
+
+}
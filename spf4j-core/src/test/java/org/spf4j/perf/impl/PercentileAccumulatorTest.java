@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.perf.impl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.Arrays;
+import org.spf4j.perf.MeasurementAccumulator;
+
+/**
+ *
+ * @author zoly
+ */
+public final class PercentileAccumulatorTest {
+
+  @Test
+  public void testPercentiles() {
+    PercentileAccumulator acc = new PercentileAccumulator("test", "", "us", 3600000000L, 3);
+    Assert.assertNull(acc.get());
+    for (int i = 1; i <= 100000; i++) {
+      acc.record(i);
+    }
+    long[] vals = acc.get();
+    String[] names = acc.getInfo().getMeasurementNames();
+    Assert.assertEquals(names.length, vals.length);
+    Assert.assertEquals(100000L, vals[Arrays.indexOf(names, "count")]);
+    Assert.assertEquals(100000L * 100001 / 2, vals[Arrays.indexOf(names, "total")]);
+    Assert.assertEquals(1L, vals[Arrays.indexOf(names, "min")]);
+    Assert.assertEquals(100000L, vals[Arrays.indexOf(names, "max")]);
+    assertWithin(50000, vals[Arrays.indexOf(names, "p50")], 0.001);
+    assertWithin(90000, vals[Arrays.indexOf(names, "p90")], 0.001);
+    assertWithin(99000, vals[Arrays.indexOf(names, "p99")], 0.001);
+    assertWithin(99900, vals[Arrays.indexOf(names, "p99_9")], 0.001);
+  }
+
+  @Test
+  public void testIndexes() {
+    PercentileAccumulator acc = new PercentileAccumulator("test", "", "us", 1000000, 2);
+    for (long v = 0; v <= 1000000; v++) {
+      long hev = acc.highestEquivalentValue(acc.countsIndexFor(v));
+      Assert.assertTrue(hev >= v);
+      Assert.assertTrue("value " + v + " hev " + hev, hev - v <= Math.max(1, v / 100));
+    }
+    // out of range values are clamped.
+    Assert.assertEquals(acc.countsIndexFor(1000000), acc.countsIndexFor(Long.MAX_VALUE));
+    Assert.assertEquals(0, acc.countsIndexFor(-5));
+  }
+
+  @Test
+  @SuppressFBWarnings("CLI_CONSTANT_LIST_INDEX")
+  public void testAggregateAndReset() {
+    PercentileAccumulator acc1 = new PercentileAccumulator("test", "", "ms", 100000, 3);
+    PercentileAccumulator acc2 = (PercentileAccumulator) acc1.createLike("test");
+    for (int i = 0; i < 1000; i++) {
+      acc1.record(1);
+      acc2.record(1000);
+    }
+    MeasurementAccumulator aggregate = acc1.aggregate(acc2);
+    long[] vals = aggregate.get();
+    Assert.assertEquals(2000, vals[1]);
+    Assert.assertEquals(1, vals[2]);
+    Assert.assertEquals(1000, vals[3]);
+    Assert.assertEquals(1, vals[4]);
+    Assert.assertEquals(1000, vals[5]);
+    Assert.assertArrayEquals(acc1.get(), acc1.getThenReset());
+    Assert.assertNull(acc1.get());
+    Assert.assertNotNull(acc2.reset());
+    Assert.assertNull(acc2.reset());
+  }
+
+  private static void assertWithin(final long expected, final long actual, final double relativeError) {
+    Assert.assertTrue("expected " + expected + " got " + actual,
+            Math.abs(expected - actual) <= expected * relativeError);
+  }
+
+}
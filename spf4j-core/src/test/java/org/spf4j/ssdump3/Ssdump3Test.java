@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.ssdump3;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.ssdump2.Converter;
+import org.spf4j.stackmonitor.CompactSampleTree;
+import org.spf4j.stackmonitor.SampleNode;
+
+/**
+ *
+ * @author zoly
+ */
+public final class Ssdump3Test {
+
+  private static CompactSampleTree randomTree(final int nrSamples) {
+    Random random = new Random(3);
+    CompactSampleTree tree = new CompactSampleTree();
+    for (int s = 0; s < nrSamples; s++) {
+      StackTraceElement[] st = new StackTraceElement[1 + random.nextInt(30)];
+      for (int i = 0; i < st.length; i++) {
+        st[i] = new StackTraceElement("org.spf4j.C" + random.nextInt(20), "m" + random.nextInt(5), "C.java", i);
+      }
+      tree.addSample(st);
+    }
+    return tree;
+  }
+
+  @Test
+  @SuppressFBWarnings("PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS")
+  public void testRoundTrip() throws IOException {
+    CompactSampleTree tree = randomTree(2000);
+    SampleNode node = tree.toSampleNode();
+    for (Ssdump3.Compression compression : Ssdump3.Compression.values()) {
+      ByteArrayOutputStream bos = new ByteArrayOutputStream();
+      Ssdump3.write(bos, tree, compression);
+      Assert.assertEquals(node, Ssdump3.read(new ByteArrayInputStream(bos.toByteArray())));
+      bos.reset();
+      Ssdump3.write(bos, node, compression);
+      Assert.assertEquals(node, Ssdump3.read(new ByteArrayInputStream(bos.toByteArray())));
+    }
+    File file3 = File.createTempFile("test", Ssdump3.EXTENSION);
+    Ssdump3.save(file3, tree);
+    Assert.assertEquals(node, Ssdump3.load(file3));
+    File file2 = File.createTempFile("test", ".ssdump2");
+    Converter.save(file2, node);
+    Assert.assertEquals(node, Ssdump3.load(file2));
+    Assert.assertTrue(file3.length() * 5 < file2.length());
+  }
+
+  @Test
+  public void testLabeledTrees() throws IOException {
+    Map<String, SampleNode> trees = new LinkedHashMap<>();
+    trees.put("CPU", randomTree(100).toSampleNode());
+    trees.put("WAITING", randomTree(50).toSampleNode());
+    File file = File.createTempFile("test", Ssdump3.EXTENSION);
+    Ssdump3.save(file, trees);
+    Assert.assertEquals(trees, Ssdump3.loadAll(file));
+    Assert.assertEquals(SampleNode.aggregate(trees.get("CPU"), trees.get("WAITING")), Ssdump3.load(file));
+  }
+
+  @Test
+  public void testSingleNode() throws IOException {
+    SampleNode node = new SampleNode(3, null);
+    ByteArrayOutputStream bos = new ByteArrayOutputStream();
+    Ssdump3.write(bos, node, Ssdump3.Compression.NONE);
+    Assert.assertEquals(node, Ssdump3.read(new ByteArrayInputStream(bos.toByteArray())));
+  }
+
+}
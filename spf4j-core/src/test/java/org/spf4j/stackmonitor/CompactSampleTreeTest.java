@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.Method;
+import org.spf4j.ds.Graph;
+import org.spf4j.ssdump2.Converter;
+import org.spf4j.ssdump2.avro.ASample;
+
+/**
+ *
+ * @author zoly
+ */
+public final class CompactSampleTreeTest {
+
+  private static StackTraceElement[] randomStack(final Random random) {
+    int depth = 1 + random.nextInt(12);
+    StackTraceElement[] result = new StackTraceElement[depth];
+    for (int i = 0; i < depth; i++) {
+      // few distinct methods, so that there is a lot of sharing and recursion.
+      result[i] = new StackTraceElement("C" + random.nextInt(4), "m" + random.nextInt(3), "C.java", i);
+    }
+    return result;
+  }
+
+  @Test
+  public void testEquivalentWithSampleNode() throws IOException {
+    Random random = new Random(7);
+    CompactSampleTree tree = new CompactSampleTree(2);
+    SampleNode node = null;
+    for (int i = 0; i < 2000; i++) {
+      StackTraceElement[] st = randomStack(random);
+      tree.addSample(st);
+      if (node == null) {
+        node = SampleNode.createSampleNode(st);
+      } else {
+        SampleNode.addToSampleNode(node, st);
+      }
+    }
+    Assert.assertEquals(node, tree.toSampleNode());
+    Assert.assertEquals(node.getNrNodes(), tree.getNrNodes());
+    Assert.assertEquals(node.getSampleCount(), tree.getSampleCount());
+    Assert.assertEquals(node, CompactSampleTree.from(node).toSampleNode());
+    List<ASample> samples = new ArrayList<>();
+    Converter.convert(tree, -1, 0, (s, d) -> samples.add(s));
+    Assert.assertEquals(node, Converter.convert(samples.iterator()));
+    Assert.assertEquals(SampleNode.aggregate(node, node), CompactSampleTree.aggregate(tree, tree).toSampleNode());
+    Assert.assertEquals(node.filteredBy((m) -> "m1".equals(m.getMethodName())),
+            tree.filteredBy((m) -> "m1".equals(m.getMethodName())).toSampleNode());
+    Assert.assertEquals(node.filteredBy((m) -> "C1".equals(m.getDeclaringClass())),
+            tree.filteredBy((m) -> "C1".equals(m.getDeclaringClass())).toSampleNode());
+    Assert.assertNull(tree.filteredBy((m) -> true));
+    Graph<InvokedMethod, SampleNode.InvocationCount> graph = SampleNode.toGraph(node);
+    Graph<InvokedMethod, SampleNode.InvocationCount> cgraph = tree.toGraph();
+    Assert.assertEquals(graph.getVertices(), cgraph.getVertices());
+    for (InvokedMethod m : graph.getVertices()) {
+      Assert.assertEquals(graph.getEdges(m).getOutgoing().size(),
+              cgraph.getEdges(m).getOutgoing().size());
+    }
+    File file = File.createTempFile("compact", ".ssdump2");
+    Converter.save(file, tree);
+    Assert.assertEquals(node, Converter.load(file));
+    tree.clear();
+    Assert.assertTrue(tree.isEmpty());
+    Assert.assertNull(tree.toSampleNode());
+  }
+
+  @Test
+  public void testDeltaIngestion() {
+    Random random = new Random(11);
+    CompactSampleTree full = new CompactSampleTree();
+    CompactSampleTree delta = new CompactSampleTree();
+    CompactSampleTree.SamplePath[] paths = new CompactSampleTree.SamplePath[3];
+    StackTraceElement[][] previous = new StackTraceElement[paths.length][];
+    for (int i = 0; i < paths.length; i++) {
+      paths[i] = new CompactSampleTree.SamplePath();
+      previous[i] = randomStack(random);
+    }
+    for (int i = 0; i < 3000; i++) {
+      int thread = random.nextInt(paths.length);
+      StackTraceElement[] prev = previous[thread];
+      StackTraceElement[] st;
+      if (random.nextBoolean()) {
+        // keep a root prefix of the previous stack, and change the top.
+        StackTraceElement[] top = randomStack(random);
+        int keep = random.nextInt(prev.length + 1);
+        st = new StackTraceElement[top.length + keep];
+        System.arraycopy(top, 0, st, 0, top.length);
+        System.arraycopy(prev, prev.length - keep, st, top.length, keep);
+      } else {
+        st = prev;
+      }
+      previous[thread] = st;
+      int deltaNode = CompactSampleTree.NONE;
+      if (st == prev && random.nextBoolean()) {
+        // same stack, repeat the previous sample (not possible before the first sample, or after clear)
+        deltaNode = delta.addRepeatSample(paths[thread]);
+      }
+      if (deltaNode == CompactSampleTree.NONE) {
+        deltaNode = delta.addSample(paths[thread], st);
+      }
+      Assert.assertEquals(full.getMethodId(full.addSample(st)), delta.getMethodId(deltaNode));
+      if (i == 1500) {
+        full.clear();
+        delta.clear();
+      }
+    }
+    Assert.assertEquals(full.toSampleNode(), delta.toSampleNode());
+  }
+
+  @Test
+  public void testJson() {
+    StackTraceElement m1 = new StackTraceElement("C1", "m1", "C1.java", 10);
+    StackTraceElement[] st1 = {new StackTraceElement("C1", "m2", "C1.java", 11), m1};
+    CompactSampleTree tree = new CompactSampleTree();
+    tree.addSample(st1);
+    tree.addSample(m1);
+    SampleNode node = SampleNode.createSampleNode(st1);
+    SampleNode.addToSampleNode(node, m1);
+    Assert.assertEquals(node.toString(), tree.toString());
+    Assert.assertEquals(Method.getMethod("C1", "m1"),
+            tree.getMethod(tree.getChild(CompactSampleTree.ROOT, MethodTable.getId("C1", "m1"))));
+    Assert.assertEquals(CompactSampleTree.NONE, tree.getChild(CompactSampleTree.ROOT, MethodTable.getId("C1", "m2")));
+  }
+
+  @Test
+  public void testCopyAndAggregateOfEmptyTree() {
+    Random random = new Random(7);
+    CompactSampleTree tree = new CompactSampleTree();
+    for (int i = 0; i < 100; i++) {
+      tree.addSample(randomStack(random));
+    }
+    SampleNode expected = tree.toSampleNode();
+    Assert.assertEquals(expected, CompactSampleTree.aggregate(new CompactSampleTree(), tree).toSampleNode());
+    CompactSampleTree copy = new CompactSampleTree().copy();
+    copy.addAll(tree);
+    Assert.assertEquals(expected, copy.toSampleNode());
+    CompactSampleTree emptyCopy = new CompactSampleTree().copy();
+    StackTraceElement[] st = randomStack(random);
+    emptyCopy.addSample(st);
+    Assert.assertEquals(SampleNode.createSampleNode(st), emptyCopy.toSampleNode());
+  }
+
+  @Test
+  public void testMethodTable() {
+    for (int i = 0; i < 10000; i++) {
+      int id = MethodTable.getId("Cls" + i, "m");
+      Assert.assertEquals(id, MethodTable.getId("Cls" + i, "m"));
+      Assert.assertEquals(Method.getMethod("Cls" + i, "m"), MethodTable.getMethod(id));
+    }
+    Assert.assertEquals(MethodTable.ROOT_ID, MethodTable.getId(Method.ROOT));
+  }
+
+}
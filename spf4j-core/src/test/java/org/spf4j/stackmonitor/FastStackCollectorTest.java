@@ -0,0 +1,94 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.util.concurrent.CountDownLatch;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings("PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS")
+public final class FastStackCollectorTest {
+
+  @Test
+  public void testRotateLeft() {
+    Integer[] array = {0, 1, 2, 3, 4, 5};
+    FastStackCollector.rotateLeft(array, 5, 2);
+    Assert.assertArrayEquals(new Integer[] {2, 3, 4, 0, 1, 5}, array);
+    FastStackCollector.rotateLeft(array, 5, 0);
+    Assert.assertArrayEquals(new Integer[] {2, 3, 4, 0, 1, 5}, array);
+  }
+
+  @Test
+  public void testIdleThreadsNotDumped() throws InterruptedException {
+    CountDownLatch latch = new CountDownLatch(1);
+    Thread idle = new Thread(() -> {
+      try {
+        latch.await();
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    }, "idleTestThread");
+    idle.start();
+    try {
+      FastStackCollector collector = new FastStackCollector((Thread t) -> t != idle, true);
+      collector.sample(Thread.currentThread());
+      Assert.assertEquals(1, collector.getLastNrDumpedThreads());
+      for (int i = 0; i < 9; i++) {
+        collector.sample(Thread.currentThread());
+      }
+      Assume.assumeTrue("thread cpu time not available, or idle sample repeat disabled",
+              collector.getLastNrDumpedThreads() == 0);
+      SampleNode samples = collector.clear();
+      Assert.assertEquals(10, samples.getSampleCount());
+      // the repeated samples are identical to the dumped one, a single path.
+      SampleNode node = samples;
+      while (node.getSubNodes() != null) {
+        Assert.assertEquals(1, node.getSubNodes().size());
+        node = node.getSubNodes().values().iterator().next();
+        Assert.assertEquals(10, node.getSampleCount());
+      }
+      // samples were cleared, the stack is needed again.
+      collector.sample(Thread.currentThread());
+      Assert.assertEquals(1, collector.getLastNrDumpedThreads());
+    } finally {
+      latch.countDown();
+    }
+    idle.join(10000);
+  }
+
+}
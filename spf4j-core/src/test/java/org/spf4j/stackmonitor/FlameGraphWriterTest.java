@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.io.StringReader;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS", "MDM_THREAD_YIELD"})
+public final class FlameGraphWriterTest {
+
+  private static CompactSampleTree tree() {
+    CompactSampleTree tree = new CompactSampleTree();
+    StackTraceElement[] stack1 = {
+      new StackTraceElement("org.test.b.B", "b", null, -1),
+      new StackTraceElement("org.test.a.A", "run", null, -1)
+    };
+    StackTraceElement[] stack2 = {
+      new StackTraceElement("org.test.a.A2", "c<T>", null, -1),
+      new StackTraceElement("org.test.a.A", "run", null, -1)
+    };
+    for (int i = 0; i < 3; i++) {
+      tree.addSample(stack1);
+    }
+    tree.addSample(stack2);
+    return tree;
+  }
+
+  private static Document parse(final CharSequence svg)
+          throws ParserConfigurationException, SAXException, IOException {
+    return DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new InputSource(new StringReader(svg.toString())));
+  }
+
+  private static int getY(final Document doc, final String method) {
+    NodeList groups = doc.getElementsByTagName("g");
+    for (int i = 0; i < groups.getLength(); i++) {
+      Element g = (Element) groups.item(i);
+      if (g.getElementsByTagName("title").item(0).getTextContent().startsWith(method + " (")) {
+        return Integer.parseInt(((Element) g.getElementsByTagName("rect").item(0)).getAttribute("y"));
+      }
+    }
+    throw new IllegalArgumentException("No frame for " + method);
+  }
+
+  @Test
+  public void testFlameAndIcicle() throws IOException, ParserConfigurationException, SAXException {
+    CompactSampleTree tree = tree();
+    FlameGraphWriter writer = new FlameGraphWriter(1000, 16, 0.1);
+    StringBuilder svg = new StringBuilder();
+    writer.writeSvg(tree, "flame <test>", FlameGraphWriter.WARM_COLORS, svg);
+    Document doc = parse(svg);
+    Assert.assertEquals(4, doc.getElementsByTagName("rect").getLength());
+    Assert.assertTrue(getY(doc, "all") > getY(doc, "org.test.a.A.run"));
+    Assert.assertTrue(getY(doc, "org.test.a.A.run") > getY(doc, "org.test.b.B.b"));
+    Assert.assertTrue(svg.toString(), svg.toString().contains("width=\"750.0\""));
+    svg.setLength(0);
+    writer.writeSvg(tree, "icicle", FlameGraphWriter.WARM_COLORS, FlameGraphWriter.Orientation.ICICLE, svg);
+    doc = parse(svg);
+    Assert.assertTrue(getY(doc, "all") < getY(doc, "org.test.a.A.run"));
+    Assert.assertTrue(getY(doc, "org.test.a.A.run") < getY(doc, "org.test.a.A2.c<T>"));
+  }
+
+  @Test
+  public void testPackageColors() {
+    CompactSampleTree tree = tree();
+    int run = tree.getFirstChild(CompactSampleTree.ROOT);
+    int b = tree.getFirstChild(run);
+    int c = tree.getNextSibling(b);
+    if ("c<T>".equals(tree.getMethod(b).getMethodName())) {
+      int t = b;
+      b = c;
+      c = t;
+    }
+    Assert.assertEquals(FlameGraphWriter.PACKAGE_COLORS.getColor(tree, run),
+            FlameGraphWriter.PACKAGE_COLORS.getColor(tree, c));
+    Assert.assertNotEquals(FlameGraphWriter.PACKAGE_COLORS.getColor(tree, run),
+            FlameGraphWriter.PACKAGE_COLORS.getColor(tree, b));
+  }
+
+  @Test
+  public void testHtml() throws IOException {
+    StringBuilder html = new StringBuilder();
+    FlameGraphWriter.writeHtml(tree().toSampleNode(), "html", FlameGraphWriter.Orientation.ICICLE, html);
+    String str = html.toString();
+    Assert.assertTrue(str, str.contains("id=\"fg\""));
+    Assert.assertTrue(str, str.contains("data-icicle=\"true\""));
+    Assert.assertTrue(str, str.contains("getElementById('reset')"));
+    Assert.assertTrue(str, str.endsWith("</html>\n"));
+  }
+
+  @Test
+  public void testSamplerFlameGraph() throws IOException, InterruptedException {
+    Sampler sampler = new Sampler(1, new SimpleStackCollector());
+    sampler.start();
+    try {
+      Thread.sleep(200);
+      String html = sampler.flameGraph(false);
+      Assert.assertTrue(html, html.contains("<svg"));
+      Assert.assertTrue(html, html.contains("data-icicle=\"false\""));
+    } finally {
+      sampler.stop();
+    }
+  }
+
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.ssdump2.Converter;
+import org.spf4j.ssdump3.Ssdump3;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings("PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS")
+public final class ProfileDiffTest {
+
+  /**
+   * @param methods the stack methods, root first.
+   */
+  private static void add(final CompactSampleTree tree, final int nrSamples, final String... methods) {
+    StackTraceElement[] stack = new StackTraceElement[methods.length];
+    for (int i = 0; i < methods.length; i++) {
+      stack[methods.length - 1 - i] = new StackTraceElement("org.test.C" + methods[i], methods[i], null, -1);
+    }
+    for (int i = 0; i < nrSamples; i++) {
+      tree.addSample(stack);
+    }
+  }
+
+  private static ProfileDiff.MethodDelta find(final List<ProfileDiff.MethodDelta> deltas, final String method) {
+    for (ProfileDiff.MethodDelta delta : deltas) {
+      if (method.equals(delta.getMethod().getMethodName())) {
+        return delta;
+      }
+    }
+    throw new IllegalArgumentException("No delta for " + method + " in " + deltas);
+  }
+
+  private static CompactSampleTree baseline() {
+    CompactSampleTree baseline = new CompactSampleTree();
+    add(baseline, 8, "a", "b");
+    add(baseline, 2, "a", "c");
+    return baseline;
+  }
+
+  private static CompactSampleTree current() {
+    CompactSampleTree current = new CompactSampleTree();
+    add(current, 4, "a", "b");
+    add(current, 4, "a", "c");
+    add(current, 2, "a", "d", "c");
+    return current;
+  }
+
+  @Test
+  public void testMethodDeltas() throws IOException {
+    ProfileDiff diff = ProfileDiff.compute(baseline(), current());
+    Assert.assertEquals(10, diff.getBaselineTotal());
+    Assert.assertEquals(10, diff.getCurrentTotal());
+    List<ProfileDiff.MethodDelta> deltas = diff.getMethodDeltas();
+    Assert.assertEquals(4, deltas.size());
+    ProfileDiff.MethodDelta c = find(deltas, "c");
+    Assert.assertEquals(0.2, c.getBaselineSelf(), 0.0001);
+    Assert.assertEquals(0.6, c.getCurrentSelf(), 0.0001);
+    Assert.assertEquals(0.4, c.getTotalDelta(), 0.0001);
+    ProfileDiff.MethodDelta b = find(deltas, "b");
+    Assert.assertEquals(-0.4, b.getSelfDelta(), 0.0001);
+    ProfileDiff.MethodDelta a = find(deltas, "a");
+    Assert.assertEquals(0, a.getTotalDelta(), 0.0001);
+    Assert.assertEquals(0, a.getCurrentSelf(), 0.0001);
+    ProfileDiff.MethodDelta d = find(deltas, "d");
+    Assert.assertEquals(0.2, d.getTotalDelta(), 0.0001);
+    Assert.assertEquals(0, d.getSelfDelta(), 0.0001);
+    Assert.assertEquals(Arrays.asList(c, d), diff.getTopTotalRegressions(10));
+    Assert.assertEquals(Collections.singletonList(c), diff.getTopSelfRegressions(10));
+    Assert.assertEquals(0.4, diff.getMaxTotalRegression(), 0.0001);
+    StringBuilder report = new StringBuilder();
+    diff.writeReport(report, 10);
+    Assert.assertTrue(report.toString(), report.toString().contains("1.  +40.000%   20.000% ->   60.000%  org.test.Cc.c"));
+    // the diff tree contains the nodes of both trees.
+    CompactSampleTree tree = diff.getTree();
+    Assert.assertEquals(6, tree.getNrNodes());
+    int an = tree.getFirstChild(CompactSampleTree.ROOT);
+    Assert.assertEquals(10, diff.getBaselineCount(an));
+    Assert.assertEquals(10, diff.getCurrentCount(an));
+    Assert.assertEquals(0, diff.getDelta(an), 0.0001);
+  }
+
+  @Test
+  public void testEmptyCurrent() throws IOException {
+    ProfileDiff diff = ProfileDiff.compute(baseline(), new CompactSampleTree());
+    Assert.assertEquals(10, diff.getBaselineTotal());
+    Assert.assertEquals(0, diff.getCurrentTotal());
+    Assert.assertEquals(4, diff.getTree().getNrNodes());
+    ProfileDiff.MethodDelta b = find(diff.getMethodDeltas(), "b");
+    Assert.assertEquals(0.8, b.getBaselineSelf(), 0.0001);
+    Assert.assertEquals(-0.8, b.getSelfDelta(), 0.0001);
+    Assert.assertTrue(diff.getTopTotalRegressions(10).isEmpty());
+    StringBuilder report = new StringBuilder();
+    diff.writeReport(report, 10);
+    diff.writeFlameGraph(report, "empty current");
+  }
+
+  @Test
+  public void testEmptyBaseline() throws IOException {
+    ProfileDiff diff = ProfileDiff.compute(new CompactSampleTree(), current());
+    Assert.assertEquals(0, diff.getBaselineTotal());
+    Assert.assertEquals(10, diff.getCurrentTotal());
+    ProfileDiff.MethodDelta c = find(diff.getMethodDeltas(), "c");
+    Assert.assertEquals(0.6, c.getTotalDelta(), 0.0001);
+    Assert.assertEquals(1, diff.getMaxTotalRegression(), 0.0001);
+    StringBuilder report = new StringBuilder();
+    diff.writeReport(report, 10);
+    diff.writeFlameGraph(report, "empty baseline");
+  }
+
+  @Test
+  public void testRecursion() {
+    CompactSampleTree baseline = new CompactSampleTree();
+    add(baseline, 2, "r", "x");
+    CompactSampleTree current = new CompactSampleTree();
+    add(current, 1, "r", "r", "r");
+    add(current, 1, "r", "x");
+    ProfileDiff diff = ProfileDiff.compute(baseline, current);
+    ProfileDiff.MethodDelta r = find(diff.getMethodDeltas(), "r");
+    Assert.assertEquals(1, r.getCurrentTotal(), 0.0001);
+    Assert.assertEquals(0.5, r.getCurrentSelf(), 0.0001);
+    Assert.assertEquals(0, r.getBaselineSelf(), 0.0001);
+    ProfileDiff.MethodDelta x = find(diff.getMethodDeltas(), "x");
+    Assert.assertEquals(-0.5, x.getTotalDelta(), 0.0001);
+  }
+
+  @Test
+  public void testFlameGraph() throws IOException, ParserConfigurationException, SAXException {
+    ProfileDiff diff = ProfileDiff.compute(baseline(), current());
+    StringBuilder svg = new StringBuilder();
+    diff.writeFlameGraph(svg, "diff <test>");
+    Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new InputSource(new StringReader(svg.toString())));
+    // all + a, b, c, d, c (d->c), (nodes with no current samples are not rendered)
+    Assert.assertEquals(svg.toString(), 6, doc.getElementsByTagName("rect").getLength());
+    Assert.assertTrue(svg.toString(), svg.toString().contains("fill=\"rgb(55,55,255)\""));
+  }
+
+  @Test
+  public void testLoadFiles() throws IOException {
+    File b1 = File.createTempFile("baseline", ".ssdump2");
+    Converter.save(b1, baseline());
+    File b2 = File.createTempFile("baseline", Ssdump3.EXTENSION);
+    Ssdump3.save(b2, baseline());
+    File c1 = File.createTempFile("current", Ssdump3.EXTENSION);
+    Ssdump3.save(c1, current(), Ssdump3.Compression.DEFLATE);
+    CompactSampleTree loaded = new CompactSampleTree();
+    Ssdump3.loadInto(c1, loaded);
+    Assert.assertEquals(current().toSampleNode(), loaded.toSampleNode());
+    loaded = new CompactSampleTree();
+    Ssdump3.loadInto(b1, loaded);
+    Assert.assertEquals(baseline().toSampleNode(), loaded.toSampleNode());
+    ProfileDiff diff = ProfileDiff.load(Arrays.asList(b1, b2), Collections.singletonList(c1));
+    Assert.assertEquals(20, diff.getBaselineTotal());
+    Assert.assertEquals(10, diff.getCurrentTotal());
+    Assert.assertEquals(0.4, find(diff.getMethodDeltas(), "c").getTotalDelta(), 0.0001);
+  }
+
+}
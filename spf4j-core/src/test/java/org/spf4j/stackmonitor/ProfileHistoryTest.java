@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.jmx.Registry;
+import org.spf4j.ssdump2.Converter;
+
+/**
+ *
+ * @author zoly
+ */
+public final class ProfileHistoryTest {
+
+  private static CompactSampleTree sample(final String method, final int count) {
+    CompactSampleTree tree = new CompactSampleTree();
+    StackTraceElement[] st = {new StackTraceElement("C", method, "C.java", 1),
+      new StackTraceElement("C", "main", "C.java", 1)};
+    for (int i = 0; i < count; i++) {
+      tree.addSample(st);
+    }
+    return tree;
+  }
+
+  @Test
+  public void testWindowsAndMerge() throws IOException {
+    // 1 second slots, 10 slots per level, 2 levels, merge factor 5 => 10s @1s + 50s @5s.
+    ProfileHistory history = new ProfileHistory(1000, 10, 2, 5, 1000);
+    for (int s = 0; s < 100; s++) {
+      history.add(s * 1000L + 10, sample("m" + (s % 3), 1));
+    }
+    // 10 fine slots (90s - 99s), 10 coarse slots (40s - 89s), older is dropped.
+    Assert.assertEquals(20, history.getNrSlots());
+    Assert.assertEquals(40000L, history.getStartMillis());
+    Assert.assertEquals(60, history.query(0, Long.MAX_VALUE).getSampleCount());
+    Assert.assertEquals(2, history.query(97000, 99000).getSampleCount());
+    // coarse slot, slot granular.
+    Assert.assertEquals(5, history.query(61000, 62000).getSampleCount());
+    Assert.assertNull(history.query(0, 40000));
+    SampleNode node = history.getSamples(95000, 96000);
+    Assert.assertEquals(1, node.getSampleCount());
+    Assert.assertNotNull(node.getSubNodes().get(org.spf4j.base.Method.getMethod("C", "main"))
+            .getSubNodes().get(org.spf4j.base.Method.getMethod("C", "m2")));
+
+    File folder = Files.createTempDirectory("history").toFile();
+    List<File> files = history.dump(folder, "test", 80000, 100000, 10000);
+    Assert.assertEquals(2, files.size());
+    Assert.assertEquals(10, Converter.load(files.get(0)).getSampleCount());
+    // 5s coarse slots dumped in 2s windows, every slot is written once.
+    files = history.dump(folder, "test2", 60000, 70000, 2000);
+    Assert.assertEquals(2, files.size());
+    Assert.assertEquals(5, Converter.load(files.get(0)).getSampleCount());
+    Assert.assertEquals(5, Converter.load(files.get(1)).getSampleCount());
+    history.clear();
+    Assert.assertEquals(0, history.getNrSlots());
+  }
+
+  @Test
+  @SuppressFBWarnings("PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS") // exportNew is not idempotent.
+  public void testExportNew() {
+    ProfileHistory history = new ProfileHistory(1000, 3, 2, 5, 1000);
+    history.add(100, sample("m", 1));
+    history.add(200, sample("m", 1));
+    Assert.assertEquals(2, history.exportNew(300).getSampleCount());
+    Assert.assertNull(history.exportNew(400));
+    // same (level 0) slot period as the exported samples.
+    history.add(500, sample("m", 1));
+    Assert.assertEquals(1, history.exportNew(600).getSampleCount());
+    int total = 3;
+    long now = 600;
+    for (int s = 1; s < 30; s++) {
+      now = s * 1000L + 10;
+      history.add(now, sample("m", 1));
+      if (s % 4 == 0) {
+        total += history.exportNew(now).getSampleCount();
+      }
+    }
+    total += history.exportNew(now).getSampleCount();
+    // every sample exported once, even after slots were merged into coarser slots.
+    Assert.assertEquals(3 + 29, total);
+    Assert.assertNull(history.exportNew(now + 1));
+  }
+
+  @Test
+  public void testBoundedNodes() {
+    ProfileHistory history = new ProfileHistory(1000, 2, 1, 2, 4);
+    for (int i = 0; i < 10; i++) {
+      history.add(500, sample("m" + i, 2));
+    }
+    Assert.assertEquals(4, history.getNrNodes());
+    Assert.assertEquals(8, history.getDroppedNodes());
+    // dropped stacks are still accounted in their ancestors.
+    Assert.assertEquals(20, history.query(0, 1000).getSampleCount());
+  }
+
+  @Test
+  @SuppressFBWarnings("PATH_TRAVERSAL_IN")
+  public void testSamplerHistory() throws IOException {
+    Sampler sampler = new Sampler(10, 3600000, new FastStackCollector(false),
+            System.getProperty("java.io.tmpdir"), "historyTest");
+    sampler.setHistory(new ProfileHistory());
+    sampler.getStackCollector().addSample(new StackTraceElement[] {new StackTraceElement("C", "m", "C.java", 1)});
+    Instant now = Instant.now();
+    String json = sampler.queryHistory(now.minusSeconds(120).toString(), now.plusSeconds(120).toString());
+    Assert.assertTrue(json, json.contains("m@C"));
+    List<String> files = sampler.dumpHistory(now.minusSeconds(120).toString(), now.plusSeconds(120).toString(), 10);
+    Assert.assertEquals(1, files.size());
+    Assert.assertEquals(1, Converter.load(new File(files.get(0))).getSampleCount());
+    sampler.registerJmx();
+    Registry.unregister(sampler);
+  }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.BasicExecutionContext;
+import org.spf4j.base.ExecutionContext;
+import org.spf4j.base.TimeSource;
+import org.spf4j.ssdump3.Ssdump3;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"MDM_THREAD_YIELD", "MDM_WAIT_WITHOUT_TIMEOUT", "PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS"})
+public final class RequestProfileTest {
+
+  private static final long DEADLINE = TimeSource.nanoTime() + TimeUnit.HOURS.toNanos(1);
+
+  /**
+   * execute a request on a separate thread, and sample it nrSamples times after delayMillis.
+   */
+  private static void executeRequest(final ProfiledExecutionContextFactory factory,
+          final StackCollector collector, final String name, final int delayMillis, final int nrSamples)
+          throws InterruptedException {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch done = new CountDownLatch(1);
+    Thread thread = new Thread(() -> {
+      try (ExecutionContext ctx = factory.startThreadRoot(name, null, DEADLINE, () -> { })) {
+        started.countDown();
+        done.await();
+      } catch (InterruptedException ex) {
+        throw new RuntimeException(ex);
+      }
+    }, name);
+    thread.start();
+    started.await();
+    Thread.sleep(delayMillis);
+    for (int i = 0; i < nrSamples; i++) {
+      collector.sample(Thread.currentThread());
+    }
+    done.countDown();
+    thread.join();
+  }
+
+  @Test
+  public void testSlowRequestProfiles() throws InterruptedException {
+    ProfiledExecutionContextFactory factory = new ProfiledExecutionContextFactory(BasicExecutionContext::new);
+    factory.setSlowRequestThresholdNanos(TimeUnit.MILLISECONDS.toNanos(200));
+    TopRequestProfiles top = new TopRequestProfiles(2);
+    factory.setRequestProfileSink(top);
+    TracingExecutionContextStackCollector collector = new TracingExecutionContextStackCollector(16, factory);
+    executeRequest(factory, collector, "fast", 0, 3);
+    Assert.assertTrue(top.getProfiles().isEmpty());
+    SampleNode samples = collector.clear();
+    Assert.assertNotNull(samples);
+    Assert.assertEquals(3, samples.getSampleCount());
+    executeRequest(factory, collector, "slow", 250, 3);
+    executeRequest(factory, collector, "slower", 400, 2);
+    factory.setMaxRequestProfileNodes(2);
+    executeRequest(factory, collector, "bounded", 250, 2);
+    List<RequestProfile> profiles = top.getProfiles();
+    Assert.assertEquals(2, profiles.size());
+    RequestProfile slower = profiles.get(0);
+    Assert.assertEquals("slower", slower.getName());
+    Assert.assertEquals("slower", slower.getThreadName());
+    Assert.assertTrue(slower.toString(), slower.getDurationMillis() >= 400);
+    Assert.assertEquals(2, slower.getSamples().getSampleCount());
+    Assert.assertEquals(0, slower.getDroppedSamples());
+    Assert.assertTrue(slower.getStartTime().isBefore(Instant.now()));
+    RequestProfile slow = profiles.get(1);
+    Assert.assertTrue(slow.toString(), "slow".equals(slow.getName()) || "bounded".equals(slow.getName()));
+    Assert.assertEquals(2, top.clear().size());
+    Assert.assertTrue(top.getProfiles().isEmpty());
+  }
+
+  @Test
+  public void testBoundedProfile() throws InterruptedException {
+    ProfiledExecutionContextFactory factory = new ProfiledExecutionContextFactory(BasicExecutionContext::new);
+    factory.setSlowRequestThresholdNanos(0);
+    factory.setMaxRequestProfileNodes(3);
+    TopRequestProfiles top = new TopRequestProfiles(1);
+    factory.setRequestProfileSink(top);
+    executeRequest(factory, new TracingExecutionContextStackCollector(16, factory), "bounded", 0, 2);
+    RequestProfile profile = top.getProfiles().get(0);
+    Assert.assertEquals(2, profile.getSamples().getSampleCount());
+    Assert.assertEquals(2, profile.getDroppedSamples());
+    Assert.assertEquals(3, CompactSampleTree.from(profile.getSamples()).getNrNodes());
+  }
+
+  @Test
+  public void testNoSink() throws InterruptedException {
+    ProfiledExecutionContextFactory factory = new ProfiledExecutionContextFactory(BasicExecutionContext::new);
+    factory.setSlowRequestThresholdNanos(0);
+    TracingExecutionContextStackCollector collector = new TracingExecutionContextStackCollector(16, factory);
+    executeRequest(factory, collector, "noSink", 0, 2);
+    SampleNode samples = collector.clear();
+    Assert.assertNotNull(samples);
+    Assert.assertEquals(2, samples.getSampleCount());
+  }
+
+  @Test
+  public void testFileSink() throws IOException {
+    File folder = Files.createTempDirectory("requestProfiles").toFile();
+    FileRequestProfileSink sink = new FileRequestProfileSink(folder, "test");
+    SampleNode samples = SampleNode.createSampleNode(new RuntimeException().getStackTrace());
+    sink.accept(new RequestProfile("GET /a/b?c=d", "thread", Instant.now(), 1000000, samples, 0));
+    File[] files = folder.listFiles();
+    Assert.assertNotNull(files);
+    Assert.assertEquals(1, files.length);
+    Assert.assertTrue(files[0].getName(), files[0].getName().startsWith("test_GET__a_b_c_d_"));
+    Assert.assertEquals(samples, Ssdump3.load(files[0]));
+  }
+
+}
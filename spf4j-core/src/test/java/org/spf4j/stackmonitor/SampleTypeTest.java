@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import javax.annotation.Nullable;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.Method;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"MDM_THREAD_YIELD", "SWL_SLEEP_WITH_LOCK_HELD", "MDM_PROMISCUOUS_SERVERSOCKET",
+  "MDM_WAIT_WITHOUT_TIMEOUT", "NN_NAKED_NOTIFY", "NOS_NON_OWNED_SYNCHRONIZATION", "PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS",
+  "ST_WRITE_TO_STATIC_FROM_INSTANCE_METHOD", "URF_UNREAD_FIELD", "UW_UNCOND_WAIT", "WA_NOT_IN_LOOP"})
+public final class SampleTypeTest {
+
+  private static volatile boolean stop;
+
+  private static volatile long sink;
+
+  private static boolean contains(@Nullable final SampleNode node, final String methodName) {
+    if (node == null || node.getSubNodes() == null) {
+      return false;
+    }
+    for (Map.Entry<Method, SampleNode> entry : node.getSubNodes().entrySet()) {
+      if (methodName.equals(entry.getKey().getMethodName()) || contains(entry.getValue(), methodName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Test
+  public void testClassification() throws InterruptedException, IOException {
+    Assert.assertEquals(SampleType.BLOCKED, SampleType.of(Thread.State.BLOCKED, null, 0));
+    Assert.assertEquals(SampleType.WAITING, SampleType.of(Thread.State.TIMED_WAITING, null, -1));
+    Assert.assertEquals(SampleType.CPU, SampleType.of(Thread.State.RUNNABLE, null, 1000));
+    Assert.assertEquals(SampleType.IO, SampleType.of(Thread.State.RUNNABLE, null, 0));
+    Assert.assertEquals(SampleType.IO, SampleType.of(Thread.State.RUNNABLE,
+            new StackTraceElement("java.net.PlainSocketImpl", "socketAccept", null, -2), -1));
+    Object lock = new Object();
+    Object waitLock = new Object();
+    CountDownLatch started = new CountDownLatch(1);
+    stop = false;
+    try (ServerSocket serverSocket = new ServerSocket(0)) {
+      Thread spinning = new Thread(SampleTypeTest::spinCpu, "spinning");
+      Thread waiting = new Thread(() -> waitOn(waitLock), "waiting");
+      Thread blocked = new Thread(() -> blockOn(lock, started), "blocked");
+      Thread accepting = new Thread(() -> accept(serverSocket), "accepting");
+      spinning.start();
+      waiting.start();
+      accepting.start();
+      synchronized (lock) {
+        blocked.start();
+        Thread.sleep(200);
+        FastStackCollector collector = new FastStackCollector(
+                (t) -> t != spinning && t != waiting && t != blocked && t != accepting);
+        for (int i = 0; i < 10; i++) {
+          collector.sample(Thread.currentThread());
+          Thread.sleep(10);
+        }
+        Map<SampleType, SampleNode> byType = collector.clearByType();
+        Assert.assertTrue(byType.toString(), contains(byType.get(SampleType.CPU), "spinCpu"));
+        Assert.assertTrue(byType.toString(), contains(byType.get(SampleType.WAITING), "waitOn"));
+        Assert.assertTrue(byType.toString(), contains(byType.get(SampleType.BLOCKED), "blockOn"));
+        Assert.assertTrue(byType.toString(), contains(byType.get(SampleType.IO), "accept"));
+        Assert.assertFalse(contains(byType.get(SampleType.CPU), "waitOn"));
+        Assert.assertNull(collector.clear());
+      }
+      stop = true;
+      Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+      synchronized (waitLock) {
+        waitLock.notifyAll();
+      }
+      spinning.join();
+    }
+  }
+
+  private static void spinCpu() {
+    long result = 0;
+    while (!stop) {
+      result += System.nanoTime() % 7;
+    }
+    sink = result;
+  }
+
+  @SuppressWarnings("WaitNotInLoop")
+  private static void waitOn(final Object lock) {
+    synchronized (lock) {
+      try {
+        lock.wait(5000);
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static void blockOn(final Object lock, final CountDownLatch started) {
+    synchronized (lock) {
+      started.countDown();
+    }
+  }
+
+  private static void accept(final ServerSocket serverSocket) {
+    try {
+      serverSocket.accept().close();
+    } catch (IOException ex) {
+      // socket closed.
+    }
+  }
+
+}
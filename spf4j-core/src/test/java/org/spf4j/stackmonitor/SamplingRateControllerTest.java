@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.stackmonitor;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ *
+ * @author zoly
+ */
+public final class SamplingRateControllerTest {
+
+  private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  private static void sample(final SamplingRateController controller, final int nrSamples,
+          final long periodNanos, final long threadCostNanos, final int nrThreads) {
+    long start = 0;
+    for (int i = 0; i < nrSamples; i++) {
+      int nrSampled = Math.min(nrThreads, controller.getMaxSampledThreads());
+      controller.sampled(start, start + nrSampled * threadCostNanos, nrSampled, nrThreads);
+      start += periodNanos;
+    }
+  }
+
+  @Test
+  public void testNoBudget() {
+    SamplingRateController controller = new SamplingRateController(10 * MS, 10, 0);
+    sample(controller, 10, 10 * MS, MS / 20, 100);
+    Assert.assertEquals(10 * MS, controller.getIntervalNanos());
+    Assert.assertEquals(Integer.MAX_VALUE, controller.getMaxSampledThreads());
+    Assert.assertEquals(100, controller.getAchievedRate(), 0.001);
+    Assert.assertEquals(0.5, controller.getAchievedOverhead(), 0.001);
+  }
+
+  @Test
+  public void testIntervalAdapts() {
+    SamplingRateController controller = new SamplingRateController(10 * MS, 10, 0.01);
+    sample(controller, 10, 10 * MS, MS / 1000, 100);
+    Assert.assertEquals("cheap samples, no need to adapt " + controller, 10 * MS, controller.getIntervalNanos());
+    sample(controller, 100, 10 * MS, MS / 100, 100);
+    Assert.assertEquals(controller.toString(), 99d * MS, controller.getIntervalNanos(), MS / 100d);
+    Assert.assertEquals(Integer.MAX_VALUE, controller.getMaxSampledThreads());
+  }
+
+  @Test
+  public void testThreadSubsets() {
+    SamplingRateController controller = new SamplingRateController(10 * MS, 10, 0.01);
+    // 0.1 ms / thread, 10 ms to sample 100 threads
+    sample(controller, 100, 100 * MS, MS / 10, 100);
+    Assert.assertEquals(100 * MS, controller.getIntervalNanos());
+    // 100ms * 0.01 / 0.99 / 0.1 ms -> 10 threads.
+    Assert.assertEquals(controller.toString(), 10, controller.getMaxSampledThreads());
+    // cheaper again, all threads can be sampled.
+    controller.setOverheadBudget(0.5);
+    sample(controller, 1, 100 * MS, MS / 10, 100);
+    Assert.assertEquals(Integer.MAX_VALUE, controller.getMaxSampledThreads());
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long interval = controller.getIntervalNanos();
+    for (int i = 0; i < 100; i++) {
+      long sleep = controller.nextSleepNanos(random);
+      Assert.assertTrue(sleep >= interval / 2 && sleep < interval + interval / 2);
+    }
+  }
+
+  @Test
+  public void testThreadLimitIsStable() {
+    SamplingRateController controller = new SamplingRateController(10 * MS, 10, 0.02);
+    // 1 ms fixed + 0.1 ms / thread, sampling all 200 threads would take 21 ms.
+    long fixedNanos = MS;
+    long threadNanos = MS / 10;
+    int nrThreads = 200;
+    long start = 0;
+    int limit = -1;
+    for (int i = 0; i < 300; i++) {
+      int nrSampled = Math.min(nrThreads, controller.getMaxSampledThreads());
+      long cost = fixedNanos + nrSampled * threadNanos;
+      controller.sampled(start, start + cost, nrSampled, nrThreads);
+      start += controller.getIntervalNanos();
+      if (i == 50) {
+        limit = controller.getMaxSampledThreads();
+      } else if (i > 50) {
+        Assert.assertEquals(controller.toString(), limit, controller.getMaxSampledThreads());
+        Assert.assertEquals(100 * MS, controller.getIntervalNanos());
+        Assert.assertTrue(controller.toString(), (double) cost / (cost + controller.getIntervalNanos()) <= 0.025);
+      }
+    }
+    // (100 ms * 0.02 / 0.98 - 1 ms) / 0.1 ms -> 10 threads.
+    Assert.assertTrue(controller.toString(), limit >= 9 && limit <= 12);
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testInvalidBudget() {
+    SamplingRateController controller = new SamplingRateController(10 * MS, 10, 1);
+    Assert.fail("Budget must be < 1 " + controller);
+  }
+
+  @Test
+  public void testRoundRobinSubsets() {
+    CountDownLatch stop = new CountDownLatch(1);
+    Thread[] threads = new Thread[4];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread(() -> {
+        try {
+          stop.await();
+        } catch (InterruptedException ex) {
+          throw new RuntimeException(ex);
+        }
+      }, "rr-test-" + i);
+      threads[i].setDaemon(true);
+      threads[i].start();
+    }
+    try {
+      FastStackCollector collector = new FastStackCollector((t) -> !t.getName().startsWith("rr-test-"));
+      Assert.assertTrue(collector.setMaxSampledThreads(3));
+      collector.sample(Thread.currentThread());
+      Assert.assertEquals(3, collector.getLastNrSampledThreads());
+      Assert.assertEquals(4, collector.getLastNrThreads());
+      collector.sample(Thread.currentThread());
+      SampleNode samples = collector.clear();
+      Assert.assertNotNull(samples);
+      // 2 samples of 3 threads out of 4.
+      Assert.assertEquals(6, samples.getSampleCount());
+      collector.setMaxSampledThreads(Integer.MAX_VALUE);
+      collector.sample(Thread.currentThread());
+      Assert.assertEquals(4, collector.getLastNrSampledThreads());
+    } finally {
+      stop.countDown();
+    }
+  }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.primitives.Longs;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.spf4j.base.Either;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.ColumnEncoding;
+import org.spf4j.tsdb2.avro.ColumnarDataBlock;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.DataRow;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS", "PSC_PRESIZE_COLLECTIONS"})
+public class ColumnarBlocksTest {
+
+  private static final Logger LOG = LoggerFactory.getLogger(ColumnarBlocksTest.class);
+
+  @Test
+  public void testEncodings() {
+    Random rnd = new Random(0);
+    long[] values = new long[1000];
+    for (int i = 0; i < values.length; i++) {
+      switch (i % 5) {
+        case 0:
+          values[i] = rnd.nextLong();
+          break;
+        case 1:
+          values[i] = Long.MIN_VALUE;
+          break;
+        case 2:
+          values[i] = Long.MAX_VALUE;
+          break;
+        case 3:
+          values[i] = Double.doubleToRawLongBits(rnd.nextDouble());
+          break;
+        default:
+          values[i] = rnd.nextInt(100) - 50;
+      }
+    }
+    Assert.assertArrayEquals(values, ColumnarBlocks.decodeDelta(ColumnarBlocks.encodeDelta(values).toByteBuffer(),
+            values.length));
+    Assert.assertArrayEquals(values, ColumnarBlocks.decodeXor(ColumnarBlocks.encodeXor(values).toByteBuffer(),
+            values.length));
+    long[] constant = new long[1000];
+    Arrays.fill(constant, 12345L);
+    Assert.assertTrue(ColumnarBlocks.encodeXor(constant).getBitSize() < 1100);
+    Assert.assertTrue(ColumnarBlocks.encodeDelta(constant).getBitSize() < 1100);
+  }
+
+  @Test
+  public void testBlockConversion() {
+    List<DataRow> rows = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      rows.add(new DataRow(i * 1000 + (i % 3), 1L, Longs.asList(i, 100 - i, 5)));
+      rows.add(new DataRow(i * 1000, 2L, Longs.asList(Double.doubleToRawLongBits(i / 3.0))));
+    }
+    DataBlock block = new DataBlock(System.currentTimeMillis(), rows);
+    ColumnarDataBlock columnar = ColumnarBlocks.toColumnar(block);
+    Assert.assertNotNull(columnar);
+    Assert.assertEquals(2, columnar.getTables().size());
+    Assert.assertEquals(ColumnEncoding.DELTA, columnar.getTables().get(0).getColumns().get(0).getEncoding());
+    DataBlock back = ColumnarBlocks.toDataBlock(columnar);
+    Assert.assertEquals(block.getBaseTimestamp(), back.getBaseTimestamp());
+    List<DataRow> expected = new ArrayList<>(rows.size());
+    for (DataRow row : rows) {
+      if (row.getTableDefId() == 1L) {
+        expected.add(row);
+      }
+    }
+    for (DataRow row : rows) {
+      if (row.getTableDefId() == 2L) {
+        expected.add(row);
+      }
+    }
+    Assert.assertEquals(expected, back.getValues());
+    rows.add(new DataRow(0, 1L, Longs.asList(1)));
+    Assert.assertNull(ColumnarBlocks.toColumnar(new DataBlock(0L, rows)));
+  }
+
+  @Test
+  public void testReadBothFormats() throws IOException {
+    TableDef tableDef = TableDef.newBuilder()
+          .setName("test")
+          .setSampleTime(1000)
+          .setColumns(Arrays.asList(
+                  ColumnDef.newBuilder().setName("a").setUnitOfMeasurement("ms").build(),
+                  ColumnDef.newBuilder().setName("b").setUnitOfMeasurement("ms").build()))
+          .build();
+    File legacy = File.createTempFile("legacy", ".tsdb2");
+    File columnar = File.createTempFile("columnar", ".tsdb2");
+    long time = System.currentTimeMillis();
+    long legacyTableId = writeTestData(legacy, false, tableDef, time);
+    long tableId = writeTestData(columnar, true, tableDef, time);
+    LOG.debug("legacy size = {}, columnar size = {}", legacy.length(), columnar.length());
+    Assert.assertTrue(columnar.length() * 3 < legacy.length());
+    TimeSeries expected = TSDBQuery.getTimeSeries(legacy, new long[] {legacyTableId}, time + 10000, time + 50000);
+    TimeSeries actual = TSDBQuery.getTimeSeries(columnar, new long[] {tableId}, time + 10000, time + 50000);
+    Assert.assertEquals(40001, actual.getTimeStamps().length);
+    Assert.assertArrayEquals(expected.getTimeStamps(), actual.getTimeStamps());
+    Assert.assertArrayEquals(expected.getValues(), actual.getValues());
+    int nrRows = 0;
+    try (TSDBReader reader = new TSDBReader(columnar, 8192)) {
+      Either<TableDef, DataBlock> read;
+      while ((read = reader.read()) != null) {
+        if (read.isRight()) {
+          nrRows += read.getRight().getValues().size();
+        }
+      }
+    }
+    Assert.assertEquals(100000, nrRows);
+    // append preserves the file format.
+    try (TSDBWriter writer = new TSDBWriter(legacy, 100, null, true, true)) {
+      Assert.assertFalse(writer.isColumnar());
+    }
+    try (TSDBWriter writer = new TSDBWriter(columnar, 100, null, true, false)) {
+      Assert.assertTrue(writer.isColumnar());
+    }
+  }
+
+  private static long writeTestData(final File file, final boolean columnar, final TableDef tableDef,
+          final long time) throws IOException {
+    try (TSDBWriter writer = new TSDBWriter(file, 1000, "test", false, columnar)) {
+      long tableId = writer.writeTableDef(tableDef);
+      for (int i = 0; i < 100000; i++) {
+        writer.writeDataRow(tableId, time + i, i / 100, i % 7 == 0 ? 1 : 0);
+      }
+      return tableId;
+    }
+  }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS", "CC_CYCLOMATIC_COMPLEXITY", "SEO_SUBOPTIMAL_EXPRESSION_ORDER"})
+public class IndexedTSDBReaderTest {
+
+  private static TableDef createTableDef(final String name) {
+    return TableDef.newBuilder()
+          .setName(name)
+          .setDescription("test")
+          .setSampleTime(0)
+          .setColumns(Arrays.asList(
+                  ColumnDef.newBuilder().setName("a").setDescription("atest").setUnitOfMeasurement("ms").build(),
+                  ColumnDef.newBuilder().setName("b").setDescription("btest").setUnitOfMeasurement("ms").build()))
+          .build();
+  }
+
+  @Test
+  public void testRangeQuery() throws IOException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    long t1;
+    long t2;
+    long time = System.currentTimeMillis();
+    try (TSDBWriter writer = new TSDBWriter(testFile, 10, "test", false)) {
+      t1 = writer.writeTableDef(createTableDef("t1"));
+      t2 = writer.writeTableDef(createTableDef("t2"));
+      for (int i = 0; i < 1000; i++) {
+        writer.writeDataRow(t1, time + i * 10L, i, 1);
+        if (i % 2 == 0) {
+          writer.writeDataRow(t2, time + i * 10L, i, 2);
+        }
+      }
+    }
+    Assert.assertTrue(TSDBIndex.getIndexFile(testFile).exists());
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(testFile)) {
+      Assert.assertEquals(2, reader.getTableDefs().size());
+      List<DataBlock> blocks = reader.getDataBlocks(new long[] {t1}, time + 5000, time + 5100);
+      Assert.assertTrue(blocks.size() <= 2);
+      TimeSeries ts = reader.getTimeSeries(new long[] {t1}, time + 5000, time + 5100);
+      Assert.assertEquals(11, ts.getTimeStamps().length);
+      Assert.assertEquals(time + 5000, ts.getTimeStamps()[0]);
+      Assert.assertEquals(500L, ts.getValues()[0][0]);
+      TimeSeries ts2 = reader.getTimeSeries(new long[] {t2}, time + 5000, time + 5100);
+      Assert.assertEquals(6, ts2.getTimeStamps().length);
+      Assert.assertEquals(0, reader.getTimeSeries(new long[] {t1}, time + 20000, Long.MAX_VALUE)
+              .getTimeStamps().length);
+    }
+    assertSameAsScan(testFile, t1, time + 1234, time + 7891);
+    // old file without index, index must be rebuilt transparently, and not written by readers.
+    Files.delete(TSDBIndex.getIndexFile(testFile).toPath());
+    assertSameAsScan(testFile, t1, time + 1234, time + 7891);
+    Assert.assertFalse(TSDBIndex.getIndexFile(testFile).exists());
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(testFile)) {
+      reader.persistIndex();
+    }
+    Assert.assertTrue(TSDBIndex.getIndexFile(testFile).exists());
+    // stale/corrupted index.
+    try (RandomAccessFile raf = new RandomAccessFile(TSDBIndex.getIndexFile(testFile), "rw")) {
+      raf.setLength(raf.length() / 2 + 3);
+    }
+    assertSameAsScan(testFile, t2, time + 1234, time + 7891);
+    // append to a file with stale index.
+    try (TSDBWriter writer = new TSDBWriter(testFile, 10, null, true)) {
+      for (int i = 1000; i < 1100; i++) {
+        writer.writeDataRow(t1, time + i * 10L, i, 1);
+      }
+    }
+    assertSameAsScan(testFile, t1, time + 9000, time + 10500);
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(testFile)) {
+      Assert.assertEquals(1100, reader.getTimeSeries(new long[] {t1}, 0, Long.MAX_VALUE).getTimeStamps().length);
+    }
+  }
+
+  @Test
+  public void testCorruptedIdsCount() throws IOException {
+    File indexFile = File.createTempFile("test", ".tsdb2.idx");
+    try (DataOutputStream dos = new DataOutputStream(Files.newOutputStream(indexFile.toPath()))) {
+      TSDBIndex.writeHeader(dos);
+      dos.writeByte(1); // data block
+      dos.writeLong(100); // offset
+      dos.writeInt(64); // length
+      dos.writeLong(0);
+      dos.writeLong(0);
+      dos.writeLong(0);
+      dos.writeInt(Integer.MAX_VALUE); // nr ids
+    }
+    TSDBIndex index = TSDBIndex.load(indexFile, 100, 1000);
+    Assert.assertEquals(100, index.getCoveredSize());
+  }
+
+  @Test
+  public void testRefresh() throws IOException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    long time = System.currentTimeMillis();
+    try (TSDBWriter writer = new TSDBWriter(testFile, 10, "test", false)) {
+      long t1 = writer.writeTableDef(createTableDef("t1"));
+      writer.writeDataRow(t1, time, 0, 1);
+      writer.flush();
+      try (IndexedTSDBReader reader = new IndexedTSDBReader(testFile)) {
+        Assert.assertEquals(1, reader.getTimeSeries(new long[] {t1}, 0, Long.MAX_VALUE).getTimeStamps().length);
+        Assert.assertFalse(reader.refresh());
+        writer.writeDataRow(t1, time + 10, 1, 1);
+        writer.flush();
+        Assert.assertTrue(reader.refresh());
+        Assert.assertEquals(2, reader.getTimeSeries(new long[] {t1}, 0, Long.MAX_VALUE).getTimeStamps().length);
+      }
+    }
+  }
+
+  private static void assertSameAsScan(final File testFile, final long tableId,
+          final long startTime, final long endTime) throws IOException {
+    TimeSeries expected = scan(testFile, tableId, startTime, endTime);
+    TimeSeries actual = TSDBQuery.getTimeSeries(testFile, new long[] {tableId}, startTime, endTime);
+    Assert.assertArrayEquals(expected.getTimeStamps(), actual.getTimeStamps());
+    Assert.assertArrayEquals(expected.getValues(), actual.getValues());
+  }
+
+  private static TimeSeries scan(final File testFile, final long tableId,
+          final long startTime, final long endTime) throws IOException {
+    long[] timestamps = new long[0];
+    long[][] values = new long[0][];
+    try (TSDBReader reader = new TSDBReader(testFile, 8192)) {
+      org.spf4j.base.Either<TableDef, DataBlock> read;
+      while ((read = reader.read()) != null) {
+        if (read.isRight()) {
+          DataBlock block = read.getRight();
+          for (org.spf4j.tsdb2.avro.DataRow row : block.getValues()) {
+            long ts = block.getBaseTimestamp() + row.getRelTimeStamp();
+            if (row.getTableDefId() == tableId && ts >= startTime && ts <= endTime) {
+              timestamps = Arrays.copyOf(timestamps, timestamps.length + 1);
+              timestamps[timestamps.length - 1] = ts;
+              values = Arrays.copyOf(values, values.length + 1);
+              values[values.length - 1] = com.google.common.primitives.Longs.toArray(row.getData());
+            }
+          }
+        }
+      }
+    }
+    return new TimeSeries(timestamps, values);
+  }
+
+}
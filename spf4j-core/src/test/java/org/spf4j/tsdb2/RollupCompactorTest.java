@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.collect.ListMultimap;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS", "CC_CYCLOMATIC_COMPLEXITY"})
+public class RollupCompactorTest {
+
+  private static final long START = 1500000000000L;
+
+  private static final int NR_ROWS = 3 * 360 + 7;
+
+  @Test
+  public void testDownsampleAndRollup() throws IOException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    long tableId;
+    try (TSDBWriter writer = new TSDBWriter(testFile, 100, "test", false)) {
+      tableId = writer.writeTableDef(TableDef.newBuilder()
+              .setName("test").setSampleTime(10000)
+              .setColumns(Arrays.asList(
+                      ColumnDef.newBuilder().setName("a").setUnitOfMeasurement("ms").build(),
+                      ColumnDef.newBuilder().setName("b").setUnitOfMeasurement("ms").build()))
+              .build());
+      // 3 hours of 10 second data.
+      for (int i = 0; i < NR_ROWS; i++) {
+        writer.writeDataRow(tableId, START + i * 10000L, i, i % 13);
+      }
+      writer.flush();
+      try (RollupCompactor compactor = new RollupCompactor(writer, 60000, 3600000)) {
+        // 3 * 60 + 1 complete minutes, 3 complete hours.
+        Assert.assertEquals(3 * 60 + 1 + 3, compactor.compact());
+        Assert.assertEquals(0, compactor.compact());
+      }
+    }
+    // raw downsampling.
+    List<DownsampledRow> raw = new ArrayList<>();
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(testFile)) {
+      reader.downsample(new long[] {tableId}, 0, Long.MAX_VALUE, 60000,
+              (DownsampledRow row, long deadline) -> raw.add(row));
+    }
+    Assert.assertEquals(3 * 60 + 2, raw.size());
+    DownsampledRow first = raw.get(0);
+    Assert.assertEquals(START - START % 60000, first.getBucketStart());
+    long[] expectedSum = new long[2];
+    long expectedCount = 0;
+    for (int i = 0; i < NR_ROWS; i++) {
+      long ts = START + i * 10000L;
+      if (ts < first.getBucketEnd()) {
+        expectedSum[0] += i;
+        expectedSum[1] += i % 13;
+        expectedCount++;
+      }
+    }
+    Assert.assertEquals(expectedCount, first.getCount());
+    Assert.assertArrayEquals(expectedSum, first.getSum());
+
+    ListMultimap<String, TableDef> tables = TSDBQuery.getAllTables(testFile);
+    Assert.assertTrue(tables.containsKey(RollupCompactor.getRollupTableName("test", 60000)));
+    Assert.assertTrue(tables.containsKey(RollupCompactor.getRollupTableName("test", 3600000)));
+
+    // rollup based query must match raw downsampling.
+    assertSameAsRaw(testFile, tableId, START + 12345, START + 3 * 3600000L, 3600000);
+    assertSameAsRaw(testFile, tableId, START + 12345, START + 3 * 3600000L, 120000);
+    assertSameAsRaw(testFile, tableId, 0, Long.MAX_VALUE - 3600000, 60000);
+
+    // append, compaction state is recovered from the file.
+    try (TSDBWriter writer = new TSDBWriter(testFile, 100, null, true);
+            RollupCompactor compactor = new RollupCompactor(writer, 60000, 3600000)) {
+      Assert.assertEquals(0, compactor.compact());
+      for (int i = NR_ROWS; i < NR_ROWS + 10; i++) {
+        writer.writeDataRow(tableId, START + i * 10000L, i, i % 13);
+      }
+      writer.flush();
+      Assert.assertEquals(1, compactor.compact());
+    }
+    assertSameAsRaw(testFile, tableId, 0, Long.MAX_VALUE - 3600000, 60000);
+  }
+
+  private static void assertSameAsRaw(final File file, final long tableId,
+          final long start, final long end, final long bucketMillis) throws IOException {
+    List<DownsampledRow> expected = new ArrayList<>();
+    try (IndexedTSDBReader reader = new IndexedTSDBReader(file)) {
+      reader.downsample(new long[] {tableId}, start, end, bucketMillis,
+              (DownsampledRow row, long deadline) -> expected.add(row));
+    }
+    List<DownsampledRow> actual = TSDBQuery.getDownsampledTimeSeries(file, "test", start, end, bucketMillis);
+    Assert.assertEquals(expected.size(), actual.size());
+    for (int i = 0; i < expected.size(); i++) {
+      DownsampledRow e = expected.get(i);
+      DownsampledRow a = actual.get(i);
+      Assert.assertEquals(e.getBucketStart(), a.getBucketStart());
+      Assert.assertEquals(e.getCount(), a.getCount());
+      Assert.assertArrayEquals(e.getMin(), a.getMin());
+      Assert.assertArrayEquals(e.getMax(), a.getMax());
+      Assert.assertArrayEquals(e.getSum(), a.getSum());
+      Assert.assertArrayEquals(e.getLast(), a.getLast());
+    }
+  }
+
+}
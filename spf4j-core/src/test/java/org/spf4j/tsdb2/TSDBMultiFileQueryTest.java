@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import com.google.common.collect.ImmutableSet;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.Pair;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ *
+ * @author zoly
+ */
+public class TSDBMultiFileQueryTest {
+
+  private static TableDef tableDef(final String name, final String... columns) {
+    List<ColumnDef> cols = new ArrayList<>(columns.length);
+    for (String col : columns) {
+      cols.add(ColumnDef.newBuilder().setName(col).setDescription(col).setUnitOfMeasurement("ms").build());
+    }
+    return TableDef.newBuilder().setName(name).setDescription(name).setSampleTime(10).setColumns(cols).build();
+  }
+
+  @Test
+  public void testMultiFileQuery() throws IOException {
+    File dir = Files.createTempDirectory("tsdbmf").toFile();
+    // second process run, with an extra column.
+    try (TSDBWriter writer = new TSDBWriter(new File(dir, "p2.tsdb2"), 4, "p2", false)) {
+      long tid = writer.writeTableDef(tableDef("t", "a", "b", "c"));
+      long uid = writer.writeTableDef(tableDef("u", "x"));
+      writer.writeDataRow(tid, 2000, 5, 6, 7);
+      writer.writeDataRow(uid, 2000, 100);
+      writer.writeDataRow(tid, 2010, 8, 9, 10);
+    }
+    // first process run.
+    try (TSDBWriter writer = new TSDBWriter(new File(dir, "p1.tsdb2"), 4, "p1", false)) {
+      long tid = writer.writeTableDef(tableDef("t", "b", "a"));
+      writer.writeDataRow(tid, 1000, 1, 2);
+      writer.writeDataRow(tid, 2005, 3, 4);
+    }
+    // out of the queried time range.
+    try (TSDBWriter writer = new TSDBWriter(new File(dir, "p0.tsdb2"), 4, "p0", false)) {
+      long tid = writer.writeTableDef(tableDef("t", "a", "b"));
+      writer.writeDataRow(tid, 10, 1, 1);
+    }
+    Files.createFile(dir.toPath().resolve("other.txt"));
+    Assert.assertEquals(3, TSDBMultiFileQuery.getFiles(dir, "*.tsdb2").size());
+
+    Map<String, Pair<TableDef, TimeSeries>> result = TSDBMultiFileQuery.getTimeSeries(dir, "*.tsdb2",
+            ImmutableSet.of("t"), 500, 3000);
+    Assert.assertEquals(1, result.size());
+    Pair<TableDef, TimeSeries> t = result.get("t");
+    Assert.assertArrayEquals(new String[] {"b", "a", "c"}, TSDBQuery.getColumnNames(t.getFirst()));
+    TimeSeries ts = t.getSecond();
+    Assert.assertArrayEquals(new long[] {1000, 2000, 2005, 2010}, ts.getTimeStamps());
+    final long m = TSDBMultiFileQuery.MISSING;
+    Assert.assertArrayEquals(new long[][] {{1, 2, m}, {6, 5, 7}, {3, 4, m}, {9, 8, 10}}, ts.getValues());
+
+    result = TSDBMultiFileQuery.getTimeSeries(new ForkJoinPool(2),
+            TSDBMultiFileQuery.getFiles(dir, "*.tsdb2"), (h) -> "p2".equals(h.getDescription()),
+            null, 0, Long.MAX_VALUE);
+    Assert.assertEquals(2, result.size());
+    Assert.assertArrayEquals(new long[][] {{100}}, result.get("u").getSecond().getValues());
+    Assert.assertEquals(Arrays.asList("a", "b", "c"),
+            Arrays.asList(TSDBQuery.getColumnNames(result.get("t").getFirst())));
+  }
+
+}
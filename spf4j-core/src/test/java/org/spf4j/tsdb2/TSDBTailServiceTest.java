@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.hamcrest.Matchers;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.base.Either;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.test.log.Level;
+import org.spf4j.test.log.LogAssert;
+import org.spf4j.test.log.LogMatchers;
+import org.spf4j.test.log.TestLoggers;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.DataBlock;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ *
+ * @author zoly
+ */
+@SuppressFBWarnings({"PRMC_POSSIBLY_REDUNDANT_METHOD_CALLS", "MDM_THREAD_YIELD"})
+public class TSDBTailServiceTest {
+
+  private final TableDef tableDef = TableDef.newBuilder()
+          .setName("test")
+          .setDescription("test")
+          .setSampleTime(0)
+          .setColumns(Arrays.asList(
+                  ColumnDef.newBuilder().setName("a").setDescription("atest").setUnitOfMeasurement("ms").build(),
+                  ColumnDef.newBuilder().setName("b").setDescription("btest").setUnitOfMeasurement("ms").build()))
+          .build();
+
+  @Test
+  public void testTailMultipleFiles() throws IOException, InterruptedException {
+    File file1 = File.createTempFile("tail1", ".tsdb2");
+    File file2 = File.createTempFile("tail2", ".tsdb2");
+    try (TSDBWriter writer1 = new TSDBWriter(file1, 4, "test", true);
+            TSDBWriter writer2 = new TSDBWriter(file2, 4, "test", true);
+            TSDBTailService service = new TSDBTailService(TSDBReader.EventSensitivity.HIGH, 16,
+                    DefaultExecutor.INSTANCE)) {
+      long tableId1 = writer1.writeTableDef(tableDef);
+      writer1.flush();
+      final BlockingQueue<Either<TableDef, DataBlock>> queue1 = new LinkedBlockingQueue<>();
+      final BlockingQueue<Either<TableDef, DataBlock>> queue2 = new LinkedBlockingQueue<>();
+      TSDBTailService.Subscription<?> sub1 = service.subscribe(file1,
+              (Either<TableDef, DataBlock> object, long deadline) -> queue1.put(object));
+      service.subscribe(file2, (Either<TableDef, DataBlock> object, long deadline) -> queue2.put(object));
+      Assert.assertEquals(2, service.getNrSubscriptions());
+      Assert.assertEquals(tableDef, queue1.poll(10, TimeUnit.SECONDS).getLeft());
+      long tableId2 = writer2.writeTableDef(tableDef);
+      writer2.flush();
+      Assert.assertEquals(tableDef, queue2.poll(10, TimeUnit.SECONDS).getLeft());
+      final long time = System.currentTimeMillis();
+      writer1.writeDataRow(tableId1, time, 1, 2);
+      writer1.writeDataRow(tableId1, time + 10, 3, 4);
+      writer1.flush();
+      writer2.writeDataRow(tableId2, time, 5, 6);
+      writer2.flush();
+      Assert.assertEquals(2, queue1.poll(10, TimeUnit.SECONDS).getRight().getValues().size());
+      DataBlock block2 = queue2.poll(10, TimeUnit.SECONDS).getRight();
+      Assert.assertEquals(1, block2.getValues().size());
+      Assert.assertEquals(Arrays.asList(5L, 6L), block2.getValues().get(0).getData());
+      sub1.cancel();
+      Assert.assertTrue(sub1.isCanceled());
+      Assert.assertEquals(1, service.getNrSubscriptions());
+      writer1.writeDataRow(tableId1, time + 20, 7, 8);
+      writer1.flush();
+      writer2.writeDataRow(tableId2, time + 20, 9, 10);
+      writer2.flush();
+      Assert.assertEquals(Arrays.asList(9L, 10L), queue2.poll(10, TimeUnit.SECONDS).getRight()
+              .getValues().get(0).getData());
+      Assert.assertTrue(queue1.isEmpty());
+    }
+  }
+
+  @Test
+  public void testBackPressure() throws IOException, InterruptedException {
+    File file = File.createTempFile("tailbp", ".tsdb2");
+    try (TSDBWriter writer = new TSDBWriter(file, 4, "test", true);
+            TSDBTailService service = new TSDBTailService(TSDBReader.EventSensitivity.HIGH, 2,
+                    DefaultExecutor.INSTANCE)) {
+      long tableId = writer.writeTableDef(tableDef);
+      final long time = System.currentTimeMillis();
+      for (int i = 0; i < 20; i++) {
+        writer.writeDataRow(tableId, time + i, i, i);
+        writer.flush();
+      }
+      final CountDownLatch release = new CountDownLatch(1);
+      final BlockingQueue<Either<TableDef, DataBlock>> queue = new LinkedBlockingQueue<>();
+      TSDBTailService.Subscription<?> sub = service.subscribe(file,
+              (Either<TableDef, DataBlock> object, long deadline) -> {
+                release.await();
+                queue.put(object);
+              });
+      Thread.sleep(100);
+      Assert.assertTrue(sub.getNrPending() <= 2);
+      release.countDown();
+      Assert.assertEquals(tableDef, queue.poll(10, TimeUnit.SECONDS).getLeft());
+      for (int i = 0; i < 20; i++) {
+        DataBlock block = queue.poll(10, TimeUnit.SECONDS).getRight();
+        Assert.assertEquals((long) i, (long) block.getValues().get(0).getData().get(0));
+      }
+    }
+  }
+
+  @Test
+  public void testRejectedHandlingCancelsOnlyThatSubscription() throws IOException, InterruptedException {
+    File file1 = File.createTempFile("tailrej1", ".tsdb2");
+    File file2 = File.createTempFile("tailrej2", ".tsdb2");
+    final AtomicBoolean reject = new AtomicBoolean();
+    Executor executor = (Runnable command) -> {
+      if (reject.get()) {
+        throw new RejectedExecutionException("test rejection " + command);
+      }
+      DefaultExecutor.INSTANCE.execute(command);
+    };
+    try (TSDBWriter writer1 = new TSDBWriter(file1, 4, "test", true);
+            TSDBWriter writer2 = new TSDBWriter(file2, 4, "test", true);
+            TSDBTailService service = new TSDBTailService(TSDBReader.EventSensitivity.HIGH, 16, executor)) {
+      final BlockingQueue<Either<TableDef, DataBlock>> queue2 = new LinkedBlockingQueue<>();
+      TSDBTailService.Subscription<?> sub1 = service.subscribe(file1,
+              (Either<TableDef, DataBlock> object, long deadline) -> { });
+      LogAssert expect = TestLoggers.sys().expect(TSDBTailService.class.getName(), Level.ERROR,
+              LogMatchers.hasMatchingFormat(Matchers.startsWith("Failed scheduling handling of records")));
+      reject.set(true);
+      writer1.writeTableDef(tableDef);
+      writer1.flush();
+      long deadline = System.currentTimeMillis() + 10000;
+      while (!sub1.isCanceled() && System.currentTimeMillis() < deadline) {
+        Thread.sleep(10);
+      }
+      Assert.assertTrue(sub1.isCanceled());
+      expect.assertObservation();
+      reject.set(false);
+      service.subscribe(file2, (Either<TableDef, DataBlock> object, long dl) -> queue2.put(object));
+      writer2.writeTableDef(tableDef);
+      writer2.flush();
+      Assert.assertEquals(tableDef, queue2.poll(10, TimeUnit.SECONDS).getLeft());
+      Assert.assertEquals(1, service.getNrSubscriptions());
+    }
+  }
+
+}
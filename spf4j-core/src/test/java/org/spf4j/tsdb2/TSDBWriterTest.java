@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2001-2017, Zoltan Farkas All Rights Reserved.
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ *
+ * Additionally licensed with:
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.spf4j.tsdb2;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.junit.Assert;
+import org.junit.Test;
+import org.spf4j.concurrent.DefaultExecutor;
+import org.spf4j.tsdb2.avro.ColumnDef;
+import org.spf4j.tsdb2.avro.TableDef;
+
+/**
+ *
+ * @author zoly
+ */
+public class TSDBWriterTest {
+
+  @Test
+  public void testForceOnFlush() throws IOException, InterruptedException, ExecutionException {
+    testConcurrentWrites(TSDBWriter.Durability.FORCE_ON_FLUSH);
+  }
+
+  @Test
+  public void testForcePeriodic() throws IOException, InterruptedException, ExecutionException {
+    testConcurrentWrites(TSDBWriter.Durability.FORCE_PERIODIC);
+  }
+
+  @Test
+  public void testNoForce() throws IOException, InterruptedException, ExecutionException {
+    testConcurrentWrites(TSDBWriter.Durability.NO_FORCE);
+  }
+
+  private static void testConcurrentWrites(final TSDBWriter.Durability durability)
+          throws IOException, InterruptedException, ExecutionException {
+    File testFile = File.createTempFile("test", ".tsdb2");
+    final long time = System.currentTimeMillis();
+    final int nrThreads = 4;
+    final int nrRows = 500;
+    long[] tableIds = new long[nrThreads];
+    try (TSDBWriter writer = new TSDBWriter(testFile, 16, "test", false, true, durability, 10);
+            TSDBReader reader = new TSDBReader(testFile, 8192)) {
+      Assert.assertEquals(durability, writer.getDurability());
+      for (int i = 0; i < nrThreads; i++) {
+        tableIds[i] = writer.writeTableDef(TableDef.newBuilder()
+                .setName("t" + i).setSampleTime(10)
+                .setColumns(Arrays.asList(
+                        ColumnDef.newBuilder().setName("a").setUnitOfMeasurement("ms").build()))
+                .build());
+      }
+      List<Future<?>> futures = new ArrayList<>(nrThreads);
+      for (int i = 0; i < nrThreads; i++) {
+        final long tableId = tableIds[i];
+        futures.add(DefaultExecutor.INSTANCE.submit(() -> {
+          for (int j = 0; j < nrRows; j++) {
+            writer.writeDataRow(tableId, time + j, j);
+            if (j % 50 == 0) {
+              writer.flush();
+            }
+          }
+          writer.flush();
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+      // all data is flushed, a reader must see a EOF pointer that covers all of it.
+      reader.reReadSize();
+      Assert.assertEquals(testFile.length(), reader.getSize());
+    }
+    for (long tableId : tableIds) {
+      TimeSeries ts = TSDBQuery.getTimeSeries(testFile, new long[] {tableId}, 0, Long.MAX_VALUE);
+      Assert.assertEquals(nrRows, ts.getTimeStamps().length);
+      Assert.assertEquals(nrRows - 1, ts.getValues()[nrRows - 1][0]);
+    }
+  }
+
+}
@@ -194,7 +194,7 @@ public class Explorer extends javax.swing.JFrame {
       frame = new TSDBViewJInternalFrame(file);
     } else if (fileName.endsWith("tsdb2")) {
       frame = new TSDB2ViewJInternalFrame(file);
-    } else if (fileName.endsWith("ssdump") || fileName.endsWith("ssdump2")) {
+    } else if (fileName.endsWith("ssdump") || fileName.endsWith("ssdump2") || fileName.endsWith("ssdump3")) {
       frame = new StackDumpJInternalFrame(file, true);
       frame.setVisible(true);
       desktopPane.add(frame, javax.swing.JLayeredPane.DEFAULT_LAYER);
@@ -273,7 +273,7 @@ public class Explorer extends javax.swing.JFrame {
       } else if (f.isFile()) {
         String name = f.getName();
         return (name.endsWith("tsdb") || name.endsWith("tsdb2")
-                || name.endsWith("ssdump") || name.endsWith("ssdump2"));
+                || name.endsWith("ssdump") || name.endsWith("ssdump2") || name.endsWith("ssdump3"));
       } else {
         return false;
       }
@@ -70,7 +70,7 @@ public class StackDumpJInternalFrame extends javax.swing.JInternalFrame {
                 samples = Converter.fromProtoToSampleNode(ProtoSampleNodes.SampleNode.parseFrom(is));
             }
         } else {
-            samples = org.spf4j.ssdump2.Converter.load(sampleFile);
+            samples = org.spf4j.ssdump3.Ssdump3.load(sampleFile);
         }
         if (samples == null) {
           samples = new SampleNode(new StackTraceElement[] {new StackTraceElement("NO SAMPLES", "", "", -1)}, 0);